@@ -52,6 +52,7 @@ public class ArgParser {
   
   public static final String CSV_BATCH_INPUT    = "csvImport";
   public static final String WEB_BATCH_OUTPUT   = "webExport";
+  public static final String WEB_BATCH_THREADS  = "webThreads";
   public static final String IMAGE_BATCH_OUTPUT = "imageExport";
   public static final String BTP_BATCH_OUTPUT   = "saveFile";
   public static final String CSV_BATCH_COMPRESS = "compress";
@@ -201,6 +202,7 @@ public class ArgParser {
       retval.add(new ArgInfo(FILE, true, true));      
       retval.add(new ArgInfo(CSV_BATCH_INPUT, true, true));    
       retval.add(new ArgInfo(WEB_BATCH_OUTPUT, true, true));    
+      retval.add(new ArgInfo(WEB_BATCH_THREADS, true, true));    
       retval.add(new ArgInfo(IMAGE_BATCH_OUTPUT, true, true));    
       retval.add(new ArgInfo(BTP_BATCH_OUTPUT, true, true));
       retval.add(new ArgInfo(CSV_BATCH_COMPRESS, false, false));
@@ -0,0 +1,246 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biotapestry.app;
+
+import java.awt.geom.Point2D;
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.List;
+
+import org.systemsbiology.biotapestry.cmd.flow.io.AutoSaveCheckpointer;
+import org.systemsbiology.biotapestry.cmd.undo.GenomeChangeCmd;
+import org.systemsbiology.biotapestry.cmd.undo.PropChangeCmd;
+import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
+import org.systemsbiology.biotapestry.genome.DBGenome;
+import org.systemsbiology.biotapestry.genome.DBNode;
+import org.systemsbiology.biotapestry.genome.GenomeInstance;
+import org.systemsbiology.biotapestry.genome.Node;
+import org.systemsbiology.biotapestry.ui.Layout;
+import org.systemsbiology.biotapestry.ui.NodeProperties;
+import org.systemsbiology.biotapestry.util.Indenter;
+import org.systemsbiology.biotapestry.util.UndoSupport;
+
+/****************************************************************************
+**
+** Crash test of the autosave journal. Usage: AutoSaveJournalTestWrapper
+**
+** A child JVM loads a small synthetic model, checkpoints it, and then makes
+** edits through the undo support: renames, a node move, a new node, a link
+** removal, an instance node description, and some undos and redos. It writes
+** out the model it ended up with and dies without shutting the autosave
+** down. A torn record is tacked onto the journal it left behind, and then
+** this JVM recovers from the autosave directory. Every whole journal record
+** must replay, and the recovered model must match the child's. (Group member
+** order can differ between two saves of the same model, so the lines are
+** compared as sorted lists.)
+*/
+
+public class AutoSaveJournalTestWrapper {
+
+  private static final Charset UTF8_ = Charset.forName("UTF-8");
+  private static final String EXPECTED_ = "expected.xml";
+  private static final int NUM_RECORDS_ = 10;
+
+  public static void main(String argv[]) {
+    try {
+      if ((argv.length == 2) && argv[0].equals("child")) {
+        runChild(new File(argv[1]));
+        System.exit(0);
+      } else if (argv.length != 0) {
+        System.err.println("Usage: AutoSaveJournalTestWrapper");
+        System.exit(1);
+      }
+
+      File dir = File.createTempFile("autosave", "");
+      dir.delete();
+      dir.mkdirs();
+      String java = new File(new File(System.getProperty("java.home"), "bin"), "java").getPath();
+      ProcessBuilder pb = new ProcessBuilder(java, "-Djava.awt.headless=true",
+                                             "-cp", System.getProperty("java.class.path"),
+                                             AutoSaveJournalTestWrapper.class.getName(), "child", dir.getPath());
+      pb.redirectErrorStream(true);
+      Process child = pb.start();
+      InputStream in = child.getInputStream();
+      byte[] buf = new byte[4096];
+      int got;
+      while ((got = in.read(buf)) != -1) {
+        System.out.write(buf, 0, got);
+      }
+      check(child.waitFor() == 0, "Child run failed");
+
+      //
+      // Dying partway through writing a record leaves a torn one at the end:
+      //
+
+      FileOutputStream torn = new FileOutputStream(new File(dir, "journal.bin"), true);
+      try {
+        torn.write(new byte[] {0, 0, 0, 50, 1, 2, 3});
+      } finally {
+        torn.close();
+      }
+
+      BTState appState = BackgroundSaveTestWrapper.load(model());
+      AutoSaveCheckpointer asc = new AutoSaveCheckpointer(appState, dir);
+      check(asc.start(), "Could not claim the autosave directory");
+      appState.setAutoSave(asc);
+      int replayed = asc.recover(new DataAccessContext(appState, appState.getGenome()));
+      check(replayed == NUM_RECORDS_, "Replayed " + replayed + " of " + NUM_RECORDS_ + " journal records");
+      byte[] expected = readFile(new File(dir, EXPECTED_));
+      check(sortedLines(writeLive(appState.getDB())).equals(sortedLines(expected)), "Recovered model does not match the edited one");
+      asc.shutdown();
+      System.out.println("Replayed " + replayed + " journal records");
+      System.out.println("PASSED");
+      System.exit(0);
+    } catch (Exception ex) {
+      ex.printStackTrace();
+      System.err.println("FAILED");
+      System.exit(1);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Edit the model, with the autosave journaling, and then "crash"
+  */
+
+  private static void runChild(File dir) throws IOException {
+    BTState appState = BackgroundSaveTestWrapper.load(model());
+    AutoSaveCheckpointer asc = new AutoSaveCheckpointer(appState, dir);
+    check(asc.start(), "Could not claim the autosave directory");
+    appState.setAutoSave(asc);
+    asc.checkpoint();
+
+    Database db = appState.getDB();
+    DBGenome genome = (DBGenome)db.getGenome();
+    Layout layout = db.getLayout("bioTapB");
+    DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
+
+    UndoSupport support = new UndoSupport(appState, "undo.nprop", dacx);
+    support.addEdit(new GenomeChangeCmd(appState, dacx, genome.changeGeneName("0", "Renamed")));
+    support.finish();
+
+    NodeProperties oldProps = layout.getNodeProperties("2");
+    NodeProperties newProps = oldProps.clone();
+    newProps.setLocation(new Point2D.Double(5000.0, 7000.0));
+    support = new UndoSupport(appState, "undo.moveItem", dacx);
+    support.addEdit(new PropChangeCmd(appState, dacx, layout.replaceNodeProperties(oldProps, newProps)));
+    support.finish();
+
+    String newID = "9999";
+    support = new UndoSupport(appState, "undo.addNode", dacx);
+    support.addEdit(new GenomeChangeCmd(appState, dacx, genome.addNodeWithExistingLabel(new DBNode(appState, Node.BOX, "NewBox", newID))));
+    support.addEdit(new PropChangeCmd(appState, dacx, layout.setNodeProperties(newID, new NodeProperties(db, layout, Node.BOX, newID, 3000.0, 4000.0, false))));
+    support.finish();
+
+    support = new UndoSupport(appState, "undo.deleteSelected", dacx);
+    support.addEdit(new PropChangeCmd(appState, dacx, layout.removeLinkProperties("39")));
+    support.addEdit(new GenomeChangeCmd(appState, dacx, genome.removeLinkage("39")));
+    support.finish();
+
+    GenomeInstance gi = (GenomeInstance)db.getGenome("inst0");
+    support = new UndoSupport(appState, "undo.nprop", dacx);
+    support.addEdit(new GenomeChangeCmd(appState, dacx, gi.changeNodeDescription("0:0", "Instance description")));
+    support.finish();
+
+    //
+    // One edit undone, and one undone and redone:
+    //
+
+    support = new UndoSupport(appState, "undo.nprop", dacx);
+    support.addEdit(new GenomeChangeCmd(appState, dacx, genome.changeGeneName("4", "Undone")));
+    support.finish();
+    appState.getUndoManager().undo();
+
+    support = new UndoSupport(appState, "undo.nprop", dacx);
+    support.addEdit(new GenomeChangeCmd(appState, dacx, genome.changeGeneName("6", "Redone")));
+    support.finish();
+    appState.getUndoManager().undo();
+    appState.getUndoManager().redo();
+
+    FileOutputStream out = new FileOutputStream(new File(dir, EXPECTED_));
+    try {
+      out.write(writeLive(db));
+    } finally {
+      out.close();
+    }
+    System.out.println("Child made its edits; exiting without an autosave shutdown");
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Small enough to edit by hand: links into and out of gene 19 (link 39) are
+  ** in no instance.
+  */
+
+  private static byte[] model() {
+    return (BackgroundSaveTestWrapper.generateModel(20, 2, 5));
+  }
+
+  private static byte[] writeLive(Database db) throws IOException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(baos, "UTF-8")));
+    db.writeXML(out, new Indenter(out, Indenter.DEFAULT_INDENT));
+    out.close();
+    return (baos.toByteArray());
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      byte[] chunk = new byte[65536];
+      int got;
+      while ((got = in.read(chunk)) != -1) {
+        buf.write(chunk, 0, got);
+      }
+      return (buf.toByteArray());
+    } finally {
+      in.close();
+    }
+  }
+
+  private static List<String> sortedLines(byte[] saved) {
+    ArrayList<String> retval = new ArrayList<String>(Arrays.asList(new String(saved, UTF8_).split("\n")));
+    Collections.sort(retval);
+    return (retval);
+  }
+
+  private static void check(boolean ok, String msg) {
+    if (!ok) {
+      System.err.println("FAILED: " + msg);
+      System.exit(1);
+    }
+    return;
+  }
+}
@@ -28,6 +28,7 @@ import java.io.File;
 import java.io.PrintWriter;
 import java.util.HashMap;
 import java.util.Map;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.swing.JComponent;
 import javax.swing.JFrame;
@@ -40,6 +41,7 @@ import org.systemsbiology.biotapestry.cmd.PopCommands;
 import org.systemsbiology.biotapestry.cmd.flow.FlowMeister;
 import org.systemsbiology.biotapestry.cmd.flow.WebServerControlFlowHarness;
 import org.systemsbiology.biotapestry.cmd.flow.add.PropagateDown;
+import org.systemsbiology.biotapestry.cmd.flow.io.AutoSaveCheckpointer;
 import org.systemsbiology.biotapestry.cmd.flow.io.LoadSaveSupport;
 import org.systemsbiology.biotapestry.cmd.undo.SelectionChangeCmd;
 import org.systemsbiology.biotapestry.db.Database;
@@ -71,12 +73,14 @@ import org.systemsbiology.biotapestry.ui.TextBoxManager;
 import org.systemsbiology.biotapestry.ui.ZoomTargetSupport;
 import org.systemsbiology.biotapestry.ui.dialogs.factory.SerializableDialogPlatform;
 import org.systemsbiology.biotapestry.ui.freerender.NetModuleFree;
+import org.systemsbiology.biotapestry.util.BTProgressMonitor;
 import org.systemsbiology.biotapestry.util.HandlerAndManagerSource;
 import org.systemsbiology.biotapestry.util.ResourceManager;
 import org.systemsbiology.biotapestry.util.ExceptionHandler;
 import org.systemsbiology.biotapestry.util.SimpleUserFeedback;
 import org.systemsbiology.biotapestry.util.TaggedSet;
 import org.systemsbiology.biotapestry.util.UndoSupport;
+import org.systemsbiology.biotapestry.util.WaitTimedLock;
 
 
 /****************************************************************************
@@ -92,6 +96,12 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
   //
   ////////////////////////////////////////////////////////////////////////////  
 
+  //
+  // Shared by the locks of all sessions:
+  //
+  
+  private static final WaitTimedLock.WaitStats sessionLockWaits_ = new WaitTimedLock.WaitStats();
+
   //
   // For server use:
   //
@@ -104,6 +114,10 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
   private File serverConfigDirectory_;
   private String modelListFile_;
   private String fullServletContextPath_;
+  private final ReentrantLock sessionLock_; // Fair, so requests for one session are served in arrival order
+  private BTProgressMonitor headlessMonitor_; // Only touched while holding the session lock
+  private volatile boolean sessionInitDone_; // Set by the request that loaded the session model
+  private volatile boolean sessionInitFailed_;
   
   //
   // General use:
@@ -112,6 +126,7 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
   private FlowMeister fm_;
   private File currentFile_;
   private LoadSaveSupport lsSup_;
+  private AutoSaveCheckpointer autoSave_;
   private String sid_;
   private Database db_;
   private ResourceManager rMan_;
@@ -177,6 +192,7 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
   
   private GroupSettingManager gsm_;
   private int undoChangeCount_;
+  private int fileEpoch_;
   private PropagateDown.DownPropState downProp_; // remember user's last down propagation Genome
   private HashMap<String, Boolean> status_;  // Remember e.g. yes no shutup state
   private SearchModifiers searchMod_; 
@@ -197,6 +213,7 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
    
   public BTState() {
     rMan_ = new ResourceManager(); 
+    sessionLock_ = new WaitTimedLock(true, sessionLockWaits_);
   }
    
   /***************************************************************************
@@ -206,6 +223,7 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
   
   public BTState(String session, Map<String, Object> args, boolean isHeadless, boolean isWebApplication) {
     sid_ = session;
+    sessionLock_ = new WaitTimedLock(true, sessionLockWaits_);
     isHeadless_ = isHeadless;
     isWebApplication_ = isWebApplication;
     fm_ = new FlowMeister(this);
@@ -237,6 +255,7 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
     dpm_ = new DataPopupManager(this);
     plum_ = new PlugInManager(this);
     undoChangeCount_ = 0;
+    fileEpoch_ = 0;
     downProp_ = new PropagateDown.DownPropState();
     status_ = new HashMap<String, Boolean>();
     searchMod_ = new SearchModifiers();
@@ -259,6 +278,77 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
     return (rcx_);  
   }     
 
+  /***************************************************************************
+  ** 
+  ** Get the lock that serializes server requests against this session. Requests
+  ** for different sessions do not contend with each other.
+  */
+  
+  public ReentrantLock getSessionLock() {
+    return (sessionLock_);  
+  } 
+  
+  /***************************************************************************
+  ** 
+  ** Record the outcome of the server session initialization. Call while holding
+  ** the session lock, before releasing it.
+  */
+  
+  public void setSessionInitResult(boolean succeeded) {
+    sessionInitFailed_ = !succeeded;
+    sessionInitDone_ = true;
+    return;
+  } 
+  
+  /***************************************************************************
+  ** 
+  ** Answer if the server session initialization has finished (either way)
+  */
+  
+  public boolean isSessionInitDone() {
+    return (sessionInitDone_);  
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Answer if the server session initialization failed. Such a state is only
+  ** partially set up and must not be used to serve requests.
+  */
+  
+  public boolean sessionInitFailed() {
+    return (sessionInitFailed_);  
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Get the time spent waiting for session locks, over all sessions
+  */
+  
+  public static WaitTimedLock.WaitStats getSessionLockWaitStats() {
+    return (sessionLockWaits_);  
+  } 
+  
+  /***************************************************************************
+  ** 
+  ** Get the monitor that headless background work for the current server
+  ** request reports progress to. May be null.
+  */
+  
+  public BTProgressMonitor getHeadlessProgressMonitor() {
+    return (headlessMonitor_);  
+  } 
+  
+  /***************************************************************************
+  ** 
+  ** Set the monitor that headless background work for the current server
+  ** request reports progress to. Set to null when the request is done.
+  */
+  
+  public void setHeadlessProgressMonitor(BTProgressMonitor monitor) {
+    headlessMonitor_ = monitor;
+    return;
+  } 
+
   /***************************************************************************
   ** 
   ** Get the server BTP directory
@@ -542,6 +632,10 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
   
   public void clearUndoTracking() {
     undoChangeCount_ = 0;  
+    fileEpoch_++;
+    if (autoSave_ != null) {
+      autoSave_.modelMatchesFile();
+    }
     return;
   }  
  
@@ -554,6 +648,29 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
   public boolean hasAnUndoChange() {
     return (undoChangeCount_ > 0);
   }
+  
+  /***************************************************************************
+  **
+  ** Changes since the last clear
+  */
+  
+  public int getUndoChangeCount() {
+    return (undoChangeCount_);
+  }
+  
+  /***************************************************************************
+  **
+  ** Clear the first given number of changes, e.g. the ones a background save
+  ** has just written out.
+  */
+  
+  public void clearUndoTracking(int changeCount) {
+    undoChangeCount_ = Math.max(0, undoChangeCount_ - changeCount);
+    if ((undoChangeCount_ == 0) && (autoSave_ != null)) {
+      autoSave_.modelMatchesFile();
+    }
+    return;
+  }
    
   /***************************************************************************
   **
@@ -840,6 +957,7 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
   
   public void setCurrentFile(File currentFile) {
     currentFile_ = currentFile;
+    fileEpoch_++;
     return;
   }
   
@@ -852,6 +970,17 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
     return (currentFile_);
   }
   
+  /****************************************************************************
+  **
+  ** Bumped each time the current file is set or the change tracking is
+  ** cleared, so a save that finishes later can tell if the model it wrote
+  ** has since been replaced.
+  */  
+   
+  public int getFileEpoch() {
+    return (fileEpoch_);
+  }
+  
   /****************************************************************************
   **
   ** Set load save support
@@ -871,6 +1000,25 @@ public class BTState implements OverlayStateOracle, HandlerAndManagerSource {
     return (lsSup_);
   }
   
+  /****************************************************************************
+  **
+  ** Set the autosave checkpointer (editor only)
+  */  
+  
+  public void setAutoSave(AutoSaveCheckpointer autoSave) {
+    autoSave_ = autoSave;
+    return;
+  }
+  
+  /****************************************************************************
+  **
+  ** Get the autosave checkpointer. Null if there is none.
+  */  
+   
+  public AutoSaveCheckpointer getAutoSave() {
+    return (autoSave_);
+  }
+  
   /****************************************************************************
    **
    ** Set CommonView
@@ -0,0 +1,349 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biotapestry.app;
+
+import java.io.BufferedWriter;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.OutputStreamWriter;
+import java.io.PrintWriter;
+import java.io.UnsupportedEncodingException;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.List;
+
+import org.systemsbiology.biotapestry.cmd.flow.BatchJobControlFlowHarness;
+import org.systemsbiology.biotapestry.cmd.flow.ControlFlow;
+import org.systemsbiology.biotapestry.cmd.flow.DialogAndInProcessCmd;
+import org.systemsbiology.biotapestry.cmd.flow.FlowMeister;
+import org.systemsbiology.biotapestry.cmd.flow.io.LoadSaveOps;
+import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
+import org.systemsbiology.biotapestry.util.ExceptionHandler;
+import org.systemsbiology.biotapestry.util.Indenter;
+
+/****************************************************************************
+**
+** Benchmark of the background save. Usage:
+**
+**   BackgroundSaveTestWrapper [numGenes numInstances genesPerInstance]
+**
+** Generates a synthetic model (by default 5000 genes and links, and 50
+** instances of 1000 genes each, split into four regions, with a layout per
+** model), loads it headless, and then times, over several rounds:
+**
+**   - the old in-line save: writing the live model, all on the event thread
+**   - the freeze: the only part of a background save on the event thread
+**   - writing the frozen view, which happens on the save thread
+**
+** The frozen view must write the same model as the live one. (Group member
+** order can differ between two writes of the same model, so the lines are
+** compared as sorted lists.)
+*/
+
+public class BackgroundSaveTestWrapper {
+
+  private static final Charset UTF8_ = Charset.forName("UTF-8");
+  private static final int NUM_ROUNDS_ = 5;
+  private static final int NUM_REGIONS_ = 4;
+
+  public static void main(String argv[]) {
+    int numGenes = 5000;
+    int numInstances = 50;
+    int genesPerInstance = 1000;
+    if (argv.length == 3) {
+      numGenes = Integer.parseInt(argv[0]);
+      numInstances = Integer.parseInt(argv[1]);
+      genesPerInstance = Math.min(numGenes, Integer.parseInt(argv[2]));
+    } else if (argv.length != 0) {
+      System.err.println("Usage: BackgroundSaveTestWrapper [numGenes numInstances genesPerInstance]");
+      System.exit(1);
+    }
+
+    byte[] model = generateModel(numGenes, numInstances, genesPerInstance);
+    System.out.println("Generated model: " + numGenes + " genes, " + numInstances + " instances of " +
+                       genesPerInstance + " genes, " + (model.length / 1024) + " KB");
+    BTState appState = load(model);
+    Database db = appState.getDB();
+
+    long[] inline = new long[NUM_ROUNDS_];
+    long[] freeze = new long[NUM_ROUNDS_];
+    long[] write = new long[NUM_ROUNDS_];
+    byte[] live = null;
+    byte[] frozen = null;
+    for (int i = 0; i < NUM_ROUNDS_; i++) {
+      long start = System.nanoTime();
+      live = writeLive(db);
+      inline[i] = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      Database.SaveView view = db.getFrozenSaveView();
+      freeze[i] = System.nanoTime() - start;
+
+      start = System.nanoTime();
+      frozen = writeFrozen(view);
+      write[i] = System.nanoTime() - start;
+    }
+    check(sortedLines(live).equals(sortedLines(frozen)), "Frozen view wrote a different model than the live one");
+
+    System.out.println("Median of " + NUM_ROUNDS_ + " rounds:");
+    System.out.println("  old in-line save (event thread): " + medianMillis(inline) + " ms");
+    System.out.println("  freeze (event thread):           " + medianMillis(freeze) + " ms");
+    System.out.println("  frozen write (save thread):      " + medianMillis(write) + " ms");
+    System.out.println("PASSED");
+    System.exit(0);
+  }
+
+  /***************************************************************************
+  **
+  ** Write the live model, the way the old save did
+  */
+
+  private static byte[] writeLive(Database db) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter out = openWriter(baos);
+    db.writeXML(out, new Indenter(out, Indenter.DEFAULT_INDENT));
+    out.close();
+    return (baos.toByteArray());
+  }
+
+  private static byte[] writeFrozen(Database.SaveView view) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter out = openWriter(baos);
+    view.writeXML(out);
+    out.close();
+    return (baos.toByteArray());
+  }
+
+  private static PrintWriter openWriter(ByteArrayOutputStream baos) {
+    try {
+      return (new PrintWriter(new BufferedWriter(new OutputStreamWriter(baos, "UTF-8"))));
+    } catch (UnsupportedEncodingException ueex) {
+      throw new IllegalStateException();
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Load the model headless, as the ImageGeneratorApplication does
+  */
+
+  static BTState load(byte[] model) {
+    System.setProperty("java.awt.headless", "true");
+    BTState appState = new BTState("WJRL", new HashMap<String, Object>(), true, false);
+    appState.setExceptionHandler(new ExceptionHandler(appState, appState.getRMan(), true));
+    appState.getDB().newModelViaDACX();
+    appState.setIsEditor(true);
+    CommonView cview = new CommonView(appState);
+    cview.buildTheView();
+    DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
+    Object[] osArgs = new Object[2];
+    osArgs[0] = Boolean.valueOf(false);
+    osArgs[1] = new ByteArrayInputStream(model);
+    BatchJobControlFlowHarness dcf = new BatchJobControlFlowHarness(appState, null);
+    ControlFlow myFlow = appState.getFloM().getControlFlow(FlowMeister.MainFlow.LOAD, null);
+    LoadSaveOps.StepState pre = (LoadSaveOps.StepState)myFlow.getEmptyStateForPreload(dacx);
+    pre.setParams(osArgs);
+    dcf.initFlow(myFlow, dacx);
+    DialogAndInProcessCmd daipc = dcf.stepTheFlow(pre);
+    check(daipc.state == DialogAndInProcessCmd.Progress.DONE, "Generated model did not load");
+    return (appState);
+  }
+
+  /***************************************************************************
+  **
+  ** Build the synthetic model. Gene i drives gene (7i + 1) mod numGenes, so
+  ** every gene has one input. Each instance takes a run of genesPerInstance
+  ** genes (starting further along for each instance), with the links among
+  ** them, and splits the genes into regions.
+  */
+
+  static byte[] generateModel(int numGenes, int numInstances, int genesPerInstance) {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    PrintWriter out = openWriter(baos);
+    int nextID = numGenes * 2;
+    out.println("<BioTapestry version=\"7.1\" >");
+    out.println("  <workspace x=\"0\" y=\"0\" w=\"" + (gridX(numGenes) + 2000) + "\" h=\"" + (gridY(numGenes) + 2000) + "\" />");
+    out.println("  <genome name=\"Full Genome\" gid=\"bioTapA\" >");
+    out.println("    <nodes>");
+    out.println("      <genes>");
+    for (int i = 0; i < numGenes; i++) {
+      out.println("        <gene name=\"G" + i + "\" id=\"" + geneID(i) + "\" >");
+      out.println("          <simulationLogic type=\"AND\" />");
+      out.println("        </gene>");
+    }
+    out.println("      </genes>");
+    out.println("    </nodes>");
+    out.println("    <links>");
+    for (int i = 0; i < numGenes; i++) {
+      out.println("      <link label=\"\" src=\"" + geneID(i) + "\" targ=\"" + geneID(target(i, numGenes)) +
+                  "\" sign=\"+\" id=\"" + linkID(i) + "\" targPad=\"1\" />");
+    }
+    out.println("    </links>");
+    out.println("  </genome>");
+
+    out.println("  <genomeInstances>");
+    int[] groupIDs = new int[numInstances * NUM_REGIONS_];
+    for (int k = 0; k < numInstances; k++) {
+      int first = (k * numGenes) / numInstances;
+      out.println("    <genomeInstance name=\"Instance " + k + "\" id=\"inst" + k + "\" >");
+      out.println("      <nodeInstances>");
+      out.println("        <geneInstances>");
+      for (int j = 0; j < genesPerInstance; j++) {
+        out.println("          <geneInstance ref=\"" + geneID((first + j) % numGenes) + "\" instance=\"0\" />");
+      }
+      out.println("        </geneInstances>");
+      out.println("      </nodeInstances>");
+      out.println("      <linkInstances>");
+      for (int j = 0; j < genesPerInstance; j++) {
+        int src = (first + j) % numGenes;
+        if (inInstance(target(src, numGenes), first, genesPerInstance, numGenes)) {
+          out.println("        <linkInstance src=\"" + geneID(src) + ":0\" targ=\"" + geneID(target(src, numGenes)) +
+                      ":0\" ref=\"" + linkID(src) + "\" targPad=\"1\" launchPad=\"0\" instance=\"0\" />");
+        }
+      }
+      out.println("      </linkInstances>");
+      out.println("      <groups>");
+      for (int r = 0; r < NUM_REGIONS_; r++) {
+        int groupID = nextID++;
+        groupIDs[(k * NUM_REGIONS_) + r] = groupID;
+        out.println("        <group id=\"" + groupID + "\" name=\"Region " + r + "\" >");
+        out.println("          <members>");
+        for (int j = r; j < genesPerInstance; j += NUM_REGIONS_) {
+          out.println("            <member ref=\"" + geneID((first + j) % numGenes) + ":0\" />");
+        }
+        out.println("          </members>");
+        out.println("        </group>");
+      }
+      out.println("      </groups>");
+      out.println("    </genomeInstance>");
+    }
+    out.println("  </genomeInstances>");
+
+    out.println("  <layouts>");
+    writeLayout(out, "bioTapB", "bioTapA", null, numGenes, 0, numGenes, null, 0);
+    for (int k = 0; k < numInstances; k++) {
+      int first = (k * numGenes) / numInstances;
+      writeLayout(out, "instLayout" + k, "inst" + k, ":0", numGenes, first, genesPerInstance, groupIDs, k * NUM_REGIONS_);
+    }
+    out.println("  </layouts>");
+    out.println("</BioTapestry>");
+    out.close();
+    return (baos.toByteArray());
+  }
+
+  /***************************************************************************
+  **
+  ** Genes on a grid, and a direct link out of each one
+  */
+
+  private static void writeLayout(PrintWriter out, String name, String genomeID, String suffix, int numGenes,
+                                  int first, int count, int[] groupIDs, int firstGroup) {
+    String sfx = (suffix == null) ? "" : suffix;
+    out.println("    <layout name=\"" + name + "\" genome=\"" + genomeID + "\" type=\"free\" >");
+    out.println("      <props>");
+    out.println("        <nprops>");
+    for (int j = 0; j < count; j++) {
+      int gene = (first + j) % numGenes;
+      out.println("          <nprop id=\"" + geneID(gene) + sfx + "\" color=\"EX-blue\" x=\"" + gridX(j) +
+                  ".0\" y=\"" + gridY(j) + ".0\" orient=\"right\" />");
+    }
+    out.println("        </nprops>");
+    out.println("        <lprops>");
+    for (int j = 0; j < count; j++) {
+      int gene = (first + j) % numGenes;
+      if ((suffix != null) && !inInstance(target(gene, numGenes), first, count, numGenes)) {
+        continue;
+      }
+      out.println("          <linkBus labelX=\"" + gridX(j) + ".0\" labelY=\"" + gridY(j) + ".0\" labelDir=\"\" src=\"" +
+                  geneID(gene) + sfx + "\" >");
+      out.println("            <drawStyle color=\"EX-blue\" style=\"solid\" thick=\"regular\" />");
+      out.println("            <segments>");
+      out.println("              <linkSegment id=\"0\" strtX=\"" + (gridX(j) + 120) + ".0\" strtY=\"" + (gridY(j) + 10) + ".0\" />");
+      out.println("            </segments>");
+      out.println("            <drops>");
+      out.println("              <drop ref=\"*\" connectStart=\"0\" />");
+      out.println("              <drop ref=\"" + linkID(gene) + sfx + "\" connectStart=\"0\" />");
+      out.println("            </drops>");
+      out.println("          </linkBus>");
+    }
+    out.println("        </lprops>");
+    if (groupIDs != null) {
+      out.println("        <gprops>");
+      for (int r = 0; r < NUM_REGIONS_; r++) {
+        out.println("          <gprop id=\"" + groupIDs[firstGroup + r] + "\" color=\"lightGreen\" inactiveColor=\"inactiveLightGreen\"" +
+                    " style=\"autobound\" layer=\"0\" order=\"5\" tpad=\"30\" bpad=\"30\" lpad=\"30\" rpad=\"30\"" +
+                    " nameX=\"" + gridX(r) + ".0\" nameY=\"" + (gridY(0) - 100) + ".0\" />");
+      }
+      out.println("        </gprops>");
+    }
+    out.println("      </props>");
+    out.println("    </layout>");
+    return;
+  }
+
+  private static int target(int gene, int numGenes) {
+    return ((int)(((7L * gene) + 1L) % numGenes));
+  }
+
+  private static boolean inInstance(int gene, int first, int count, int numGenes) {
+    return (((gene - first + numGenes) % numGenes) < count);
+  }
+
+  private static String geneID(int gene) {
+    return (Integer.toString(gene * 2));
+  }
+
+  private static String linkID(int gene) {
+    return (Integer.toString((gene * 2) + 1));
+  }
+
+  private static int gridX(int j) {
+    return (1000 + ((j % 100) * 300));
+  }
+
+  private static int gridY(int j) {
+    return (1000 + ((j / 100) * 200));
+  }
+
+  private static long medianMillis(long[] nanos) {
+    long[] sorted = nanos.clone();
+    Arrays.sort(sorted);
+    return (sorted[sorted.length / 2] / 1000000L);
+  }
+
+  private static List<String> sortedLines(byte[] saved) {
+    ArrayList<String> retval = new ArrayList<String>(Arrays.asList(new String(saved, UTF8_).split("\n")));
+    Collections.sort(retval);
+    return (retval);
+  }
+
+  private static void check(boolean ok, String msg) {
+    if (!ok) {
+      System.err.println("FAILED: " + msg);
+      System.exit(1);
+    }
+    return;
+  }
+}
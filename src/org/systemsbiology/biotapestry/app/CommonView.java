@@ -64,6 +64,7 @@ import org.systemsbiology.biotapestry.cmd.PanelCommands;
 import org.systemsbiology.biotapestry.cmd.flow.ControlFlow;
 import org.systemsbiology.biotapestry.cmd.flow.DesktopControlFlowHarness;
 import org.systemsbiology.biotapestry.cmd.flow.FlowMeister;
+import org.systemsbiology.biotapestry.cmd.flow.io.AutoSaveCheckpointer;
 import org.systemsbiology.biotapestry.cmd.flow.modelTree.SetCurrentModel;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
 import org.systemsbiology.biotapestry.db.Database;
@@ -205,6 +206,10 @@ public class CommonView implements ModelChangeListener, BackgroundWorkerControlM
   public void disableControls() {
     XPlatMaskingStatus xpms = calcDisableControls(MainCommands.GENERAL_PUSH, true);
     disableControls(xpms);
+    AutoSaveCheckpointer asc = appState_.getAutoSave();
+    if (asc != null) {
+      asc.setBusy(true);
+    }
     return;
   }
 
@@ -220,6 +225,10 @@ public class CommonView implements ModelChangeListener, BackgroundWorkerControlM
       appState_.getTree().setTreeSelectionPath(dacx.getGenomeSource().getModelHierarchy().getVfgSelection());
     }
     enableControls(true);
+    AutoSaveCheckpointer asc = appState_.getAutoSave();
+    if (asc != null) {
+      asc.setBusy(false);
+    }
     return;
   }  
   
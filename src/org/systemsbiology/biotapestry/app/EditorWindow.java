@@ -32,6 +32,7 @@ import javax.swing.WindowConstants;
 import java.awt.event.WindowEvent;
 import javax.swing.ImageIcon;
 
+import org.systemsbiology.biotapestry.cmd.flow.io.AutoSaveCheckpointer;
 import org.systemsbiology.biotapestry.cmd.flow.io.LoadSaveSupport;
 import org.systemsbiology.biotapestry.util.FilePreparer;
 import org.systemsbiology.biotapestry.util.ResourceManager;
@@ -114,6 +115,19 @@ public class EditorWindow extends JFrame {
       DynamicDataAccessContext dacx = new DynamicDataAccessContext(appState_);
       lssup.newModelTweaks(dacx);    
     }    
+    
+    //
+    // Autosave only covers models edited here, not ones pulled from a URL,
+    // and only one running editor gets to use it:
+    //
+    
+    AutoSaveCheckpointer asc = new AutoSaveCheckpointer(appState_, AutoSaveCheckpointer.defaultDirectory());
+    if (asc.start()) {
+      appState_.setAutoSave(asc);
+      if (gurl == null) {
+        asc.offerRecovery(new DynamicDataAccessContext(appState_));
+      }
+    }
 
     appState_.getTree().requestTreeFocus(); // Keeps the "save" button from having focus
   }
@@ -124,6 +138,7 @@ public class EditorWindow extends JFrame {
   */  
   
   public void shutdownEditor(boolean doGaggle) {
+    appState_.getLSSupport().finishPendingSaves();
     if (appState_.getCommonView().havePerturbationEditsInProgress()) {
       ResourceManager rMan = appState_.getRMan();
       int ok = JOptionPane.showConfirmDialog(EditorWindow.this, 
@@ -150,6 +165,10 @@ public class EditorWindow extends JFrame {
         goose.closeDown();
       }        
     }
+    AutoSaveCheckpointer asc = appState_.getAutoSave();
+    if (asc != null) {
+      asc.shutdown();
+    }
     dispose();
     System.exit(0);
   }
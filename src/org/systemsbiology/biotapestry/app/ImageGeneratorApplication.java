@@ -37,13 +37,13 @@ import org.systemsbiology.biotapestry.cmd.flow.export.ExportPublish;
 import org.systemsbiology.biotapestry.cmd.flow.io.ExportWeb;
 import org.systemsbiology.biotapestry.cmd.flow.io.ImportCSV;
 import org.systemsbiology.biotapestry.cmd.flow.io.LoadSaveOps;
-import org.systemsbiology.biotapestry.cmd.MainCommands;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
 import org.systemsbiology.biotapestry.nav.ZoomTarget;
 import org.systemsbiology.biotapestry.ui.ImageExporter;
 import org.systemsbiology.biotapestry.ui.NetOverlayProperties;
 import org.systemsbiology.biotapestry.ui.ViewExporter;
 import org.systemsbiology.biotapestry.ui.dialogs.SIFImportChoicesDialogFactory;
+import org.systemsbiology.biotapestry.ui.layouts.LayoutFailureTracker;
 import org.systemsbiology.biotapestry.util.ExceptionHandler;
 import org.systemsbiology.biotapestry.util.NamedOutputStreamSource;
 import org.systemsbiology.biotapestry.util.ResourceManager;
@@ -129,7 +129,7 @@ public class ImageGeneratorApplication {
     input_ = input;
     input2_ = input2;
     
-    if ((outputType_ != PNG_OUTPUT) && (outputType_ != BTP_OUTPUT)) {
+    if ((outputType != PNG_OUTPUT) && (outputType != BTP_OUTPUT)) {
       throw new IllegalArgumentException();
     }    
     outputType_ = outputType;
@@ -235,28 +235,28 @@ public class ImageGeneratorApplication {
   
   /***************************************************************************
   ** 
-  ** In-process processing entry point.  This method is synchronized internally
-  ** on a global basis to insure one process call at a time.
+  ** In-process processing entry point.  Calls on the same IGA are processed
+  ** one at a time. Separate IGAs share no state and may run concurrently, each
+  ** on its own thread.
   */
 
   public void process() throws GeneratorException {    
   
     //
-    // Processing of all requests by all IGAs MUST be globally 
-    // serialized in a multi-threaded environment.  At this time, 
-    // BioTapestry core code must run on one thread when in batch mode.
+    // Each IGA has its own BTState, so only calls on this IGA need to be 
+    // serialized.
     //
     
-    synchronized (MainCommands.class) {
+    synchronized (this) {
          
       boolean needInit = (appState_ == null);
 
       if (needInit) {
         System.setProperty("java.awt.headless", "true"); 
       }
+      LayoutFailureTracker.resetForThread();
 
       try {  
-        ResourceManager rMan = appState_.getRMan();
         HashMap<String, Object> args = new HashMap<String, Object>();   
         if (needInit) {
           appState_ = new BTState("WJRL", args, true, false);
@@ -266,6 +266,7 @@ public class ImageGeneratorApplication {
           CommonView cview = new CommonView(appState_);
           cview.buildTheView();       
         }
+        ResourceManager rMan = appState_.getRMan();
         FlowMeister flom = appState_.getFloM();
         boolean haveInput = false;
         DataAccessContext dacx = new DataAccessContext(appState_, appState_.getGenome());
@@ -296,7 +297,7 @@ public class ImageGeneratorApplication {
             osArgs[5] = nodeIDMap_;
             osArgs[6] = modelIDMap_;
             BatchJobControlFlowHarness dcf1 = new BatchJobControlFlowHarness(appState_, null); 
-            ControlFlow myFlow1 = flom.getControlFlow(FlowMeister.MainFlow.LOAD, null);
+            ControlFlow myFlow1 = flom.getControlFlow(FlowMeister.MainFlow.IMPORT_FULL_HIERARCHY_FROM_CSV, null);
             ImportCSV.StepState pre1 = (ImportCSV.StepState)myFlow1.getEmptyStateForPreload(dacx);
             pre1.setParams(osArgs);     
             dcf1.initFlow(myFlow1, dacx);
@@ -526,14 +527,14 @@ public class ImageGeneratorApplication {
   private String generate() {
     
     //
-    // Processing of all requests by all IGAs MUST be globally 
-    // serialized in a multi-threaded environment.  At this time, 
-    // BioTapestry core code must run on one thread when in batch mode.
+    // Each IGA has its own BTState, so only calls on this IGA need to be 
+    // serialized.
     //
 
-    synchronized(MainCommands.class) {
+    synchronized (this) {
       
       System.setProperty("java.awt.headless", "true");   
+      LayoutFailureTracker.resetForThread();
       appState_ = new BTState("WJRL", args_, true, false);
       appState_.setExceptionHandler(new ExceptionHandler(appState_, appState_.getRMan(), false));
       appState_.getDB().newModelViaDACX(); // Bogus, but no DACX yet
@@ -605,9 +606,23 @@ public class ImageGeneratorApplication {
 
       String webDirectory = (String)args_.get(ArgParser.WEB_BATCH_OUTPUT);
       if (webDirectory != null) {
-        Object[] osArgs = new Object[2];
+        Integer webThreads = null;
+        String webThreadsArg = (String)args_.get(ArgParser.WEB_BATCH_THREADS);
+        if (webThreadsArg != null) {
+          try {
+            webThreads = Integer.valueOf(webThreadsArg);
+          } catch (NumberFormatException nfex) {
+            webThreads = null;
+          }
+          if ((webThreads == null) || (webThreads.intValue() < 1)) {
+            System.err.println(rMan.getString("headless.badWebThreads"));
+            return (rMan.getString("headless.earlyExit"));
+          }
+        }
+        Object[] osArgs = new Object[3];
         osArgs[0] = new Boolean(true);  // we are loading from directory...
         osArgs[1] = webDirectory;
+        osArgs[2] = webThreads;
         BatchJobControlFlowHarness dcf = new BatchJobControlFlowHarness(appState_, null); 
         ControlFlow myFlow = flom.getControlFlow(FlowMeister.MainFlow.WEB, null);
         ExportWeb.StepState pre = (ExportWeb.StepState)myFlow.getEmptyStateForPreload(dacx);
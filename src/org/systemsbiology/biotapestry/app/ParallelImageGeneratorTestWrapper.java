@@ -0,0 +1,185 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biotapestry.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+
+import org.systemsbiology.biotapestry.ui.NetOverlayProperties;
+import org.systemsbiology.biotapestry.ui.dialogs.SIFImportChoicesDialogFactory;
+
+/****************************************************************************
+**
+** Stress test of ImageGeneratorApplications running side by side. Usage:
+**
+**   ParallelImageGeneratorTestWrapper numJobs numThreads input...
+**
+** Inputs ending in .csv are imported and laid out, anything else is loaded as
+** a BTP file. The jobs cycle through the inputs. Each job renders a PNG with
+** its own IGA; all the jobs are run one after another, then again on a pool
+** of numThreads threads, and every PNG from the pool must be byte for byte
+** the same as the serial one.
+*/
+
+public class ParallelImageGeneratorTestWrapper {
+
+  public static void main(String argv[]) {
+    if (argv.length < 3) {
+      System.err.println("Usage: ParallelImageGeneratorTestWrapper numJobs numThreads input...");
+      System.exit(1);
+    }
+    int numJobs = Integer.parseInt(argv[0]);
+    int numThreads = Integer.parseInt(argv[1]);
+    ArrayList<Job> jobs = new ArrayList<Job>();
+    try {
+      for (int i = 0; i < numJobs; i++) {
+        String fileName = argv[2 + (i % (argv.length - 2))];
+        jobs.add(new Job(fileName, readFile(new File(fileName))));
+      }
+    } catch (IOException ioex) {
+      System.err.println("IO Failure: " + ioex.getMessage());
+      System.exit(1);
+    }
+
+    long start = System.currentTimeMillis();
+    ArrayList<byte[]> serial = new ArrayList<byte[]>();
+    for (int i = 0; i < numJobs; i++) {
+      serial.add(runJob(jobs.get(i)));
+    }
+    long serialMillis = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    List<Future<byte[]>> futures = null;
+    ExecutorService pool = Executors.newFixedThreadPool(numThreads);
+    try {
+      futures = pool.invokeAll(jobs);
+    } catch (InterruptedException iex) {
+      check(false, "Interrupted");
+    } finally {
+      pool.shutdown();
+    }
+    int same = 0;
+    for (int i = 0; i < numJobs; i++) {
+      byte[] parallel = null;
+      try {
+        parallel = futures.get(i).get();
+      } catch (InterruptedException iex) {
+        check(false, "Interrupted");
+      } catch (ExecutionException eex) {
+        check(false, "Job " + i + " (" + jobs.get(i).fileName + ") failed on the pool: " + eex.getCause());
+      }
+      if (Arrays.equals(serial.get(i), parallel)) {
+        same++;
+      } else {
+        System.err.println("Job " + i + " (" + jobs.get(i).fileName + ") gave a different PNG on the pool");
+      }
+    }
+    long parallelMillis = System.currentTimeMillis() - start;
+
+    System.out.println("Serial: " + serialMillis + " ms, " + numThreads + " threads: " + parallelMillis + " ms");
+    System.out.println("Identical PNGs: " + same + "/" + numJobs);
+    check(same == numJobs, "Parallel output differs from serial output");
+    System.out.println("PASSED");
+    System.exit(0);
+  }
+
+  /***************************************************************************
+  **
+  ** Render one job
+  */
+
+  private static byte[] runJob(Job job) {
+    try {
+      return (job.call());
+    } catch (Exception ex) {
+      check(false, "Job (" + job.fileName + ") failed: " + ex);
+      return (null);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** One input to render as a PNG with its own IGA
+  */
+
+  private static class Job implements Callable<byte[]> {
+
+    String fileName;
+    private byte[] input_;
+
+    Job(String fileName, byte[] input) {
+      this.fileName = fileName;
+      input_ = input;
+    }
+
+    public byte[] call() throws ImageGeneratorApplication.GeneratorException {
+      ByteArrayOutputStream baos = new ByteArrayOutputStream();
+      ImageGeneratorApplication iga;
+      if (fileName.toLowerCase().endsWith(".csv")) {
+        iga = new ImageGeneratorApplication(ImageGeneratorApplication.CSV_INPUT,
+                                            new ByteArrayInputStream(input_), null,
+                                            ImageGeneratorApplication.PNG_OUTPUT, baos,
+                                            SIFImportChoicesDialogFactory.LayoutModes.REPLACEMENT,
+                                            Integer.valueOf(NetOverlayProperties.RELAYOUT_NO_CHANGE),
+                                            Boolean.TRUE);
+      } else {
+        iga = new ImageGeneratorApplication(ImageGeneratorApplication.BTP_INPUT,
+                                            new ByteArrayInputStream(input_), null,
+                                            ImageGeneratorApplication.PNG_OUTPUT, baos,
+                                            null, null, null);
+      }
+      iga.process();
+      return (baos.toByteArray());
+    }
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] retval = new byte[(int)file.length()];
+    InputStream is = new FileInputStream(file);
+    try {
+      new DataInputStream(is).readFully(retval);
+    } finally {
+      is.close();
+    }
+    return (retval);
+  }
+
+  private static void check(boolean ok, String msg) {
+    if (!ok) {
+      System.err.println("FAILED: " + msg);
+      System.exit(1);
+    }
+    return;
+  }
+}
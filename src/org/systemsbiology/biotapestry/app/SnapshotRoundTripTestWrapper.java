@@ -0,0 +1,245 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biotapestry.app;
+
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.Writer;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Random;
+import java.util.Set;
+import java.util.TreeMap;
+
+import org.systemsbiology.biotapestry.db.Database;
+import org.systemsbiology.biotapestry.parser.RecordedDocument;
+import org.systemsbiology.biotapestry.parser.SnapshotWriter;
+import org.xml.sax.Attributes;
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.DefaultHandler;
+
+/****************************************************************************
+**
+** Round-trip test of the binary snapshot format. Usage: SnapshotRoundTripTestWrapper model.btp
+**
+** The BTP file is recorded, written as a snapshot, and read back; the snapshot
+** must replay the same SAX events as the XML, with and without skipping the
+** deferrable sections. The XML text fed straight through a SnapshotWriter
+** must give the very same snapshot. Then the model is loaded from the
+** XML and from the snapshot, and each load is saved back out as XML; the two
+** saves must match. (Group member order can differ between two saves of the
+** same model, so the saved lines are compared as sorted lists.) Last, truncated
+** and damaged copies of the snapshot must fail with an IOException, or a
+** SAXException when replayed, and nothing else.
+*/
+
+public class SnapshotRoundTripTestWrapper {
+
+  private static final Charset UTF8_ = Charset.forName("UTF-8");
+  private static final int NUM_DAMAGED_ = 200;
+
+  public static void main(String argv[]) {
+    if (argv.length != 1) {
+      System.err.println("Usage: SnapshotRoundTripTestWrapper model.btp");
+      System.exit(1);
+    }
+    try {
+      byte[] xml = readFile(new File(argv[0]));
+
+      RecordedDocument fromXml = RecordedDocument.record(new ByteArrayInputStream(xml));
+      ByteArrayOutputStream snapOut = new ByteArrayOutputStream();
+      fromXml.writeSnapshot(snapOut);
+      byte[] snapshot = snapOut.toByteArray();
+      RecordedDocument fromSnap = RecordedDocument.readSnapshot(new ByteArrayInputStream(snapshot));
+      check(eventsOf(fromXml).equals(eventsOf(fromSnap)), "Snapshot replays different events than the XML");
+      check(fromXml.getCharCount() == fromSnap.getCharCount(), "Snapshot char count differs");
+      System.out.println("Events match: " + fromSnap.getEventCount() + " events, XML " + xml.length +
+                         " bytes, snapshot " + snapshot.length + " bytes");
+
+      ByteArrayOutputStream directOut = new ByteArrayOutputStream();
+      Writer direct = new SnapshotWriter(directOut);
+      direct.write(new String(xml, UTF8_));
+      direct.close();
+      RecordedDocument fromDirect = RecordedDocument.readSnapshot(new ByteArrayInputStream(directOut.toByteArray()));
+      check(eventsOf(fromXml).equals(eventsOf(fromDirect)), "Snapshot written from the XML text replays different events");
+      check(fromXml.getCharCount() == fromDirect.getCharCount(), "Snapshot written from the XML text has a different char count");
+      check(Arrays.equals(snapshot, directOut.toByteArray()), "Snapshot written from the XML text has different bytes");
+      System.out.println("Snapshot written from the XML text matches");
+
+      Set<String> skip = Database.deferrableKeywords();
+      check(skippedEventsOf(fromXml, skip).equals(skippedEventsOf(fromSnap, skip)), 
+            "Snapshot replays different events when skipping sections");
+      System.out.println("Skipped sections match");
+
+      List<String> savedFromXml = sortedLines(loadAndSave(xml));
+      List<String> savedFromSnap = sortedLines(loadAndSave(snapshot));
+      check(savedFromXml.equals(savedFromSnap), "Model saved from the snapshot differs from the one saved from the XML");
+      System.out.println("Saved models match: " + savedFromXml.size() + " lines");
+
+      checkDamaged(snapshot);
+      System.out.println("Truncated and damaged snapshots rejected");
+    } catch (IOException ioex) {
+      System.err.println("IO Failure: " + ioex.getMessage());
+      System.exit(1);
+    } catch (ImageGeneratorApplication.GeneratorException gex) {
+      System.err.println("Failure: " + gex.getMessage() + " exception: " + gex.getWrappedException());
+      System.exit(1);
+    }
+    System.out.println("PASSED");
+    System.exit(0);
+  }
+
+  /***************************************************************************
+  **
+  ** Load the model headless and save it back out as BTP XML
+  */
+
+  private static byte[] loadAndSave(byte[] input) throws ImageGeneratorApplication.GeneratorException {
+    ByteArrayOutputStream baos = new ByteArrayOutputStream();
+    ImageGeneratorApplication iga = new ImageGeneratorApplication(ImageGeneratorApplication.BTP_INPUT,
+                                                                  new ByteArrayInputStream(input), null,
+                                                                  ImageGeneratorApplication.BTP_OUTPUT, baos,
+                                                                  null, null, null);
+    iga.process();
+    return (baos.toByteArray());
+  }
+
+  /***************************************************************************
+  **
+  ** Every truncation, and a sample of single-byte changes, must either read
+  ** or fail with an IOException
+  */
+
+  private static void checkDamaged(byte[] snapshot) {
+    Random rand = new Random(17L);
+    for (int i = 0; i < NUM_DAMAGED_; i++) {
+      int len = rand.nextInt(snapshot.length);
+      check(!readsOK(Arrays.copyOf(snapshot, len)), "Truncated snapshot of " + len + " bytes was accepted");
+    }
+    for (int i = 0; i < NUM_DAMAGED_; i++) {
+      byte[] damaged = snapshot.clone();
+      int pos = rand.nextInt(damaged.length);
+      damaged[pos] = (byte)rand.nextInt(256);
+      readsOK(damaged);
+    }
+    return;
+  }
+
+  private static boolean readsOK(byte[] snapshot) {
+    try {
+      RecordedDocument.readSnapshot(new ByteArrayInputStream(snapshot)).replay(new DefaultHandler());
+      return (true);
+    } catch (IOException ioex) {
+      return (false);
+    } catch (SAXException sex) {  // Sections are checked as they are replayed
+      return (false);
+    } catch (Exception ex) {
+      check(false, "Damaged snapshot gave " + ex);
+      return (false);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** The replayed SAX events, one per line
+  */
+
+  private static String eventsOf(RecordedDocument recorded) {
+    return (eventsOf(recorded, null, null));
+  }
+
+  /***************************************************************************
+  **
+  ** The replayed SAX events, skipping the given sections, followed by the
+  ** events of each skipped section
+  */
+
+  private static String skippedEventsOf(RecordedDocument recorded, Set<String> skip) {
+    TreeMap<String, RecordedDocument> skipped = new TreeMap<String, RecordedDocument>();
+    StringBuffer buf = new StringBuffer(eventsOf(recorded, skip, skipped));
+    Iterator<String> sit = skipped.keySet().iterator();
+    while (sit.hasNext()) {
+      String key = sit.next();
+      buf.append("Skipped ").append(key).append('\n').append(eventsOf(skipped.get(key)));
+    }
+    return (buf.toString());
+  }
+
+  private static String eventsOf(RecordedDocument recorded, Set<String> skip, Map<String, RecordedDocument> skipped) {
+    final StringBuffer buf = new StringBuffer();
+    try {
+      recorded.replay(new DefaultHandler() {
+        public void startElement(String uri, String local, String raw, Attributes attrs) {
+          buf.append("S ").append(local).append(' ').append(raw);
+          int numAttr = attrs.getLength();
+          for (int i = 0; i < numAttr; i++) {
+            buf.append(' ').append(attrs.getQName(i)).append('=').append(attrs.getType(i)).append(':').append(attrs.getValue(i));
+          }
+          buf.append('\n');
+        }
+        public void endElement(String uri, String local, String raw) {
+          buf.append("E ").append(local).append(' ').append(raw).append('\n');
+        }
+        public void characters(char[] ch, int start, int length) {
+          buf.append("C ").append(ch, start, length).append('\n');
+        }
+      }, skip, skipped);
+    } catch (Exception ex) {
+      check(false, "Replay failed: " + ex);
+    }
+    return (buf.toString());
+  }
+
+  private static List<String> sortedLines(byte[] saved) {
+    ArrayList<String> retval = new ArrayList<String>(Arrays.asList(new String(saved, UTF8_).split("\n")));
+    Collections.sort(retval);
+    return (retval);
+  }
+
+  private static byte[] readFile(File file) throws IOException {
+    byte[] retval = new byte[(int)file.length()];
+    InputStream is = new FileInputStream(file);
+    try {
+      new DataInputStream(is).readFully(retval);
+    } finally {
+      is.close();
+    }
+    return (retval);
+  }
+
+  private static void check(boolean ok, String msg) {
+    if (!ok) {
+      System.err.println("FAILED: " + msg);
+      System.exit(1);
+    }
+    return;
+  }
+}
@@ -24,6 +24,8 @@ import java.awt.Dimension;
 import java.awt.GridBagConstraints;
 import java.awt.GridBagLayout;
 import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
 import java.util.HashMap;
 import java.util.Hashtable;
 import java.util.List;
@@ -31,6 +33,7 @@ import java.util.List;
 import javax.swing.JLabel;
 import javax.swing.JPanel;
 import javax.swing.JSlider;
+import javax.swing.Timer;
 import javax.swing.border.LineBorder;
 import javax.swing.event.ChangeEvent;
 import javax.swing.event.ChangeListener;
@@ -54,6 +57,20 @@ import org.systemsbiology.biotapestry.util.UiUtil;
 
 public class VirtualTimeSlider implements ChangeListener { 
                                                              
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////  
+
+  //
+  // While the slider sits still, the instances this many hours either side
+  // of it are built, one per tick, so moving to them does not stall:
+  //
+  
+  private static final int PREFETCH_SPAN_     = 3;
+  private static final int PREFETCH_DELAY_MS_ = 250;
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE MEMBERS
@@ -73,6 +90,7 @@ public class VirtualTimeSlider implements ChangeListener {
   private boolean doingUndo_;
   private BTState appState_;
   private boolean doNotFlow_;
+  private Timer prefetchTimer_;
    
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -182,6 +200,7 @@ public class VirtualTimeSlider implements ChangeListener {
   */
    
   public void installEmptySlider() {
+    stopPrefetch();
     sliderPanel_.remove(0);
     sliderPanel_.add(blankPanel_);
     sliderPanel_.revalidate();
@@ -211,6 +230,7 @@ public class VirtualTimeSlider implements ChangeListener {
   */ 
   
   public void dropTheSlider() {
+    stopPrefetch();
     sliders_.clear();
     return;
   }
@@ -315,6 +335,7 @@ public class VirtualTimeSlider implements ChangeListener {
     if (slider != null) {    
       sliders_.remove(oldKey);
     }
+    stopPrefetch();
     sliderPanel_.remove(0);
     sliderPanel_.add(blankPanel_);
     sliderPanel_.revalidate();
@@ -425,7 +446,9 @@ public class VirtualTimeSlider implements ChangeListener {
         return;
       }
       JSlider slider = (JSlider)e.getSource();
-      if (!slider.getValueIsAdjusting()) {
+      if (slider.getValueIsAdjusting()) {
+        stopPrefetch();
+      } else {
         int value = slider.getValue();
         if (value == lastSetting_) {
           return;
@@ -451,6 +474,7 @@ public class VirtualTimeSlider implements ChangeListener {
           dcf.initFlow(cf, dacx);
           dcf.runFlow(agis);
         }
+        schedulePrefetch();
       }
     } catch (Exception ex) {
       appState_.getExceptionHandler().displayException(ex);
@@ -547,9 +571,71 @@ public class VirtualTimeSlider implements ChangeListener {
     currSlider_ = dip.getID();    
     lastSetting_ = slider.getValue();
     managing_ = false;
+    schedulePrefetch();
     return;
   }  
 
+  /***************************************************************************
+  **
+  ** Start (or restart) building the instances around the current slider
+  ** setting once things go quiet. This runs on the event thread, between
+  ** events, since the model it reads is not safe to share with another thread.
+  */
+  
+  private void schedulePrefetch() { 
+    if (appState_.isHeadless()) {
+      return;
+    }
+    if (prefetchTimer_ == null) {
+      prefetchTimer_ = new Timer(PREFETCH_DELAY_MS_, new ActionListener() {
+        public void actionPerformed(ActionEvent e) {
+          try {
+            prefetchNeighbor();
+          } catch (Exception ex) {
+            stopPrefetch();
+            appState_.getExceptionHandler().displayException(ex);
+          }
+        }
+      });
+    }
+    prefetchTimer_.restart();
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Stop building instances around the slider
+  */
+  
+  private void stopPrefetch() { 
+    if (prefetchTimer_ != null) {
+      prefetchTimer_.stop();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Build the next instance around the slider, stopping when there are none
+  ** left, or when the slider is busy or gone
+  */
+  
+  private void prefetchNeighbor() { 
+    JSlider slider = (currSlider_ == null) ? null : sliders_.get(currSlider_);
+    if ((slider == null) || !slider.isEnabled() || slider.getValueIsAdjusting()) {
+      stopPrefetch();
+      return;
+    }
+    DynamicInstanceProxy dip = appState_.getDB().getDynamicProxy(currSlider_);
+    String key = (dip == null) ? null : dip.getNextKeyToPrefetch(slider.getValue(), PREFETCH_SPAN_);
+    if (key == null) {
+      stopPrefetch();
+      return;
+    }
+    dip.prefetchInstance(key);
+    return;
+  }
+
   /***************************************************************************
   **
   ** Get last slider setting
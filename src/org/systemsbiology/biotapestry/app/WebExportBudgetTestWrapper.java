@@ -0,0 +1,170 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+
+package org.systemsbiology.biotapestry.app;
+
+import java.io.DataInputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.util.Arrays;
+
+import org.systemsbiology.biotapestry.cmd.flow.BatchJobControlFlowHarness;
+import org.systemsbiology.biotapestry.cmd.flow.ControlFlow;
+import org.systemsbiology.biotapestry.cmd.flow.DialogAndInProcessCmd;
+import org.systemsbiology.biotapestry.cmd.flow.FlowMeister;
+import org.systemsbiology.biotapestry.cmd.flow.io.ExportWeb;
+import org.systemsbiology.biotapestry.db.DataAccessContext;
+
+/****************************************************************************
+**
+** Web export of several models with jumbo images on a tiny memory budget.
+** Usage:
+**
+**   WebExportBudgetTestWrapper [numThreads budgetMB]
+**
+** Generates a model (see BackgroundSaveTestWrapper) whose instances are
+** several thousand pixels wide at the jumbo scale, exports it with one thread,
+** then with numThreads threads (default 3) sharing budgetMB (default 48) of
+** memory. The concurrent export must finish within the time limit, and write
+** the same files as the serial one.
+*/
+
+public class WebExportBudgetTestWrapper {
+
+  private static final long TIME_LIMIT_MILLIS_ = 5L * 60L * 1000L;
+
+  public static void main(String argv[]) {
+    int numThreads = 3;
+    int budgetMB = 48;
+    if (argv.length == 2) {
+      numThreads = Integer.parseInt(argv[0]);
+      budgetMB = Integer.parseInt(argv[1]);
+    } else if (argv.length != 0) {
+      System.err.println("Usage: WebExportBudgetTestWrapper [numThreads budgetMB]");
+      System.exit(1);
+    }
+
+    BTState appState = BackgroundSaveTestWrapper.load(BackgroundSaveTestWrapper.generateModel(1200, 6, 600));
+    File serialDir = makeTempDir("serial");
+    File budgetDir = makeTempDir("budget");
+
+    long start = System.currentTimeMillis();
+    export(appState, serialDir, 1, null);
+    long serialMillis = System.currentTimeMillis() - start;
+
+    start = System.currentTimeMillis();
+    export(appState, budgetDir, numThreads, Integer.valueOf(budgetMB));
+    long budgetMillis = System.currentTimeMillis() - start;
+
+    String[] names = serialDir.list();
+    Arrays.sort(names);
+    int pngs = 0;
+    for (int i = 0; i < names.length; i++) {
+      File serialFile = new File(serialDir, names[i]);
+      if (serialFile.isDirectory()) {
+        continue;
+      }
+      File budgetFile = new File(budgetDir, names[i]);
+      check(budgetFile.exists(), names[i] + " was not written on the budget");
+      check(Arrays.equals(readFile(serialFile), readFile(budgetFile)), names[i] + " differs on the budget");
+      if (names[i].endsWith(".png")) {
+        pngs++;
+      }
+    }
+    check(pngs > 0, "No images were written");
+    System.out.println("Serial: " + serialMillis + " ms, " + numThreads + " threads on " + budgetMB + " MB: " + budgetMillis + " ms");
+    System.out.println("Identical files: " + names.length + " (" + pngs + " images)");
+    System.out.println("PASSED");
+    System.exit(0);
+  }
+
+  /***************************************************************************
+  **
+  ** Export on another thread, so a deadlock shows up as a timeout
+  */
+
+  private static void export(final BTState appState, final File dir, final int numThreads, final Integer budgetMB) {
+    final DialogAndInProcessCmd[] result = new DialogAndInProcessCmd[1];
+    Thread runner = new Thread(new Runnable() {
+      public void run() {
+        DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
+        Object[] osArgs = new Object[4];
+        osArgs[0] = Boolean.valueOf(true);
+        osArgs[1] = dir.getAbsolutePath();
+        osArgs[2] = Integer.valueOf(numThreads);
+        osArgs[3] = budgetMB;
+        BatchJobControlFlowHarness dcf = new BatchJobControlFlowHarness(appState, null);
+        ControlFlow myFlow = appState.getFloM().getControlFlow(FlowMeister.MainFlow.WEB, null);
+        ExportWeb.StepState pre = (ExportWeb.StepState)myFlow.getEmptyStateForPreload(dacx);
+        pre.setParams(osArgs);
+        dcf.initFlow(myFlow, dacx);
+        result[0] = dcf.stepTheFlow(pre);
+        return;
+      }
+    });
+    runner.setDaemon(true);
+    runner.start();
+    try {
+      runner.join(TIME_LIMIT_MILLIS_);
+    } catch (InterruptedException iex) {
+      check(false, "Interrupted");
+    }
+    check(!runner.isAlive(), "Export with " + numThreads + " threads did not finish; deadlocked?");
+    check((result[0] != null) && (result[0].state == DialogAndInProcessCmd.Progress.DONE),
+          "Export with " + numThreads + " threads failed");
+    return;
+  }
+
+  private static File makeTempDir(String tag) {
+    try {
+      File retval = File.createTempFile("webExport-" + tag, "");
+      check(retval.delete() && retval.mkdir(), "Could not create a directory for " + tag);
+      return (retval);
+    } catch (IOException ioex) {
+      check(false, "IO Failure: " + ioex.getMessage());
+      return (null);
+    }
+  }
+
+  private static byte[] readFile(File file) {
+    byte[] retval = new byte[(int)file.length()];
+    try {
+      InputStream is = new FileInputStream(file);
+      try {
+        new DataInputStream(is).readFully(retval);
+      } finally {
+        is.close();
+      }
+    } catch (IOException ioex) {
+      check(false, "IO Failure: " + ioex.getMessage());
+    }
+    return (retval);
+  }
+
+  private static void check(boolean ok, String msg) {
+    if (!ok) {
+      System.err.println("FAILED: " + msg);
+      System.exit(1);
+    }
+    return;
+  }
+}
@@ -25,8 +25,12 @@ import java.awt.Point;
 import java.awt.geom.Point2D;
 import java.awt.image.BufferedImage;
 import java.io.BufferedReader;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
 import java.io.FileInputStream;
 import java.io.FileNotFoundException;
+import java.io.IOException;
 import java.io.InputStream;
 import java.io.InputStreamReader;
 import java.io.OutputStream;
@@ -41,6 +45,8 @@ import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.TreeSet;
+import java.util.concurrent.locks.ReentrantLock;
 
 import javax.imageio.ImageIO;
 import javax.servlet.http.HttpServletRequest;
@@ -73,6 +79,7 @@ import org.systemsbiology.biotapestry.genome.Genome;
 import org.systemsbiology.biotapestry.nav.NavTree;
 import org.systemsbiology.biotapestry.nav.XPlatModelNode;
 import org.systemsbiology.biotapestry.nav.XPlatModelTree;
+import org.systemsbiology.biotapestry.parser.RecordedDocument;
 import org.systemsbiology.biotapestry.ui.ImageExporter;
 import org.systemsbiology.biotapestry.ui.Intersection;
 import org.systemsbiology.biotapestry.ui.Layout;
@@ -81,6 +88,7 @@ import org.systemsbiology.biotapestry.ui.SourceAndTargetSelector;
 import org.systemsbiology.biotapestry.ui.ViewExporter;
 import org.systemsbiology.biotapestry.ui.dialogs.factory.SerializableDialogPlatform;
 import org.systemsbiology.biotapestry.ui.freerender.MultiSubID;
+import org.systemsbiology.biotapestry.ui.freerender.NetModuleFree;
 import org.systemsbiology.biotapestry.ui.menu.XPlatCurrentState;
 import org.systemsbiology.biotapestry.ui.menu.XPlatGenericMenu;
 import org.systemsbiology.biotapestry.ui.menu.XPlatKeyBindings;
@@ -88,6 +96,7 @@ import org.systemsbiology.biotapestry.ui.menu.XPlatMaskingStatus;
 import org.systemsbiology.biotapestry.ui.menu.XPlatMenu;
 import org.systemsbiology.biotapestry.ui.menu.XPlatMenuBar;
 import org.systemsbiology.biotapestry.ui.menu.XPlatToolBar;
+import org.systemsbiology.biotapestry.util.BTProgressMonitor;
 import org.systemsbiology.biotapestry.util.ExceptionHandler;
 import org.systemsbiology.biotapestry.util.NamedOutputStreamSource;
 import org.systemsbiology.biotapestry.util.ResourceManager;
@@ -114,6 +123,14 @@ public class WebServerApplication {
   //
   ////////////////////////////////////////////////////////////////////////////   
   
+  //
+  // Map tiles: level 0 matches the scale of getImage(); each level up doubles it.
+  //
+  
+  public static final int TILE_SIZE = 256;
+  public static final int MIN_TILE_LEVEL = -4;
+  public static final int MAX_TILE_LEVEL = 4;
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE MEMBERS
@@ -131,6 +148,7 @@ public class WebServerApplication {
   private final String pluginsDir_;
   
   private static final String DEFAULT_MODEL_FILE_DIR_ = "/WEB-INF/data/";
+  private static final double TILE_BASE_ZOOM_ = 0.38;
  
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -158,13 +176,11 @@ public class WebServerApplication {
   }
   
   public WebServerApplication(String servPath, String fileDir, String fullServletContextPath,String pluginsDir) throws GeneratorException { 
-	  synchronized (MainCommands.class) {
-	    System.setProperty("java.awt.headless", "true");     	
-	    servletPath_ = servPath;
-	    fileDir_ = (fileDir == null ? DEFAULT_MODEL_FILE_DIR_ : fileDir);
-	    fullServletContextPath_ = fullServletContextPath;
-	    pluginsDir_ = pluginsDir;
-	  }			  
+    System.setProperty("java.awt.headless", "true");     	
+    servletPath_ = servPath;
+    fileDir_ = (fileDir == null ? DEFAULT_MODEL_FILE_DIR_ : fileDir);
+    fullServletContextPath_ = fullServletContextPath;
+    pluginsDir_ = pluginsDir;
   }
   
 
@@ -205,7 +221,31 @@ public class WebServerApplication {
   */
 
   public void initNewState(BTState appState, InputStream is) throws GeneratorException {  
-    synchronized (MainCommands.class) {     
+    initNewStateCore(appState, is);
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Initialize a brand new app State from a document that has already been
+  ** parsed once and is shared by all sessions
+  */
+
+  public void initNewState(BTState appState, RecordedDocument recorded) throws GeneratorException {  
+    initNewStateCore(appState, recorded);
+    return;
+  }
+
+  /***************************************************************************
+  ** 
+  ** Initialize a brand new app State. Source is either an InputStream or
+  ** a RecordedDocument
+  */
+
+  private void initNewStateCore(BTState appState, Object source) throws GeneratorException {  
+    ReentrantLock sessionLock = appState.getSessionLock();
+    sessionLock.lock();
+    try {
       try {
     	  Map<String,Object> plugins = new HashMap<String,Object>();
           if(pluginsDir_ != null) {
@@ -230,7 +270,7 @@ public class WebServerApplication {
         FlowMeister flom = appState.getFloM();
         Object[] osArgs = new Object[2];
         osArgs[0] = Boolean.valueOf(false);
-        osArgs[1] = is;
+        osArgs[1] = source;
         BatchJobControlFlowHarness dcf0 = new BatchJobControlFlowHarness(appState, null); 
         ControlFlow myFlow0 = flom.getControlFlow(FlowMeister.MainFlow.LOAD, null);
         DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
@@ -249,7 +289,9 @@ public class WebServerApplication {
     	  }
     	  throw new GeneratorException("Error on BTState init: " + message,ex);
       }
-    }       
+    } finally {
+      sessionLock.unlock();
+    }
   }  
 
   /***************************************************************************
@@ -258,7 +300,9 @@ public class WebServerApplication {
   */
 
   public String getAnnotationImageType(BTState appState, String modelID) throws GeneratorException {
-    synchronized (MainCommands.class) {
+    ReentrantLock sessionLock = appState.getSessionLock();
+    sessionLock.lock();
+    try {
       try {
         Genome currGenome = appState.getDB().getGenome(modelID);
         String mi = currGenome.getGenomeImage();
@@ -273,6 +317,8 @@ public class WebServerApplication {
       } catch (Exception ex) {
         throw new GeneratorException("imageTypeFailure: " + ex.getMessage(),ex);
       }
+    } finally {
+      sessionLock.unlock();
     }
   }
   
@@ -282,7 +328,9 @@ public class WebServerApplication {
   */
 
   public void getAnnotationImage(BTState appState, String modelID, OutputStream output) throws GeneratorException {  
-    synchronized (MainCommands.class) {    
+    ReentrantLock sessionLock = appState.getSessionLock();
+    sessionLock.lock();
+    try {
       try {
         Genome currGenome = appState.getDB().getGenome(modelID);
         String mi = currGenome.getGenomeImage();
@@ -296,6 +344,8 @@ public class WebServerApplication {
       } catch (Exception ex) {
         throw new GeneratorException("getAnnotationImageFailure: " + ex.getMessage(),ex);
       }
+    } finally {
+      sessionLock.unlock();
     }
     return;
   }  
@@ -306,7 +356,9 @@ public class WebServerApplication {
   */
 
   public void getImage(BTState appState, String modelID, OutputStream output) throws GeneratorException {  
-    synchronized (MainCommands.class) {    
+    ReentrantLock sessionLock = appState.getSessionLock();
+    sessionLock.lock();
+    try {
       try {
         
         if (modelID == null) {
@@ -342,17 +394,123 @@ public class WebServerApplication {
       } catch (Exception ex) {
     	  	throw new GeneratorException("imageExportFailure: " + ex.getMessage(),ex);
       }
+    } finally {
+      sessionLock.unlock();
     }
     return;
   }
 
+  /***************************************************************************
+  ** 
+  ** Get one map tile of the specified network as a PNG. Only the tile's area
+  ** is rasterized. Viewer sessions also reuse the presentation of the model 
+  ** across tiles, so panning and zooming does not present the genome again. 
+  ** Returns false if the tile lies outside the model image.
+  */
+
+  public boolean getTile(BTState appState, String modelID, int level, int tileCol, int tileRow, 
+                         OutputStream output) throws GeneratorException {  
+    if ((level < MIN_TILE_LEVEL) || (level > MAX_TILE_LEVEL)) {
+      return (false);
+    }
+    ReentrantLock sessionLock = appState.getSessionLock();
+    sessionLock.lock();
+    try {
+      try {
+        if (modelID == null) {
+          String genomeID = appState.getGenome();          
+          modelID = (genomeID == null) ? appState.getDB().getStartupView().getModel() : genomeID;
+        }
+        String presKey = getViewerRenderKey(appState, modelID);
+        double zoom = TILE_BASE_ZOOM_ * Math.pow(2.0, level);
+        
+        DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
+        String holdKey = dacx.getGenomeID();
+        double holdZoom = appState.getZoomTarget().getZoomFactor();
+        boolean swapOut = (holdKey == null) || !holdKey.equals(modelID);
+        if (swapOut) {
+          String layoutID = appState.getLayoutMgr().getLayout(modelID);
+          appState.setGraphLayout(layoutID);
+          UndoSupport fakeSupport = new UndoSupport(appState, "neverClosed", dacx);
+          appState.setGenome(modelID, fakeSupport, dacx);
+        }
+        boolean retval;
+        try {
+          retval = appState.getSUPanel().exportTileToStream(output, "PNG", null, zoom, TILE_SIZE, 
+                                                           tileCol, tileRow, presKey, appState);
+        } finally {
+          if (swapOut) {
+            String layoutID = appState.getLayoutMgr().getLayout(holdKey);
+            appState.setGraphLayout(layoutID);
+            appState.setGenomeForUndo(holdKey, dacx);
+          }
+          appState.getZoomTarget().setZoomFactor(holdZoom);
+        }
+        return (retval);
+      } catch (Exception ex) {
+        throw new GeneratorException("tileExportFailure: " + ex.getMessage(),ex);
+      }
+    } finally {
+      sessionLock.unlock();
+    }
+  }
+
+  /***************************************************************************
+  ** 
+  ** Get a key covering the session state that viewer-mode images, model maps,
+  ** and model trees depend on beyond the loaded model file: the model shown, 
+  ** overlay and module display state, and zoom. Returns null if output for this
+  ** session cannot be shared with other sessions (editors, active selections).
+  */
+
+  public String getViewerRenderKey(BTState appState, String modelID) throws GeneratorException {  
+    ReentrantLock sessionLock = appState.getSessionLock();
+    sessionLock.lock();
+    try {
+      if (appState.getIsEditor() || !appState.getSUPanel().getSelections().isEmpty()) {
+        return (null);
+      }
+      if (modelID == null) {
+        String genomeID = appState.getGenome();          
+        modelID = (genomeID == null) ? appState.getDB().getStartupView().getModel() : genomeID;
+      }
+      StringBuffer buf = new StringBuffer();
+      File currFile = appState.getCurrentFile();
+      if (currFile != null) {
+        buf.append(currFile.getPath()).append('@').append(currFile.lastModified());
+      }
+      buf.append('|').append(modelID);
+      buf.append('|').append(appState.getCurrentOverlay());
+      appendTaggedSet(buf, appState.getCurrentNetModules());
+      appendTaggedSet(buf, appState.getRevealedModules());
+      buf.append('|').append(appState.showingModuleComponents());
+      NetModuleFree.CurrentSettings settings = appState.getCurrentOverlaySettings();
+      if (settings != null) {
+        buf.append('|').append(settings.regionLabelAlpha);
+        buf.append(',').append(settings.regionFillAlpha);
+        buf.append(',').append(settings.regionBoundaryAlpha);
+        buf.append(',').append(settings.backgroundOverlayAlpha);
+        buf.append(',').append(settings.intersectionMask);
+        buf.append(',').append(settings.fastDecayLabelVisible);
+      }
+      buf.append('|').append(appState.getZoomTarget().getZoomFactor());
+      return (buf.toString());
+    } catch (Exception ex) {
+      throw new GeneratorException("renderKeyFailure: " + ex.getMessage(),ex);
+    } finally {
+      sessionLock.unlock();
+    }
+  }
+
   /***************************************************************************
   ** 
   ** Get JSON representation of specified network
   */
 
   public Map<String, Object> getModelMap(BTState appState, String modelID) throws GeneratorException {  
-    synchronized (MainCommands.class) {
+    ReentrantLock sessionLock = appState.getSessionLock();
+    sessionLock.lock();
+    try {
       try {
         if (modelID == null) {
           String genomeID = appState.getGenome();          
@@ -377,6 +535,8 @@ public class WebServerApplication {
     	  ex.printStackTrace();
         throw new GeneratorException("JSONExportFailure: " + ex.getMessage(),ex);
       }
+    } finally {
+      sessionLock.unlock();
     }
   } 
   
@@ -386,7 +546,9 @@ public class WebServerApplication {
   */
 
   public XPlatModelTree getModelTree(BTState appState) throws GeneratorException { 
-    synchronized (MainCommands.class) { 
+    ReentrantLock sessionLock = appState.getSessionLock();
+    sessionLock.lock();
+    try {
       try {
         DataAccessContext dacx = new DataAccessContext(appState);
         NavTree navTree = dacx.getGenomeSource().getModelHierarchy();  
@@ -396,29 +558,29 @@ public class WebServerApplication {
     	  hex.printStackTrace();
         throw new GeneratorException("ExceptionFailure: " + hex.getMessage(), hex);
       }
-    }   
+    } finally {
+      sessionLock.unlock();
+    }
   }
   
   /***************************************************************************
   ** 
-  ** Get the specified icon image
+  ** Get the specified icon image. Icons are static resources, so this does not
+  ** need to hold the session lock.
   */
 
   public void getIcon(BTState appState, String iconName, OutputStream output) throws GeneratorException {    
   
-    synchronized (MainCommands.class) {   
-      try {
-        if (iconName == null) {
-          throw new GeneratorException("no iconFile");
-        }
-        MainCommands mcmd = appState.getMainCmds();
-        URL ugif = mcmd.getClass().getResource("/org/systemsbiology/biotapestry/images/" + iconName); 
-        Image image = ImageIO.read(ugif);
-        ImageIO.write((BufferedImage)image, "png", output);
-      } catch (Exception hex) {
-        throw new GeneratorException("ExceptionFailure: " + hex.getMessage(),hex);
-      }    
-    }
+    try {
+      if (iconName == null) {
+        throw new GeneratorException("no iconFile");
+      }
+      URL ugif = MainCommands.class.getResource("/org/systemsbiology/biotapestry/images/" + iconName); 
+      Image image = ImageIO.read(ugif);
+      ImageIO.write((BufferedImage)image, "png", output);
+    } catch (Exception hex) {
+      throw new GeneratorException("ExceptionFailure: " + hex.getMessage(),hex);
+    }    
     return;
   }
   
@@ -428,7 +590,9 @@ public class WebServerApplication {
   */
 
   public MenuSource.SupportedMenus getSupportedMenuRequests(BTState appState) throws GeneratorException {     
-    synchronized (MainCommands.class) {   
+    ReentrantLock sessionLock = appState.getSessionLock();
+    sessionLock.lock();
+    try {
       try { 
         MenuSource mSrc = new MenuSource(appState.getFloM(), !appState.getIsEditor(), appState.getDoGaggle());
         return (mSrc.getSupportedMenuClasses());
@@ -436,6 +600,8 @@ public class WebServerApplication {
         ex.printStackTrace();
         throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
       }    
+    } finally {
+      sessionLock.unlock();
     }
   }
    
@@ -446,7 +612,9 @@ public class WebServerApplication {
 
   public XPlatGenericMenu getMenuDefinition(BTState appState, HSRWrapper hsrWrapper) throws GeneratorException {    
   
-    synchronized (MainCommands.class) {   
+    ReentrantLock sessionLock = appState.getSessionLock();
+    sessionLock.lock();
+    try {
       try {
     	  
     	  // Menus require current client state information
@@ -518,7 +686,9 @@ public class WebServerApplication {
     	  ex.printStackTrace();
         throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
       }    
-    }   
+    } finally {
+      sessionLock.unlock();
+    }
   }
   
   /***************************************************************************
@@ -528,7 +698,9 @@ public class WebServerApplication {
 
   public XPlatCurrentState getMenuStatus(BTState appState) throws GeneratorException {    
   
-    synchronized (MainCommands.class) {
+    ReentrantLock sessionLock = appState.getSessionLock();
+    sessionLock.lock();
+    try {
       try {
         XPlatCurrentState xpcs = new XPlatCurrentState();
         DataAccessContext dacx = new DataAccessContext(appState, appState.getGenome());
@@ -585,7 +757,9 @@ public class WebServerApplication {
       } catch (Exception ex) {
         throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
       }    
-    }   
+    } finally {
+      sessionLock.unlock();
+    }
   }
   
   /***************************************************************************
@@ -595,7 +769,9 @@ public class WebServerApplication {
 
   public XPlatKeyBindings getKeyBindings(BTState appState) throws GeneratorException {    
   
-    synchronized (MainCommands.class) {   
+    ReentrantLock sessionLock = appState.getSessionLock();
+    sessionLock.lock();
+    try {
       try { 
         MenuSource mSrc = new MenuSource(appState.getFloM(), !appState.getIsEditor(), appState.getDoGaggle());
         XPlatKeyBindings xpmb = mSrc.getXPlatKeyBindings();
@@ -603,7 +779,9 @@ public class WebServerApplication {
       } catch (Exception ex) {
         throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
       }    
-    }   
+    } finally {
+      sessionLock.unlock();
+    }
   }
   
   /*****************************************
@@ -619,7 +797,9 @@ public class WebServerApplication {
    */
   public Map<String,Object> mapLinksToIntersections(BTState appState, ParamSource req) throws GeneratorException {
   
-    synchronized (MainCommands.class) {   
+    ReentrantLock sessionLock = appState.getSessionLock();
+    sessionLock.lock();
+    try {
       try { 
         String modelID = req.getParameter("model");
         if (modelID == null) {
@@ -647,24 +827,41 @@ public class WebServerApplication {
       } catch (Exception ex) {
         throw new GeneratorException("ExceptionFailure: " + ex.getMessage(),ex);
       }
+    } finally {
+      sessionLock.unlock();
     }
   }
     
   /***************************************************************************
   ** 
   ** In-process processing entry point.  This method is synchronized internally
-  ** on a global basis to insure one process call at a time.
+  ** on a per-session basis to insure one process call at a time for each session.
+  */
+
+  public CommandResult processCommand(BTState appState, ParamSource req) throws GeneratorException {
+    return (processCommand(appState, req, null));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** In-process processing entry point, for commands run as jobs off the request
+  ** thread. If monitor is not null, headless background work done by the command
+  ** (e.g. layout) reports its progress to it.
   */
 
-  public CommandResult processCommand(BTState appState, ParamSource req) throws GeneratorException {    
+  public CommandResult processCommand(BTState appState, ParamSource req, BTProgressMonitor monitor) throws GeneratorException {    
   
     //
-    // Processing of all requests MUST be globally 
-    // serialized in a multi-threaded environment.  At this time, 
-    // BioTapestry core code must run on one thread when in batch mode.
+    // Processing of all requests for a session MUST be serialized
+    // in a multi-threaded environment. Each BTState carries its own
+    // model, presentation, and flow harness, so requests for different
+    // sessions can run in parallel.
     //
     
-    synchronized (MainCommands.class) {   
+    ReentrantLock sessionLock = appState.getSessionLock();
+    sessionLock.lock();
+    appState.setHeadlessProgressMonitor(monitor);
+    try {
       try {
         
         appState.setCurrentPrintWriter(new PrintWriter(System.out));
@@ -985,6 +1182,9 @@ public class WebServerApplication {
     	  }
     	  throw new GeneratorException(errMsg,ex);
       }
+    } finally {
+      appState.setHeadlessProgressMonitor(null);
+      sessionLock.unlock();
     }
   }    
 
@@ -1016,6 +1216,27 @@ public class WebServerApplication {
   ////////////////////////////////////////////////////////////////////////////    
   
   
+  /***************************************************************************
+  **
+  ** Append a tagged set to a key in a stable order
+  */ 
+  
+  private void appendTaggedSet(StringBuffer buf, TaggedSet tSet) {
+    buf.append('|');
+    if (tSet == null) {
+      return;
+    }
+    buf.append(tSet.tag).append(':');
+    if (tSet.set != null) {
+      TreeSet<String> sorted = new TreeSet<String>(tSet.set);
+      Iterator<String> sit = sorted.iterator();
+      while (sit.hasNext()) {
+        buf.append(sit.next()).append(',');
+      }
+    }
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Fill in simple user feedback
@@ -1383,7 +1604,7 @@ public class WebServerApplication {
 	  WebClientState wcs = null;
 	  
 	  try {
-		  InputStream inputStream = ((HSRWrapper)req).getInputStream();
+		  InputStream inputStream = ((RequestBodySource)req).getInputStream();
 		  inputs = new StringBuilder();
 		  if (inputStream != null) {
 			  br = new BufferedReader(new InputStreamReader(inputStream));
@@ -1438,7 +1659,7 @@ public class WebServerApplication {
 	  }
 	  
 	  try {
-		  InputStream inputStream = ((HSRWrapper)req).getInputStream();
+		  InputStream inputStream = ((RequestBodySource)req).getInputStream();
 		  
 		  inputs = new StringBuilder();
 		  
@@ -1707,7 +1928,7 @@ public class WebServerApplication {
   ** Usual way of using interface
   */ 
   
-  public static class HSRWrapper implements ParamSource {
+  public static class HSRWrapper implements RequestBodySource {
      
     private HttpServletRequest hsr_;
      
@@ -1735,6 +1956,57 @@ public class WebServerApplication {
     
   }
   
+  /***************************************************************************
+  ** 
+  ** A parameter source that also carries the request body
+  */ 
+  
+  public interface RequestBodySource extends ParamSource {       
+    public InputStream getInputStream() throws Exception;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** A copy of a request's parameters and body, for processing a command after
+  ** the request itself has been answered.
+  */ 
+  
+  public static class DetachedRequest implements RequestBodySource {
+     
+    private HashMap<String, String> params_;
+    private byte[] body_;
+     
+    public DetachedRequest(HttpServletRequest hsr) throws IOException {
+      params_ = new HashMap<String, String>();
+      @SuppressWarnings("unchecked") // Raw Enumeration before Servlet 3.0
+      Enumeration<String> e = hsr.getParameterNames();
+      while (e.hasMoreElements()) {
+        String key = e.nextElement();
+        params_.put(key, hsr.getParameter(key));
+      }
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      InputStream in = hsr.getInputStream();
+      byte[] chunk = new byte[4096];
+      int count;
+      while ((count = in.read(chunk)) > 0) {
+        buf.write(chunk, 0, count);
+      }
+      body_ = buf.toByteArray();
+    }
+     
+    public String getParameter(String key) {
+      return (params_.get(key));      
+    }
+
+    public Iterator<String> getKeys() {
+      return (new HashSet<String>(params_.keySet()).iterator());
+    } 
+    
+    public InputStream getInputStream() throws Exception {
+      return (new ByteArrayInputStream(body_));
+    }
+  }
+  
   /***************************************************************************
   ** 
   ** Testing
@@ -0,0 +1,842 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.cmd.flow.io;
+
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.RandomAccessFile;
+import java.lang.reflect.InvocationTargetException;
+import java.nio.channels.FileLock;
+import java.nio.channels.OverlappingFileLockException;
+import java.text.DateFormat;
+import java.text.MessageFormat;
+import java.util.ArrayList;
+import java.util.Date;
+import java.util.List;
+import java.util.zip.CRC32;
+
+import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
+
+import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.cmd.undo.BTUndoCmd;
+import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
+import org.systemsbiology.biotapestry.parser.SnapshotWriter;
+import org.systemsbiology.biotapestry.util.ResourceManager;
+
+/****************************************************************************
+**
+** Autosave for the editor: a snapshot checkpoint of the model, plus a journal
+** of the edits made since. Each committed edit, undo, and redo is appended to
+** the journal as it happens (see ChangeJournal for the encoding). After a
+** crash, the checkpoint is loaded and the journal replayed on top of it.
+**
+** A daemon thread compacts the journal into a new checkpoint once editing
+** pauses. Edits that cannot be journaled are written as a barrier, and get
+** a new checkpoint right away. Loading, saving, or starting a new model
+** discards both files.
+*/
+
+public class AutoSaveCheckpointer {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final long CHECK_MILLIS_ = 30000L;
+  private static final long IDLE_MILLIS_ = 5000L;
+  private static final long COMPACT_BYTES_ = 4L * 1024L * 1024L;
+
+  private static final String CHECKPOINT_ = "checkpoint" + LoadSaveSupport.SNAPSHOT_SUFFIX_;
+  private static final String JOURNAL_ = "journal.bin";
+  private static final String LOCK_ = "autosave.lock";
+  private static final String TEMP_ = ".tmp";
+
+  private static final int MAGIC_ = 0x42544a31;
+  private static final int HEADER_BYTES_ = 24;
+
+  private static final byte EDIT_    = 1;
+  private static final byte UNDO_    = 2;
+  private static final byte BARRIER_ = 3;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private BTState appState_;
+  private ChangeJournal changes_;
+  private File dir_;
+  private RandomAccessFile lockFile_;
+  private FileLock lock_;
+  private DataOutputStream journal_;
+  private long journalBytes_;
+  private ArrayList<JournalRecord> records_;
+  private long editSeq_;
+  private long checkpointSeq_;
+  private boolean haveCheckpoint_;
+  private boolean needCheckpoint_;
+  private long lastEditMillis_;
+  private int busyCount_;
+  private Thread thread_;
+  private volatile boolean done_;
+
+  //
+  // What we found from an earlier run that did not shut down cleanly:
+  //
+
+  private long oldCheckpointMillis_;
+  private int oldReplayable_;
+  private int oldLost_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  public AutoSaveCheckpointer(BTState appState, File dir) {
+    appState_ = appState;
+    changes_ = new ChangeJournal(appState);
+    dir_ = dir;
+    records_ = new ArrayList<JournalRecord>();
+    editSeq_ = 0L;
+    checkpointSeq_ = 0L;
+    haveCheckpoint_ = false;
+    needCheckpoint_ = false;
+    lastEditMillis_ = 0L;
+    busyCount_ = 0;
+    done_ = false;
+    oldCheckpointMillis_ = -1L;
+    oldReplayable_ = 0;
+    oldLost_ = 0;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Default place to keep autosave files
+  */
+
+  public static File defaultDirectory() {
+    File home = new File(System.getProperty("user.home"));
+    return (new File(new File(home, ".biotapestry"), "autosave"));
+  }
+
+  /***************************************************************************
+  **
+  ** Claim the autosave directory and start the checkpoint thread. Answers
+  ** false (and autosave stays off) if another running copy of the editor has
+  ** the directory, or it cannot be used.
+  */
+
+  public boolean start() {
+    try {
+      if (!dir_.isDirectory() && !dir_.mkdirs()) {
+        return (false);
+      }
+      lockFile_ = new RandomAccessFile(new File(dir_, LOCK_), "rw");
+      try {
+        lock_ = lockFile_.getChannel().tryLock();
+      } catch (OverlappingFileLockException oflex) {  // Another editor in this JVM
+        lock_ = null;
+      }
+      if (lock_ == null) {
+        lockFile_.close();
+        return (false);
+      }
+      readOldJournal();
+      if (oldCheckpointMillis_ == -1L) {
+        discardFiles();
+      }
+    } catch (IOException ioex) {
+      return (false);
+    }
+
+    thread_ = new Thread(new Runnable() {
+      public void run() {
+        checkpointLoop();
+      }
+    }, "BioTapAutoSave");
+    thread_.setDaemon(true);
+    thread_.setPriority(Thread.MIN_PRIORITY);
+    thread_.start();
+    return (true);
+  }
+
+  /***************************************************************************
+  **
+  ** If an earlier run left a checkpoint behind, ask the user if they want it
+  ** back, and recover it if so.
+  */
+
+  public void offerRecovery(DataAccessContext dacx) {
+    if (oldCheckpointMillis_ == -1L) {
+      return;
+    }
+    ResourceManager rMan = appState_.getRMan();
+    String when = DateFormat.getDateTimeInstance().format(new Date(oldCheckpointMillis_));
+    String msg = MessageFormat.format(rMan.getString("autoSave.recoverMessage"), new Object[] {when});
+    if (oldReplayable_ > 0) {
+      msg = msg + MessageFormat.format(rMan.getString("autoSave.recoverReplayEdits"), new Object[] {Integer.valueOf(oldReplayable_)});
+    }
+    if (oldLost_ > 0) {
+      msg = msg + MessageFormat.format(rMan.getString("autoSave.recoverLostEdits"), new Object[] {Integer.valueOf(oldLost_)});
+    }
+    msg = msg + rMan.getString("autoSave.recoverQuestion");
+    int ok = JOptionPane.showConfirmDialog(appState_.getTopFrame(), msg,
+                                           rMan.getString("autoSave.recoverTitle"),
+                                           JOptionPane.YES_NO_OPTION);
+    oldCheckpointMillis_ = -1L;
+    if (ok != JOptionPane.YES_OPTION) {
+      discardFiles();
+      return;
+    }
+    int replayed = recover(dacx);
+    if (replayed == -1) {
+      appState_.getLSSupport().getFprep().getFileInputError(null).displayFileInputError();
+      return;
+    }
+    if (replayed < oldReplayable_) {
+      String failMsg = MessageFormat.format(rMan.getString("autoSave.replayFailed"),
+                                            new Object[] {Integer.valueOf(replayed), Integer.valueOf(oldReplayable_)});
+      JOptionPane.showMessageDialog(appState_.getTopFrame(), failMsg,
+                                    rMan.getString("autoSave.recoverTitle"),
+                                    JOptionPane.WARNING_MESSAGE);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Load the checkpoint left behind, and replay the journal on top of it, up
+  ** to the first edit that was not journaled. If an edit will not replay, the
+  ** ones before it are kept. The result becomes the new checkpoint, and the
+  ** model is marked as changed. Answers the number of edits replayed, or -1
+  ** if the checkpoint could not be loaded.
+  */
+
+  public int recover(DataAccessContext dacx) {
+    byte[] snapshot;
+    List<JournalRecord> recs;
+    try {
+      snapshot = readFile(new File(dir_, CHECKPOINT_));
+      recs = readJournal(snapshot, null);
+    } catch (IOException ioex) {
+      discardFiles();
+      return (-1);
+    }
+    if (recs == null) {
+      recs = new ArrayList<JournalRecord>();
+    }
+    int numRecs = recs.size();
+    for (int i = 0; i < numRecs; i++) {
+      if (recs.get(i).kind == BARRIER_) {
+        recs = recs.subList(0, i);
+        break;
+      }
+    }
+
+    //
+    // Loading discards the files, but we have what we need in hand:
+    //
+
+    if (!loadSnapshot(snapshot, dacx)) {
+      return (-1);
+    }
+    int replayed = replay(recs);
+    if (replayed < recs.size()) {
+      // The model is partway into the edit that failed, so start over:
+      if (!loadSnapshot(snapshot, dacx)) {
+        return (-1);
+      }
+      replayed = replay(recs.subList(0, replayed));
+    }
+
+    //
+    // Replay only touches the model items the edits changed. Going through a
+    // load again gets everything built from the results:
+    //
+
+    byte[] current = snapshot;
+    if (replayed > 0) {
+      try {
+        ByteArrayOutputStream snap = new ByteArrayOutputStream();
+        appState_.getLSSupport().writeXML(new SnapshotWriter(snap), null);
+        current = snap.toByteArray();
+      } catch (IOException ioex) {
+        return (-1);
+      }
+      if (!loadSnapshot(current, dacx)) {
+        return (-1);
+      }
+    }
+    appState_.bumpUndoCount();
+    long seq;
+    synchronized (this) {
+      editSeq_++;
+      seq = editSeq_;
+    }
+    try {
+      writeCheckpoint(current, seq);
+    } catch (IOException ioex) {
+      synchronized (this) {
+        needCheckpoint_ = true;  // Try again on the next pass
+      }
+    }
+    return (replayed);
+  }
+
+  /***************************************************************************
+  **
+  ** Note a committed edit, given its model changes. Call on the event thread.
+  ** Answers the journal encoding of the edit, which is needed to note an undo
+  ** or redo of it later. Null if it could not be encoded; that edit gets a new
+  ** checkpoint instead.
+  */
+
+  public byte[] editCommitted(List<BTUndoCmd> cmds) {
+    if (done_) {
+      return (null);
+    }
+    byte[] body = changes_.encode(cmds);
+    record((body == null) ? BARRIER_ : EDIT_, body);
+    return (body);
+  }
+
+  /***************************************************************************
+  **
+  ** Note an undo of an edit, given its journal encoding.
+  */
+
+  public void editUndone(byte[] body) {
+    record((body == null) ? BARRIER_ : UNDO_, body);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Note a redo of an edit, given its journal encoding.
+  */
+
+  public void editRedone(byte[] body) {
+    record((body == null) ? BARRIER_ : EDIT_, body);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** The model now matches what is on disk (or is brand new), so there is
+  ** nothing to recover.
+  */
+
+  public synchronized void modelMatchesFile() {
+    if (done_) {
+      return;
+    }
+    checkpointSeq_ = editSeq_;
+    records_.clear();
+    needCheckpoint_ = false;
+    discardFiles();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** While a background operation is underway, the model may be half-built,
+  ** so checkpoints are held off.
+  */
+
+  public synchronized void setBusy(boolean busy) {
+    busyCount_ += (busy) ? 1 : -1;
+    if (busyCount_ < 0) {
+      busyCount_ = 0;
+    }
+    if (busyCount_ == 0) {
+      notifyAll();
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Write a checkpoint now, compacting the journal. Only freezing a copy of
+  ** the model happens on the event thread, where edits happen; writing it out
+  ** happens on the calling thread.
+  */
+
+  public void checkpoint() throws IOException {
+    final Database.SaveView[] view = new Database.SaveView[1];
+    final long[] seq = new long[1];
+    seq[0] = -1L;
+    Runnable freeze = new Runnable() {
+      public void run() {
+        synchronized (AutoSaveCheckpointer.this) {
+          if (done_ || (busyCount_ > 0)) {
+            return;
+          }
+          seq[0] = editSeq_;
+        }
+        view[0] = appState_.getDB().getFrozenSaveView();
+      }
+    };
+    if (SwingUtilities.isEventDispatchThread()) {
+      freeze.run();
+    } else {
+      try {
+        SwingUtilities.invokeAndWait(freeze);
+      } catch (InterruptedException iex) {
+        return;
+      } catch (InvocationTargetException itex) {
+        return;
+      }
+    }
+    if (seq[0] == -1L) {
+      return;
+    }
+    ByteArrayOutputStream snap = new ByteArrayOutputStream();
+    appState_.getLSSupport().writeXML(new SnapshotWriter(snap), view[0]);
+    view[0] = null;
+    writeCheckpoint(snap.toByteArray(), seq[0]);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Clean shutdown: the user has already been told about unsaved changes.
+  */
+
+  public void shutdown() {
+    synchronized (this) {
+      done_ = true;
+      discardFiles();
+      notifyAll();
+    }
+    if (thread_ != null) {
+      thread_.interrupt();
+    }
+    try {
+      if (lock_ != null) {
+        lock_.release();
+      }
+      if (lockFile_ != null) {
+        lockFile_.close();
+      }
+    } catch (IOException ioex) {
+      // Going away anyway
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Add a record to the journal
+  */
+
+  private synchronized void record(byte kind, byte[] body) {
+    if (done_) {
+      return;
+    }
+    editSeq_++;
+    lastEditMillis_ = System.currentTimeMillis();
+    JournalRecord rec = new JournalRecord(editSeq_, kind, body);
+    records_.add(rec);
+    //
+    // With no checkpoint yet, the journal has nothing to be replayed on:
+    //
+    if ((kind == BARRIER_) || !haveCheckpoint_) {
+      needCheckpoint_ = true;
+      notifyAll();
+    }
+    if (journal_ != null) {
+      try {
+        journalBytes_ += writeRecord(journal_, rec);
+        journal_.flush();
+      } catch (IOException ioex) {
+        closeJournal();
+        needCheckpoint_ = true;  // It will start a fresh journal
+        notifyAll();
+      }
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if a checkpoint is called for. Call while synchronized.
+  */
+
+  private boolean checkpointDue() {
+    if (needCheckpoint_) {
+      return (true);
+    }
+    if (records_.isEmpty()) {
+      return (false);
+    }
+    return (((System.currentTimeMillis() - lastEditMillis_) >= IDLE_MILLIS_) || (journalBytes_ > COMPACT_BYTES_));
+  }
+
+  /***************************************************************************
+  **
+  ** Checkpoint thread
+  */
+
+  private void checkpointLoop() {
+    while (!done_) {
+      synchronized (this) {
+        if ((busyCount_ > 0) || !checkpointDue()) {
+          try {
+            wait(CHECK_MILLIS_);
+          } catch (InterruptedException iex) {
+            continue;
+          }
+          if (done_ || (busyCount_ > 0) || !checkpointDue()) {
+            continue;
+          }
+        }
+      }
+      try {
+        checkpoint();
+      } catch (IOException ioex) {
+        try {
+          Thread.sleep(CHECK_MILLIS_);  // Try again on a later pass
+        } catch (InterruptedException iex) {
+          // Just go around
+        }
+      }
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Swap in a new checkpoint, with a new journal holding the edits made since
+  ** it was captured. The journal header records the size and checksum of the
+  ** checkpoint it goes with, so a mismatched pair is never replayed.
+  */
+
+  private void writeCheckpoint(byte[] snapshot, long seq) throws IOException {
+    File checkpoint = new File(dir_, CHECKPOINT_);
+    File tempCheck = new File(dir_, CHECKPOINT_ + TEMP_);
+    FileOutputStream fos = new FileOutputStream(tempCheck);
+    try {
+      fos.write(snapshot);
+      fos.getFD().sync();
+    } finally {
+      fos.close();
+    }
+    CRC32 crc = new CRC32();
+    crc.update(snapshot);
+
+    synchronized (this) {
+      if (done_ || (seq < checkpointSeq_)) {  // Saved or loaded meanwhile
+        tempCheck.delete();
+        return;
+      }
+      int numRecs = records_.size();
+      int cut = 0;
+      while ((cut < numRecs) && (records_.get(cut).seq <= seq)) {
+        cut++;
+      }
+      records_.subList(0, cut).clear();
+
+      closeJournal();
+      File journal = new File(dir_, JOURNAL_);
+      File tempJournal = new File(dir_, JOURNAL_ + TEMP_);
+      FileOutputStream jfos = new FileOutputStream(tempJournal);
+      long bytes = HEADER_BYTES_;
+      boolean barrier = false;
+      try {
+        DataOutputStream out = new DataOutputStream(new BufferedOutputStream(jfos));
+        out.writeInt(MAGIC_);
+        out.writeLong(System.currentTimeMillis());
+        out.writeInt(snapshot.length);
+        out.writeLong(crc.getValue());
+        numRecs = records_.size();
+        for (int i = 0; i < numRecs; i++) {
+          JournalRecord rec = records_.get(i);
+          bytes += writeRecord(out, rec);
+          barrier = barrier || (rec.kind == BARRIER_);
+        }
+        out.flush();
+        jfos.getFD().sync();
+      } finally {
+        jfos.close();
+      }
+      if (!LoadSaveSupport.replaceFile(tempCheck, checkpoint) || !LoadSaveSupport.replaceFile(tempJournal, journal)) {
+        haveCheckpoint_ = false;
+        needCheckpoint_ = true;
+        throw new IOException();
+      }
+      journal_ = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(journal, true)));
+      journalBytes_ = bytes;
+      checkpointSeq_ = seq;
+      haveCheckpoint_ = true;
+      needCheckpoint_ = barrier;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Write a journal record: length, checksum, then the kind and encoded edit.
+  ** Answers the bytes written.
+  */
+
+  private long writeRecord(DataOutputStream out, JournalRecord rec) throws IOException {
+    int bodyLen = (rec.body == null) ? 0 : rec.body.length;
+    CRC32 crc = new CRC32();
+    crc.update(rec.kind);
+    if (rec.body != null) {
+      crc.update(rec.body);
+    }
+    out.writeInt(bodyLen + 1);
+    out.writeInt((int)crc.getValue());
+    out.writeByte(rec.kind);
+    if (rec.body != null) {
+      out.write(rec.body);
+    }
+    return (bodyLen + 9);
+  }
+
+  /***************************************************************************
+  **
+  ** Read the journal, if it goes with the given checkpoint. Pass the bytes
+  ** to check the checksum too, or just the length for a quick check. A torn
+  ** record at the end (we died writing it) ends the journal. Answers null if
+  ** there is no journal for the checkpoint.
+  */
+
+  private List<JournalRecord> readJournal(byte[] snapshot, long[] when) throws IOException {
+    File checkpoint = new File(dir_, CHECKPOINT_);
+    File journal = new File(dir_, JOURNAL_);
+    if (!checkpoint.isFile() || !journal.isFile()) {
+      return (null);
+    }
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(readFile(journal)));
+    if (in.available() < HEADER_BYTES_) {
+      return (null);
+    }
+    if (in.readInt() != MAGIC_) {
+      return (null);
+    }
+    long millis = in.readLong();
+    int snapLen = in.readInt();
+    long snapCRC = in.readLong();
+    if (snapLen != checkpoint.length()) {
+      return (null);
+    }
+    if (snapshot != null) {
+      CRC32 crc = new CRC32();
+      crc.update(snapshot);
+      if ((snapshot.length != snapLen) || (crc.getValue() != snapCRC)) {
+        return (null);
+      }
+    }
+    if (when != null) {
+      when[0] = millis;
+    }
+    ArrayList<JournalRecord> retval = new ArrayList<JournalRecord>();
+    while (in.available() >= 8) {
+      int len = in.readInt();
+      int check = in.readInt();
+      if ((len < 1) || (len > in.available())) {
+        break;
+      }
+      byte[] payload = new byte[len];
+      in.readFully(payload);
+      CRC32 crc = new CRC32();
+      crc.update(payload);
+      if ((int)crc.getValue() != check) {
+        break;
+      }
+      byte[] body = null;
+      if (len > 1) {
+        body = new byte[len - 1];
+        System.arraycopy(payload, 1, body, 0, len - 1);
+      }
+      retval.add(new JournalRecord(0L, payload[0], body));
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** See what an earlier run left behind
+  */
+
+  private void readOldJournal() throws IOException {
+    File checkpoint = new File(dir_, CHECKPOINT_);
+    if (!checkpoint.isFile()) {
+      return;
+    }
+    long[] when = new long[1];
+    List<JournalRecord> recs = readJournal(null, when);
+    //
+    // If we died between swapping in a new checkpoint and its journal, the
+    // checkpoint alone is still good:
+    //
+    if (recs == null) {
+      oldCheckpointMillis_ = checkpoint.lastModified();
+      return;
+    }
+    int numRecs = recs.size();
+    int replayable = 0;
+    while ((replayable < numRecs) && (recs.get(replayable).kind != BARRIER_)) {
+      replayable++;
+    }
+    oldCheckpointMillis_ = when[0];
+    oldReplayable_ = replayable;
+    oldLost_ = numRecs - replayable;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Replay journal records on the model. Answers how many went in cleanly.
+  */
+
+  private int replay(List<JournalRecord> recs) {
+    int numRecs = recs.size();
+    for (int i = 0; i < numRecs; i++) {
+      JournalRecord rec = recs.get(i);
+      try {
+        changes_.replay(rec.body, rec.kind == UNDO_);
+      } catch (IOException ioex) {
+        return (i);
+      } catch (RuntimeException rex) {  // Edit does not fit the model it is replayed on
+        return (i);
+      }
+    }
+    return (numRecs);
+  }
+
+  /***************************************************************************
+  **
+  ** Load a snapshot as the model
+  */
+
+  private boolean loadSnapshot(byte[] snapshot, DataAccessContext dacx) {
+    return (appState_.getLSSupport().loadFromStream(new ByteArrayInputStream(snapshot), dacx).wasSuccessful());
+  }
+
+  /***************************************************************************
+  **
+  ** Close the journal
+  */
+
+  private synchronized void closeJournal() {
+    if (journal_ != null) {
+      try {
+        journal_.close();
+      } catch (IOException ioex) {
+        // Being replaced or discarded anyway
+      }
+      journal_ = null;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Get rid of the checkpoint and journal
+  */
+
+  private synchronized void discardFiles() {
+    closeJournal();
+    haveCheckpoint_ = false;
+    new File(dir_, JOURNAL_).delete();
+    new File(dir_, CHECKPOINT_).delete();
+    new File(dir_, JOURNAL_ + TEMP_).delete();
+    new File(dir_, CHECKPOINT_ + TEMP_).delete();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Slurp a file
+  */
+
+  private byte[] readFile(File file) throws IOException {
+    InputStream in = new FileInputStream(file);
+    try {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream((int)file.length());
+      byte[] chunk = new byte[65536];
+      int got;
+      while ((got = in.read(chunk)) != -1) {
+        buf.write(chunk, 0, got);
+      }
+      return (buf.toByteArray());
+    } finally {
+      in.close();
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** A journal entry
+  */
+
+  private static class JournalRecord {
+    long seq;
+    byte kind;
+    byte[] body;
+
+    JournalRecord(long seq, byte kind, byte[] body) {
+      this.seq = seq;
+      this.kind = kind;
+      this.body = body;
+    }
+  }
+}
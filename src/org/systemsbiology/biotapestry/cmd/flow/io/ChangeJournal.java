@@ -0,0 +1,908 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.cmd.flow.io;
+
+import java.awt.geom.Point2D;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataInputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.PrintWriter;
+import java.io.StringWriter;
+import java.util.ArrayList;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Set;
+
+import org.xml.sax.Attributes;
+
+import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.cmd.undo.BTUndoCmd;
+import org.systemsbiology.biotapestry.cmd.undo.GenomeChangeCmd;
+import org.systemsbiology.biotapestry.cmd.undo.PropChangeCmd;
+import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
+import org.systemsbiology.biotapestry.genome.DBGene;
+import org.systemsbiology.biotapestry.genome.DBGenome;
+import org.systemsbiology.biotapestry.genome.DBGenomeFactory;
+import org.systemsbiology.biotapestry.genome.DBNode;
+import org.systemsbiology.biotapestry.genome.Gene;
+import org.systemsbiology.biotapestry.genome.Genome;
+import org.systemsbiology.biotapestry.genome.GenomeChange;
+import org.systemsbiology.biotapestry.genome.GenomeInstance;
+import org.systemsbiology.biotapestry.genome.GenomeInstanceFactory;
+import org.systemsbiology.biotapestry.genome.Group;
+import org.systemsbiology.biotapestry.genome.Linkage;
+import org.systemsbiology.biotapestry.genome.Node;
+import org.systemsbiology.biotapestry.genome.Note;
+import org.systemsbiology.biotapestry.parser.AbstractFactoryClient;
+import org.systemsbiology.biotapestry.parser.ParserClient;
+import org.systemsbiology.biotapestry.parser.SUParser;
+import org.systemsbiology.biotapestry.ui.BusProperties;
+import org.systemsbiology.biotapestry.ui.GroupProperties;
+import org.systemsbiology.biotapestry.ui.Layout;
+import org.systemsbiology.biotapestry.ui.LayoutFactory;
+import org.systemsbiology.biotapestry.ui.LayoutMetadata;
+import org.systemsbiology.biotapestry.ui.NodeProperties;
+import org.systemsbiology.biotapestry.ui.NoteProperties;
+import org.systemsbiology.biotapestry.util.Indenter;
+
+/****************************************************************************
+**
+** Compact encoding of committed edits for the autosave journal. An edit is
+** written as the IDs and changed fields of its genome changes and layout
+** property changes. Changed items go in as XML fragments, in the same form
+** they take in a saved file.
+**
+** Replaying an edit (or undoing it) decodes items one change at a time, just
+** before the change is applied, so each item is built against the model as
+** the change finds it. Genome items are only decoded for the side that gets
+** installed; the other side is only ever used for its ID, so the copy in the
+** model stands in for it.
+**
+** Edits holding any other kind of change (e.g. data, overlay, or navigation
+** tree changes), or working on something other than the loaded model, are
+** not encoded. The caller has to checkpoint the whole model instead.
+*/
+
+class ChangeJournal {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final byte GENOME_CHANGE_ = 1;
+  private static final byte PROP_CHANGE_   = 2;
+
+  private static final byte LINK_PROPS_  = 1;
+  private static final byte NODE_PROPS_  = 2;
+  private static final byte NOTE_PROPS_  = 3;
+  private static final byte GROUP_PROPS_ = 4;
+  private static final byte DATA_LOC_    = 5;
+  private static final byte METADATA_    = 6;
+
+  private static final int GENE_  = 0;
+  private static final int NODE_  = 1;
+  private static final int LINK_  = 2;
+  private static final int GROUP_ = 3;
+  private static final int NOTE_  = 4;
+
+  private static final int MAX_BODY_ = 8 * 1024 * 1024;
+
+  private static final String FRAGMENT_ = "journalFragment";
+  private static final String SCRATCH_ = "journalScratch";
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private BTState appState_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  ChangeJournal(BTState appState) {
+    appState_ = appState;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Encode the model changes of a committed edit. Answers null if the edit
+  ** cannot be journaled. Call on the event thread, before later edits.
+  */
+
+  byte[] encode(List<BTUndoCmd> cmds) {
+    Database db = appState_.getDB();
+    ArrayList<GenomeChange> genomeChanges = new ArrayList<GenomeChange>();
+    ArrayList<Object> changes = new ArrayList<Object>();
+    int numCmds = cmds.size();
+    for (int i = 0; i < numCmds; i++) {
+      BTUndoCmd cmd = cmds.get(i);
+      if (!cmd.worksOn(db)) {
+        return (null);
+      }
+      if (cmd instanceof GenomeChangeCmd) {
+        GenomeChange gc = ((GenomeChangeCmd)cmd).getChange();
+        genomeChanges.add(gc);
+        changes.add(gc);
+      } else if (cmd instanceof PropChangeCmd) {
+        Layout.PropChange[] pcs = ((PropChangeCmd)cmd).getChanges();
+        for (int j = 0; j < pcs.length; j++) {
+          if (pcs[j] != null) {
+            changes.add(pcs[j]);
+          }
+        }
+      } else {
+        return (null);
+      }
+    }
+
+    try {
+      ByteArrayOutputStream buf = new ByteArrayOutputStream();
+      DataOutputStream out = new DataOutputStream(buf);
+      int numChanges = changes.size();
+      out.writeInt(numChanges);
+      for (int i = 0; i < numChanges; i++) {
+        ByteArrayOutputStream oneBuf = new ByteArrayOutputStream();
+        DataOutputStream one = new DataOutputStream(oneBuf);
+        Object change = changes.get(i);
+        if (change instanceof GenomeChange) {
+          writeGenomeChange(one, (GenomeChange)change);
+        } else {
+          writePropChange(one, (Layout.PropChange)change, genomeChanges);
+        }
+        one.flush();
+        out.writeInt(oneBuf.size());
+        oneBuf.writeTo(out);
+        if (buf.size() > MAX_BODY_) {
+          return (null);
+        }
+      }
+      out.flush();
+      return (buf.toByteArray());
+    } catch (IOException ioex) {
+      return (null);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Apply an encoded edit to the model: redo it, or undo it.
+  */
+
+  void replay(byte[] body, boolean undo) throws IOException {
+    DataInputStream in = new DataInputStream(new ByteArrayInputStream(body));
+    int numChanges = in.readInt();
+    ArrayList<byte[]> changes = new ArrayList<byte[]>();
+    for (int i = 0; i < numChanges; i++) {
+      byte[] change = new byte[in.readInt()];
+      in.readFully(change);
+      changes.add(change);
+    }
+    for (int i = 0; i < numChanges; i++) {
+      byte[] change = changes.get((undo) ? numChanges - 1 - i : i);
+      DataInputStream cin = new DataInputStream(new ByteArrayInputStream(change));
+      byte type = cin.readByte();
+      if (type == GENOME_CHANGE_) {
+        replayGenomeChange(cin, undo);
+      } else if (type == PROP_CHANGE_) {
+        replayPropChange(cin, undo);
+      } else {
+        throw new IOException();
+      }
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Encode a genome change
+  */
+
+  private void writeGenomeChange(DataOutputStream out, GenomeChange gc) throws IOException {
+    Genome genome = appState_.getDB().getGenome(gc.genomeKey);
+    if (!isJournaled(genome)) {
+      throw new IOException();
+    }
+    // Gene <-> node type changes swap the item class; leave those to a checkpoint:
+    if (((gc.gOrig != null) && (gc.nNew != null)) || ((gc.nOrig != null) && (gc.gNew != null))) {
+      throw new IOException();
+    }
+    out.writeByte(GENOME_CHANGE_);
+    writeString(out, gc.genomeKey);
+    writeItem(out, (gc.gOrig == null) ? null : gc.gOrig.getID(), gc.gOrig);
+    writeItem(out, (gc.gNew == null) ? null : gc.gNew.getID(), gc.gNew);
+    writeItem(out, (gc.nOrig == null) ? null : gc.nOrig.getID(), gc.nOrig);
+    writeItem(out, (gc.nNew == null) ? null : gc.nNew.getID(), gc.nNew);
+    writeItem(out, (gc.lOrig == null) ? null : gc.lOrig.getID(), gc.lOrig);
+    writeItem(out, (gc.lNew == null) ? null : gc.lNew.getID(), gc.lNew);
+    writeItem(out, (gc.grOrig == null) ? null : gc.grOrig.getID(), gc.grOrig);
+    writeItem(out, (gc.grNew == null) ? null : gc.grNew.getID(), gc.grNew);
+    writeItem(out, (gc.ntOrig == null) ? null : gc.ntOrig.getID(), gc.ntOrig);
+    writeItem(out, (gc.ntNew == null) ? null : gc.ntNew.getID(), gc.ntNew);
+    writeString(out, gc.nameOld);
+    writeString(out, gc.nameNew);
+    writeString(out, gc.longNameOld);
+    writeString(out, gc.longNameNew);
+    writeString(out, gc.descOld);
+    writeString(out, gc.descNew);
+    out.writeBoolean(gc.timeChanged);
+    out.writeBoolean(gc.timedOld);
+    out.writeBoolean(gc.timedNew);
+    out.writeInt(gc.minTimeOld);
+    out.writeInt(gc.minTimeNew);
+    out.writeInt(gc.maxTimeOld);
+    out.writeInt(gc.maxTimeNew);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Replay a genome change
+  */
+
+  private void replayGenomeChange(DataInputStream in, boolean undo) throws IOException {
+    String key = readString(in);
+    Genome genome = appState_.getDB().getGenome(key);
+    if (!isJournaled(genome)) {
+      throw new IOException();
+    }
+    GenomeChange gc = new GenomeChange();
+    gc.genomeKey = key;
+    gc.gOrig = (Gene)resolveItem(genome, GENE_, readItem(in), undo);
+    gc.gNew = (Gene)resolveItem(genome, GENE_, readItem(in), !undo);
+    gc.nOrig = (Node)resolveItem(genome, NODE_, readItem(in), undo);
+    gc.nNew = (Node)resolveItem(genome, NODE_, readItem(in), !undo);
+    gc.lOrig = (Linkage)resolveItem(genome, LINK_, readItem(in), undo);
+    gc.lNew = (Linkage)resolveItem(genome, LINK_, readItem(in), !undo);
+    gc.grOrig = (Group)resolveItem(genome, GROUP_, readItem(in), undo);
+    gc.grNew = (Group)resolveItem(genome, GROUP_, readItem(in), !undo);
+    gc.ntOrig = (Note)resolveItem(genome, NOTE_, readItem(in), undo);
+    gc.ntNew = (Note)resolveItem(genome, NOTE_, readItem(in), !undo);
+    gc.nameOld = readString(in);
+    gc.nameNew = readString(in);
+    gc.longNameOld = readString(in);
+    gc.longNameNew = readString(in);
+    gc.descOld = readString(in);
+    gc.descNew = readString(in);
+    gc.timeChanged = in.readBoolean();
+    gc.timedOld = in.readBoolean();
+    gc.timedNew = in.readBoolean();
+    gc.minTimeOld = in.readInt();
+    gc.minTimeNew = in.readInt();
+    gc.maxTimeOld = in.readInt();
+    gc.maxTimeNew = in.readInt();
+    if (undo) {
+      genome.changeUndo(gc);
+    } else {
+      genome.changeRedo(gc);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Answer if changes to the genome can be journaled. Dynamic instances are
+  ** not stored in the model; they are built on demand.
+  */
+
+  private boolean isJournaled(Genome genome) {
+    return ((genome != null) && ((genome.getClass() == DBGenome.class) || (genome.getClass() == GenomeInstance.class)));
+  }
+
+  /***************************************************************************
+  **
+  ** Get a genome item that is to be installed (decoded from its fragment),
+  ** or one that is only needed for its ID (found in the model).
+  */
+
+  private Object resolveItem(Genome genome, int kind, String[] item, boolean decode) throws IOException {
+    if (item == null) {
+      return (null);
+    }
+    Genome source = genome;
+    if (decode) {
+      source = parseGenomeFragment(genome, item[1]);
+    }
+    Object retval;
+    switch (kind) {
+      case GENE_:
+        retval = source.getGene(item[0]);
+        break;
+      case NODE_:
+        retval = source.getNode(item[0]);
+        break;
+      case LINK_:
+        retval = source.getLinkage(item[0]);
+        break;
+      case GROUP_:
+        retval = (source instanceof GenomeInstance) ? ((GenomeInstance)source).getGroup(item[0]) : null;
+        break;
+      case NOTE_:
+        retval = source.getNote(item[0]);
+        break;
+      default:
+        throw new IllegalArgumentException();
+    }
+    if (retval == null) {
+      throw new IOException();
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Build genome items from a fragment into a scratch genome
+  */
+
+  private Genome parseGenomeFragment(Genome genome, String xml) throws IOException {
+    DataAccessContext dacx = new DataAccessContext(appState_);
+    if (genome instanceof GenomeInstance) {
+      // Having a parent keeps group IDs out of the root genome:
+      GenomeInstance scratch = new GenomeInstance(appState_, SCRATCH_, genome.getID(), SCRATCH_);
+      GenomeInstanceFactory gif = new GenomeInstanceFactory(appState_, dacx);
+      gif.setTargetGenome(scratch);
+      parseFragment(gif, xml);
+      return (scratch);
+    }
+    DBGenome scratch = new DBGenome(appState_, SCRATCH_, genome.getID());
+    DBGenomeFactory dbgf = new DBGenomeFactory(appState_, dacx);
+    dbgf.setTargetGenome(scratch);
+    parseFragment(dbgf, xml);
+    return (scratch);
+  }
+
+  /***************************************************************************
+  **
+  ** Encode a layout property change
+  */
+
+  private void writePropChange(DataOutputStream out, Layout.PropChange pc, List<GenomeChange> genomeChanges) throws IOException {
+    Layout layout = appState_.getDB().getLayout(pc.layoutKey);
+    if (layout == null) {
+      throw new IOException();
+    }
+    if ((pc.nopOrig != null) || (pc.nopNew != null) || (pc.nmpOrig != null) || (pc.nmpNew != null) ||
+        (pc.nmlpOrig != null) || (pc.nmlpNew != null) || (pc.nmlpTieLinkIDOrig != null)) {
+      throw new IOException();
+    }
+    out.writeByte(PROP_CHANGE_);
+    writeString(out, pc.layoutKey);
+    //
+    // Same precedence as the layout uses to dispatch the change:
+    //
+    if ((pc.newProps != null) || (pc.orig != null)) {
+      out.writeByte(LINK_PROPS_);
+      writeStrings(out, pc.linkIDs);
+      writeBus(out, pc.orig);
+      writeBus(out, pc.newProps);
+      writeString(out, pc.addedLinkID);
+      writeString(out, pc.removedLinkID);
+    } else if ((pc.nNewProps != null) || (pc.nOrig != null)) {
+      out.writeByte(NODE_PROPS_);
+      writeNodeProps(out, pc.nOrig, true, layout, genomeChanges);
+      writeNodeProps(out, pc.nNewProps, false, layout, genomeChanges);
+      writeBuses(out, pc.origLinks);
+      writeBuses(out, pc.newLinks);
+    } else if ((pc.ntNewProps != null) || (pc.ntOrig != null)) {
+      out.writeByte(NOTE_PROPS_);
+      writeItem(out, (pc.ntOrig == null) ? null : pc.ntOrig.getReference(), pc.ntOrig);
+      writeItem(out, (pc.ntNewProps == null) ? null : pc.ntNewProps.getReference(), pc.ntNewProps);
+    } else if ((pc.grNewProps != null) || (pc.grOrig != null)) {
+      out.writeByte(GROUP_PROPS_);
+      writeItem(out, (pc.grOrig == null) ? null : pc.grOrig.getReference(), pc.grOrig);
+      writeItem(out, (pc.grNewProps == null) ? null : pc.grNewProps.getReference(), pc.grNewProps);
+    } else if (pc.dLocKey != null) {
+      out.writeByte(DATA_LOC_);
+      writeString(out, pc.dLocKey);
+      writePoint(out, pc.dLocOrig);
+      writePoint(out, pc.dLocNew);
+    } else if ((pc.newMeta != null) || (pc.metaOrig != null)) {
+      out.writeByte(METADATA_);
+      writeItem(out, (pc.metaOrig == null) ? null : SCRATCH_, pc.metaOrig);
+      writeItem(out, (pc.newMeta == null) ? null : SCRATCH_, pc.newMeta);
+    } else {
+      throw new IOException();
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Replay a layout property change. Layout items do not depend on the
+  ** model, so both sides are decoded.
+  */
+
+  private void replayPropChange(DataInputStream in, boolean undo) throws IOException {
+    String key = readString(in);
+    Layout layout = appState_.getDB().getLayout(key);
+    if (layout == null) {
+      throw new IOException();
+    }
+    Layout.PropChange pc = layout.new PropChange();
+    pc.layoutKey = key;
+    byte kind = in.readByte();
+    switch (kind) {
+      case LINK_PROPS_:
+        pc.linkIDs = readStrings(in);
+        pc.orig = readBus(in, layout);
+        pc.newProps = readBus(in, layout);
+        pc.addedLinkID = readString(in);
+        pc.removedLinkID = readString(in);
+        break;
+      case NODE_PROPS_:
+        pc.nOrig = readNodeProps(in, layout);
+        pc.nNewProps = readNodeProps(in, layout);
+        pc.origLinks = readBuses(in, layout);
+        pc.newLinks = readBuses(in, layout);
+        break;
+      case NOTE_PROPS_:
+        pc.ntOrig = (NoteProperties)readLayoutItem(in, layout, kind);
+        pc.ntNewProps = (NoteProperties)readLayoutItem(in, layout, kind);
+        break;
+      case GROUP_PROPS_:
+        pc.grOrig = (GroupProperties)readLayoutItem(in, layout, kind);
+        pc.grNewProps = (GroupProperties)readLayoutItem(in, layout, kind);
+        break;
+      case DATA_LOC_:
+        pc.dLocKey = readString(in);
+        pc.dLocOrig = readPoint(in);
+        pc.dLocNew = readPoint(in);
+        break;
+      case METADATA_:
+        pc.metaOrig = (LayoutMetadata)readLayoutItem(in, layout, kind);
+        pc.newMeta = (LayoutMetadata)readLayoutItem(in, layout, kind);
+        break;
+      default:
+        throw new IOException();
+    }
+    if (undo) {
+      PropChangeCmd.undoChange(layout, pc);
+    } else {
+      PropChangeCmd.redoChange(layout, pc);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Encode node properties, along with the type of the node, which they need
+  ** to be built again. The type is taken from the genome change that goes
+  ** with them, if there is one, since the node may be gone from the model.
+  */
+
+  private void writeNodeProps(DataOutputStream out, NodeProperties props, boolean isOrig,
+                              Layout layout, List<GenomeChange> genomeChanges) throws IOException {
+    if (props == null) {
+      out.writeBoolean(false);
+      return;
+    }
+    String ref = props.getReference();
+    Node node = null;
+    int numGC = genomeChanges.size();
+    for (int i = 0; (i < numGC) && (node == null); i++) {
+      GenomeChange gc = genomeChanges.get(i);
+      Node gcNode = (isOrig) ? ((gc.nOrig != null) ? gc.nOrig : gc.gOrig)
+                             : ((gc.nNew != null) ? gc.nNew : gc.gNew);
+      if ((gcNode != null) && gcNode.getID().equals(ref)) {
+        node = gcNode;
+      }
+    }
+    if (node == null) {
+      Genome genome = appState_.getDB().getGenome(layout.getTarget());
+      node = (genome == null) ? null : genome.getNode(ref);
+    }
+    if (node == null) {
+      throw new IOException();
+    }
+    writeItem(out, ref, props);
+    out.writeInt(node.getNodeType());
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Decode node properties
+  */
+
+  private NodeProperties readNodeProps(DataInputStream in, Layout layout) throws IOException {
+    String[] item = readItem(in);
+    if (item == null) {
+      return (null);
+    }
+    int nodeType = in.readInt();
+    //
+    // Node properties get their node type from the genome, so stand up a
+    // node of that type for them:
+    //
+    DBGenome types = new DBGenome(appState_, SCRATCH_, SCRATCH_);
+    if (nodeType == Node.GENE) {
+      types.addGene(new DBGene(appState_, item[0], item[0]));
+    } else {
+      types.addNode(new DBNode(appState_, nodeType, item[0], item[0]));
+    }
+    Layout scratch = parseLayoutFragment(layout, types, item[1]);
+    NodeProperties retval = scratch.getNodeProperties(item[0]);
+    if (retval == null) {
+      throw new IOException();
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Decode note or group properties, or metadata
+  */
+
+  private Object readLayoutItem(DataInputStream in, Layout layout, byte kind) throws IOException {
+    String[] item = readItem(in);
+    if (item == null) {
+      return (null);
+    }
+    Layout scratch = parseLayoutFragment(layout, null, item[1]);
+    Object retval;
+    switch (kind) {
+      case NOTE_PROPS_:
+        retval = scratch.getNoteProperties(item[0]);
+        break;
+      case GROUP_PROPS_:
+        retval = scratch.getGroupProperties(item[0]);
+        break;
+      case METADATA_:
+        LayoutMetadata meta = new LayoutMetadata();
+        meta.setDerivation(scratch.getDerivation());
+        retval = meta;
+        break;
+      default:
+        throw new IllegalArgumentException();
+    }
+    if (retval == null) {
+      throw new IOException();
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Encode a link tree. It is found again under its first link.
+  */
+
+  private void writeBus(DataOutputStream out, BusProperties bus) throws IOException {
+    if (bus == null) {
+      out.writeBoolean(false);
+      return;
+    }
+    List<String> links = bus.getLinkageList();
+    if (links.isEmpty()) {
+      throw new IOException();
+    }
+    writeItem(out, links.get(0), bus);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Decode a link tree
+  */
+
+  private BusProperties readBus(DataInputStream in, Layout layout) throws IOException {
+    String[] item = readItem(in);
+    if (item == null) {
+      return (null);
+    }
+    Layout scratch = parseLayoutFragment(layout, null, item[1]);
+    BusProperties retval = scratch.getLinkProperties(item[0]);
+    if (retval == null) {
+      throw new IOException();
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Encode a set of link trees
+  */
+
+  private void writeBuses(DataOutputStream out, Set<BusProperties> buses) throws IOException {
+    if (buses == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(buses.size());
+    Iterator<BusProperties> bit = buses.iterator();
+    while (bit.hasNext()) {
+      writeBus(out, bit.next());
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Decode a set of link trees
+  */
+
+  private Set<BusProperties> readBuses(DataInputStream in, Layout layout) throws IOException {
+    int num = in.readInt();
+    if (num == -1) {
+      return (null);
+    }
+    HashSet<BusProperties> retval = new HashSet<BusProperties>();
+    for (int i = 0; i < num; i++) {
+      retval.add(readBus(in, layout));
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Build layout items from a fragment into a scratch layout. The genome is
+  ** only needed for node properties.
+  */
+
+  private Layout parseLayoutFragment(Layout layout, Genome genome, String xml) throws IOException {
+    Layout scratch = new Layout(appState_, SCRATCH_, layout.getTarget());
+    LayoutFactory lf = new LayoutFactory(appState_);
+    lf.setTargetLayout(scratch, genome);
+    parseFragment(lf, xml);
+    return (scratch);
+  }
+
+  /***************************************************************************
+  **
+  ** Run a fragment through the given factory
+  */
+
+  private void parseFragment(AbstractFactoryClient factory, String xml) throws IOException {
+    ArrayList<ParserClient> alist = new ArrayList<ParserClient>();
+    alist.add(new FragmentClient(factory));
+    SUParser sup = new SUParser(appState_, alist);
+    String doc = "<" + FRAGMENT_ + ">" + xml + "</" + FRAGMENT_ + ">";
+    sup.parse(new ByteArrayInputStream(doc.getBytes("UTF-8")));
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Encode an item as its ID and XML
+  */
+
+  private void writeItem(DataOutputStream out, String id, Object item) throws IOException {
+    if (item == null) {
+      out.writeBoolean(false);
+      return;
+    }
+    StringWriter sw = new StringWriter();
+    PrintWriter pw = new PrintWriter(sw);
+    Indenter ind = new Indenter(pw, 0);
+    if (item instanceof Node) {
+      ((Node)item).writeXML(pw, ind);
+    } else if (item instanceof Linkage) {
+      ((Linkage)item).writeXML(pw, ind);
+    } else if (item instanceof Group) {
+      ((Group)item).writeXML(pw, ind, false);
+    } else if (item instanceof Note) {
+      ((Note)item).writeXML(pw, ind, false);
+    } else if (item instanceof NodeProperties) {
+      ((NodeProperties)item).writeXML(pw, ind);
+    } else if (item instanceof BusProperties) {
+      ((BusProperties)item).writeXML(pw, ind);
+    } else if (item instanceof NoteProperties) {
+      ((NoteProperties)item).writeXML(pw, ind);
+    } else if (item instanceof GroupProperties) {
+      ((GroupProperties)item).writeXML(pw, ind);
+    } else if (item instanceof LayoutMetadata) {
+      ((LayoutMetadata)item).writeXML(pw, ind);
+    } else {
+      throw new IOException();
+    }
+    pw.flush();
+    out.writeBoolean(true);
+    writeString(out, id);
+    writeString(out, sw.toString());
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Read an item's ID and XML. Null if there is none.
+  */
+
+  private String[] readItem(DataInputStream in) throws IOException {
+    if (!in.readBoolean()) {
+      return (null);
+    }
+    String[] retval = new String[2];
+    retval[0] = readString(in);
+    retval[1] = readString(in);
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Encode a point
+  */
+
+  private void writePoint(DataOutputStream out, Point2D pt) throws IOException {
+    out.writeBoolean(pt != null);
+    if (pt != null) {
+      out.writeDouble(pt.getX());
+      out.writeDouble(pt.getY());
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Decode a point
+  */
+
+  private Point2D readPoint(DataInputStream in) throws IOException {
+    if (!in.readBoolean()) {
+      return (null);
+    }
+    double x = in.readDouble();
+    double y = in.readDouble();
+    return (new Point2D.Double(x, y));
+  }
+
+  /***************************************************************************
+  **
+  ** Encode a set of strings
+  */
+
+  private void writeStrings(DataOutputStream out, Set<String> strings) throws IOException {
+    if (strings == null) {
+      out.writeInt(-1);
+      return;
+    }
+    out.writeInt(strings.size());
+    Iterator<String> sit = strings.iterator();
+    while (sit.hasNext()) {
+      writeString(out, sit.next());
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Decode a set of strings
+  */
+
+  private Set<String> readStrings(DataInputStream in) throws IOException {
+    int num = in.readInt();
+    if (num == -1) {
+      return (null);
+    }
+    HashSet<String> retval = new HashSet<String>();
+    for (int i = 0; i < num; i++) {
+      retval.add(readString(in));
+    }
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Encode a string. Not writeUTF(), which stops at 64K.
+  */
+
+  private void writeString(DataOutputStream out, String str) throws IOException {
+    if (str == null) {
+      out.writeInt(-1);
+      return;
+    }
+    byte[] bytes = str.getBytes("UTF-8");
+    out.writeInt(bytes.length);
+    out.write(bytes);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Decode a string
+  */
+
+  private String readString(DataInputStream in) throws IOException {
+    int len = in.readInt();
+    if (len == -1) {
+      return (null);
+    }
+    byte[] bytes = new byte[len];
+    in.readFully(bytes);
+    return (new String(bytes, "UTF-8"));
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Hands everything inside a fragment to a factory, which has already been
+  ** pointed at the container to fill.
+  */
+
+  private static class FragmentClient implements ParserClient {
+
+    private AbstractFactoryClient factory_;
+    private HashSet<String> keys_;
+
+    FragmentClient(AbstractFactoryClient factory) {
+      factory_ = factory;
+      keys_ = new HashSet<String>();
+      keys_.add(FRAGMENT_);
+    }
+
+    public Set<String> keywordsOfInterest() {
+      return (keys_);
+    }
+
+    public void setContainer(Object container) {
+      return;
+    }
+
+    public Object processElement(String elemName, Attributes attrs) throws IOException {
+      if (elemName.equals(FRAGMENT_)) {
+        return (null);
+      }
+      return (factory_.processElement(elemName, attrs));
+    }
+
+    public void processCharacters(char[] chars, int start, int length) {
+      factory_.processCharacters(chars, start, length);
+      return;
+    }
+
+    public boolean finishElement(String elemName) throws IOException {
+      if (elemName.equals(FRAGMENT_)) {
+        return (true);
+      }
+      factory_.finishElement(elemName);
+      return (false);
+    }
+  }
+}
@@ -19,16 +19,26 @@
 
 package org.systemsbiology.biotapestry.cmd.flow.io;
 
+import java.awt.Dimension;
 import java.awt.Rectangle;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.Map;
 import java.util.Set;
+import java.util.concurrent.Callable;
+import java.util.concurrent.CompletionService;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorCompletionService;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Semaphore;
 
 import javax.swing.JOptionPane;
 
@@ -166,6 +176,8 @@ public class ExportWeb extends AbstractControlFlow  {
     private double zoom_;
     private UndoSupport support_;
     private DataAccessContext dacx_;
+    private int renderThreads_;
+    private Integer budgetMB_;
  
     /***************************************************************************
     **
@@ -177,6 +189,7 @@ public class ExportWeb extends AbstractControlFlow  {
       nextStep_ = "oneStep";
       myLsSup_ = appState_.getLSSupport();
       dacx_ = dacx.getContextForRoot();
+      renderThreads_ = 1;
     }
     
     /***************************************************************************
@@ -190,17 +203,28 @@ public class ExportWeb extends AbstractControlFlow  {
     
     /***************************************************************************
     **
-    ** Set the popup params
+    ** Set the popup params. An optional Integer after the usual arguments gives the
+    ** number of threads to render images on. Another optional Integer after that
+    ** overrides the memory budget (in MB) of those threads.
     */ 
         
     public void setParams(Object[] args) {
       doFile_ = (Boolean)args[0];
+      int threadArg;
       if (doFile_.booleanValue()) {
         targetDir_ = new File((String)args[1]);
+        threadArg = 2;
       } else {
         nos_ = (NamedOutputStreamSource)args[1];
         intersectionMap_ = (Map<WebPublisher.ModelScale, ViewExporter.BoundsMaps>)args[2];
         publishKeys_ = (Set<WebPublisher.ModelScale>)args[3];
+        threadArg = 4;
+      }
+      if ((args.length > threadArg) && (args[threadArg] != null)) {
+        renderThreads_ = Math.max(1, ((Integer)args[threadArg]).intValue());
+      }
+      if ((args.length > (threadArg + 1)) && (args[threadArg + 1] != null)) {
+        budgetMB_ = Integer.valueOf(Math.max(1, ((Integer)args[threadArg + 1]).intValue()));
       }
       return;
      }
@@ -266,7 +290,8 @@ public class ExportWeb extends AbstractControlFlow  {
         // Catch selection clear to undo queue the first time through:        
         support_ = new UndoSupport(appState_, "undo.selection");
         appState_.setGenome(gkey, support_, dacx_);
-        WebRunner runner = new WebRunner(appState_, nos_, skipRoot, gkey, wantHtmlSkeleton_, intersectionMap_, publishKeys_, dacx_);
+        WebRunner runner = new WebRunner(appState_, nos_, skipRoot, gkey, wantHtmlSkeleton_, intersectionMap_, 
+                                         publishKeys_, dacx_, renderThreads_, budgetMB_);
         
         BackgroundWorkerClient bwc;     
         if (!appState_.isHeadless()) { // not headless, true background thread
@@ -334,12 +359,17 @@ public class ExportWeb extends AbstractControlFlow  {
     private boolean needHtmlSkeleton_;
     private List<WebPublisher.ModelScale> keyList_;
     private DataAccessContext myDacx_;
+    private int renderThreads_;
+    private Integer budgetMB_;
        
     public WebRunner(BTState appState, NamedOutputStreamSource streamSrc,
                      boolean skipRoot, String topID, 
                      boolean needHtmlSkeleton, Map<WebPublisher.ModelScale, ViewExporter.BoundsMaps> mapRepository, 
-                     Set<WebPublisher.ModelScale> publishKeys, DataAccessContext dacx) {
+                     Set<WebPublisher.ModelScale> publishKeys, DataAccessContext dacx, int renderThreads,
+                     Integer budgetMB) {
       super(null);
+      renderThreads_ = renderThreads;
+      budgetMB_ = budgetMB;
       streamSrc_ = streamSrc;
       myAppState_ = appState;
       skipRoot_ = skipRoot;
@@ -355,25 +385,13 @@ public class ExportWeb extends AbstractControlFlow  {
     }
     
     public Object runCore() throws AsynchExitRequestException {      
-      SUPanel sup = myAppState_.getSUPanel();
       HashMap<WebPublisher.ModelScale, ViewExporter.BoundsMaps> boundsMap = new HashMap<WebPublisher.ModelScale, ViewExporter.BoundsMaps>();
-      Map<Integer, Double> scaleMap = buildScaleMap();
-      
-      int total = keyList_.size();
-      int done = 0;
       
       try {
-        String lastKey = null;
-        Iterator<WebPublisher.ModelScale> oit = keyList_.iterator();
-        while (oit.hasNext()) {
-          WebPublisher.ModelScale scaleKey = oit.next();
-          String gkey = scaleKey.getModelID();
-          if ((lastKey == null) || !gkey.equals(lastKey)) {
-            String layoutID = myAppState_.getLayoutMgr().getLayout(gkey);
-            myAppState_.setGraphLayout(layoutID);
-            myAppState_.setGenomeForUndo(gkey, myDacx_);
-          }
-          done = runForScaleKey(sup, scaleKey, scaleMap, boundsMap, done, total);      
+        if (renderThreads_ > 1) {
+          runConcurrently(boundsMap);
+        } else {
+          runSerially(boundsMap);
         }
         
         if (needHtmlSkeleton_) {
@@ -397,6 +415,164 @@ public class ExportWeb extends AbstractControlFlow  {
       return (null);
     }
     
+    private void runSerially(Map<WebPublisher.ModelScale, ViewExporter.BoundsMaps> boundsMap) throws AsynchExitRequestException, IOException {
+      SUPanel sup = myAppState_.getSUPanel();
+      Map<Integer, Double> scaleMap = buildScaleMap();
+      
+      int total = keyList_.size();
+      int done = 0;
+      
+      String lastKey = null;
+      Iterator<WebPublisher.ModelScale> oit = keyList_.iterator();
+      while (oit.hasNext()) {
+        WebPublisher.ModelScale scaleKey = oit.next();
+        String gkey = scaleKey.getModelID();
+        if ((lastKey == null) || !gkey.equals(lastKey)) {
+          String layoutID = myAppState_.getLayoutMgr().getLayout(gkey);
+          myAppState_.setGraphLayout(layoutID);
+          myAppState_.setGenomeForUndo(gkey, myDacx_);
+        }
+        done = runForScaleKey(sup, scaleKey, scaleMap, boundsMap, done, total);      
+      }
+      return;
+    }
+    
+    /***************************************************************************
+    **
+    ** Presenting a model needs it to be the current genome, so models are still
+    ** presented one at a time on this thread. The images for each model are then
+    ** rasterized and PNG encoded on the worker pool while the following models are
+    ** presented. Finished images are written out on this thread as models complete,
+    ** and only a few models are allowed in flight, to bound the memory used.
+    */
+    
+    private void runConcurrently(Map<WebPublisher.ModelScale, ViewExporter.BoundsMaps> boundsMap) throws AsynchExitRequestException, IOException {
+      SUPanel sup = myAppState_.getSUPanel();
+      Map<Integer, Double> scaleMap = buildScaleMap();
+      Map<String, List<WebPublisher.ModelScale>> keysPerModel = groupKeysByModel();
+      
+      int total = keyList_.size();
+      int done = 0;
+      int maxInFlight = renderThreads_ * 2;
+      int inFlight = 0;
+      ExecutorService pool = Executors.newFixedThreadPool(renderThreads_);
+      CompletionService<EncodedModel> completed = new ExecutorCompletionService<EncodedModel>(pool);
+      //
+      // Jumbo images of big models run to hundreds of MB each, so the workers
+      // share a budget of half the heap for their bands and for the encoded
+      // images that are waiting to be written. Each worker gets an equal share:
+      //
+      int budgetMB = (budgetMB_ != null) ? budgetMB_.intValue() 
+                                         : (int)Math.max(1L, Runtime.getRuntime().maxMemory() / (2L * 1024L * 1024L));
+      int shareMB = Math.max(1, budgetMB / renderThreads_);
+      Semaphore memBudget = new Semaphore(shareMB * renderThreads_);
+      
+      try {
+        Iterator<String> kpmit = keysPerModel.keySet().iterator();
+        while (kpmit.hasNext()) {
+          String gkey = kpmit.next();
+          List<WebPublisher.ModelScale> keys = keysPerModel.get(gkey);
+          String layoutID = myAppState_.getLayoutMgr().getLayout(gkey);
+          myAppState_.setGraphLayout(layoutID);
+          myAppState_.setGenomeForUndo(gkey, myDacx_);
+          int numKeys = keys.size();
+          double[] zooms = new double[numKeys];
+          for (int i = 0; i < numKeys; i++) {
+            zooms[i] = scaleMap.get(Integer.valueOf(keys.get(i).getSize())).doubleValue();
+          }
+          ViewExporter.PreparedExport prep = sup.prepareExport(zooms, true, null);
+          for (int i = 0; i < numKeys; i++) {
+            boundsMap.put(keys.get(i), prep.getBounds(i));
+          }
+          completed.submit(new ModelRasterizer(prep, keys, memBudget, shareMB));
+          inFlight++;
+          //
+          // Taking models as they finish, rather than in submission order, means
+          // the budget held by finished models is always freed eventually:
+          //
+          while (inFlight >= maxInFlight) {
+            done = writeModel(completed, memBudget, done, total);
+            inFlight--;
+          }
+        }
+        while (inFlight > 0) {
+          done = writeModel(completed, memBudget, done, total);
+          inFlight--;
+        }
+      } finally {
+        pool.shutdownNow();
+      }
+      return;
+    }
+    
+    /***************************************************************************
+    **
+    ** Wait for the next model to finish, write its images out, and return the
+    ** memory budget they were holding
+    */
+    
+    private int writeModel(CompletionService<EncodedModel> completed, Semaphore memBudget, 
+                           int done, int total) throws AsynchExitRequestException, IOException {
+      EncodedModel model;
+      try {
+        model = completed.take().get();
+      } catch (InterruptedException iex) {
+        throw new AsynchExitRequestException();
+      } catch (ExecutionException eex) {
+        Throwable cause = eex.getCause();
+        if (cause instanceof IOException) {
+          throw (IOException)cause;
+        } else if (cause instanceof RuntimeException) {
+          throw (RuntimeException)cause;
+        } else if (cause instanceof Error) {
+          throw (Error)cause;
+        }
+        throw new IllegalStateException(cause);
+      }
+      try {
+        int numKeys = model.keys.size();
+        for (int i = 0; i < numKeys; i++) {
+          OutputStream namedStream = streamSrc_.getNamedStream(model.keys.get(i).getFileName());
+          namedStream.write(model.images[i]);
+          model.images[i] = null;
+          namedStream.flush();
+          done = bumpProgress(done, total);
+        }
+      } finally {
+        memBudget.release(model.heldMB);
+      }
+      return (done);
+    }
+    
+    /***************************************************************************
+    **
+    ** Keys for each model, with the models in the order they first appear
+    */
+    
+    private Map<String, List<WebPublisher.ModelScale>> groupKeysByModel() {
+      LinkedHashMap<String, List<WebPublisher.ModelScale>> retval = new LinkedHashMap<String, List<WebPublisher.ModelScale>>();
+      Iterator<WebPublisher.ModelScale> oit = keyList_.iterator();
+      while (oit.hasNext()) {
+        WebPublisher.ModelScale scaleKey = oit.next();
+        List<WebPublisher.ModelScale> forModel = retval.get(scaleKey.getModelID());
+        if (forModel == null) {
+          forModel = new ArrayList<WebPublisher.ModelScale>();
+          retval.put(scaleKey.getModelID(), forModel);
+        }
+        forModel.add(scaleKey);
+      }
+      return (retval);
+    }
+    
+    private int bumpProgress(int done, int total) throws AsynchExitRequestException {
+      double currProg = ((double)++done / (double)total);
+      boolean keepGoing = updateProgress((int)(currProg * 100.0));
+      if (!keepGoing) {
+        throw new AsynchExitRequestException();
+      }
+      return (done);
+    }
+    
     private Map<Integer, Double> buildScaleMap() {          
       HashMap<Integer, Double> retval = new HashMap<Integer, Double>();
       retval.put(new Integer(WebPublisher.ModelScale.SMALL), new Double(0.38));
@@ -412,12 +588,7 @@ public class ExportWeb extends AbstractControlFlow  {
       OutputStream namedStream = streamSrc_.getNamedStream(scaleKey.getFileName());
       ViewExporter.BoundsMaps smallBounds = sup.exportToStream(namedStream, true, "PNG", null, zoomFacObj.doubleValue(), null, myAppState_);
       boundsMap.put(scaleKey, smallBounds);
-      double currProg = ((double)++done / (double)total);
-      boolean keepGoing = updateProgress((int)(currProg * 100.0));
-      if (!keepGoing) {
-        throw new AsynchExitRequestException();
-      }
-      return (done);          
+      return (bumpProgress(done, total));          
     }
     
     private List<WebPublisher.ModelScale> buildFullKeyList() {              
@@ -439,4 +610,92 @@ public class ExportWeb extends AbstractControlFlow  {
       return (null);
     }
   }
+  
+  /***************************************************************************
+  **
+  ** Encoded images of one model, waiting to be written. They are still holding
+  ** heldMB of the memory budget.
+  */ 
+  
+  private static class EncodedModel {
+    List<WebPublisher.ModelScale> keys;
+    byte[][] images;
+    int heldMB;
+    
+    EncodedModel(List<WebPublisher.ModelScale> keys, byte[][] images, int heldMB) {
+      this.keys = keys;
+      this.images = images;
+      this.heldMB = heldMB;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Rasterizes and encodes the images of one prepared model. Only touches the
+  ** prepared export, never the model itself. One band of each image is reserved
+  ** (in MB) against the shared budget while it is encoded, plus the encoded bytes
+  ** once they are done. The encoded bytes stay reserved until they are written.
+  **
+  ** A worker never holds more than its share of the budget, so the workers
+  ** together can never hold the whole of it. Whenever they are all waiting, the
+  ** budget left over covers at least one of them, and the finished models give
+  ** their reservations back as they are written. Images too big for the share
+  ** are only charged up to the share.
+  */ 
+  
+  private static class ModelRasterizer implements Callable<EncodedModel> {
+    
+    private static final long MB_ = 1024L * 1024L;
+    
+    private ViewExporter.PreparedExport prep_;
+    private List<WebPublisher.ModelScale> keys_;
+    private Semaphore memBudget_;
+    private int shareMB_;
+    private int heldMB_;
+    
+    ModelRasterizer(ViewExporter.PreparedExport prep, List<WebPublisher.ModelScale> keys, 
+                    Semaphore memBudget, int shareMB) {
+      prep_ = prep;
+      keys_ = keys;
+      memBudget_ = memBudget;
+      shareMB_ = shareMB;
+      heldMB_ = 0;
+    }
+    
+    public EncodedModel call() throws IOException, InterruptedException {
+      int numImages = keys_.size();
+      byte[][] images = new byte[numImages][];
+      boolean ok = false;
+      try {
+        for (int i = 0; i < numImages; i++) {
+          int bandMB = reserve((prep_.getBandBytes(i) / MB_) + 1L);
+          ByteArrayOutputStream baos = new ByteArrayOutputStream();
+          prep_.exportToStream(i, baos, "PNG", null);
+          images[i] = baos.toByteArray();
+          reserve((images[i].length / MB_) + 1L);
+          memBudget_.release(bandMB);
+          heldMB_ -= bandMB;
+        }
+        ok = true;
+      } finally {
+        if (!ok) {
+          memBudget_.release(heldMB_);
+        }
+      }
+      return (new EncodedModel(keys_, images, heldMB_));
+    }
+    
+    /***************************************************************************
+    **
+    ** Reserve the given MB, or as much of it as the share has left. Returns
+    ** the MB reserved.
+    */ 
+    
+    private int reserve(long needMB) throws InterruptedException {
+      int retval = (int)Math.min(needMB, (long)(shareMB_ - heldMB_));
+      memBudget_.acquire(retval);
+      heldMB_ += retval;
+      return (retval);
+    }
+  }
 }
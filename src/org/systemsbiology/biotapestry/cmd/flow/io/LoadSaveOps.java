@@ -21,14 +21,10 @@
 package org.systemsbiology.biotapestry.cmd.flow.io;
 
 import java.awt.Dimension;
-import java.io.BufferedWriter;
 import java.io.File;
-import java.io.FileOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
-import java.io.OutputStreamWriter;
-import java.io.PrintWriter;
 import java.util.ArrayList;
 import java.util.HashMap;
 import java.util.List;
@@ -47,12 +43,12 @@ import org.systemsbiology.biotapestry.cmd.flow.ServerControlFlowHarness;
 import org.systemsbiology.biotapestry.cmd.flow.export.ExportPublish;
 import org.systemsbiology.biotapestry.cmd.undo.DatabaseChangeCmd;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
-import org.systemsbiology.biotapestry.db.Database;
 import org.systemsbiology.biotapestry.db.DatabaseChange;
 import org.systemsbiology.biotapestry.event.GeneralChangeEvent;
 import org.systemsbiology.biotapestry.nav.RecentFilesManager;
 import org.systemsbiology.biotapestry.nav.ZoomTarget;
 import org.systemsbiology.biotapestry.parser.ParserClient;
+import org.systemsbiology.biotapestry.parser.RecordedDocument;
 import org.systemsbiology.biotapestry.parser.SUParser;
 import org.systemsbiology.biotapestry.perturb.PerturbCsvFormatFactory;
 import org.systemsbiology.biotapestry.timeCourse.CopiesPerEmbryoData;
@@ -69,7 +65,7 @@ import org.systemsbiology.biotapestry.ui.dialogs.FileChooserWrapperFactory;
 import org.systemsbiology.biotapestry.ui.dialogs.pertManage.DesignBatchKeyDialog;
 import org.systemsbiology.biotapestry.util.FileExtensionFilters;
 import org.systemsbiology.biotapestry.util.FilePreparer;
-import org.systemsbiology.biotapestry.util.Indenter;
+import org.systemsbiology.biotapestry.util.GzipUtil;
 import org.systemsbiology.biotapestry.util.InvalidInputException;
 import org.systemsbiology.biotapestry.util.ResourceManager;
 import org.systemsbiology.biotapestry.util.SimpleUserFeedback;
@@ -558,21 +554,11 @@ public class LoadSaveOps extends AbstractControlFlow {
     */ 
  
     private void doASave() { 
-      try {
-        File cf = appState_.getCurrentFile();
-        if (cf != null) {
-           Database db = appState_.getDB();
-           PrintWriter out
-             = new PrintWriter(new BufferedWriter(new OutputStreamWriter(new FileOutputStream(cf), "UTF-8")));
-           Indenter ind = new Indenter(out, Indenter.DEFAULT_INDENT);
-           db.writeXML(out, ind);
-           out.close();
-           appState_.clearUndoTracking();
-        } else {
-          myLsSup_.saveToFile(null);
-        }
-      } catch (IOException ioe) {
-        myLsSup_.getFprep().displayFileOutputError();
+      File cf = appState_.getCurrentFile();
+      if (cf != null) {
+        myLsSup_.saveToKnownFile(cf);
+      } else {
+        myLsSup_.saveToFile(null);
       }
       return;
     } 
@@ -809,7 +795,8 @@ public class LoadSaveOps extends AbstractControlFlow {
     private DialogAndInProcessCmd stepToLoad() {
       File file = null;     
       if (headlessArgs_ == null) { // Note args may be non-null even though not headless (Embedded Viewer Panel)         
-        FileExtensionFilters.SimpleFilter filt = new FileExtensionFilters.SimpleFilter(appState_, ".btp", "filterName.btp");
+        FileExtensionFilters.DoubleExtensionFilter filt = 
+          new FileExtensionFilters.DoubleExtensionFilter(appState_, ".btp", ".btp" + GzipUtil.GZIP_SUFFIX_, "filterName.btpOrGz");
         FileChooserWrapperFactory.BuildArgs ba = 
            new FileChooserWrapperFactory.BuildArgs(FileChooserWrapperFactory.BuildArgs.DialogMode.EXISTING_IMPORT,
                                                    appState_, myLsSup_.getFprep(), filt, "LoadDirectory");
@@ -832,7 +819,12 @@ public class LoadSaveOps extends AbstractControlFlow {
             return (new DialogAndInProcessCmd(errSUF, this, DialogAndInProcessCmd.Progress.DONE_WITH_ERROR_AND_SIMPLE_USER_FEEDBACK));
           }
         } else {
-          FilePreparer.FileInputResultClosure firc = myLsSup_.loadFromStream((InputStream)headlessArgs_[1], dacx_);
+          FilePreparer.FileInputResultClosure firc;
+          if (headlessArgs_[1] instanceof RecordedDocument) {
+            firc = myLsSup_.loadFromRecording((RecordedDocument)headlessArgs_[1], dacx_);
+          } else {
+            firc = myLsSup_.loadFromStream((InputStream)headlessArgs_[1], dacx_);
+          }
           if (firc.wasSuccessful()) {
             return (new DialogAndInProcessCmd(DialogAndInProcessCmd.Progress.DONE, this));
           } else {
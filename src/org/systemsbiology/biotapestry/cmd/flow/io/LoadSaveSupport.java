@@ -20,26 +20,34 @@
 package org.systemsbiology.biotapestry.cmd.flow.io;
 
 import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
 import java.io.BufferedWriter;
 import java.io.File;
 import java.io.FileOutputStream;
+import java.io.FilterOutputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.io.OutputStream;
 import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
 import java.io.UnsupportedEncodingException;
+import java.io.Writer;
 import java.net.MalformedURLException;
 import java.net.URL;
 import java.net.URLConnection;
 import java.net.URLDecoder;
 import java.text.MessageFormat;
 import java.util.ArrayList;
+import java.util.HashMap;
 import java.util.Iterator;
 import java.util.List;
 import java.util.Map;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
 
 import javax.swing.JOptionPane;
+import javax.swing.SwingUtilities;
 import javax.swing.filechooser.FileFilter;
 import javax.swing.tree.TreePath;
 
@@ -69,7 +77,9 @@ import org.systemsbiology.biotapestry.nav.GroupSettings;
 import org.systemsbiology.biotapestry.nav.NavTree;
 import org.systemsbiology.biotapestry.nav.RecentFilesManager;
 import org.systemsbiology.biotapestry.parser.ParserClient;
+import org.systemsbiology.biotapestry.parser.RecordedDocument;
 import org.systemsbiology.biotapestry.parser.SUParser;
+import org.systemsbiology.biotapestry.parser.SnapshotWriter;
 import org.systemsbiology.biotapestry.ui.DisplayOptions;
 import org.systemsbiology.biotapestry.ui.LinkRouter;
 import org.systemsbiology.biotapestry.ui.SUPanel;
@@ -87,6 +97,7 @@ import org.systemsbiology.biotapestry.util.BackgroundWorkerOwner;
 import org.systemsbiology.biotapestry.util.DataUtil;
 import org.systemsbiology.biotapestry.util.FileExtensionFilters;
 import org.systemsbiology.biotapestry.util.FilePreparer;
+import org.systemsbiology.biotapestry.util.GzipUtil;
 import org.systemsbiology.biotapestry.util.Indenter;
 import org.systemsbiology.biotapestry.util.InvalidInputException;
 import org.systemsbiology.biotapestry.util.ResourceManager;
@@ -106,6 +117,13 @@ public class LoadSaveSupport {
   //
   //////////////////////////////////////////////////////////////////////////// 
 
+  /***************************************************************************
+  **
+  ** Files saved with this suffix are written as binary snapshots 
+  */ 
+  
+  public static final String SNAPSHOT_SUFFIX_ = ".btps";
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // MEMBERS
@@ -114,6 +132,8 @@ public class LoadSaveSupport {
 
   private BTState appState_;
   private FilePreparer fprep_;
+  private ExecutorService saver_;
+  private ArrayList<BackgroundSave> pendingSaves_;
   
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -129,6 +149,7 @@ public class LoadSaveSupport {
   public LoadSaveSupport(BTState appState, FilePreparer fprep) {
     appState_ = appState;
     fprep_ = fprep;
+    pendingSaves_ = new ArrayList<BackgroundSave>();
   }  
    
   ////////////////////////////////////////////////////////////////////////////
@@ -406,7 +427,7 @@ public class LoadSaveSupport {
   */ 
     
   public FilePreparer.FileInputResultClosure loadFromFile(File file, DataAccessContext dacx) {
-    return (loadFromSource(file, null, dacx));
+    return (loadFromSource(file, null, null, dacx));
   }  
   
   /***************************************************************************
@@ -415,7 +436,16 @@ public class LoadSaveSupport {
   */ 
     
   public FilePreparer.FileInputResultClosure loadFromStream(InputStream stream, DataAccessContext dacx) {
-    return (loadFromSource(null, stream, dacx));
+    return (loadFromSource(null, stream, null, dacx));
+  }   
+  
+  /***************************************************************************
+  **
+  ** Common load operations, replaying an already-parsed document
+  */ 
+    
+  public FilePreparer.FileInputResultClosure loadFromRecording(RecordedDocument recorded, DataAccessContext dacx) {
+    return (loadFromSource(null, null, recorded, dacx));
   }   
   
   /***************************************************************************
@@ -423,7 +453,8 @@ public class LoadSaveSupport {
   ** Common load operations.  Take your pick of input sources
   */ 
     
-  private FilePreparer.FileInputResultClosure loadFromSource(File file, InputStream stream, DataAccessContext dacx) {
+  private FilePreparer.FileInputResultClosure loadFromSource(File file, InputStream stream, 
+                                                             RecordedDocument recorded, DataAccessContext dacx) {
     String chosenFileName = (file == null) ? null : file.getName();
     CommonView cv = appState_.getCommonView();
     ModelChangeEvent mcev = new ModelChangeEvent(dacx.getDBGenomeID(),
@@ -439,11 +470,21 @@ public class LoadSaveSupport {
     SUParser sup = new SUParser(appState_, alist);
     setCurrentFile(file);
     try {
+      //
+      // Recordings are kept around (e.g. shared by web sessions), and the
+      // sections of snapshots stay compactly encoded, so in either case the
+      // big data sections can wait until somebody asks for them. Plain XML is
+      // built in full:
+      //
+      HashMap<String, RecordedDocument> deferred = new HashMap<String, RecordedDocument>();
       if (file != null) {
-        sup.parse(file);
+        sup.parse(file, Database.deferrableKeywords(), deferred);
+      } else if (recorded != null) {
+        sup.parse(recorded, Database.deferrableKeywords(), deferred);
       } else {
-        sup.parse(stream);
+        sup.parse(stream, Database.deferrableKeywords(), deferred);
       }
+      db.deferSections(deferred, !appState_.getIsEditor());
       db.legacyIOFixup((appState_.isHeadless()) ? null : appState_.getTopFrame());
     } catch (IOException ioe) {
       dacx.drop();
@@ -482,8 +523,13 @@ public class LoadSaveSupport {
     if (fileName == null) { 
       ArrayList<FileFilter> filts = new ArrayList<FileFilter>();
       filts.add(new FileExtensionFilters.SimpleFilter(appState_, ".btp", "filterName.btp"));
+      filts.add(new FileExtensionFilters.SimpleFilter(appState_, SNAPSHOT_SUFFIX_, "filterName.btps"));
+      filts.add(new FileExtensionFilters.SimpleFilter(appState_, ".btp" + GzipUtil.GZIP_SUFFIX_, "filterName.btpGz"));
       ArrayList<String> suffs = new ArrayList<String>();
       suffs.add("btp");
+      suffs.add(SNAPSHOT_SUFFIX_.substring(1));
+      suffs.add("btp" + GzipUtil.GZIP_SUFFIX_);
+      suffs.add(SNAPSHOT_SUFFIX_.substring(1) + GzipUtil.GZIP_SUFFIX_);
       file = fprep_.getOrCreateWritableFileWithSuffix("LoadDirectory", filts, suffs, "btp");   
       if (file == null) {
         return (true);
@@ -496,31 +542,172 @@ public class LoadSaveSupport {
       }        
     }
 
-    try {
-      saveToOutputStream(new FileOutputStream(file));
+    return (saveToKnownFile(file));
+  }
+  
+  /***************************************************************************
+  **
+  ** Save to a file we already have. In the interactive editor, this takes a
+  ** frozen copy of the model and writes it on the save thread, so editing can
+  ** go on; the current file and window title change once the write has
+  ** succeeded, and problems are reported when it finishes. Either way, the
+  ** file is written to a temp file that is renamed into place.
+  */   
+  
+  boolean saveToKnownFile(File file) {
+    if (appState_.isHeadless() || appState_.isWebApplication()) {
+      try {
+        writeFileAtomically(file, null);
+      } catch (IOException ioe) {
+        fprep_.displayFileOutputError();
+        return (false);
+      }
+      appState_.clearUndoTracking();
       setCurrentFile(file);
       appState_.getCommonView().manageWindowTitle(file.getName());
-    } catch (IOException ioe) {
-      fprep_.displayFileOutputError();
-      return (false);
+      return (true);
+    }
+    
+    BackgroundSave bgs = new BackgroundSave(file, appState_.getDB().getFrozenSaveView(), 
+                                            appState_.getUndoChangeCount(), appState_.getFileEpoch());
+    if (saver_ == null) {
+      saver_ = Executors.newSingleThreadExecutor(new SaveThreadFactory());
     }
+    pendingSaves_.add(bgs);
+    saver_.execute(bgs);
     return (true);
   }
   
+  /***************************************************************************
+  **
+  ** Wait for any saves still being written (e.g. before exiting), and report
+  ** on them.
+  */   
+  
+  public void finishPendingSaves() {
+    ArrayList<BackgroundSave> pending = new ArrayList<BackgroundSave>(pendingSaves_);
+    int num = pending.size();
+    for (int i = 0; i < num; i++) {
+      BackgroundSave bgs = pending.get(i);
+      bgs.waitForWrite();
+      bgs.report();
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Write the model to a temp file next to the target, and rename it into
+  ** place once it is complete. A null view writes the live model. Names
+  ** ending in .gz are compressed.
+  */   
+  
+  void writeFileAtomically(File file, Database.SaveView view) throws IOException {
+    File target = file.getAbsoluteFile();
+    File temp = new File(target.getParentFile(), target.getName() + ".tmp");
+    FileOutputStream fos = new FileOutputStream(temp);
+    boolean done = false;
+    try {
+      OutputStream stream = GzipUtil.deflateIfNamed(target.getName(), new SyncingStream(fos));
+      if (GzipUtil.stripGzipName(target.getName()).toLowerCase().endsWith(SNAPSHOT_SUFFIX_)) {
+        //
+        // Snapshots are encoded from the XML as it is written:
+        //
+        writeXML(new SnapshotWriter(stream), view);
+      } else {
+        writeXML(stream, view);
+      }
+      if (!replaceFile(temp, target)) {
+        throw new IOException();
+      }
+      done = true;
+    } finally {
+      if (!done) {
+        fos.close();
+        temp.delete();
+      }
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Rename over the target. Windows will not rename onto an existing file,
+  ** so there the original is first moved aside to a .bak file, which is only
+  ** deleted once the new file is in place. If we die in between, the .bak is
+  ** still there.
+  */   
+  
+  static boolean replaceFile(File from, File to) {
+    if (from.renameTo(to)) {
+      return (true);
+    }
+    if (!to.exists()) {
+      return (false);
+    }
+    File backup = new File(to.getAbsoluteFile().getParentFile(), to.getName() + ".bak");
+    backup.delete();
+    if (!to.renameTo(backup)) {
+      return (false);
+    }
+    if (from.renameTo(to)) {
+      backup.delete();
+      return (true);
+    }
+    backup.renameTo(to);
+    return (false);
+  }
+  
   /***************************************************************************
   **
   ** Common save activities
   */   
   
   void saveToOutputStream(OutputStream stream) throws IOException {
-    Database db = appState_.getDB();
-    PrintWriter out = new PrintWriter(new BufferedWriter(new OutputStreamWriter(stream, "UTF-8")));
-    Indenter ind = new Indenter(out, Indenter.DEFAULT_INDENT);
-    db.writeXML(out, ind);
-    out.close();
+    writeXML(stream);
     appState_.clearUndoTracking();
     return;
   }  
+  
+  /***************************************************************************
+  **
+  ** Write the database XML to the stream, and close it
+  */   
+  
+  private void writeXML(OutputStream stream) throws IOException {
+    writeXML(stream, null);
+    return;
+  }  
+  
+  /***************************************************************************
+  **
+  ** Write the database XML (or a frozen view of it) to the stream, and close it
+  */   
+  
+  void writeXML(OutputStream stream, Database.SaveView view) throws IOException {
+    writeXML(new BufferedWriter(new OutputStreamWriter(stream, "UTF-8")), view);
+    return;
+  }  
+  
+  /***************************************************************************
+  **
+  ** Write the database XML (or a frozen view of it) to the writer, and close it
+  */   
+  
+  void writeXML(Writer writer, Database.SaveView view) throws IOException {
+    PrintWriter out = new PrintWriter(writer);
+    if (view == null) {
+      Indenter ind = new Indenter(out, Indenter.DEFAULT_INDENT);
+      appState_.getDB().writeXML(out, ind);
+    } else {
+      view.writeXML(out);
+    }
+    out.close();
+    if (out.checkError()) {
+      throw new IOException();
+    }
+    return;
+  }  
    
   /***************************************************************************
   **
@@ -931,5 +1118,149 @@ public class LoadSaveSupport {
       }
       return (null);
     } 
-  }  
+  }
+  
+  /***************************************************************************
+  **
+  ** One save being written on the save thread. Reporting back happens on the
+  ** event thread, exactly once.
+  */ 
+    
+  private class BackgroundSave implements Runnable {
+    
+    private File file_;
+    private Database.SaveView view_;
+    private int changeCount_;
+    private int fileEpoch_;
+    private IOException failure_;
+    private boolean written_;
+    private boolean reported_;
+    
+    BackgroundSave(File file, Database.SaveView view, int changeCount, int fileEpoch) {
+      file_ = file;
+      view_ = view;
+      changeCount_ = changeCount;
+      fileEpoch_ = fileEpoch;
+      written_ = false;
+      reported_ = false;
+    }
+    
+    public void run() {
+      IOException failure = null;
+      try {
+        writeFileAtomically(file_, view_);
+      } catch (IOException ioe) {
+        failure = ioe;
+      } catch (RuntimeException rex) {
+        failure = new IOException(rex.getMessage());
+      }
+      synchronized (this) {
+        view_ = null;
+        failure_ = failure;
+        written_ = true;
+        notifyAll();
+      }
+      SwingUtilities.invokeLater(new Runnable() {
+        public void run() {
+          report();
+        }
+      });
+      return;
+    }
+    
+    synchronized void waitForWrite() {
+      while (!written_) {
+        try {
+          wait();
+        } catch (InterruptedException iex) {
+          return;
+        }
+      }
+      return;
+    }
+    
+    void report() {
+      IOException failure;
+      synchronized (this) {
+        if (reported_ || !written_) {
+          return;
+        }
+        reported_ = true;
+        failure = failure_;
+      }
+      pendingSaves_.remove(this);
+      if (failure != null) {
+        fprep_.displayFileOutputError();
+        return;
+      }
+      //
+      // If another model was loaded meanwhile, the file we wrote is no
+      // longer the one being edited:
+      //
+      if (fileEpoch_ != appState_.getFileEpoch()) {
+        return;
+      }
+      setCurrentFile(file_);
+      appState_.getCommonView().manageWindowTitle(file_.getName());
+      //
+      // Edits made while we were writing are still unsaved:
+      //
+      appState_.clearUndoTracking(changeCount_);
+      //
+      // Saves queued up behind this one are still of the same model:
+      //
+      int num = pendingSaves_.size();
+      for (int i = 0; i < num; i++) {
+        BackgroundSave bgs = pendingSaves_.get(i);
+        if (bgs.fileEpoch_ == fileEpoch_) {
+          bgs.fileEpoch_ = appState_.getFileEpoch();
+        }
+      }
+      return;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Daemon save thread
+  */ 
+  
+  private static class SaveThreadFactory implements ThreadFactory {
+    public Thread newThread(Runnable runner) {
+      Thread retval = new Thread(runner, "BioTapSave");
+      retval.setDaemon(true);
+      return (retval);
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** Forces the bytes to disk before closing, so the rename that follows
+  ** never exposes a partly written file after a crash.
+  */ 
+  
+  private static class SyncingStream extends FilterOutputStream {
+    
+    private FileOutputStream fos_;
+    
+    SyncingStream(FileOutputStream fos) {
+      super(new BufferedOutputStream(fos, 65536));
+      fos_ = fos;
+    }
+    
+    public void write(byte[] b, int off, int len) throws IOException {
+      out.write(b, off, len);
+      return;
+    }
+    
+    public void close() throws IOException {
+      try {
+        out.flush();
+        fos_.getFD().sync();
+      } finally {
+        out.close();
+      }
+      return;
+    }
+  }
 }
@@ -24,6 +24,7 @@ import javax.swing.undo.AbstractUndoableEdit;
 
 import org.systemsbiology.biotapestry.app.BTState;
 import org.systemsbiology.biotapestry.db.DataAccessContext;
+import org.systemsbiology.biotapestry.db.Database;
 
 /****************************************************************************
 **
@@ -80,4 +81,14 @@ public abstract class BTUndoCmd extends AbstractUndoableEdit {
   public boolean changesModel() {
     return (true);
   }
+  
+  /***************************************************************************
+  **
+  ** Answer if the command works on the given database, as opposed to some
+  ** other genome or layout source (e.g. a scratch copy)
+  */ 
+  
+  public boolean worksOn(Database db) {
+    return ((dacx_ != null) && (dacx_.getGenomeSource() == db) && (dacx_.lSrc == db));
+  }
 }
@@ -118,4 +118,13 @@ public class GenomeChangeCmd extends BTUndoCmd {
     }
     return;
   }
+  
+  /***************************************************************************
+  **
+  ** Get the change
+  */ 
+  
+  public GenomeChange getChange() {
+    return (restore_);
+  }
 }
@@ -118,26 +118,7 @@ public class PropChangeCmd extends BTUndoCmd {
       if (pc == null) {
         continue;
       }
-      Layout layout = dacx_.lSrc.getLayout(pc.layoutKey);
-      if ((pc.orig != null) || (pc.newProps != null)) {
-        layout.linkChangeUndo(pc);
-      } else if ((pc.nOrig != null) || (pc.nNewProps != null)) {
-        layout.nodeChangeUndo(pc);
-      } else if ((pc.ntOrig != null) || (pc.ntNewProps != null)) {
-        layout.noteChangeUndo(pc); 
-      } else if ((pc.grOrig != null) || (pc.grNewProps != null)) {
-        layout.groupChangeUndo(pc); 
-      } else if (pc.dLocKey != null) {
-        layout.dataPosChangeUndo(pc);
-      } else if (pc.metaOrig != null) {
-        layout.metaChangeUndo(pc);
-      } else if ((pc.nopOrig != null) || (pc.nopNew != null)) {
-        layout.overlayChangeUndo(pc);
-      } else if ((pc.nmpOrig != null) || (pc.nmpNew != null)) {
-        layout.netModChangeUndo(pc);
-      } else if ((pc.nmlpOrig != null) || (pc.nmlpNew != null) || (pc.nmlpTieLinkIDOrig != null)) {
-        layout.netModLinkChangeUndo(pc);
-      }
+      undoChange(dacx_.lSrc.getLayout(pc.layoutKey), pc);
     }
     return;
   }  
@@ -155,26 +136,78 @@ public class PropChangeCmd extends BTUndoCmd {
       if (pc == null) {
         continue;
       }
-      Layout layout = dacx_.lSrc.getLayout(pc.layoutKey);
-      if ((pc.newProps != null) || (pc.orig != null)) {
-        layout.linkChangeRedo(pc);
-      } else if ((pc.nNewProps != null) || (pc.nOrig != null)) {
-        layout.nodeChangeRedo(pc);
-      } else if ((pc.ntNewProps != null)|| (pc.ntOrig != null)) {
-        layout.noteChangeRedo(pc);
-      } else if ((pc.grNewProps != null) || (pc.grOrig != null)) {
-        layout.groupChangeRedo(pc);
-      } else if (pc.dLocKey != null) {
-        layout.dataPosChangeRedo(pc);
-      } else if (pc.newMeta != null) {
-        layout.metaChangeRedo(pc);
-      } else if ((pc.nopOrig != null) || (pc.nopNew != null)) {
-        layout.overlayChangeRedo(pc);
-      } else if ((pc.nmpOrig != null) || (pc.nmpNew != null)) {
-        layout.netModChangeRedo(pc);
-      } else if ((pc.nmlpOrig != null) || (pc.nmlpNew != null) || (pc.nmlpTieLinkIDOrig != null)) {
-        layout.netModLinkChangeRedo(pc);
-      }
+      redoChange(dacx_.lSrc.getLayout(pc.layoutKey), pc);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the changes. Entries may be null.
+  */ 
+  
+  public Layout.PropChange[] getChanges() {
+    return (restore_);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Undo a single change to the given layout
+  */ 
+  
+  public static void undoChange(Layout layout, Layout.PropChange pc) {
+    if ((pc.orig != null) || (pc.newProps != null)) {
+      layout.linkChangeUndo(pc);
+    } else if ((pc.nOrig != null) || (pc.nNewProps != null)) {
+      layout.nodeChangeUndo(pc);
+    } else if ((pc.ntOrig != null) || (pc.ntNewProps != null)) {
+      layout.noteChangeUndo(pc); 
+    } else if ((pc.grOrig != null) || (pc.grNewProps != null)) {
+      layout.groupChangeUndo(pc); 
+    } else if (pc.dLocKey != null) {
+      layout.dataPosChangeUndo(pc);
+    } else if (pc.metaOrig != null) {
+      layout.metaChangeUndo(pc);
+    } else if ((pc.nopOrig != null) || (pc.nopNew != null)) {
+      layout.overlayChangeUndo(pc);
+    } else if ((pc.nmpOrig != null) || (pc.nmpNew != null)) {
+      layout.netModChangeUndo(pc);
+    } else if ((pc.nmlpOrig != null) || (pc.nmlpNew != null) || (pc.nmlpTieLinkIDOrig != null)) {
+      layout.netModLinkChangeUndo(pc);
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Redo a single change to the given layout
+  */ 
+  
+  public static void redoChange(Layout layout, Layout.PropChange pc) {
+    if ((pc.newProps != null) || (pc.orig != null)) {
+      layout.linkChangeRedo(pc);
+    } else if ((pc.nNewProps != null) || (pc.nOrig != null)) {
+      layout.nodeChangeRedo(pc);
+    } else if ((pc.ntNewProps != null)|| (pc.ntOrig != null)) {
+      layout.noteChangeRedo(pc);
+    } else if ((pc.grNewProps != null) || (pc.grOrig != null)) {
+      layout.groupChangeRedo(pc);
+    } else if (pc.dLocKey != null) {
+      layout.dataPosChangeRedo(pc);
+    } else if (pc.newMeta != null) {
+      layout.metaChangeRedo(pc);
+    } else if ((pc.nopOrig != null) || (pc.nopNew != null)) {
+      layout.overlayChangeRedo(pc);
+    } else if ((pc.nmpOrig != null) || (pc.nmpNew != null)) {
+      layout.netModChangeRedo(pc);
+    } else if ((pc.nmlpOrig != null) || (pc.nmlpNew != null) || (pc.nmlpTieLinkIDOrig != null)) {
+      layout.netModLinkChangeRedo(pc);
     }
     return;
   }
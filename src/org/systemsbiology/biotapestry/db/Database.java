@@ -24,6 +24,7 @@ import java.awt.font.FontRenderContext;
 import java.awt.geom.AffineTransform;
 import java.io.IOException;
 import java.io.PrintWriter;
+import java.io.StringWriter;
 import java.text.MessageFormat;
 import java.util.ArrayList;
 import java.util.HashMap;
@@ -64,10 +65,12 @@ import org.systemsbiology.biotapestry.genome.Note;
 import org.systemsbiology.biotapestry.genome.XPlatDisplayText;
 import org.systemsbiology.biotapestry.nav.NavTree;
 import org.systemsbiology.biotapestry.parser.NewerVersionIOException;
+import org.systemsbiology.biotapestry.parser.RecordedDocument;
 import org.systemsbiology.biotapestry.perturb.PerturbationData;
 import org.systemsbiology.biotapestry.timeCourse.CopiesPerEmbryoData;
 import org.systemsbiology.biotapestry.timeCourse.TemporalInputRangeData;
 import org.systemsbiology.biotapestry.timeCourse.TimeCourseData;
+import org.systemsbiology.biotapestry.timeCourse.TimeCourseFormatFactory;
 import org.systemsbiology.biotapestry.ui.GroupProperties;
 import org.systemsbiology.biotapestry.ui.Layout;
 import org.systemsbiology.biotapestry.ui.NamedColor;
@@ -123,6 +126,8 @@ public class Database implements GenomeSource, LayoutSource,
   private ModelData modelData_;
   private PerturbationData pertData_;
   private TimeCourseData timeCourse_;
+  private DeferredSection deferredPert_;
+  private DeferredSection deferredTime_;
   private CopiesPerEmbryoData copiesPerEmb_;
   private TemporalInputRangeData rangeData_;  
   private UniqueLabeller labels_;
@@ -213,6 +218,8 @@ public class Database implements GenomeSource, LayoutSource,
     modelData_ = null;
     pertData_ = new PerturbationData(appState_);
     timeCourse_ = new TimeCourseData(appState_);
+    deferredPert_ = null;
+    deferredTime_ = null;
     copiesPerEmb_ = new CopiesPerEmbryoData(appState_);
     rangeData_ = new TemporalInputRangeData(appState_);
     timeAxis_ = new TimeAxisDefinition(appState_);
@@ -247,6 +254,8 @@ public class Database implements GenomeSource, LayoutSource,
     modelData_ = null;
     pertData_ = new PerturbationData(appState_);
     timeCourse_ = null;
+    deferredPert_ = null;
+    deferredTime_ = null;
     copiesPerEmb_ = null;
     rangeData_ = null;
     timeAxis_ = new TimeAxisDefinition(appState_);
@@ -547,7 +556,7 @@ public class Database implements GenomeSource, LayoutSource,
         iOVersion_.equals(PREVIOUS_IO_VERSION_A_) || 
         iOVersion_.equals(PREVIOUS_IO_VERSION_B_) || 
         iOVersion_.equals(PREVIOUS_IO_VERSION_C_)) { 
-      pertData_.transferFromLegacy();
+      getPertData().transferFromLegacy();
     }
     
     
@@ -908,7 +917,25 @@ public class Database implements GenomeSource, LayoutSource,
   */
 
   public PerturbationData getPertData() {
-    return (pertData_);
+    DeferredSection deferred = deferredPert_;
+    if (deferred == null) {
+      return (pertData_);
+    }
+    synchronized (deferred) {
+      PerturbationData retval = (PerturbationData)deferred.getLoaded();
+      if (retval == null) {
+        PerturbationData placeholder = pertData_;
+        deferred.replayInto(new PerturbationData.PertDataWorker(appState_, false, false));
+        retval = pertData_;
+        deferred.setLoaded(retval);
+        if (deferred.isEvictable()) {
+          pertData_ = placeholder;
+        } else {
+          deferredPert_ = null;
+        }
+      }
+      return (retval);
+    }
   }  
   
   /***************************************************************************
@@ -918,6 +945,9 @@ public class Database implements GenomeSource, LayoutSource,
 
   public void setPertData(PerturbationData pd) {
     pertData_ = pd;
+    if ((deferredPert_ != null) && !deferredPert_.isLoading()) {
+      deferredPert_ = null;
+    }
     return;
   }
  
@@ -928,7 +958,7 @@ public class Database implements GenomeSource, LayoutSource,
   
   public DatabaseChange startTimeCourseUndoTransaction() {
     DatabaseChange dc = new DatabaseChange();
-    dc.oldTcd = timeCourse_;
+    dc.oldTcd = getTimeCourseData();
     return (dc);
   }  
   
@@ -938,7 +968,7 @@ public class Database implements GenomeSource, LayoutSource,
   */
   
   public DatabaseChange finishTimeCourseUndoTransaction(DatabaseChange change) {
-    change.newTcd = timeCourse_;
+    change.newTcd = getTimeCourseData();
     return (change);
   }
   
@@ -990,7 +1020,25 @@ public class Database implements GenomeSource, LayoutSource,
   */
 
   public TimeCourseData getTimeCourseData() {
-    return (timeCourse_);
+    DeferredSection deferred = deferredTime_;
+    if (deferred == null) {
+      return (timeCourse_);
+    }
+    synchronized (deferred) {
+      TimeCourseData retval = (TimeCourseData)deferred.getLoaded();
+      if (retval == null) {
+        TimeCourseData placeholder = timeCourse_;
+        deferred.replayInto(new TimeCourseFormatFactory(appState_, false, false));
+        retval = timeCourse_;
+        deferred.setLoaded(retval);
+        if (deferred.isEvictable()) {
+          timeCourse_ = placeholder;
+        } else {
+          deferredTime_ = null;
+        }
+      }
+      return (retval);
+    }
   }  
   
   /***************************************************************************
@@ -1000,6 +1048,45 @@ public class Database implements GenomeSource, LayoutSource,
 
   public void setTimeCourseData(TimeCourseData timeCourse) {
     timeCourse_ = timeCourse;
+    if ((deferredTime_ != null) && !deferredTime_.isLoading()) {
+      deferredTime_ = null;
+    }
+    return;
+  }  
+  
+  /***************************************************************************
+  ** 
+  ** Element keywords of the sections that a load can defer with
+  ** deferSections()
+  */
+
+  public static Set<String> deferrableKeywords() {
+    HashSet<String> retval = new HashSet<String>(TimeCourseData.keywordsOfInterest());
+    retval.add(PerturbationData.keywordOfInterest());
+    return (retval);
+  }  
+  
+  /***************************************************************************
+  ** 
+  ** Install sections that the load skipped over, keyed by element keyword.
+  ** They get built the first time they are asked for. If evictable, they may
+  ** be dropped under memory pressure and built again, so only use that when
+  ** the data cannot be changed.
+  */
+
+  public void deferSections(Map<String, RecordedDocument> sections, boolean evictable) {
+    Iterator<String> kit = sections.keySet().iterator();
+    while (kit.hasNext()) {
+      String key = kit.next();
+      DeferredSection deferred = new DeferredSection(appState_, sections.get(key), evictable);
+      if (key.equals(PerturbationData.keywordOfInterest())) {
+        deferredPert_ = deferred;
+      } else if (TimeCourseData.keywordsOfInterest().contains(key)) {
+        deferredTime_ = deferred;
+      } else {
+        throw new IllegalArgumentException();
+      }
+    }
     return;
   }  
   
@@ -1828,10 +1915,28 @@ public class Database implements GenomeSource, LayoutSource,
   */
   
   public void writeXML(PrintWriter out, Indenter ind) {    
-    ind.indent();
-    out.print("<BioTapestry version=\"");
-    out.print(CURRENT_IO_VERSION_);
-    out.println("\" >");
+    (new SaveView(false)).writeXML(out, ind);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Take a frozen copy of what writeXML needs, so the model can be written
+  ** out on another thread while editing goes on. Call this where edits are
+  ** made (the event thread). The big sections are cloned, which is far
+  ** cheaper than writing them; the small ones are written right now.
+  */
+  
+  public SaveView getFrozenSaveView() {    
+    return (new SaveView(true));
+  }
+  
+  /***************************************************************************
+  **
+  ** The sections that come before the root genome
+  */
+  
+  private void writeLeadXML(PrintWriter out, Indenter ind) {    
     if (modelData_ != null) {
       modelData_.writeXML(out, ind.up());
       ind.down();
@@ -1864,105 +1969,30 @@ public class Database implements GenomeSource, LayoutSource,
     
     appState_.getPathMgr().writeXML(out, ind.up());
     ind.down();
-    
-    // core genome
-    ((DBGenome)genome_).writeXML(out, ind.up());
-    ind.indent();
-    //
-    // Dump the instances out in tree order to preserve it:
-    //
-    List<String> ordered = navTree_.getPreorderListing(true);
-    Iterator<String> oit = ordered.iterator();    
-    out.println("<genomeInstances>");
-    ind.up();
-    while (oit.hasNext()) {
-      String gkey = oit.next();
-      GenomeInstance gi = (GenomeInstance)getGenome(gkey);
-      // Note that dynamic instances override writeXML to output nothing. We lose
-      // the tree ordering of dynamic vs. static children on I/O!!!  FIX ME!!!! 
-      gi.writeXML(out, ind);
-    }
-    ind.down().indent();
-    out.println("</genomeInstances>");
-    // Layouts
-    ind.indent();
-    out.println("<layouts>");
-    Iterator<Layout> lit = getLayoutIterator();
-    ind.up();
-    while (lit.hasNext()) {
-      Layout lo = lit.next();
-      lo.writeXML(out, ind);
-    }
-    ind.down().indent();
-    out.println("</layouts>");
-    if ((pertData_ != null) && pertData_.haveData()) {
-      pertData_.writeXML(out, ind);
-    }
-    
-    if (timeCourse_ != null) {
-      timeCourse_.writeXML(out, ind);
-    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** The small data sections that follow the time course data
+  */
+  
+  private void writeRangeAndCopiesXML(PrintWriter out, Indenter ind) {    
     if (rangeData_ != null) {
       rangeData_.writeXML(out, ind);
     }
     if ((copiesPerEmb_ != null) && copiesPerEmb_.haveData()) {
       copiesPerEmb_.writeXML(out, ind);
     }    
-    
-    //
-    // Dump the single-shot proxies out in tree order to preserve it:
-    //
-    ArrayList<String> dumpList = new ArrayList<String>();
-    ordered = navTree_.getPreorderListing(true);
-    oit = ordered.iterator();    
-    while (oit.hasNext()) {
-      String gkey = oit.next();
-      GenomeInstance gi = (GenomeInstance)getGenome(gkey);
-      if (gi instanceof DynamicGenomeInstance) {
-        DynamicGenomeInstance dgi = (DynamicGenomeInstance)gi;
-        DynamicInstanceProxy dip = dynProxies_.get(dgi.getProxyID()); 
-        if (!dumpList.contains(dip.getID())) {
-          dip.writeXML(out, ind);
-          dumpList.add(dip.getID());
-        }
-      }
-    }
-    //
-    // Dump the multi-hour proxies out in tree order to preserve it:
-    //
-    dumpList = new ArrayList<String>();
-    ordered = navTree_.getProxyPreorderListing();
-    oit = ordered.iterator();    
-    while (oit.hasNext()) {
-      String pkey = oit.next();
-      DynamicInstanceProxy dip = dynProxies_.get(pkey); 
-      if (!dumpList.contains(dip.getID())) {
-        dip.writeXML(out, ind);
-        dumpList.add(dip.getID());
-      }
-    }
-    
-    //
-    // Dump the build instructions:
-    //
-    
-    Iterator<BuildInstruction> biit = getBuildInstructions();
-    if (biit.hasNext()) {
-      ind.indent();
-      out.println("<buildInstructions>");
-      ind.up();
-      while (biit.hasNext()) {
-        BuildInstruction bi = biit.next();
-        bi.writeXML(out, ind);
-      }
-      ind.down().indent();
-      out.println("</buildInstructions>");
-    }
-    
-    //
-    // Dump the instance instruction sets:
-    //
-    
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** The instance instruction sets
+  */
+  
+  private void writeInstructionSetsXML(PrintWriter out, Indenter ind) {    
     Iterator<InstanceInstructionSet> isit = instanceInstructionSets_.values().iterator();
     if (isit.hasNext()) {
       ind.indent();
@@ -1975,9 +2005,6 @@ public class Database implements GenomeSource, LayoutSource,
       ind.down().indent();
       out.println("</instructionSets>");
     } 
-
-    ind.down().indent();
-    out.println("</BioTapestry>");
     return;
   }
 
@@ -2093,7 +2120,7 @@ public class Database implements GenomeSource, LayoutSource,
       dynProxies_.remove(key);
       labels_.removeLabel(key);
     } else if (undo.oldTcd != null) {
-      timeCourse_ = undo.oldTcd;
+      setTimeCourseData(undo.oldTcd);
     } else if (undo.oldCpe != null) {
       copiesPerEmb_ = undo.oldCpe;  
     } else if (undo.oldTir != null) {
@@ -2160,7 +2187,7 @@ public class Database implements GenomeSource, LayoutSource,
       dynProxies_.remove(key);
       labels_.removeLabel(key);
     } else if (undo.newTcd != null) {
-      timeCourse_ = undo.newTcd;
+      setTimeCourseData(undo.newTcd);
     } else if (undo.newCpe != null) {
       copiesPerEmb_ = undo.newCpe;        
     } else if (undo.newTir != null) {
@@ -2454,6 +2481,216 @@ public class Database implements GenomeSource, LayoutSource,
     return;
   }   
    
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Everything that goes into the XML, in output order. A live view just
+  ** points at the model. A frozen one holds clones of the big sections and
+  ** the already-written text of the small ones, and can be written on any
+  ** thread.
+  */
+  
+  public class SaveView {
+    
+    private String leadXML_;
+    private Genome genome_;
+    private ArrayList<GenomeInstance> instances_;
+    private ArrayList<Layout> layouts_;
+    private PerturbationData pertData_;
+    private TimeCourseData timeCourse_;
+    private String rangeAndCopiesXML_;
+    private ArrayList<DynamicInstanceProxy> proxies_;
+    private ArrayList<BuildInstruction> buildInstructions_;
+    private String instructionSetsXML_;
+    
+    SaveView(boolean frozen) {
+      Database db = Database.this;
+      
+      genome_ = (frozen) ? ((DBGenome)db.genome_).clone() : db.genome_;
+      
+      instances_ = new ArrayList<GenomeInstance>();
+      List<String> ordered = db.navTree_.getPreorderListing(true);
+      Iterator<String> oit = ordered.iterator();    
+      while (oit.hasNext()) {
+        GenomeInstance gi = (GenomeInstance)db.getGenome(oit.next());
+        // Note that dynamic instances override writeXML to output nothing. We lose
+        // the tree ordering of dynamic vs. static children on I/O!!!  FIX ME!!!! 
+        if (!(gi instanceof DynamicGenomeInstance)) {
+          instances_.add((frozen) ? gi.clone() : gi);
+        }
+      }
+      
+      layouts_ = new ArrayList<Layout>();
+      Iterator<Layout> lit = db.getLayoutIterator();
+      while (lit.hasNext()) {
+        Layout lo = lit.next();
+        layouts_.add((frozen) ? new Layout(lo) : lo);
+      }
+
+      PerturbationData pertData = db.getPertData();
+      if ((pertData != null) && pertData.haveData()) {
+        pertData_ = (frozen) ? pertData.clone() : pertData;
+      }
+      TimeCourseData timeCourse = db.getTimeCourseData();
+      if (timeCourse != null) {
+        timeCourse_ = (frozen) ? timeCourse.clone() : timeCourse;
+      }
+      
+      //
+      // Dump the single-shot proxies out in tree order to preserve it, then
+      // the multi-hour proxies:
+      //
+      
+      proxies_ = new ArrayList<DynamicInstanceProxy>();
+      HashSet<String> dumped = new HashSet<String>();
+      oit = ordered.iterator();    
+      while (oit.hasNext()) {
+        GenomeInstance gi = (GenomeInstance)db.getGenome(oit.next());
+        if (gi instanceof DynamicGenomeInstance) {
+          DynamicInstanceProxy dip = db.dynProxies_.get(((DynamicGenomeInstance)gi).getProxyID()); 
+          if (dumped.add(dip.getID())) {
+            proxies_.add((frozen) ? dip.clone() : dip);
+          }
+        }
+      }
+      dumped.clear();
+      oit = db.navTree_.getProxyPreorderListing().iterator();    
+      while (oit.hasNext()) {
+        DynamicInstanceProxy dip = db.dynProxies_.get(oit.next()); 
+        if (dumped.add(dip.getID())) {
+          proxies_.add((frozen) ? dip.clone() : dip);
+        }
+      }
+      
+      buildInstructions_ = new ArrayList<BuildInstruction>();
+      Iterator<BuildInstruction> biit = db.getBuildInstructions();
+      while (biit.hasNext()) {
+        BuildInstruction bi = biit.next();
+        buildInstructions_.add((frozen) ? bi.clone() : bi);
+      }
+      
+      if (frozen) {
+        StringWriter sw = new StringWriter();
+        PrintWriter out = new PrintWriter(sw);
+        db.writeLeadXML(out, new Indenter(out, Indenter.DEFAULT_INDENT));
+        out.flush();
+        leadXML_ = sw.toString();
+        
+        sw = new StringWriter();
+        out = new PrintWriter(sw);
+        db.writeRangeAndCopiesXML(out, (new Indenter(out, Indenter.DEFAULT_INDENT)).up());
+        out.flush();
+        rangeAndCopiesXML_ = sw.toString();
+        
+        sw = new StringWriter();
+        out = new PrintWriter(sw);
+        db.writeInstructionSetsXML(out, (new Indenter(out, Indenter.DEFAULT_INDENT)).up());
+        out.flush();
+        instructionSetsXML_ = sw.toString();
+      }
+    }
+    
+    /***************************************************************************
+    **
+    ** Write out a frozen view as a whole document
+    */
+    
+    public void writeXML(PrintWriter out) {
+      if (leadXML_ == null) {
+        throw new IllegalStateException();
+      }
+      writeXML(out, new Indenter(out, Indenter.DEFAULT_INDENT));
+      return;
+    }
+    
+    /***************************************************************************
+    **
+    ** Write it out. Frozen views only hold text written at level zero.
+    */
+    
+    void writeXML(PrintWriter out, Indenter ind) {
+      Database db = Database.this;
+      ind.indent();
+      out.print("<BioTapestry version=\"");
+      out.print(CURRENT_IO_VERSION_);
+      out.println("\" >");
+      if (leadXML_ != null) {
+        out.print(leadXML_);
+      } else {
+        db.writeLeadXML(out, ind);
+      }
+      
+      // core genome
+      ((DBGenome)genome_).writeXML(out, ind.up());
+      ind.indent();
+      out.println("<genomeInstances>");
+      ind.up();
+      int numInst = instances_.size();
+      for (int i = 0; i < numInst; i++) {
+        instances_.get(i).writeXML(out, ind);
+      }
+      ind.down().indent();
+      out.println("</genomeInstances>");
+      // Layouts
+      ind.indent();
+      out.println("<layouts>");
+      ind.up();
+      int numLo = layouts_.size();
+      for (int i = 0; i < numLo; i++) {
+        layouts_.get(i).writeXML(out, ind);
+      }
+      ind.down().indent();
+      out.println("</layouts>");
+      if (pertData_ != null) {
+        pertData_.writeXML(out, ind);
+      }
+      if (timeCourse_ != null) {
+        timeCourse_.writeXML(out, ind);
+      }
+      if (rangeAndCopiesXML_ != null) {
+        out.print(rangeAndCopiesXML_);
+      } else {
+        db.writeRangeAndCopiesXML(out, ind);
+      }
+      
+      int numProx = proxies_.size();
+      for (int i = 0; i < numProx; i++) {
+        proxies_.get(i).writeXML(out, ind);
+      }
+    
+      //
+      // Dump the build instructions:
+      //
+    
+      int numBi = buildInstructions_.size();
+      if (numBi > 0) {
+        ind.indent();
+        out.println("<buildInstructions>");
+        ind.up();
+        for (int i = 0; i < numBi; i++) {
+          buildInstructions_.get(i).writeXML(out, ind);
+        }
+        ind.down().indent();
+        out.println("</buildInstructions>");
+      }
+    
+      if (instructionSetsXML_ != null) {
+        out.print(instructionSetsXML_);
+      } else {
+        db.writeInstructionSetsXML(out, ind);
+      }
+
+      ind.down().indent();
+      out.println("</BioTapestry>");
+      return;
+    }
+  }
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC STATIC METHODS
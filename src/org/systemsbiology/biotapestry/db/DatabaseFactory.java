@@ -182,6 +182,15 @@ public class DatabaseFactory implements ParserClient {
   */
   
   public Object processElement(String elemName, Attributes attrs) throws IOException {
+    
+    //
+    // Almost everything goes to the current client, so handle that first. The
+    // header is the root element, and never shows up inside a client's section:
+    //
+    
+    if (currClient_ != null) {
+      return (currClient_.processElement(elemName, attrs));
+    }
 
     if (bioTapHeaderKeys_.contains(elemName)) {
       String version = Database.versionFromXML(elemName, attrs);
@@ -189,10 +198,6 @@ public class DatabaseFactory implements ParserClient {
       return (null);
     }
     
-    if (currClient_ != null) {
-      return (currClient_.processElement(elemName, attrs));
-    }
-    
     ParserClient pc = (ParserClient)clients_.get(elemName);
     if (pc != null) {
       currClient_ = pc; 
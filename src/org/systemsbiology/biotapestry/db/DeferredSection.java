@@ -0,0 +1,143 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.db;
+
+import java.io.IOException;
+import java.lang.ref.SoftReference;
+import java.util.ArrayList;
+
+import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.parser.ParserClient;
+import org.systemsbiology.biotapestry.parser.RecordedDocument;
+import org.systemsbiology.biotapestry.parser.SUParser;
+
+/****************************************************************************
+**
+** A section of a loaded document that has not been built yet. It is built
+** the first time it is asked for, by replaying the recorded section through
+** its usual factory. If it is evictable (i.e. nobody can change it), the
+** result is only softly held, and is rebuilt if the collector takes it.
+*/
+
+class DeferredSection {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final BTState appState_;
+  private final RecordedDocument recorded_;
+  private final boolean evictable_;
+  private Object strong_;
+  private SoftReference<Object> soft_;
+  private boolean loading_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor
+  */
+
+  DeferredSection(BTState appState, RecordedDocument recorded, boolean evictable) {
+    appState_ = appState;
+    recorded_ = recorded;
+    evictable_ = evictable;
+    loading_ = false;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Answers if the built section may be dropped and rebuilt
+  */
+
+  boolean isEvictable() {
+    return (evictable_);
+  }
+
+  /***************************************************************************
+  **
+  ** Answers if we are in the middle of building it. Holders use this to tell
+  ** the factory installing the result from somebody replacing the section.
+  */
+
+  synchronized boolean isLoading() {
+    return (loading_);
+  }
+
+  /***************************************************************************
+  **
+  ** The built section, or null if it has not been built (or was evicted)
+  */
+
+  synchronized Object getLoaded() {
+    if (strong_ != null) {
+      return (strong_);
+    }
+    return ((soft_ == null) ? null : soft_.get());
+  }
+
+  /***************************************************************************
+  **
+  ** Hang onto the built section
+  */
+
+  synchronized void setLoaded(Object loaded) {
+    if (evictable_) {
+      soft_ = new SoftReference<Object>(loaded);
+    } else {
+      strong_ = loaded;
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Replay the section through the given factory. Problems are reported as
+  ** an IllegalStateException, since the load they belong to is long over.
+  */
+
+  synchronized void replayInto(ParserClient client) {
+    ArrayList<ParserClient> alist = new ArrayList<ParserClient>();
+    alist.add(client);
+    SUParser sup = new SUParser(appState_, alist);
+    loading_ = true;
+    try {
+      sup.parse(recorded_);
+    } catch (IOException ioex) {
+      throw new IllegalStateException("Deferred section failed to load: " + ioex.getMessage());
+    } finally {
+      loading_ = false;
+    }
+    return;
+  }
+}
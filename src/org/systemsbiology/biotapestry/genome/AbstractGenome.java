@@ -22,6 +22,7 @@ package org.systemsbiology.biotapestry.genome;
 import java.io.IOException;
 import java.io.PrintWriter;
 import java.util.ArrayList;
+import java.util.Collections;
 import java.util.Comparator;
 import java.util.HashMap;
 import java.util.HashSet;
@@ -40,6 +41,7 @@ import org.systemsbiology.biotapestry.ui.INodeRenderer;
 import org.systemsbiology.biotapestry.ui.Layout;
 import org.systemsbiology.biotapestry.ui.NodeProperties;
 import org.systemsbiology.biotapestry.util.CharacterEntityMapper;
+import org.systemsbiology.biotapestry.util.DataUtil;
 import org.systemsbiology.biotapestry.util.Indenter;
 import org.systemsbiology.biotapestry.util.NameValuePair;
 import org.systemsbiology.biotapestry.util.TaggedSet;
@@ -76,6 +78,24 @@ public abstract class AbstractGenome implements Genome, Cloneable {
   protected GenomeSource mySource_;
   private boolean labelManager_;
   
+  //
+  // Link IDs keyed by source and by target node, kept in step with links_ so
+  // neighbor queries do not have to scan every link:
+  //
+  
+  private HashMap<String, HashSet<String>> linksFromNode_;
+  private HashMap<String, HashSet<String>> linksIntoNode_;
+  
+  //
+  // Item IDs keyed by matching name and by base ID, for global name checks
+  // and instance lookups. Built when asked for; null when out of date:
+  //
+  
+  private HashMap<String, HashSet<String>> geneNameIndex_;
+  private HashMap<String, HashSet<String>> nodeNameIndex_;
+  private HashMap<String, HashSet<String>> nodesForBase_;
+  private HashMap<String, HashSet<String>> linksForBase_;
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // CONSTRUCTORS
@@ -95,6 +115,8 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     genes_ = new HashMap<String, Gene>();
     nodes_ = new HashMap<String, Node>();
     links_ = new HashMap<String, Linkage>();
+    linksFromNode_ = new HashMap<String, HashSet<String>>();
+    linksIntoNode_ = new HashMap<String, HashSet<String>>();
     notes_ = new HashMap<String, Note>();
     labels_ = new UniqueLabeller();
     imgKey_ = null;
@@ -142,7 +164,8 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     while (lit.hasNext()) {
       String lID = lit.next();
       this.links_.put(lID, other.links_.get(lID).clone());
-    }    
+    }
+    indexAllLinks();
 
     if (overAndNotes) {
       this.ovrops_ = other.ovrops_.clone();
@@ -377,7 +400,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
   
   public GenomeChange addGene(Gene gene) {
     GenomeChange retval = new GenomeChange();
-    genes_.put(gene.getID(), gene);
+    putGene(gene.getID(), gene);
     retval.gOrig = null;
     retval.gNew = gene;
     retval.genomeKey = getID();
@@ -392,7 +415,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
   
   public GenomeChange addLinkage(Linkage link) {
     GenomeChange retval = new GenomeChange();
-    links_.put(link.getID(), link);
+    putLinkage(link);
     retval.lOrig = null;
     retval.lNew = link;
     retval.genomeKey = getID();
@@ -407,7 +430,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
   
   public GenomeChange addNode(Node node) {
     GenomeChange retval = new GenomeChange();
-    nodes_.put(node.getID(), node);
+    putNode(node.getID(), node);
     retval.nOrig = null;
     retval.nNew = node;
     retval.genomeKey = getID();
@@ -533,7 +556,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     retval.lOrig = theLink.clone();
     retval.lNew = retval.lOrig.clone();
     retval.lNew.setDescription(desc);
-    links_.put(linkID, retval.lNew.clone());   
+    putLinkage(retval.lNew.clone());   
     retval.genomeKey = id_;    
     return (retval);
   }
@@ -553,7 +576,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     retval.lOrig = link.clone();
     retval.lNew = link.clone();
     retval.lNew.setLaunchPad(targNum);
-    links_.put(id, retval.lNew.clone());
+    putLinkage(retval.lNew.clone());
     retval.genomeKey = getID();
     return (retval);
   }
@@ -574,7 +597,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     retval.lNew = link.clone();
     retval.lNew.setSource(srcID);
     retval.lNew.setLaunchPad(targNum);
-    links_.put(id, retval.lNew.clone());
+    putLinkage(retval.lNew.clone());
     retval.genomeKey = getID();
     return (retval);    
   }
@@ -594,7 +617,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     retval.lOrig = link.clone();
     retval.lNew = link.clone();
     retval.lNew.setLandingPad(targNum);
-    links_.put(id, retval.lNew.clone());
+    putLinkage(retval.lNew.clone());
     retval.genomeKey = getID();
     return (retval);
   }
@@ -615,7 +638,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     retval.lNew = link.clone();
     retval.lNew.setTarget(trgID);
     retval.lNew.setLandingPad(targNum);
-    links_.put(id, retval.lNew.clone());
+    putLinkage(retval.lNew.clone());
     retval.genomeKey = getID();
     return (retval);    
   } 
@@ -632,7 +655,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     retval.lOrig = theLink.clone();
     retval.lNew = retval.lOrig.clone();
     retval.lNew.setAllUrls(urls);
-    links_.put(linkID, retval.lNew.clone());    
+    putLinkage(retval.lNew.clone());    
     retval.genomeKey = id_;    
     return (retval);    
   }
@@ -650,12 +673,12 @@ public abstract class AbstractGenome implements Genome, Cloneable {
       retval.gOrig = (Gene)theNode.clone();
       retval.gNew = retval.gOrig.clone();
       retval.gNew.setDescription(desc);
-      genes_.put(nodeID, retval.gNew.clone());    
+      putGene(nodeID, retval.gNew.clone());    
     } else {
       retval.nOrig = theNode.clone();
       retval.nNew = retval.nOrig.clone();
       retval.nNew.setDescription(desc);
-      nodes_.put(nodeID, retval.nNew.clone());                 
+      putNode(nodeID, retval.nNew.clone());                 
     }
     retval.genomeKey = id_;    
     return (retval);
@@ -698,12 +721,12 @@ public abstract class AbstractGenome implements Genome, Cloneable {
       retval.gOrig = (Gene)theNode.clone();
       retval.gNew = retval.gOrig.clone();
       retval.gNew.setAllUrls(urls);
-      genes_.put(nodeID, retval.gNew.clone());    
+      putGene(nodeID, retval.gNew.clone());    
     } else {
       retval.nOrig = theNode.clone();
       retval.nNew = retval.nOrig.clone();
       retval.nNew.setAllUrls(urls);
-      nodes_.put(nodeID, retval.nNew.clone());                 
+      putNode(nodeID, retval.nNew.clone());                 
     }
     retval.genomeKey = id_;    
     return (retval);    
@@ -823,7 +846,9 @@ public abstract class AbstractGenome implements Genome, Cloneable {
       while (lit.hasNext()) {
         String lID = lit.next();
          retval.links_.put(lID, this.links_.get(lID).clone());
-      }    
+      }
+      retval.indexAllLinks();
+      retval.nodesChanged();
 
       retval.ovrops_ = this.ovrops_.clone();
    
@@ -867,9 +892,11 @@ public abstract class AbstractGenome implements Genome, Cloneable {
   */
   
   public Iterator<Node> getAllNodeIterator() {
-    HashSet<Node> allSet = new HashSet<Node>(nodes_.values());
-    allSet.addAll(genes_.values());
-    return (allSet.iterator());
+    // A list, not a HashSet: Nodes hash by identity, and layout color cycling
+    // follows this order, so a set would give different output on each run.
+    ArrayList<Node> allList = new ArrayList<Node>(nodes_.values());
+    allList.addAll(genes_.values());
+    return (allList.iterator());
   }  
   
   /***************************************************************************
@@ -950,17 +977,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
   */
 
   public int getInboundLinkCount(String nodeID) {
-
-    int count = 0;
-    Iterator<? extends Linkage> lit = getLinkageIterator();
-    while (lit.hasNext()) {
-      Linkage link = lit.next();
-      String trgID = link.getTarget();
-      if (nodeID.equals(trgID)) {
-        count++;
-      }
-    }
-    return (count);
+    return (linksIntoNode(nodeID).size());
   }
   
   /***************************************************************************
@@ -1000,10 +1017,10 @@ public abstract class AbstractGenome implements Genome, Cloneable {
  
   public int getLinkCount(String srcNodeID, String trgNodeID) {
     int count = 0;
-    Iterator<? extends Linkage> lit = getLinkageIterator();
+    Iterator<String> lit = linksFromNode(srcNodeID).iterator();
     while (lit.hasNext()) {
-      Linkage link = lit.next();
-      if (link.getSource().equals(srcNodeID) && link.getTarget().equals(trgNodeID)) {
+      Linkage link = links_.get(lit.next());
+      if (link.getTarget().equals(trgNodeID)) {
         count++;
       }
     }
@@ -1085,29 +1102,25 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     int maxLandPad = Integer.MIN_VALUE;
     int minLaunchPad = Integer.MAX_VALUE;
     int maxLaunchPad = Integer.MIN_VALUE;    
-    Iterator<Linkage> lit = getLinkageIterator();
+    Iterator<String> lit = linksIntoNode(nodeID).iterator();
     while (lit.hasNext()) {
-      Linkage link = lit.next();
-      String targ = link.getTarget();
-      if (targ.equals(nodeID)) {
-        int linkPad = link.getLandingPad();
-        if (linkPad > maxLandPad) {
-          maxLandPad = linkPad;
-        }
-        if (linkPad < minLandPad) {
-          minLandPad = linkPad;
-        }       
-      }  
-      String src = link.getSource();     
-      if (src.equals(nodeID)) {
-        int linkPad = link.getLaunchPad();
-        if (linkPad > maxLaunchPad) {
-          maxLaunchPad = linkPad;
-        }
-        if (linkPad < minLaunchPad) {
-          minLaunchPad = linkPad;
-        }       
-      }    
+      int linkPad = links_.get(lit.next()).getLandingPad();
+      if (linkPad > maxLandPad) {
+        maxLandPad = linkPad;
+      }
+      if (linkPad < minLandPad) {
+        minLandPad = linkPad;
+      }       
+    }
+    lit = linksFromNode(nodeID).iterator();
+    while (lit.hasNext()) {
+      int linkPad = links_.get(lit.next()).getLaunchPad();
+      if (linkPad > maxLaunchPad) {
+        maxLaunchPad = linkPad;
+      }
+      if (linkPad < minLaunchPad) {
+        minLaunchPad = linkPad;
+      }       
     }
     
     if (lo.getNodeProperties(nodeID) == null) {
@@ -1139,12 +1152,9 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     
   public Set<String> getNodeSources(String nodeID) {
     HashSet<String> retval = new HashSet<String>();
-    Iterator<Linkage> lit = links_.values().iterator();
+    Iterator<String> lit = linksIntoNode(nodeID).iterator();
     while (lit.hasNext()) {
-      Linkage lnk = lit.next();
-      if (lnk.getTarget().equals(nodeID)) {
-        retval.add(lnk.getSource());
-      }
+      retval.add(links_.get(lit.next()).getSource());
     }
     return (retval);
   }
@@ -1157,12 +1167,9 @@ public abstract class AbstractGenome implements Genome, Cloneable {
   
   public Set<String> getNodeTargets(String nodeID) {
     HashSet<String> retval = new HashSet<String>();
-    Iterator<Linkage> lit = links_.values().iterator();
+    Iterator<String> lit = linksFromNode(nodeID).iterator();
     while (lit.hasNext()) {
-      Linkage lnk = lit.next();
-      if (lnk.getSource().equals(nodeID)) {
-        retval.add(lnk.getTarget());
-      }
+      retval.add(links_.get(lit.next()).getTarget());
     }
     return (retval);
   } 
@@ -1193,16 +1200,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
   */
 
   public int getOutboundLinkCount(String nodeID) {
-    int count = 0;
-    Iterator<Linkage> lit = getLinkageIterator();
-    while (lit.hasNext()) {
-      Linkage link = lit.next();
-      String srcID = link.getSource();
-      if (nodeID.equals(srcID)) {
-        count++;
-      }
-    }
-    return (count);
+    return (linksFromNode(nodeID).size());
   }  
 
   /***************************************************************************
@@ -1211,16 +1209,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
   */
 
   public Set<String> getOutboundLinks(String nodeID) {
-    HashSet<String> retval = new HashSet<String>();
-    Iterator<Linkage> lit = getLinkageIterator();
-    while (lit.hasNext()) {
-      Linkage link = lit.next();
-      String srcID = link.getSource();
-      if (nodeID.equals(srcID)) {
-        retval.add(link.getID());
-      }
-    }
-    return (retval);
+    return (new HashSet<String>(linksFromNode(nodeID)));
   }
   
   /***************************************************************************
@@ -1251,12 +1240,9 @@ public abstract class AbstractGenome implements Genome, Cloneable {
   */  
  
   public Integer getSourcePad(String nodeID) {
-    Iterator<Linkage> lit = getLinkageIterator();
-    while (lit.hasNext()) {
-      Linkage link = lit.next();
-      if (link.getSource().equals(nodeID)) {
-        return (new Integer(link.getLaunchPad()));
-      }
+    Iterator<String> lit = linksFromNode(nodeID).iterator();
+    if (lit.hasNext()) {
+      return (new Integer(links_.get(lit.next()).getLaunchPad()));
     }
     return (null);
   }
@@ -1486,8 +1472,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
   
   public GenomeChange removeLinkage(String key) {
     GenomeChange retval = new GenomeChange();
-    retval.lOrig = links_.get(key);
-    links_.remove(key);
+    retval.lOrig = dropLinkage(key);
     retval.lNew = null;
     retval.genomeKey = getID();    
     return (retval);
@@ -1503,12 +1488,12 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     GenomeChange retval = new GenomeChange();
     Node rem = nodes_.get(key);
     if (rem != null) {
-      nodes_.remove(key);
+      dropNode(key);
       retval.nOrig = rem;
       retval.nNew = null;
     } else {
       retval.gOrig = genes_.get(key);      
-      genes_.remove(key);
+      dropGene(key);
       retval.gNew = null;      
     }
     retval.genomeKey = getID();
@@ -1540,7 +1525,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     GenomeChange retval = new GenomeChange();
     retval.gOrig = genes_.get(gene.getID());
     retval.gNew = gene;
-    genes_.put(gene.getID(), gene);
+    putGene(gene.getID(), gene);
     retval.genomeKey = getID();
     return (retval);
   }
@@ -1555,7 +1540,7 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     GenomeChange retval = new GenomeChange();
     retval.nOrig = nodes_.get(node.getID());
     retval.nNew = node;
-    nodes_.put(node.getID(), node);
+    putNode(node.getID(), node);
     retval.genomeKey = getID();
     return (retval);
   }
@@ -1838,11 +1823,11 @@ public abstract class AbstractGenome implements Genome, Cloneable {
   
   protected void typeChangeRedo(GenomeChange undo) {
     if ((undo.nOrig != null) && (undo.gNew != null)) {
-      genes_.put(undo.gNew.getID(), undo.gNew);
-      nodes_.remove(undo.nOrig.getID());      
+      putGene(undo.gNew.getID(), undo.gNew);
+      dropNode(undo.nOrig.getID());      
     } else if ((undo.gOrig != null) && (undo.nNew != null)) {
-      nodes_.put(undo.nNew.getID(), undo.nNew);
-      genes_.remove(undo.gOrig.getID());
+      putNode(undo.nNew.getID(), undo.nNew);
+      dropGene(undo.gOrig.getID());
     } 
     return;
   }
@@ -1854,11 +1839,11 @@ public abstract class AbstractGenome implements Genome, Cloneable {
   
   protected void typeChangeUndo(GenomeChange undo) {
     if ((undo.nOrig != null) && (undo.gNew != null)) {
-      nodes_.put(undo.nOrig.getID(), undo.nOrig);
-      genes_.remove(undo.gNew.getID());
+      putNode(undo.nOrig.getID(), undo.nOrig);
+      dropGene(undo.gNew.getID());
     } else if ((undo.gOrig != null) && (undo.nNew != null)) {
-      genes_.put(undo.gOrig.getID(), undo.gOrig);
-      nodes_.remove(undo.nNew.getID());      
+      putGene(undo.gOrig.getID(), undo.gOrig);
+      dropNode(undo.nNew.getID());      
     }
     return;
   }
@@ -1885,12 +1870,311 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     out.println("</" + elemTag + ">");
     return;
   }
+  
+  /***************************************************************************
+  **
+  ** Put a link in the map, replacing any with the same ID. All changes to
+  ** links_ must go through here or dropLinkage() to keep the indexes right.
+  **
+  */
+  
+  protected void putLinkage(Linkage link) {
+    Linkage old = links_.put(link.getID(), link);
+    if (old != null) {
+      unindexLinkage(old);
+    }
+    indexLinkage(link);
+    linksForBase_ = null;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Take a link out of the map. Returns the link, or null if it was not there.
+  **
+  */
+  
+  protected Linkage dropLinkage(String key) {
+    Linkage old = links_.remove(key);
+    if (old != null) {
+      unindexLinkage(old);
+      linksForBase_ = null;
+    }
+    return (old);
+  }
+  
+  /***************************************************************************
+  **
+  ** IDs of the links leaving the node. Do not modify.
+  **
+  */
+  
+  protected Set<String> linksFromNode(String nodeID) {
+    HashSet<String> retval = linksFromNode_.get(nodeID);
+    return ((retval == null) ? Collections.<String>emptySet() : retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** IDs of the links entering the node. Do not modify.
+  **
+  */
+  
+  protected Set<String> linksIntoNode(String nodeID) {
+    HashSet<String> retval = linksIntoNode_.get(nodeID);
+    return ((retval == null) ? Collections.<String>emptySet() : retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Put a gene in the map. All changes to genes_ and nodes_ must go through
+  ** here or the other node helpers to keep the indexes right.
+  **
+  */
+  
+  protected void putGene(String key, Gene gene) {
+    genes_.put(key, gene);
+    nodesChanged();
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Take a gene out of the map
+  **
+  */
+  
+  protected Gene dropGene(String key) {
+    nodesChanged();
+    return (genes_.remove(key));
+  }
+  
+  /***************************************************************************
+  **
+  ** Put a non-gene node in the map
+  **
+  */
+  
+  protected void putNode(String key, Node node) {
+    nodes_.put(key, node);
+    nodesChanged();
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Take a non-gene node out of the map
+  **
+  */
+  
+  protected Node dropNode(String key) {
+    nodesChanged();
+    return (nodes_.remove(key));
+  }
+  
+  /***************************************************************************
+  **
+  ** The name a node is known by in this genome for global name checks, or
+  ** null if it has none of its own
+  **
+  */
+  
+  protected String getIndexedName(Node node) {
+    return (node.getName());
+  }
+  
+  /***************************************************************************
+  **
+  ** IDs of the genes with an indexed name matching the given one, using
+  ** DataUtil.keysEqual(). Do not modify.
+  **
+  */
+  
+  protected Set<String> genesWithIndexedName(String name) {
+    if (geneNameIndex_ == null) {
+      buildNodeIndexes();
+    }
+    HashSet<String> retval = geneNameIndex_.get(DataUtil.matchKey(name));
+    return ((retval == null) ? Collections.<String>emptySet() : retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** IDs of the non-gene nodes with an indexed name matching the given one,
+  ** using DataUtil.keysEqual(). Do not modify.
+  **
+  */
+  
+  protected Set<String> nodesWithIndexedName(String name) {
+    if (nodeNameIndex_ == null) {
+      buildNodeIndexes();
+    }
+    HashSet<String> retval = nodeNameIndex_.get(DataUtil.matchKey(name));
+    return ((retval == null) ? Collections.<String>emptySet() : retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** IDs of the nodes and genes with the given base ID. Do not modify.
+  **
+  */
+  
+  protected Set<String> nodesForBase(String baseID) {
+    if (nodesForBase_ == null) {
+      buildNodeIndexes();
+    }
+    HashSet<String> retval = nodesForBase_.get(baseID);
+    return ((retval == null) ? Collections.<String>emptySet() : retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** IDs of the links with the given base ID. Do not modify.
+  **
+  */
+  
+  protected Set<String> linksForBase(String baseID) {
+    if (linksForBase_ == null) {
+      HashMap<String, HashSet<String>> forBase = new HashMap<String, HashSet<String>>();
+      Iterator<Linkage> lit = getLinkageIterator();
+      while (lit.hasNext()) {
+        String linkID = lit.next().getID();
+        addToIndex(forBase, GenomeItemInstance.getBaseID(linkID), linkID);
+      }
+      linksForBase_ = forBase;
+    }
+    HashSet<String> retval = linksForBase_.get(baseID);
+    return ((retval == null) ? Collections.<String>emptySet() : retval);
+  }
  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE INSTANCE METHODS
   //
   ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** Forget the node indexes after a change to genes_ or nodes_
+  */
+  
+  private void nodesChanged() {
+    geneNameIndex_ = null;
+    nodeNameIndex_ = null;
+    nodesForBase_ = null;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Build the name and base ID indexes for nodes and genes. Goes through the
+  ** iterators, so lazily built genomes get built first.
+  */
+  
+  private void buildNodeIndexes() {
+    HashMap<String, HashSet<String>> geneNames = new HashMap<String, HashSet<String>>();
+    HashMap<String, HashSet<String>> nodeNames = new HashMap<String, HashSet<String>>();
+    HashMap<String, HashSet<String>> forBase = new HashMap<String, HashSet<String>>();
+    Iterator<Gene> git = getGeneIterator();
+    while (git.hasNext()) {
+      Gene gene = git.next();
+      String name = getIndexedName(gene);
+      if (name != null) {
+        addToIndex(geneNames, DataUtil.matchKey(name), gene.getID());
+      }
+      addToIndex(forBase, GenomeItemInstance.getBaseID(gene.getID()), gene.getID());
+    }
+    Iterator<Node> nit = getNodeIterator();
+    while (nit.hasNext()) {
+      Node node = nit.next();
+      String name = getIndexedName(node);
+      if (name != null) {
+        addToIndex(nodeNames, DataUtil.matchKey(name), node.getID());
+      }
+      addToIndex(forBase, GenomeItemInstance.getBaseID(node.getID()), node.getID());
+    }
+    geneNameIndex_ = geneNames;
+    nodeNameIndex_ = nodeNames;
+    nodesForBase_ = forBase;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Add an ID to the set for the key
+  */
+  
+  private void addToIndex(HashMap<String, HashSet<String>> index, String key, String id) {
+    HashSet<String> forKey = index.get(key);
+    if (forKey == null) {
+      forKey = new HashSet<String>();
+      index.put(key, forKey);
+    }
+    forKey.add(id);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Rebuild the link indexes from scratch, e.g. after copying links_
+  */
+  
+  private void indexAllLinks() {
+    linksFromNode_ = new HashMap<String, HashSet<String>>();
+    linksIntoNode_ = new HashMap<String, HashSet<String>>();
+    linksForBase_ = null;
+    Iterator<Linkage> lit = links_.values().iterator();
+    while (lit.hasNext()) {
+      indexLinkage(lit.next());
+    }
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Add a link to the indexes
+  */
+  
+  private void indexLinkage(Linkage link) {
+    String linkID = link.getID();
+    HashSet<String> fromSrc = linksFromNode_.get(link.getSource());
+    if (fromSrc == null) {
+      fromSrc = new HashSet<String>();
+      linksFromNode_.put(link.getSource(), fromSrc);
+    }
+    fromSrc.add(linkID);
+    HashSet<String> intoTrg = linksIntoNode_.get(link.getTarget());
+    if (intoTrg == null) {
+      intoTrg = new HashSet<String>();
+      linksIntoNode_.put(link.getTarget(), intoTrg);
+    }
+    intoTrg.add(linkID);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Drop a link from the indexes
+  */
+  
+  private void unindexLinkage(Linkage link) {
+    String linkID = link.getID();
+    HashSet<String> fromSrc = linksFromNode_.get(link.getSource());
+    if (fromSrc != null) {
+      fromSrc.remove(linkID);
+      if (fromSrc.isEmpty()) {
+        linksFromNode_.remove(link.getSource());
+      }
+    }
+    HashSet<String> intoTrg = linksIntoNode_.get(link.getTarget());
+    if (intoTrg != null) {
+      intoTrg.remove(linkID);
+      if (intoTrg.isEmpty()) {
+        linksIntoNode_.remove(link.getTarget());
+      }
+    }
+    return;
+  }
    
   /***************************************************************************
   **
@@ -1903,14 +2187,14 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     // If orig is absent, we are redoing an add.
     // If new is absent, we are redoing a delete.
     if ((undo.gOrig != null) && (undo.gNew != null)) {
-      genes_.put(undo.gNew.getID(), undo.gNew);
+      putGene(undo.gNew.getID(), undo.gNew);
     } else if (undo.gOrig == null) {
-      genes_.put(undo.gNew.getID(), undo.gNew);
+      putGene(undo.gNew.getID(), undo.gNew);
       if (labelManager_) {
         labels_.addExistingLabel(undo.gNew.getID());
       }
     } else {
-      genes_.remove(undo.gOrig.getID());
+      dropGene(undo.gOrig.getID());
       if (labelManager_) {
         labels_.removeLabel(undo.gOrig.getID());
       }
@@ -1929,14 +2213,14 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     // If orig is absent, we are undoing an add.
     // If new is absent, we are undoing a delete.
     if ((undo.gOrig != null) && (undo.gNew != null)) {
-      genes_.put(undo.gOrig.getID(), undo.gOrig);
+      putGene(undo.gOrig.getID(), undo.gOrig);
     } else if (undo.gOrig == null) {
-      genes_.remove(undo.gNew.getID());
+      dropGene(undo.gNew.getID());
       if (labelManager_) {
         labels_.removeLabel(undo.gNew.getID());
       }
     } else {
-      genes_.put(undo.gOrig.getID(), undo.gOrig);
+      putGene(undo.gOrig.getID(), undo.gOrig);
       if (labelManager_) {
         labels_.addExistingLabel(undo.gOrig.getID());
       }
@@ -1955,14 +2239,14 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     // If orig is absent, we are redoing an add.
     // If new is absent, we are redoing a delete.
     if ((undo.lOrig != null) && (undo.lNew != null)) {
-      links_.put(undo.lNew.getID(), undo.lNew);
+      putLinkage(undo.lNew);
     } else if (undo.lOrig == null) {
-      links_.put(undo.lNew.getID(), undo.lNew);
+      putLinkage(undo.lNew);
       if (labelManager_) {
         labels_.addExistingLabel(undo.lNew.getID());
       }
     } else {
-      links_.remove(undo.lOrig.getID());
+      dropLinkage(undo.lOrig.getID());
       if (labelManager_) {
         labels_.removeLabel(undo.lOrig.getID());
       }
@@ -1981,14 +2265,14 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     // If orig is absent, we are undoing an add.
     // If new is absent, we are undoing a delete.
     if ((undo.lOrig != null) && (undo.lNew != null)) {
-      links_.put(undo.lOrig.getID(), undo.lOrig);
+      putLinkage(undo.lOrig);
     } else if (undo.lOrig == null) {
-      links_.remove(undo.lNew.getID());
+      dropLinkage(undo.lNew.getID());
       if (labelManager_) {
         labels_.removeLabel(undo.lNew.getID());
       }
     } else {
-      links_.put(undo.lOrig.getID(), undo.lOrig);
+      putLinkage(undo.lOrig);
       if (labelManager_) {
         labels_.addExistingLabel(undo.lOrig.getID());
       }
@@ -2009,14 +2293,14 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     // If orig is absent, we are redoing an add.
     // If new is absent, we are redoing a delete.
     if ((undo.nOrig != null) && (undo.nNew != null)) {
-      nodes_.put(undo.nNew.getID(), undo.nNew);
+      putNode(undo.nNew.getID(), undo.nNew);
     } else if (undo.nOrig == null) {
-      nodes_.put(undo.nNew.getID(), undo.nNew);
+      putNode(undo.nNew.getID(), undo.nNew);
       if (labelManager_) {
         labels_.addExistingLabel(undo.nNew.getID());
       }
     } else {
-      nodes_.remove(undo.nOrig.getID());
+      dropNode(undo.nOrig.getID());
       if (labelManager_) {
         labels_.removeLabel(undo.nOrig.getID());
       }
@@ -2035,14 +2319,14 @@ public abstract class AbstractGenome implements Genome, Cloneable {
     // If orig is absent, we are undoing an add.
     // If new is absent, we are undoing a delete.
     if ((undo.nOrig != null) && (undo.nNew != null)) {
-      nodes_.put(undo.nOrig.getID(), undo.nOrig);
+      putNode(undo.nOrig.getID(), undo.nOrig);
     } else if (undo.nOrig == null) {
-      nodes_.remove(undo.nNew.getID());
+      dropNode(undo.nNew.getID());
       if (labelManager_) {
         labels_.removeLabel(undo.nNew.getID());
       }
     } else {
-      nodes_.put(undo.nOrig.getID(), undo.nOrig);
+      putNode(undo.nOrig.getID(), undo.nOrig);
       if (labelManager_) {
         labels_.addExistingLabel(undo.nOrig.getID());
       }
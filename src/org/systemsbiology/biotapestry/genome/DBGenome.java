@@ -319,7 +319,7 @@ public class DBGenome extends AbstractGenome implements Genome, Cloneable {
     retval.gOrig = genes_.get(geneID).clone();
     retval.gNew = retval.gOrig.clone();
     ((DBGene)retval.gNew).setEvidenceLevel(evidence);
-    genes_.put(geneID, retval.gNew);    
+    putGene(geneID, retval.gNew);    
     retval.genomeKey = getID();    
     return (retval);      
 
@@ -337,7 +337,7 @@ public class DBGenome extends AbstractGenome implements Genome, Cloneable {
     retval.gOrig = genes_.get(geneID).clone();
     retval.gNew = retval.gOrig.clone();
     retval.gNew.setName(name);
-    genes_.put(geneID, retval.gNew);    
+    putGene(geneID, retval.gNew);    
     retval.genomeKey = getID();    
     return (retval);  
   }
@@ -354,7 +354,7 @@ public class DBGenome extends AbstractGenome implements Genome, Cloneable {
     retval.gOrig = genes_.get(geneID).clone();
     retval.gNew = retval.gOrig.clone();
     ((DBGene)retval.gNew).setRegions(newRegions);
-    genes_.put(geneID, retval.gNew);
+    putGene(geneID, retval.gNew);
     retval.genomeKey = getID();    
     return (retval);
   }
@@ -371,7 +371,7 @@ public class DBGenome extends AbstractGenome implements Genome, Cloneable {
     retval.gOrig = genes_.get(geneID).clone();
     retval.gNew = retval.gOrig.clone();
     ((DBGene)retval.gNew).setPadCount(pads);
-    genes_.put(geneID, retval.gNew);    
+    putGene(geneID, retval.gNew);    
     retval.genomeKey = getID();    
     return (retval);      
   }
@@ -388,7 +388,7 @@ public class DBGenome extends AbstractGenome implements Genome, Cloneable {
     retval.nOrig = nodes_.get(nodeID).clone();
     retval.nNew = retval.nOrig.clone();
     retval.nNew.setName(name);
-    nodes_.put(nodeID, retval.nNew);    
+    putNode(nodeID, retval.nNew);    
     retval.genomeKey = getID();    
     return (retval);  
   }
@@ -415,7 +415,7 @@ public class DBGenome extends AbstractGenome implements Genome, Cloneable {
     }  
     
     ((DBNode)retval.nNew).setPadCount(pads);
-    nodes_.put(nodeID, retval.nNew);    
+    putNode(nodeID, retval.nNew);    
     retval.genomeKey = getID();    
     return (retval);      
   }
@@ -446,13 +446,13 @@ public class DBGenome extends AbstractGenome implements Genome, Cloneable {
         retval.gOrig = new DBGene((DBGene)existing);
         retval.gNew = new DBGene((DBGene)existing);
         ((DBNode)retval.gNew).setPadCount(newPads);
-        genes_.put(nodeID, new DBGene((DBGene)retval.gNew));          
+        putGene(nodeID, new DBGene((DBGene)retval.gNew));          
       } else { // node - > gene
         retval.nOrig = new DBNode((DBNode)existing);
         retval.gNew = new DBGene((DBNode)existing);
         ((DBNode)retval.gNew).setPadCount(newPads);
-        nodes_.remove(nodeID);
-        genes_.put(nodeID, new DBGene((DBGene)retval.gNew));        
+        dropNode(nodeID);
+        putGene(nodeID, new DBGene((DBGene)retval.gNew));        
       }
     } else {
       if (oldType == Node.GENE) {  // gene -> node
@@ -460,14 +460,14 @@ public class DBGenome extends AbstractGenome implements Genome, Cloneable {
         retval.nNew = new DBNode((DBNode)existing); // Note we lose gene subregion data with this constructor!
         retval.nNew.setNodeType(type);
         ((DBNode)retval.nNew).setPadCount(newPads);
-        genes_.remove(nodeID);
-        nodes_.put(nodeID, new DBNode((DBNode)retval.nNew));        
+        dropGene(nodeID);
+        putNode(nodeID, new DBNode((DBNode)retval.nNew));        
       } else {  // node -> node (probably different type)
         retval.nOrig = new DBNode((DBNode)existing);
         retval.nNew = new DBNode((DBNode)existing);
         retval.nNew.setNodeType(type);
         ((DBNode)retval.nNew).setPadCount(newPads);
-        nodes_.put(nodeID, new DBNode((DBNode)retval.nNew));        
+        putNode(nodeID, new DBNode((DBNode)retval.nNew));        
       }
     }
     return (retval);
@@ -809,8 +809,7 @@ public class DBGenome extends AbstractGenome implements Genome, Cloneable {
   @Override
   public GenomeChange removeLinkage(String key) {
     GenomeChange retval = new GenomeChange();
-    retval.lOrig = links_.get(key);
-    links_.remove(key);
+    retval.lOrig = dropLinkage(key);
     retval.lNew = null;
     labels_.removeLabel(key);
     retval.genomeKey = getID();        
@@ -832,7 +831,7 @@ public class DBGenome extends AbstractGenome implements Genome, Cloneable {
     retval.lNew.setName(((name == null) || name.trim().equals("")) ? null : name.trim());
     retval.lNew.setSign(sign);
     retval.lNew.setTargetLevel(targetLevel);
-    links_.put(linkID, retval.lNew.clone());
+    putLinkage(retval.lNew.clone());
     retval.genomeKey = getID();
     return (retval);
   }  
@@ -139,6 +139,18 @@ public class DBGenomeFactory extends AbstractFactoryClient {
   //
   ////////////////////////////////////////////////////////////////////////////  
   
+  /***************************************************************************
+  **
+  ** Read the contents of a genome (e.g. a lone gene or link) into the given
+  ** genome, without an enclosing genome element
+  */
+
+  public void setTargetGenome(DBGenome genome) {
+    currGenome_ = genome;
+    ((FactoryWhiteboard)sharedWhiteboard_).genome = genome;
+    return;
+  }
+
   /***************************************************************************
   **
   ** Callback for completion of the element
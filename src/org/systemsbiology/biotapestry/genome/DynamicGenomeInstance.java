@@ -35,6 +35,7 @@ import org.systemsbiology.biotapestry.timeCourse.GroupUsage;
 import org.systemsbiology.biotapestry.timeCourse.TimeCourseData;
 import org.systemsbiology.biotapestry.timeCourse.TimeCourseGene;
 import org.systemsbiology.biotapestry.timeCourse.ExpressionEntry;
+import org.systemsbiology.biotapestry.timeCourse.ExpressionIndex;
 import org.systemsbiology.biotapestry.timeCourse.TemporalInputRangeData;
 import org.systemsbiology.biotapestry.timeCourse.TemporalRange;
 import org.systemsbiology.biotapestry.timeCourse.InputTimeRange;
@@ -436,6 +437,31 @@ public class DynamicGenomeInstance extends GenomeInstance {
     return (super.getLinkage(key));
   }
   
+  /***************************************************************************
+  **
+  ** IDs of the links leaving the node. All the link neighbor queries come
+  ** through here or linksIntoNode().
+  **
+  */
+  
+  @Override
+  protected Set<String> linksFromNode(String nodeID) {
+    initialize();
+    return (super.linksFromNode(nodeID));
+  }
+  
+  /***************************************************************************
+  **
+  ** IDs of the links entering the node
+  **
+  */
+  
+  @Override
+  protected Set<String> linksIntoNode(String nodeID) {
+    initialize();
+    return (super.linksIntoNode(nodeID));
+  }
+  
   /***************************************************************************
   **
   ** Remove the link from the genome
@@ -972,6 +998,17 @@ public class DynamicGenomeInstance extends GenomeInstance {
     return;  
   }      
 
+  /***************************************************************************
+  **
+  ** Do the lazy initialization now, e.g. to have the instance ready before
+  ** it is displayed
+  */
+  
+  public void materialize() {
+    initialize();
+    return;
+  }
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE INSTANCE METHODS
@@ -999,7 +1036,7 @@ public class DynamicGenomeInstance extends GenomeInstance {
     while (grit.hasNext()) {
       Group grp = grit.next();
       Group myGroup = grp.copyForProxy();      
-      groups_.put(myGroup.getID(), myGroup);
+      putGroup(myGroup.getID(), myGroup);
     } 
     //
     // Do notes
@@ -1083,6 +1120,7 @@ public class DynamicGenomeInstance extends GenomeInstance {
         
     Database db = appState_.getDB();    
     DynamicInstanceProxy dip = db.getDynamicProxy(proxyID_);
+    ExpressionIndex exprIndex = tcd.getExpressionIndex();
     TimeCourseGene.VariableLevel varLev = new TimeCourseGene.VariableLevel();
     double weakLevel = appState_.getDisplayOptMgr().getDisplayOptions().getWeakExpressionLevel();
     
@@ -1134,7 +1172,7 @@ public class DynamicGenomeInstance extends GenomeInstance {
         Iterator<TimeCourseData.TCMapping> dkit = dataKeys.iterator();
         while (dkit.hasNext() && keepLooking) {
           TimeCourseData.TCMapping tcm = dkit.next();
-          TimeCourseGene tcg = tcd.getTimeCourseDataCaseInsensitive(tcm.name);
+          TimeCourseGene tcg = exprIndex.getGene(tcm.name);
           if (tcg == null) {
             // FIX ME?? Used to throw illegal state exception: now not valid with default keys
             continue;
@@ -1145,7 +1183,7 @@ public class DynamicGenomeInstance extends GenomeInstance {
           double partialMax = 0.0;
           while (hit.hasNext()) {
             int time = hit.next().intValue();
-            int expression = tcg.getExpressionLevelForSource(groupUse.mappedGroup, time, tcm.channel, varLev);
+            int expression = exprIndex.getExpressionLevelForSource(tcg, groupUse.mappedGroup, time, tcm.channel, varLev);
             if (expression == ExpressionEntry.EXPRESSED) {
               addIt = true;
               partialLevel = false;
@@ -1176,9 +1214,9 @@ public class DynamicGenomeInstance extends GenomeInstance {
               }
             }
             if (node.getNodeType() == Node.GENE) {
-              this.genes_.put(newNode.getID(), (GeneInstance)newNode);
+              putGene(newNode.getID(), (GeneInstance)newNode);
             } else {
-              this.nodes_.put(newNode.getID(), newNode);
+              putNode(newNode.getID(), newNode);
             }
             caught.add(tcg.getName());
             keepLooking = false;
@@ -1358,7 +1396,7 @@ public class DynamicGenomeInstance extends GenomeInstance {
                     if (linkActivity == LinkageInstance.VARIABLE) {
                       newLink.setActivityLevel(Math.min(dynLevel, currActivity));
                     }
-                    links_.put(newLink.getID(), newLink);
+                    putLinkage(newLink);
                    // if (hopID != null) {
                    //   installNeededLink(parent, hopID, source);
                    // }
@@ -1413,7 +1451,7 @@ public class DynamicGenomeInstance extends GenomeInstance {
 /*      if (nodeType == Node.INTERCELL) {  // Doesn't belong to a group
         NodeInstance newNode = new NodeInstance((NodeInstance)parentNode);
         newNode.setActivity(NodeInstance.ACTIVE);
-        nodes_.put(parentNode.getID(), newNode);
+        putNode(parentNode.getID(), newNode);
         return (true);
       } */
       Group group = getGroupForNode(nodeID, LEGACY_MODE);
@@ -1423,11 +1461,11 @@ public class DynamicGenomeInstance extends GenomeInstance {
       if (nodeType == Node.GENE) {
         GeneInstance newNode = new GeneInstance((GeneInstance)parentNode);
         newNode.setActivity(NodeInstance.INACTIVE);
-        genes_.put(parentNode.getID(), newNode);
+        putGene(parentNode.getID(), newNode);
       } else {
         NodeInstance newNode = new NodeInstance((NodeInstance)parentNode);
         newNode.setActivity(NodeInstance.INACTIVE);
-        nodes_.put(parentNode.getID(), newNode);
+        putNode(parentNode.getID(), newNode);
       }
     }  
     return (true);
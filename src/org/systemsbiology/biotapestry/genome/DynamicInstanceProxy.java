@@ -21,6 +21,7 @@ package org.systemsbiology.biotapestry.genome;
 
 import java.util.Set;
 import java.util.HashMap;
+import java.util.LinkedHashMap;
 import java.util.Map;
 import java.util.HashSet;
 import java.util.TreeSet;
@@ -69,7 +70,7 @@ public class DynamicInstanceProxy implements Cloneable, NetOverlayOwner {
   private String vfgParent_;  
   private String name_;
   private String id_;
-  private HashMap<String, DynamicGenomeInstance> cache_;
+  private LinkedHashMap<String, DynamicGenomeInstance> cache_;
   private HashMap<Integer, String> imageKeys_;
   private OverlayOpsSupport ovrops_;
   private int min_;
@@ -82,6 +83,14 @@ public class DynamicInstanceProxy implements Cloneable, NetOverlayOwner {
   private UniqueLabeller labels_;  
  
   private static final String KEY_PREF_ = ":";
+  
+  //
+  // Instances are rebuilt on demand, so only keep the ones used most
+  // recently. Enough to cover an hourly model plus what is prefetched
+  // around the slider:
+  //
+  
+  private static final int MAX_CACHED_INSTANCES_ = 64;
 
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -101,7 +110,7 @@ public class DynamicInstanceProxy implements Cloneable, NetOverlayOwner {
     name_ = name;
     id_ = id;
     vfgParent_ = vfgParent.getID();
-    cache_ = new HashMap<String, DynamicGenomeInstance>();
+    cache_ = buildInstanceCache();
     groups_ = new ArrayList<Group>();
     addedNodes_ = new ArrayList<AddedNode>();
     notes_ = new ArrayList<Note>();
@@ -126,7 +135,7 @@ public class DynamicInstanceProxy implements Cloneable, NetOverlayOwner {
     name_ = name;
     id_ = id;
     vfgParent_ = vfgParent.getID();
-    cache_ = new HashMap<String, DynamicGenomeInstance>();
+    cache_ = buildInstanceCache();
     groups_ = new ArrayList<Group>();
     addedNodes_ = new ArrayList<AddedNode>();
     notes_ = new ArrayList<Note>();
@@ -163,7 +172,7 @@ public class DynamicInstanceProxy implements Cloneable, NetOverlayOwner {
     this.name_ = other.name_;
     this.id_ = other.id_;
     this.vfgParent_ = other.vfgParent_;
-    this.cache_ = new HashMap<String, DynamicGenomeInstance>();  // keep empty
+    this.cache_ = buildInstanceCache();  // keep empty
     
     this.groups_ = new ArrayList<Group>();
     int numGrp = other.groups_.size();
@@ -324,7 +333,7 @@ public class DynamicInstanceProxy implements Cloneable, NetOverlayOwner {
   public DynamicInstanceProxy clone() { 
     try {
       DynamicInstanceProxy retval = (DynamicInstanceProxy)super.clone();
-      retval.cache_ = new HashMap<String, DynamicGenomeInstance>();  // keep empty
+      retval.cache_ = buildInstanceCache();  // keep empty
 
       retval.groups_ = new ArrayList<Group>();
       int numGrp = this.groups_.size();
@@ -1855,6 +1864,57 @@ public class DynamicInstanceProxy implements Cloneable, NetOverlayOwner {
     cache_.clear();
     return;
   }
+  
+  /***************************************************************************
+  **
+  ** Answers if the instance for the given key is built and cached
+  */
+  
+  public boolean isCached(String key) {
+    return (cache_.containsKey(key));
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the key of the nearest time around the given one, at most span hours
+  ** away, that does not yet have a built instance. Later times are tried
+  ** first at each distance. Null if there is none.
+  */
+  
+  public String getNextKeyToPrefetch(int time, int span) {
+    if (isSingle_) {
+      return (null);
+    }
+    int min = getMinimumTime();
+    int max = getMaximumTime();
+    for (int i = 1; i <= span; i++) {
+      int later = time + i;
+      if (later <= max) {
+        String key = getKeyForTime(later, true);
+        if (!cache_.containsKey(key)) {
+          return (key);
+        }
+      }
+      int earlier = time - i;
+      if (earlier >= min) {
+        String key = getKeyForTime(earlier, true);
+        if (!cache_.containsKey(key)) {
+          return (key);
+        }
+      }
+    }
+    return (null);
+  }
+  
+  /***************************************************************************
+  **
+  ** Build and initialize the instance for the given key ahead of its display
+  */
+  
+  public void prefetchInstance(String key) {
+    getProxiedInstance(key).materialize();
+    return;
+  }
 
   
   /***************************************************************************
@@ -2510,6 +2570,22 @@ public class DynamicInstanceProxy implements Cloneable, NetOverlayOwner {
   //
   //////////////////////////////////////////////////////////////////////////// 
   
+  /***************************************************************************
+  **
+  ** Build the instance cache, which drops the least recently used instance
+  ** when it gets too big
+  */
+  
+  private LinkedHashMap<String, DynamicGenomeInstance> buildInstanceCache() {
+    return (new LinkedHashMap<String, DynamicGenomeInstance>(16, 0.75F, true) {
+      private static final long serialVersionUID = 1L;
+      
+      protected boolean removeEldestEntry(Map.Entry<String, DynamicGenomeInstance> eldest) {
+        return (size() > MAX_CACHED_INSTANCES_);
+      }
+    });
+  }
+  
   /***************************************************************************
   **
   ** Write the groups to XML
@@ -701,39 +701,27 @@ public class FullGenomeHierarchyOracle {
   */
 
   public boolean matchesExistingGeneName(String name, Genome genome, String exceptionID) {
-    name = name.replaceAll(" ", "");    
     //
     // Crank all the genomes. Look for matches with root gene Names, and look for
     // matches with local overrides.
     //
     String baseExceptionID = (exceptionID == null) ? null : GenomeItemInstance.getBaseID(exceptionID);
-    Iterator<Gene> rit = getGenomeSource().getGenome().getGeneIterator();
+    DBGenome rootGenome = (DBGenome)getGenomeSource().getGenome();
+    Iterator<String> rit = rootGenome.genesWithIndexedName(name).iterator();
     while (rit.hasNext()) {
-      Gene gene = rit.next();
-      if (baseExceptionID != null) {
-        String baseID = GenomeItemInstance.getBaseID(gene.getID());
-        if (baseID.equals(baseExceptionID)) {
-          continue;
-        }
-      }
-      if (DataUtil.keysEqual(gene.getName(), name)) {
+      String geneID = rit.next();
+      if ((baseExceptionID == null) || !GenomeItemInstance.getBaseID(geneID).equals(baseExceptionID)) {
         return (true);
       }
     }
     Iterator<GenomeInstance> iit = getGenomeSource().getInstanceIterator();
     while (iit.hasNext()) {
       GenomeInstance gi = iit.next();
-      Iterator<Gene> git = gi.getGeneIterator();
+      boolean skipping = (baseExceptionID != null) && genome.getID().equals(gi.getID());
+      Iterator<String> git = gi.genesWithIndexedName(name).iterator();
       while (git.hasNext()) {
-        GeneInstance genei = (GeneInstance)git.next();
-        if ((baseExceptionID != null) && genome.getID().equals(gi.getID())) { 
-          String baseID = GenomeItemInstance.getBaseID(genei.getID());
-          if (baseID.equals(baseExceptionID)) {
-            continue;
-          }
-        }
-        String oname = genei.getOverrideName();
-        if ((oname != null) && DataUtil.keysEqual(oname, name)) {
+        String geneID = git.next();
+        if (!skipping || !GenomeItemInstance.getBaseID(geneID).equals(baseExceptionID)) {
           return (true);
         }
       }
@@ -780,33 +768,27 @@ public class FullGenomeHierarchyOracle {
   */
 
   public boolean matchesExistingNodeName(String name, Genome genome, String exceptionID) {
-    name = name.replaceAll(" ", "");
     String baseExceptionID = (exceptionID != null) ? GenomeItemInstance.getBaseID(exceptionID) : null;
     //
     // Crank all the genomes. Look for matches with root node Names, and look for
     // matches with local overrides.
     //
-    Iterator<Node> rit = getGenomeSource().getGenome().getNodeIterator();
+    DBGenome rootGenome = (DBGenome)getGenomeSource().getGenome();
+    Iterator<String> rit = rootGenome.nodesWithIndexedName(name).iterator();
     while (rit.hasNext()) {
-      Node node = rit.next();
-      if ((exceptionID != null) && node.getID().equals(baseExceptionID)) {
-        continue;
-      }
-      if (DataUtil.keysEqual(node.getName(), name)) {
+      String nodeID = rit.next();
+      if ((exceptionID == null) || !nodeID.equals(baseExceptionID)) {
         return (true);
       }
     }
     Iterator<GenomeInstance> iit = getGenomeSource().getInstanceIterator();
     while (iit.hasNext()) {
       GenomeInstance gi = iit.next();
-      Iterator<Node> nit = gi.getNodeIterator();
+      boolean skipping = (exceptionID != null) && genome.getID().equals(gi.getID());
+      Iterator<String> nit = gi.nodesWithIndexedName(name).iterator();
       while (nit.hasNext()) {
-        NodeInstance nodei = (NodeInstance)nit.next();
-        if ((exceptionID != null) && genome.getID().equals(gi.getID()) && nodei.getID().equals(exceptionID)) {
-          continue;
-        }
-        String oname = nodei.getOverrideName();
-        if ((oname != null) && DataUtil.keysEqual(oname, name)) {
+        String nodeID = nit.next();
+        if (!skipping || !nodeID.equals(exceptionID)) {
           return (true);
         }
       }
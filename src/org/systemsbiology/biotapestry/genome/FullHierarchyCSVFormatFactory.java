@@ -20,8 +20,6 @@
 package org.systemsbiology.biotapestry.genome;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.BufferedReader;
 import java.util.HashMap;
 import java.util.HashSet;
 import java.util.ArrayList;
@@ -73,6 +71,7 @@ import org.systemsbiology.biotapestry.cmd.undo.DatabaseChangeCmd;
 import org.systemsbiology.biotapestry.cmd.undo.NavTreeChangeCmd;
 import org.systemsbiology.biotapestry.util.AsynchExitRequestException;
 import org.systemsbiology.biotapestry.util.CSVParser;
+import org.systemsbiology.biotapestry.util.MappedLineReader;
 
 /****************************************************************************
 **
@@ -585,7 +584,7 @@ public class FullHierarchyCSVFormatFactory {
                        Map<String, FullHierarchyBuilder.ModelDef> modelDefs, 
                        Map<String, List<InstanceInstructionSet.RegionInfo>> regionDefs, 
                        List<String> modelInputOrder) throws IOException, InvalidInputException {
-    BufferedReader in = new BufferedReader(new InputStreamReader(stream));
+    MappedLineReader in = new MappedLineReader(new InputStreamReader(stream));
     readCSV(in, commands, modelDefs, regionDefs, modelInputOrder);
     return;
   }   
@@ -599,17 +598,17 @@ public class FullHierarchyCSVFormatFactory {
                        Map<String, FullHierarchyBuilder.ModelDef> modelDefs, 
                        Map<String, List<InstanceInstructionSet.RegionInfo>> regionDefs, 
                        List<String> modelInputOrder) throws IOException, InvalidInputException {
-    BufferedReader in = new BufferedReader(new FileReader(infile));
+    MappedLineReader in = new MappedLineReader(infile);
     readCSV(in, commands, modelDefs, regionDefs, modelInputOrder);
     return;
   }  
   
   /***************************************************************************
   ** 
-  ** Do reading from a buffered reader
+  ** Do reading from a line reader
   */
 
-  private void readCSV(BufferedReader in, Map<String, List<BuildInstruction>> commands, 
+  private void readCSV(MappedLineReader in, Map<String, List<BuildInstruction>> commands, 
                        Map<String, FullHierarchyBuilder.ModelDef> modelDefs, 
                        Map<String, List<InstanceInstructionSet.RegionInfo>> regionDefs, 
                        List<String> modelInputOrder) throws IOException, InvalidInputException {
@@ -619,20 +618,19 @@ public class FullHierarchyCSVFormatFactory {
     
     CSVParser csvp = new CSVParser(true);
       
-    String line = null;
     int lineNumber = -1;
-    while ((line = in.readLine()) != null) {
+    while (in.nextLine()) {
       lineNumber++;
-      if (line.trim().equals("")) {
+      if (in.isBlank()) {
         continue;
       }
-      List<String> tokens = csvp.processCSVLine(line);
-      if (tokens.isEmpty()) {
+      if (csvp.tokenize(in) == 0) {
         continue;
       }
-      if ((tokens.get(0)).trim().startsWith("#")) {
+      if (csvp.fieldStartsWith(0, '#')) {
         continue;  
       }
+      List<String> tokens = csvp.getFields();
       int tokenCategory = getCategory(tokens.get(0));
       try {
         switch (tokenCategory) {
@@ -227,7 +227,7 @@ public class GeneInstance extends NodeInstance implements Gene {
     out.print("<");
     out.print(GENE_TAG_);
     out.print(" ref=\"");
-    out.print(getBacking().getID());
+    out.print(myItemID_);
     out.print("\" instance=\"");
     out.print(instanceID_);
     if (activity_ != ACTIVE) {
@@ -64,6 +64,8 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
   protected String vfgParentID_; 
   protected TreeMap<String, Group> groups_;   
   private int uniqueGroupSuffix_;
+  private long groupsVersion_;
+  private MainGroupIndex mainGroupIndex_;
 
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -299,7 +301,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
       ((DBGenome)gSrc.getGenome()).addKey(id);
     }
     GenomeChange retval = new GenomeChange();
-    groups_.put(id, group);
+    putGroup(id, group);
     retval.grOrig = null;
     retval.grNew = group;
     retval.genomeKey = getID();
@@ -318,7 +320,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
       throw new IllegalArgumentException();
     }
     GenomeChange retval = new GenomeChange();
-    groups_.put(id, group);
+    putGroup(id, group);
     retval.grOrig = null;
     retval.grNew = group;
     retval.genomeKey = getID();
@@ -484,25 +486,25 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
       if (existing.getNodeType() == Node.GENE) { // gene->gene A NO-OP, but implement anyway
         retval.gOrig = new GeneInstance((GeneInstance)existing);
         retval.gNew = new GeneInstance((GeneInstance)existing);
-        genes_.put(nodeID, new GeneInstance((GeneInstance)retval.gNew));          
+        putGene(nodeID, new GeneInstance((GeneInstance)retval.gNew));          
       } else { // node - > gene
         retval.nOrig = new NodeInstance((NodeInstance)existing);
         retval.gNew = new GeneInstance((NodeInstance)existing);
-        nodes_.remove(nodeID);
-        genes_.put(nodeID, new GeneInstance((GeneInstance)retval.gNew));        
+        dropNode(nodeID);
+        putGene(nodeID, new GeneInstance((GeneInstance)retval.gNew));        
       }
     } else {
       if (existing.getNodeType() == Node.GENE) {  // gene -> node
         retval.gOrig = new GeneInstance((GeneInstance)existing);
         retval.nNew = new NodeInstance((NodeInstance)existing); // Note we lose gene subregion data with this constructor!
         retval.nNew.setNodeType(type);     
-        genes_.remove(nodeID);
-        nodes_.put(nodeID, new NodeInstance((NodeInstance)retval.nNew));
+        dropGene(nodeID);
+        putNode(nodeID, new NodeInstance((NodeInstance)retval.nNew));
       } else {  // node -> node (probably different type)
         retval.nOrig = new NodeInstance((NodeInstance)existing);
         retval.nNew = new NodeInstance((NodeInstance)existing);
         retval.nNew.setNodeType(type);
-        nodes_.put(nodeID, new NodeInstance((NodeInstance)retval.nNew));        
+        putNode(nodeID, new NodeInstance((NodeInstance)retval.nNew));        
       }
     }
     return (retval);
@@ -614,6 +616,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
       String grID = grit.next();
       retval.groups_.put(grID, this.groups_.get(grID).clone());
     }      
+    retval.mainGroupIndex_ = null;
 
     return (retval);
   }
@@ -900,17 +903,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
     if (mainFallbackMode == LEGACY_MODE) {
       return (getGroupForNodeLegacy(nodeID));
     } else if (mainFallbackMode == ALWAYS_MAIN_GROUP) {    
-      Iterator<Group> git = getGroupIterator();
-      while (git.hasNext()) {
-        Group group = git.next();
-        if (group.isASubset(this)) {
-          continue;
-        }
-        if (group.isInGroup(nodeID, this)) {
-          return (group);
-        }
-      }
-      return (null);
+      return (getMainGroupIndex().get(nodeID));
     } else { // MAIN_GROUP_AS_FALLBACK
       Group theGroup = getGroupForNodeLegacy(nodeID);
       if (theGroup == null) {
@@ -1307,15 +1300,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
   */
   
   public Set<String> getNodeInstances(String backingID) {
-    HashSet<String> retval = new HashSet<String>();
-    Iterator<Node> git = getAllNodeIterator();
-    while (git.hasNext()) {
-      Node node = git.next();
-      if (GenomeItemInstance.getBaseID(node.getID()).equals(backingID)) {
-        retval.add(node.getID());
-      }
-    }
-    return (retval);
+    return (new HashSet<String>(nodesForBase(backingID)));
   }
   
   /***************************************************************************
@@ -1781,7 +1766,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
       GenomeChange chng = new GenomeChange();
       retval[count] = chng;
       chng.grOrig = groups_.get(subID);
-      groups_.remove(subID);
+      dropGroup(subID);
       if (vfgParentID_ == null) {
         ((DBGenome)gSrc.getGenome()).removeKey(subID);
       }
@@ -1791,7 +1776,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
     }
     GenomeChange chng = new GenomeChange();
     retval[count] = chng;    
-    groups_.remove(key);
+    dropGroup(key);
     if (vfgParentID_ == null) {
       ((DBGenome)gSrc.getGenome()).removeKey(key);  
     }
@@ -1812,7 +1797,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
     GenomeSource gSrc = (mySource_ == null) ? appState_.getDB() : mySource_;
     GenomeChange chng = new GenomeChange();
     Group group = groups_.get(key);
-    groups_.remove(key);
+    dropGroup(key);
     if (vfgParentID_ == null) {
       ((DBGenome)gSrc.getGenome()).removeKey(key);  
     }
@@ -1843,7 +1828,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
       GenomeChange chng = new GenomeChange();
       retval[count] = chng;
       chng.grOrig = groups_.get(subID);
-      groups_.remove(subID);
+      dropGroup(subID);
       if (vfgParentID_ == null) {
         ((DBGenome)gSrc.getGenome()).removeKey(subID);
       }
@@ -1853,7 +1838,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
     }
     GenomeChange chng = new GenomeChange();
     retval[count] = chng;    
-    groups_.remove(key);
+    dropGroup(key);
     if (vfgParentID_ == null) {
       ((DBGenome)gSrc.getGenome()).removeKey(key);  
     }
@@ -1901,7 +1886,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
     }
     GenomeChange chng = new GenomeChange();
     retval[retval.length - 1] = chng;    
-    groups_.remove(key);
+    dropGroup(key);
     if (vfgParentID_ == null) {
       ((DBGenome)gSrc.getGenome()).removeKey(key);
     }
@@ -1925,7 +1910,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
     if (activity == LinkageInstance.VARIABLE) {
       ((LinkageInstance)retval.lNew).setActivityLevel(level);      
     }
-    links_.put(linkID, retval.lNew);
+    putLinkage(retval.lNew);
     retval.genomeKey = getID();
     return (retval);
   }
@@ -1954,16 +1939,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
   */
   
   public Set<String> returnLinkInstanceIDsForBacking(String backingID) {
-    HashSet<String> retval = new HashSet<String>();
-    Iterator<Linkage> lit = getLinkageIterator();
-    while (lit.hasNext()) {
-      LinkageInstance lnk = (LinkageInstance)lit.next();
-      String backing = lnk.getBacking().getID();
-      if (backing.equals(backingID)) {   
-        retval.add(lnk.getID());
-      }
-    }
-    return (retval);
+    return (new HashSet<String>(linksForBase(backingID)));
   }
   
   /***************************************************************************
@@ -2168,7 +2144,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
       LinkageInstance newLink = (LinkageInstance)link.clone();   
       retval.lNew = newLink;
       newLink.syncLaunchPads(doSource, doTarget);
-      links_.put(id, retval.lNew.clone());
+      putLinkage(retval.lNew.clone());
       retval.genomeKey = getID();
       changes.add(retval);
     }
@@ -2342,15 +2318,15 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
     // If new is absent, we are redoing a delete.
     if ((undo.grOrig != null) && (undo.grNew != null)) {  // FIX ME??  DOES THIS EVER HAPPEN?
       String id = undo.grNew.getID();
-      groups_.put(id, undo.grNew);
+      putGroup(id, undo.grNew);
     } else if (undo.grOrig == null) {
       String id = undo.grNew.getID();
-      groups_.put(id, undo.grNew);
+      putGroup(id, undo.grNew);
       if (vfgParentID_ == null) {
         ((DBGenome)gSrc.getGenome()).addKey(id);
       }
     } else {
-      groups_.remove(undo.grOrig.getID());
+      dropGroup(undo.grOrig.getID());
       if (vfgParentID_ == null) {
         ((DBGenome)gSrc.getGenome()).removeKey(undo.grOrig.getID());
       }
@@ -2371,15 +2347,15 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
     // If new is absent, we are undoing a delete.
     if ((undo.grOrig != null) && (undo.grNew != null)) {  // DOES THIS EVER HAPPEN?  YES
       String id = undo.grOrig.getID();
-      groups_.put(id, undo.grOrig);
+      putGroup(id, undo.grOrig);
     } else if (undo.grOrig == null) {
-      groups_.remove(undo.grNew.getID());
+      dropGroup(undo.grNew.getID());
       if (vfgParentID_ == null) {
         ((DBGenome)gSrc.getGenome()).removeKey(undo.grNew.getID());
       }
     } else {
       String id = undo.grOrig.getID();
-      groups_.put(id, undo.grOrig);
+      putGroup(id, undo.grOrig);
       if (vfgParentID_ == null) {
         ((DBGenome)gSrc.getGenome()).addKey(id);
       }
@@ -2387,12 +2363,79 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
     return;
   }
   
+  /***************************************************************************
+  **
+  ** Put a group in the map. Use this, not groups_.put(), so cached group
+  ** answers get dropped.
+  */
+  
+  protected void putGroup(String key, Group group) {
+    groups_.put(key, group);
+    groupsVersion_++;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Take a group out of the map. Use this, not groups_.remove(), so cached
+  ** group answers get dropped.
+  */
+  
+  protected void dropGroup(String key) {
+    groups_.remove(key);
+    groupsVersion_++;
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Only local name overrides count as names of our own
+  */
+  
+  @Override
+  protected String getIndexedName(Node node) {
+    return (((NodeInstance)node).getOverrideName());
+  }
+  
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE METHODS
   //
   ////////////////////////////////////////////////////////////////////////////
   
+  /***************************************************************************
+  **
+  ** Map of node ID to the main (non-subset) group it is in. Built on demand,
+  ** and rebuilt once membership changes. Where a node is in more than one
+  ** main group, the first in group order wins, as it would in a scan.
+  */
+  
+  private Map<String, Group> getMainGroupIndex() {
+    GenomeInstance gir = getVfgParentRoot();
+    GenomeInstance root = (gir == null) ? this : gir;
+    if ((mainGroupIndex_ != null) && mainGroupIndex_.isCurrent(this, root)) {
+      return (mainGroupIndex_.groupForNode);
+    }
+    MainGroupIndex index = new MainGroupIndex(this, root);
+    Iterator<Group> git = getGroupIterator();
+    while (git.hasNext()) {
+      Group group = git.next();
+      index.dependOn(root.getGroup(Group.getBaseID(group.getID())));
+      if (group.isASubset(this)) {
+        continue;
+      }
+      Iterator<String> mit = group.areInGroup(this).iterator();
+      while (mit.hasNext()) {
+        String nodeID = mit.next();
+        if (!index.groupForNode.containsKey(nodeID)) {
+          index.groupForNode.put(nodeID, group);
+        }
+      }
+    }
+    mainGroupIndex_ = index;
+    return (mainGroupIndex_.groupForNode);
+  }
+  
   /***************************************************************************
   **
   ** Legacy case: Get the group that contains the given node id.  May be null.
@@ -2585,7 +2628,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
         continue;
       }
       Group groupCopy = otherGroup.getMappedCopy(rootGenome, other, groupIDMap);
-      groups_.put(groupCopy.getID(), groupCopy);
+      putGroup(groupCopy.getID(), groupCopy);
     }
     //
     // Subgroups get done on a second pass:
@@ -2598,7 +2641,7 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
         continue;
       }
       Group groupCopy = otherGroup.getMappedCopy(rootGenome, other, groupIDMap);
-      groups_.put(groupCopy.getID(), groupCopy);
+      putGroup(groupCopy.getID(), groupCopy);
     }
     return;
   }
@@ -2807,4 +2850,51 @@ public class GenomeInstance extends AbstractGenome implements Genome, Cloneable
       return ("GroupTuple : " + srcGroup_ + " -> " + trgGroup_);
     }
   }   
+  
+  /***************************************************************************
+  **
+  ** The node-to-main-group map, and what it was built from. Membership lives
+  ** in the root instance's groups, which commands edit directly, so the map
+  ** is good only while our group map, the root's group map, and every root
+  ** group we read are unchanged. All of that belongs to this model, so edits
+  ** to other models (e.g. in other sessions) leave it alone.
+  */
+  
+  private static class MainGroupIndex {
+    
+    HashMap<String, Group> groupForNode;
+    private GenomeInstance root_;
+    private long groupsVersion_;
+    private long rootGroupsVersion_;
+    private ArrayList<Group> rootGroups_;
+    private ArrayList<Long> rootVersions_;
+    
+    MainGroupIndex(GenomeInstance gi, GenomeInstance root) {
+      groupForNode = new HashMap<String, Group>();
+      root_ = root;
+      groupsVersion_ = gi.groupsVersion_;
+      rootGroupsVersion_ = root.groupsVersion_;
+      rootGroups_ = new ArrayList<Group>();
+      rootVersions_ = new ArrayList<Long>();
+    }
+    
+    void dependOn(Group rootGroup) {
+      rootGroups_.add(rootGroup);
+      rootVersions_.add(Long.valueOf(rootGroup.getMembershipVersion()));
+      return;
+    }
+    
+    boolean isCurrent(GenomeInstance gi, GenomeInstance root) {
+      if ((root != root_) || (gi.groupsVersion_ != groupsVersion_) || (root.groupsVersion_ != rootGroupsVersion_)) {
+        return (false);
+      }
+      int num = rootGroups_.size();
+      for (int i = 0; i < num; i++) {
+        if (rootGroups_.get(i).getMembershipVersion() != rootVersions_.get(i).longValue()) {
+          return (false);
+        }
+      }
+      return (true);
+    }
+  }
 }
@@ -131,6 +131,18 @@ public class GenomeInstanceFactory extends AbstractFactoryClient {
   //
   ////////////////////////////////////////////////////////////////////////////
 
+  /***************************************************************************
+  **
+  ** Read the contents of a genome instance (e.g. a lone node instance or
+  ** group) into the given instance, without an enclosing instance element
+  */
+
+  public void setTargetGenome(GenomeInstance gi) {
+    currGI_ = gi;
+    ((FactoryWhiteboard)sharedWhiteboard_).genome = gi;
+    return;
+  }
+
   /***************************************************************************
   **
   ** Callback for completion of the element
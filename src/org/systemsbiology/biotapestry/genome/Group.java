@@ -60,6 +60,7 @@ public class Group implements GenomeItem, Cloneable {
   private boolean usingParent_;
   private String parentID_;
   private String noName_;
+  private long membershipVersion_;
     
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -505,6 +506,7 @@ public class Group implements GenomeItem, Cloneable {
     retval.grmNew = member;
     retval.grmOrig = null;
     members_.add(member);
+    membershipVersion_++;
     return (retval);
   }
 
@@ -525,6 +527,7 @@ public class Group implements GenomeItem, Cloneable {
       if (gm.getID().equals(memberID)) {
         retval.grmOrig = gm;
         members_.remove(gm);
+        membershipVersion_++;
         return (retval);
       }
     }
@@ -762,12 +765,23 @@ public class Group implements GenomeItem, Cloneable {
     return;
   }
   
+  /***************************************************************************
+  **
+  ** Changes whenever our membership changes. Anything cached from our
+  ** membership is good as long as this does not change.
+  */
+  
+  public long getMembershipVersion() {
+    return (membershipVersion_);
+  }
+  
   /***************************************************************************
   **
   ** Undo a change
   */
   
   public void changeUndo(GroupChange undo) {
+    membershipVersion_++;
     //
     // If both orig and new are present, we are simply undoing a property change.
     // If orig is absent, we are undoing an add.
@@ -803,6 +817,7 @@ public class Group implements GenomeItem, Cloneable {
   */
   
   public void changeRedo(GroupChange redo) { 
+    membershipVersion_++;
     //
     // If both orig and new are present, we are simply redoing a property change.
     // If orig is absent, we are redoing an add.
@@ -606,7 +606,7 @@ public class LinkageInstance extends GenomeItemInstance implements Linkage {
     out.print("\" targ=\"");
     out.print(targ_);
     out.print("\" ref=\"");
-    out.print(getBacking().getID());
+    out.print(myItemID_);
     out.print("\" targPad=\"");
     out.print(pad_);
     out.print("\" launchPad=\"");
@@ -579,7 +579,7 @@ public class NodeInstance extends GenomeItemInstance implements Node {
     out.print("<");
     out.print(mapToElem(nodeType_));
     out.print(" ref=\"");
-    out.print(getBacking().getID());
+    out.print(myItemID_);
     out.print("\" instance=\"");
     out.print(instanceID_);
     if (activity_ != ACTIVE) {
@@ -29,12 +29,12 @@ public class ImageChange {
   public String genomeKey;
   public String proxyKey;
   
-  public String oldImage;
+  public byte[] oldImage;
   public String oldKey;
   public String oldType;
   public int oldCount;
           
-  public String newImage;
+  public byte[] newImage;
   public String newKey;
   public String newType;
   public int newCount;
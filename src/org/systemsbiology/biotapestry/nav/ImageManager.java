@@ -32,6 +32,7 @@ import java.io.PrintWriter;
 import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Iterator;
+import java.util.LinkedHashMap;
 import java.util.List;
 import java.util.ArrayList;
 import javax.imageio.IIOImage;
@@ -70,18 +71,26 @@ public class ImageManager {
   //
   ////////////////////////////////////////////////////////////////////////////   
 
+  //
+  // Decoded images are rebuilt from the stored bytes as needed. This caps
+  // how much we keep decoded (the most recently used image is always kept):
+  //
+  
+  private static final long IMAGE_CACHE_BYTES_ = 64L * 1024L * 1024L;
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE MEMBERS
   //
   ////////////////////////////////////////////////////////////////////////////
 
-  private HashMap<String, String> stringCache_;
-  private HashMap<String, BufferedImage> imageCache_;
+  private HashMap<String, byte[]> byteCache_;
+  private LinkedHashMap<String, BufferedImage> imageCache_;
+  private long imageCacheBytes_;
   private HashMap<String, String> typeDictionary_;
   private HashMap<String, Integer> imgCounts_;  
   private UniqueLabeller labels_;
-  private StringBuffer buildBuf_;
+  private Base64Util.Decoder decoder_;
   private String bufKey_;
 
   ////////////////////////////////////////////////////////////////////////////
@@ -96,8 +105,9 @@ public class ImageManager {
   */
     
   public ImageManager() {
-    stringCache_ = new HashMap<String, String>();
-    imageCache_ = new HashMap<String, BufferedImage>();
+    byteCache_ = new HashMap<String, byte[]>();
+    imageCache_ = new LinkedHashMap<String, BufferedImage>(16, 0.75F, true);
+    imageCacheBytes_ = 0L;
     typeDictionary_ = new HashMap<String, String>();
     imgCounts_ = new HashMap<String, Integer>();
     labels_ = new UniqueLabeller();
@@ -115,8 +125,8 @@ public class ImageManager {
   */
     
   public void dropAllImages() {
-    stringCache_.clear();
-    imageCache_.clear();
+    byteCache_.clear();
+    clearCachedImages();
     typeDictionary_.clear();
     imgCounts_.clear();
     labels_ = new UniqueLabeller();
@@ -132,13 +142,13 @@ public class ImageManager {
     if (key == null) {
       return (null);
     }
-    BufferedImage bi = imageCache_.get(key);
+    BufferedImage bi = getCachedImage(key);
     if (bi == null) {
-      String imgString = stringCache_.get(key);
+      byte[] imgBytes = byteCache_.get(key);
       String type = typeDictionary_.get(key);
       try {
-        bi = readImageFromString(imgString, type);
-        imageCache_.put(key, bi);
+        bi = readImageFromBytes(imgBytes, type);
+        cacheImage(key, bi);
       } catch (IOException ioex) {
         throw new IllegalStateException();
       }
@@ -202,12 +212,12 @@ public class ImageManager {
     Integer currCount = imgCounts_.get(key);
     ImageChange retval = new ImageChange();
     if (currCount.intValue() == 1) {
-      retval.oldImage = stringCache_.get(key);
+      retval.oldImage = byteCache_.get(key);
       retval.oldType = typeDictionary_.get(key);
       retval.oldCount = 1;
       retval.oldKey = key;
-      stringCache_.remove(key);
-      imageCache_.remove(key);
+      byteCache_.remove(key);
+      uncacheImage(key);
       typeDictionary_.remove(key);
       imgCounts_.remove(key);  
       labels_.removeLabel(key);
@@ -236,18 +246,18 @@ public class ImageManager {
   */
 
   public NewImageInfo loadImageFromFileFinish(TypedImage timg) throws IOException {
-    String imgString = writeImageToString(timg);
+    byte[] imgBytes = writeImageToBytes(timg);
     NewImageInfo retval = new NewImageInfo();
 
     //
     // Look for a match in the cache:
     //
     
-    Iterator<String> skit = stringCache_.keySet().iterator();
+    Iterator<String> skit = byteCache_.keySet().iterator();
     while (skit.hasNext()) {
       String key = skit.next();
-      String cacheString = stringCache_.get(key);
-      if (cacheString.equals(imgString)) {  // Image already in use
+      byte[] cacheBytes = byteCache_.get(key);
+      if (Arrays.equals(cacheBytes, imgBytes)) {  // Image already in use
         // count is incremented later.  Nothing to do!
         retval.key = key;
         retval.change = null;
@@ -260,13 +270,13 @@ public class ImageManager {
     //
       
     String imgKey = labels_.getNextLabel();
-    imageCache_.put(imgKey, timg.img);
-    stringCache_.put(imgKey, imgString);
+    cacheImage(imgKey, timg.img);
+    byteCache_.put(imgKey, imgBytes);
     typeDictionary_.put(imgKey, timg.type);
     imgCounts_.put(imgKey, new Integer(0));
     retval.key = imgKey;
     retval.change = new ImageChange();
-    retval.change.newImage = imgString;
+    retval.change.newImage = imgBytes;
     retval.change.newKey = imgKey;
     retval.change.newType = timg.type;
     retval.change.newCount = 0;
@@ -275,17 +285,14 @@ public class ImageManager {
   
   /***************************************************************************
   ** 
-  ** Add to an image definition
+  ** Add to an image definition. The base64 text is decoded as it arrives.
   */
 
   public void appendToImageDefinition(String key, char[] chars, int start, int length) {   
-    if (buildBuf_ == null) {
-      buildBuf_ = new StringBuffer();
-    }
     if ((bufKey_ == null) || !bufKey_.equals(key)) {
       throw new IllegalStateException();
     }
-    buildBuf_.append(chars, start, length);
+    decoder_.append(chars, start, length);
     return;
   } 
   
@@ -298,25 +305,9 @@ public class ImageManager {
     if ((bufKey_ == null) || !bufKey_.equals(key)) {
       throw new IllegalStateException();
     }
-     bufKey_ = null;
-    if (buildBuf_ == null) {
-      return;
-    }
-     // "Trim" the character array:
-    int bufLen = buildBuf_.length();
-    int index = bufLen - 1;
-    while (Character.isWhitespace(buildBuf_.charAt(index))) {
-      buildBuf_.setLength(index--);
-    }
-    index = 0;
-    while (Character.isWhitespace(buildBuf_.charAt(index))) {
-      buildBuf_.deleteCharAt(index++);
-    }
-    // Turn it into a String:
-    stringCache_.put(key, buildBuf_.toString());
-    if (buildBuf_ != null) {
-      buildBuf_.setLength(0);
-    }
+    bufKey_ = null;
+    byteCache_.put(key, decoder_.finish());
+    decoder_ = null;
     return;
   }  
    
@@ -330,11 +321,12 @@ public class ImageManager {
     ind.indent();
     out.println("<images>");
     ind.up();
-    TreeSet<String> keys = new TreeSet<String>(stringCache_.keySet());
+    TreeSet<String> keys = new TreeSet<String>(byteCache_.keySet());
+    Base64Util encoder = new Base64Util();
     Iterator<String> skit = keys.iterator();
     while (skit.hasNext()) {
       String key = skit.next();
-      String imgString = stringCache_.get(key);
+      byte[] imgBytes = byteCache_.get(key);
       String imgType = typeDictionary_.get(key);
       Integer imgCount = imgCounts_.get(key);  
       ind.indent();
@@ -346,7 +338,12 @@ public class ImageManager {
       out.print("\" encoding=\"");
       out.print(imgType);
       out.println("\" >");            
-      out.println(imgString);
+      try {
+        encoder.encode(imgBytes, out);
+      } catch (IOException ioex) {
+        throw new IllegalStateException();  // PrintWriters don't throw
+      }
+      out.println();
       ind.indent();
       out.println("</image>");
     }
@@ -362,14 +359,14 @@ public class ImageManager {
   
   public void changeUndo(ImageChange undo) {
     if (undo.newKey != null) {  // new Image was installed; remove it
-      stringCache_.remove(undo.newKey);
-      imageCache_.remove(undo.newKey);
+      byteCache_.remove(undo.newKey);
+      uncacheImage(undo.newKey);
       typeDictionary_.remove(undo.newKey);
       imgCounts_.remove(undo.newKey);  
       labels_.removeLabel(undo.newKey);
     } else if (undo.oldKey != null) {  // old image was removed; restore it
       labels_.addExistingLabel(undo.oldKey);
-      stringCache_.put(undo.oldKey, undo.oldImage);
+      byteCache_.put(undo.oldKey, undo.oldImage);
       typeDictionary_.put(undo.oldKey, undo.oldType);
       imgCounts_.put(undo.oldKey, new Integer(undo.oldCount));            
     } else {  // reference count changed
@@ -386,12 +383,12 @@ public class ImageManager {
   public void changeRedo(ImageChange redo) {
     if (redo.newKey != null) {  // new Image was installed; re-install
       labels_.addExistingLabel(redo.newKey);
-      stringCache_.put(redo.newKey, redo.newImage);
+      byteCache_.put(redo.newKey, redo.newImage);
       typeDictionary_.put(redo.newKey, redo.newType);
       imgCounts_.put(redo.newKey, new Integer(redo.newCount));
     } else if (redo.oldKey != null) {  // old image was removed; remove it again
-      stringCache_.remove(redo.oldKey);
-      imageCache_.remove(redo.oldKey);
+      byteCache_.remove(redo.oldKey);
+      uncacheImage(redo.oldKey);
       typeDictionary_.remove(redo.oldKey);
       imgCounts_.remove(redo.oldKey);  
       labels_.removeLabel(redo.oldKey);
@@ -496,7 +493,8 @@ public class ImageManager {
     }
     
     ImageManager mgr = appState.getImageMgr();
-    mgr.stringCache_.put(imgKey, "");
+    mgr.byteCache_.put(imgKey, new byte[0]);
+    mgr.decoder_ = new Base64Util.Decoder();
     mgr.typeDictionary_.put(imgKey, encodingStr);
     mgr.imgCounts_.put(imgKey, new Integer(count));    
     mgr.labels_.addExistingLabel(imgKey);
@@ -600,7 +598,7 @@ public class ImageManager {
   ** Write out an image
   */
 
-  private String writeImageToString(TypedImage timg) throws IOException {    
+  private byte[] writeImageToBytes(TypedImage timg) throws IOException {    
     ByteArrayOutputStream baos = new ByteArrayOutputStream();
     Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(timg.type);
     if (!writers.hasNext()) {
@@ -613,8 +611,7 @@ public class ImageManager {
     writer.write(img);
     ios.close();
     writer.dispose();    
-    String retval = (new Base64Util()).encode(baos.toByteArray());
-    return (retval);
+    return (baos.toByteArray());
   }
   
   /***************************************************************************
@@ -644,11 +641,10 @@ public class ImageManager {
  
   /***************************************************************************
   ** 
-  ** Read in an image from a string
+  ** Read in an image from its encoded bytes
   */
 
-  private BufferedImage readImageFromString(String imgString, String type) throws IOException {
-    byte[] bytes = (new Base64Util()).decode(imgString);    
+  private BufferedImage readImageFromBytes(byte[] bytes, String type) throws IOException {
     ByteArrayInputStream bais = new ByteArrayInputStream(bytes);
     Iterator<ImageReader> readers = ImageIO.getImageReadersByFormatName(type);
     if (!readers.hasNext()) {
@@ -662,4 +658,56 @@ public class ImageManager {
     reader.dispose();
     return (retval); 
   }
+  
+  /***************************************************************************
+  ** 
+  ** Decoded image cache. Images may be fetched from several rendering
+  ** threads at once, and an access-ordered map changes on every get, so
+  ** all of this is synchronized.
+  */
+
+  private BufferedImage getCachedImage(String key) {
+    synchronized (imageCache_) {
+      return (imageCache_.get(key));
+    }
+  }
+
+  private void cacheImage(String key, BufferedImage bi) {
+    synchronized (imageCache_) {
+      BufferedImage prev = imageCache_.put(key, bi);
+      if (prev != null) {
+        imageCacheBytes_ -= imageBytes(prev);
+      }
+      imageCacheBytes_ += imageBytes(bi);
+      Iterator<String> kit = imageCache_.keySet().iterator();
+      while ((imageCacheBytes_ > IMAGE_CACHE_BYTES_) && (imageCache_.size() > 1)) {
+        String eldest = kit.next();
+        imageCacheBytes_ -= imageBytes(imageCache_.get(eldest));
+        kit.remove();
+      }
+    }
+    return;
+  }
+
+  private void uncacheImage(String key) {
+    synchronized (imageCache_) {
+      BufferedImage prev = imageCache_.remove(key);
+      if (prev != null) {
+        imageCacheBytes_ -= imageBytes(prev);
+      }
+    }
+    return;
+  }
+
+  private void clearCachedImages() {
+    synchronized (imageCache_) {
+      imageCache_.clear();
+      imageCacheBytes_ = 0L;
+    }
+    return;
+  }
+
+  private long imageBytes(BufferedImage bi) {
+    return ((bi == null) ? 0L : (long)bi.getWidth() * (long)bi.getHeight() * 4L);
+  }
 }
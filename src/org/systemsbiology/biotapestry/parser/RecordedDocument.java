@@ -0,0 +1,1474 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.parser;
+
+import java.io.BufferedInputStream;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.SequenceInputStream;
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Future;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.xml.sax.Attributes;
+import org.xml.sax.ContentHandler;
+import org.xml.sax.InputSource;
+import org.xml.sax.SAXException;
+import org.xml.sax.XMLReader;
+import org.xml.sax.helpers.DefaultHandler;
+
+/****************************************************************************
+**
+** An immutable recording of the SAX events produced by parsing a BioTapestry
+** document once. It can be replayed into any number of SUParsers (e.g. one per
+** web session) without re-reading or re-tokenizing the XML. Once built, it is
+** safe to replay from several threads at once.
+**
+** A recording can also be written out as a binary snapshot, which loads much
+** faster than the XML it came from since nothing has to be tokenized or
+** unescaped. A SnapshotWriter builds one straight from the XML as it is
+** written. The snapshot layout (all ints are big-endian; "varint" is the
+** unsigned LEB128 form) is:
+**
+**   magic "BTSS", int format version, varint total char count
+**   string table: varint count, then each string as varint byte length + UTF-8
+**   root start tag: the body of a START event (see below)
+**   lead: varint character run before the first section, plus one (0 if none)
+**   section index: varint count, then per section: varint name, varint event
+**                  count, varint char count, varint byte length, varint
+**                  character run after the section, plus one (0 if none)
+**   section bodies, back to back
+**
+** Every element, attribute, type, value, and character run is stored as an
+** index into the string table. There is one section for each child of the
+** root element, and it holds exactly that element; the root end tag is not
+** stored. Sections do not depend on each other, so a reader can find any of
+** them by adding up the byte lengths, and decode it or skip it. A section
+** body is a run of events: a type byte, then for START the local name, raw
+** name, attribute count, and per attribute local, qname, type, and value; for
+** END the local and raw names; for CHARS the character run.
+**
+** The header and section index of a snapshot are checked when it is read,
+** but each section is only decoded (and checked) as it is replayed, so a
+** corrupt section shows up then, as a SAXException. Sections that a replay
+** skips are checked, and handed back still encoded.
+**
+** Version 1 snapshots had a section index with no root or char counts, and
+** sections that split the root tags off differently; version 2 had no index.
+** Both are still read, and are decoded in full.
+*/
+
+public class RecordedDocument {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  //
+  // Bump the version for any incompatible layout change; readers reject
+  // anything newer than they know:
+  //
+
+  private static final byte[] SNAPSHOT_MAGIC_ = {'B', 'T', 'S', 'S'};
+  private static final int SNAPSHOT_VERSION_ = 3;
+  private static final int OLD_SECTION_INDEX_VERSION_ = 1;
+  private static final Charset UTF8_ = Charset.forName("UTF-8");
+
+  //
+  // Wraps each section when it is parsed on its own:
+  //
+
+  private static final String ROOT_STAND_IN_ = "__BIOTAP_SECTION__";
+
+  //
+  // Smaller documents are not worth splitting up. Splitting needs the whole
+  // document in memory next to its recording, so documents bigger than a
+  // slice of the heap are left to the streaming parser:
+  //
+
+  private static final long SECTION_MIN_BYTES_ = 1L << 20;
+  private static final long SECTION_MAX_HEAP_SHARE_ = 16L;
+  private static final int SECTION_QUEUE_PER_THREAD_ = 4;
+
+  //
+  // Splitting is off unless asked for, until it shows a wall-clock win on
+  // real models on multi-core machines:
+  //
+
+  private static final int DEFAULT_SECTION_THREADS_ = 1;
+
+  //
+  // Shared by all sectioned parses; built on first use:
+  //
+
+  private static ThreadPoolExecutor sectionPool_;
+
+  private final ArrayList<Event> events_;
+  private final long charCount_;
+  private final int eventCount_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Use record() to build one
+  */
+
+  private RecordedDocument(ArrayList<Event> events, long charCount) {
+    events_ = events;
+    charCount_ = charCount;
+    int count = 0;
+    int num = events.size();
+    for (int i = 0; i < num; i++) {
+      Event ev = events.get(i);
+      count += (ev.type == Event.SECTION) ? ev.section.numEvents : 1;
+    }
+    eventCount_ = count;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Parse the given stream once and record the result. The stream is not closed.
+  */
+
+  public static RecordedDocument record(InputStream stream) throws IOException {
+    Recorder rec = recordBytes(stream, null);
+    rec.events.trimToSize();
+    return (new RecordedDocument(rec.events, rec.charCount));
+  }
+
+  /***************************************************************************
+  **
+  ** How many threads recordInSections() should use for a document of the
+  ** given size: one (i.e. do not bother, and do not read it into memory)
+  ** for small ones and for ones too big to hold next to their recording. 
+  ** Splitting is off by default; the biotapestry.parseThreads system property
+  ** turns it on, but never goes past the number of processors.
+  */
+
+  public static int sectionThreadsFor(long numBytes) {
+    if (numBytes < SECTION_MIN_BYTES_) {
+      return (1);
+    }
+    Runtime rt = Runtime.getRuntime();
+    if (numBytes > (rt.maxMemory() / SECTION_MAX_HEAP_SHARE_)) {
+      return (1);
+    }
+    int numProc = rt.availableProcessors();
+    int retval = DEFAULT_SECTION_THREADS_;
+    String prop = System.getProperty("biotapestry.parseThreads");
+    if (prop != null) {
+      try {
+        retval = Integer.parseInt(prop.trim());
+      } catch (NumberFormatException nfex) {
+        // keep the default
+      }
+    }
+    return (Math.max(1, Math.min(retval, numProc)));
+  }
+
+  /***************************************************************************
+  **
+  ** Same result as record(), but the children of the root element are parsed
+  ** on up to numThreads threads at once. Documents that cannot be split, or
+  ** that have errors, are handed to record() instead.
+  */
+
+  public static RecordedDocument recordInSections(final byte[] xml, int numThreads) throws IOException {
+    SectionScanner scan = (numThreads > 1) ? SectionScanner.scan(xml) : null;
+    if (scan == null) {
+      return (record(new ByteArrayInputStream(xml)));
+    }
+
+    //
+    // Deal out runs of neighboring sections, about the same size, one per
+    // thread. The parser handles whatever sits between sections in a run;
+    // we handle what sits between the runs.
+    //
+
+    List<int[]> sections = scan.getSections();
+    int numSect = sections.size();
+    long sectBytes = sections.get(numSect - 1)[1] - sections.get(0)[0];
+    long perRun = (sectBytes / numThreads) + 1;
+    ArrayList<Integer> runEnds = new ArrayList<Integer>();
+    int runStart = sections.get(0)[0];
+    for (int i = 0; i < numSect; i++) {
+      if ((i == (numSect - 1)) || ((sections.get(i)[1] - runStart) >= perRun)) {
+        runEnds.add(Integer.valueOf(i));
+        if (i < (numSect - 1)) {
+          runStart = sections.get(i + 1)[0];
+        }
+      }
+    }
+
+    int numRuns = runEnds.size();
+    ArrayList<Future<Recorder>> pending = new ArrayList<Future<Recorder>>();
+    ExecutorService pool = getSectionPool();
+    boolean done = false;
+    try {
+      int firstSect = 0;
+      for (int i = 0; i < numRuns; i++) {
+        int lastSect = runEnds.get(i).intValue();
+        final int from = sections.get(firstSect)[0];
+        final int to = sections.get(lastSect)[1];
+        pending.add(pool.submit(new Callable<Recorder>() {
+          public Recorder call() throws IOException {
+            return (recordFragment(xml, from, to));
+          }
+        }));
+        firstSect = lastSect + 1;
+      }
+
+      //
+      // The head is the root start tag. Parse it closed off, and drop the end:
+      //
+
+      byte[] close = ("</" + scan.getRootName() + ">").getBytes(UTF8_);
+      Recorder head = recordBytes(new ByteArrayInputStream(xml, 0, scan.getHeadEnd()),
+                                  new ByteArrayInputStream(close));
+      if ((head.events.size() != 2) || (head.events.get(0).type != Event.START)) {
+        return (record(new ByteArrayInputStream(xml)));
+      }
+      Event rootStart = head.events.get(0);
+      ArrayList<Recorder> runs = new ArrayList<Recorder>();
+      int total = 2;
+      for (int i = 0; i < numRuns; i++) {
+        Recorder run = pending.get(i).get();
+        runs.add(run);
+        total += run.events.size() + 1;
+      }
+
+      ArrayList<Event> events = new ArrayList<Event>(total);
+      long charCount = 0L;
+      events.add(rootStart);
+      for (int i = -1; i < numRuns; i++) {
+        if (i >= 0) {
+          Recorder run = runs.get(i);
+          events.addAll(run.events);
+          charCount += run.charCount;
+        }
+        String gap = scan.getGapText((i < 0) ? -1 : runEnds.get(i).intValue());
+        if (gap.length() > 0) {
+          events.add(new Event(Event.CHARS, null, null, null, gap.toCharArray()));
+          charCount += gap.length();
+        }
+      }
+      events.add(new Event(Event.END, rootStart.local, rootStart.raw, null, null));
+      done = true;
+      return (new RecordedDocument(events, charCount));
+    } catch (IOException ioex) {
+      return (record(new ByteArrayInputStream(xml)));
+    } catch (ExecutionException eex) {
+      return (record(new ByteArrayInputStream(xml)));
+    } catch (InterruptedException iex) {
+      throw new IOException("Interrupted while parsing");
+    } finally {
+      //
+      // The pool is shared, so just drop whatever of ours is left:
+      //
+      if (!done) {
+        int numPend = pending.size();
+        for (int i = 0; i < numPend; i++) {
+          pending.get(i).cancel(true);
+        }
+      }
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Answers if the stream starts with a snapshot. The stream is left where it
+  ** was.
+  */
+
+  public static boolean isSnapshot(BufferedInputStream stream) throws IOException {
+    stream.mark(SNAPSHOT_MAGIC_.length);
+    try {
+      for (int i = 0; i < SNAPSHOT_MAGIC_.length; i++) {
+        if (stream.read() != SNAPSHOT_MAGIC_[i]) {
+          return (false);
+        }
+      }
+      return (true);
+    } finally {
+      stream.reset();
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Read back a snapshot written by writeSnapshot(). The stream is not closed.
+  ** A truncated or corrupt snapshot gets an IOException, or for a corrupt
+  ** section a SAXException when it is replayed.
+  */
+
+  public static RecordedDocument readSnapshot(InputStream stream) throws IOException {
+    SnapshotReader in = new SnapshotReader(stream);
+    for (int i = 0; i < SNAPSHOT_MAGIC_.length; i++) {
+      if (in.readByte() != SNAPSHOT_MAGIC_[i]) {
+        throw new IOException("Not a BioTapestry snapshot");
+      }
+    }
+    int version = in.readInt();
+    if ((version < 1) || (version > SNAPSHOT_VERSION_)) {
+      throw new IOException("Unsupported BioTapestry snapshot version " + version);
+    }
+    long charCount = in.readVarLong();
+
+    //
+    // Every string and event takes at least one byte, which keeps a corrupt
+    // count from sizing a huge array:
+    //
+
+    StringTable table = in.readStringTable();
+    int numStrings = table.size();
+    if (version < SNAPSHOT_VERSION_) {
+      return (readAllEvents(in, version, table, charCount));
+    }
+
+    ArrayList<Event> events = new ArrayList<Event>();
+    Event root = readStart(in, table);
+    events.add(root);
+    int lead = in.readVarInt();
+    if (lead > 0) {
+      events.add(new Event(Event.CHARS, null, null, null, table.chars(checkIndex(lead - 1, numStrings))));
+    }
+
+    int numSections = in.readCount();
+    int[][] index = new int[numSections][];
+    long[] sectChars = new long[numSections];
+    for (int i = 0; i < numSections; i++) {
+      index[i] = new int[4];
+      index[i][0] = in.readIndex(numStrings);
+      index[i][1] = in.readCount();
+      sectChars[i] = in.readVarLong();
+      index[i][2] = in.readCount();
+      index[i][3] = in.readVarInt();
+    }
+
+    //
+    // Leave decoding (and checking) each section until it is replayed:
+    //
+
+    for (int i = 0; i < numSections; i++) {
+      if (index[i][1] > index[i][2]) {
+        throw new IOException("Corrupt BioTapestry snapshot");
+      }
+      int offset = in.pos_;
+      in.skip(index[i][2]);
+      EncodedSection sect = new EncodedSection(table.name(index[i][0]), table, in.buf_, offset,
+                                               index[i][2], index[i][1], sectChars[i]);
+      events.add(new Event(sect));
+      int trail = index[i][3];
+      if (trail > 0) {
+        events.add(new Event(Event.CHARS, null, null, null, table.chars(checkIndex(trail - 1, numStrings))));
+      }
+    }
+    if (in.remaining() != 0) {
+      throw new IOException("Corrupt BioTapestry snapshot");
+    }
+    events.add(new Event(Event.END, root.local, root.raw, null, null));
+    events.trimToSize();
+    return (new RecordedDocument(events, charCount));
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Replay the recorded events into the handler
+  */
+
+  public void replay(ContentHandler handler) throws SAXException {
+    replay(handler, null, null);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Replay the recorded events into the handler, except for the children of
+  ** the root element named in skip. Each of those is handed back in skipped,
+  ** keyed by name, as a document of its own (inside the same root element)
+  ** that can be replayed later.
+  */
+
+  public void replay(ContentHandler handler, Set<String> skip, Map<String, RecordedDocument> skipped) throws SAXException {
+    handler.startDocument();
+    int num = events_.size();
+    int depth = 0;
+    Event root = null;
+    HashMap<String, ArrayList<Event>> skipEvents = new HashMap<String, ArrayList<Event>>();
+    for (int i = 0; i < num; i++) {
+      Event ev = events_.get(i);
+      if ((skip != null) && (depth == 1) && ((ev.type == Event.START) || (ev.type == Event.SECTION)) && skip.contains(ev.local)) {
+        ArrayList<Event> sect = skipEvents.get(ev.local);
+        if (sect == null) {
+          sect = new ArrayList<Event>();
+          sect.add(root);
+          skipEvents.put(ev.local, sect);
+        }
+        //
+        // Snapshot sections are handed over still encoded, in a copy of
+        // their own so the rest of the snapshot can go:
+        //
+        if (ev.type == Event.SECTION) {
+          decodeSection(ev.section, null);
+          sect.add(new Event(ev.section.copy()));
+          continue;
+        }
+        int sectDepth = 0;
+        do {
+          ev = events_.get(i++);
+          sect.add(ev);
+          sectDepth += (ev.type == Event.START) ? 1 : ((ev.type == Event.END) ? -1 : 0);
+        } while (sectDepth > 0);
+        i--;
+        continue;
+      }
+      if (ev.type == Event.START) {
+        if (depth == 0) {
+          root = ev;
+        }
+        depth++;
+      } else if (ev.type == Event.END) {
+        depth--;
+      }
+      switch (ev.type) {
+        case Event.START:
+          handler.startElement("", ev.local, ev.raw, ev.attrs);
+          break;
+        case Event.END:
+          handler.endElement("", ev.local, ev.raw);
+          break;
+        case Event.CHARS:
+          handler.characters(ev.chars, 0, ev.chars.length);
+          break;
+        case Event.SECTION:
+          decodeSection(ev.section, handler);
+          break;
+        default:
+          throw new IllegalStateException();
+      }
+    }
+    handler.endDocument();
+
+    Iterator<String> sit = skipEvents.keySet().iterator();
+    while (sit.hasNext()) {
+      String key = sit.next();
+      ArrayList<Event> sect = skipEvents.get(key);
+      sect.add(new Event(Event.END, root.local, root.raw, null, null));
+      sect.trimToSize();
+      long charCount = 0L;
+      int numSect = sect.size();
+      for (int i = 0; i < numSect; i++) {
+        Event ev = sect.get(i);
+        if (ev.type == Event.CHARS) {
+          charCount += ev.chars.length;
+        } else if (ev.type == Event.SECTION) {
+          charCount += ev.section.charCount;
+        }
+      }
+      skipped.put(key, new RecordedDocument(sect, charCount));
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Number of recorded events
+  */
+
+  public int getEventCount() {
+    return (eventCount_);
+  }
+
+  /***************************************************************************
+  **
+  ** Rough heap footprint of the recording, in chars of character data
+  */
+
+  public long getCharCount() {
+    return (charCount_);
+  }
+
+  /***************************************************************************
+  **
+  ** Write the recording out as a binary snapshot. The stream is flushed, not
+  ** closed.
+  */
+
+  public void writeSnapshot(OutputStream stream) throws IOException {
+    SnapshotEncoder encoder = new SnapshotEncoder();
+    try {
+      replay(encoder);
+    } catch (SAXException sex) {
+      throw new IOException(sex.getMessage());
+    }
+    encoder.writeTo(stream);
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** The pool sectioned parses run on. It has one thread per processor, which
+  ** go away when idle. Once its queue is full, the parsing thread does the
+  ** work itself.
+  */
+
+  private static synchronized ExecutorService getSectionPool() {
+    if (sectionPool_ == null) {
+      int numProc = Runtime.getRuntime().availableProcessors();
+      sectionPool_ = new ThreadPoolExecutor(numProc, numProc, 30L, TimeUnit.SECONDS,
+                                            new ArrayBlockingQueue<Runnable>(numProc * SECTION_QUEUE_PER_THREAD_),
+                                            new SectionThreadFactory(), new ThreadPoolExecutor.CallerRunsPolicy());
+      sectionPool_.allowCoreThreadTimeOut(true);
+    }
+    return (sectionPool_);
+  }
+
+  /***************************************************************************
+  **
+  ** A string table index read some other way, which has to be in range
+  */
+
+  private static int checkIndex(int index, int tableSize) throws IOException {
+    if ((index < 0) || (index >= tableSize)) {
+      throw new IOException("Corrupt BioTapestry snapshot");
+    }
+    return (index);
+  }
+
+  /***************************************************************************
+  **
+  ** Decode the body of a START event
+  */
+
+  private static Event readStart(SnapshotReader in, StringTable table) throws IOException {
+    int numStrings = table.size();
+    String local = table.name(in.readIndex(numStrings));
+    String raw = table.name(in.readIndex(numStrings));
+    int numAttr = in.readCount();
+    FixedAttributes attrs = new FixedAttributes(numAttr);
+    for (int j = 0; j < numAttr; j++) {
+      attrs.set(j, table.name(in.readIndex(numStrings)), table.name(in.readIndex(numStrings)),
+                table.name(in.readIndex(numStrings)), table.value(in.readIndex(numStrings)));
+    }
+    return (new Event(Event.START, local, raw, attrs, null));
+  }
+
+  /***************************************************************************
+  **
+  ** Decode the events of a version 1 or 2 snapshot, all in one go
+  */
+
+  private static RecordedDocument readAllEvents(SnapshotReader in, int version, 
+                                                StringTable table, long charCount) throws IOException {
+    int numStrings = table.size();
+    int totalEvents;
+    if (version == OLD_SECTION_INDEX_VERSION_) {
+      int numSections = in.readCount();
+      long sum = 0L;
+      for (int i = 0; i < numSections; i++) {
+        in.readIndex(numStrings);  // name
+        sum += in.readVarInt();
+        in.readVarInt();  // byte length
+      }
+      if (sum > in.remaining()) {
+        throw new IOException("Corrupt BioTapestry snapshot");
+      }
+      totalEvents = (int)sum;
+    } else {
+      totalEvents = in.readCount();
+    }
+
+    ArrayList<Event> events = new ArrayList<Event>(totalEvents);
+    int depth = 0;
+    for (int i = 0; i < totalEvents; i++) {
+      int type = in.readByte();
+      switch (type) {
+        case Event.START:
+          depth++;
+          events.add(readStart(in, table));
+          break;
+        case Event.END:
+          if (--depth < 0) {
+            throw new IOException("Corrupt BioTapestry snapshot");
+          }
+          events.add(new Event(Event.END, table.name(in.readIndex(numStrings)), 
+                               table.name(in.readIndex(numStrings)), null, null));
+          break;
+        case Event.CHARS:
+          events.add(new Event(Event.CHARS, null, null, null, table.chars(in.readIndex(numStrings))));
+          break;
+        default:
+          throw new IOException("Corrupt BioTapestry snapshot");
+      }
+    }
+    //
+    // Replay counts on the elements being balanced:
+    //
+    if (depth != 0) {
+      throw new IOException("Corrupt BioTapestry snapshot");
+    }
+    return (new RecordedDocument(events, charCount));
+  }
+
+  /***************************************************************************
+  **
+  ** Decode a snapshot section into the handler, checking it as we go: it has
+  ** to hold exactly one element, in exactly its byte length, with every string
+  ** in the table. A corrupt section gets a SAXException, as bad XML would.
+  ** With no handler, it is just checked, without decoding any strings.
+  */
+
+  private static void decodeSection(EncodedSection sect, ContentHandler handler) throws SAXException {
+    try {
+      decodeSectionCore(sect, handler);
+    } catch (IOException ioex) {
+      throw new SAXException(ioex.getMessage());
+    }
+    return;
+  }
+
+  private static void decodeSectionCore(EncodedSection sect, ContentHandler handler) throws IOException, SAXException {
+    SnapshotReader in = new SnapshotReader(sect.bytes, sect.offset, sect.length);
+    StringTable table = sect.table;
+    int numStrings = table.size();
+    boolean check = (handler == null);
+    int depth = 0;
+    for (int i = 0; i < sect.numEvents; i++) {
+      int type = in.readByte();
+      if ((depth == 0) && ((i > 0) || (type != Event.START))) {
+        throw new IOException("Corrupt BioTapestry snapshot");
+      }
+      switch (type) {
+        case Event.START:
+          depth++;
+          int local = in.readIndex(numStrings);
+          int raw = in.readIndex(numStrings);
+          if ((i == 0) && !table.name(local).equals(sect.name)) {
+            throw new IOException("Corrupt BioTapestry snapshot");
+          }
+          int numAttr = in.readCount();
+          if (check) {
+            for (int j = 0; j < (numAttr * 4); j++) {
+              in.readIndex(numStrings);
+            }
+            break;
+          }
+          FixedAttributes attrs = new FixedAttributes(numAttr);
+          for (int j = 0; j < numAttr; j++) {
+            attrs.set(j, table.name(in.readIndex(numStrings)), table.name(in.readIndex(numStrings)),
+                      table.name(in.readIndex(numStrings)), table.value(in.readIndex(numStrings)));
+          }
+          handler.startElement("", table.name(local), table.name(raw), attrs);
+          break;
+        case Event.END:
+          depth--;
+          int endLocal = in.readIndex(numStrings);
+          int endRaw = in.readIndex(numStrings);
+          if (!check) {
+            handler.endElement("", table.name(endLocal), table.name(endRaw));
+          }
+          break;
+        case Event.CHARS:
+          int chars = in.readIndex(numStrings);
+          if (!check) {
+            char[] run = table.chars(chars);
+            handler.characters(run, 0, run.length);
+          }
+          break;
+        default:
+          throw new IOException("Corrupt BioTapestry snapshot");
+      }
+    }
+    if ((depth != 0) || (in.remaining() != 0)) {
+      throw new IOException("Corrupt BioTapestry snapshot");
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Parse the stream, followed by the tail if there is one
+  */
+
+  private static Recorder recordBytes(InputStream stream, InputStream tail) throws IOException {
+    Recorder rec = new Recorder();
+    try {
+      XMLReader reader = SUParser.buildXMLReader();
+      reader.setContentHandler(rec);
+      reader.setErrorHandler(rec);
+      InputStream source = (tail == null) ? stream : new SequenceInputStream(stream, tail);
+      reader.parse(new InputSource(source));
+    } catch (SAXException e) {
+      throw new IOException(e.getMessage());
+    }
+    rec.flushChars();
+    return (rec);
+  }
+
+  /***************************************************************************
+  **
+  ** Parse a run of sections of a document, by wrapping it in a stand-in root
+  ** element that is then dropped
+  */
+
+  private static Recorder recordFragment(byte[] xml, int start, int end) throws IOException {
+    byte[] open = ("<?xml version=\"1.0\" encoding=\"UTF-8\"?><" + ROOT_STAND_IN_ + ">").getBytes(UTF8_);
+    byte[] close = ("</" + ROOT_STAND_IN_ + ">").getBytes(UTF8_);
+    byte[] wrapped = new byte[open.length + (end - start) + close.length];
+    System.arraycopy(open, 0, wrapped, 0, open.length);
+    System.arraycopy(xml, start, wrapped, open.length, end - start);
+    System.arraycopy(close, 0, wrapped, open.length + (end - start), close.length);
+    Recorder retval = recordBytes(new ByteArrayInputStream(wrapped), null);
+    int last = retval.events.size() - 1;
+    if ((last < 1) || (retval.events.get(0).type != Event.START) || (retval.events.get(last).type != Event.END)) {
+      throw new IOException();
+    }
+    retval.events.remove(last);
+    retval.events.remove(0);
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Unsigned variable-length ints, low seven bits first
+  */
+
+  private static void writeVarInt(DataOutputStream out, int val) throws IOException {
+    writeVarLong(out, val & 0xFFFFFFFFL);
+    return;
+  }
+
+  private static void writeVarLong(DataOutputStream out, long val) throws IOException {
+    while ((val & ~0x7FL) != 0L) {
+      out.writeByte((int)((val & 0x7FL) | 0x80L));
+      val >>>= 7;
+    }
+    out.writeByte((int)val);
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** The attributes of one recorded element. Unlike AttributesImpl, which grows
+  ** as attributes are added, these are sized once, since there is one set per
+  ** element in the recording. No namespaces are involved.
+  */
+
+  private static class FixedAttributes implements Attributes {
+
+    private final String[] data_;
+
+    FixedAttributes(int numAttr) {
+      data_ = new String[numAttr * 4];
+    }
+
+    void set(int index, String local, String qName, String type, String value) {
+      int base = index * 4;
+      data_[base] = local;
+      data_[base + 1] = qName;
+      data_[base + 2] = type;
+      data_[base + 3] = value;
+      return;
+    }
+
+    public int getLength() {
+      return (data_.length / 4);
+    }
+
+    public String getURI(int index) {
+      return (((index >= 0) && (index < getLength())) ? "" : null);
+    }
+
+    public String getLocalName(int index) {
+      return (field(index, 0));
+    }
+
+    public String getQName(int index) {
+      return (field(index, 1));
+    }
+
+    public String getType(int index) {
+      return (field(index, 2));
+    }
+
+    public String getValue(int index) {
+      return (field(index, 3));
+    }
+
+    public int getIndex(String uri, String localName) {
+      if ((uri != null) && (uri.length() > 0)) {
+        return (-1);
+      }
+      return (find(localName, 0));
+    }
+
+    public int getIndex(String qName) {
+      return (find(qName, 1));
+    }
+
+    public String getType(String uri, String localName) {
+      return (getType(getIndex(uri, localName)));
+    }
+
+    public String getType(String qName) {
+      return (getType(getIndex(qName)));
+    }
+
+    public String getValue(String uri, String localName) {
+      return (getValue(getIndex(uri, localName)));
+    }
+
+    public String getValue(String qName) {
+      return (getValue(getIndex(qName)));
+    }
+
+    private String field(int index, int offset) {
+      if ((index < 0) || (index >= getLength())) {
+        return (null);
+      }
+      return (data_[(index * 4) + offset]);
+    }
+
+    private int find(String name, int offset) {
+      int num = getLength();
+      for (int i = 0; i < num; i++) {
+        String key = data_[(i * 4) + offset];
+        if ((key != null) && key.equals(name)) {
+          return (i);
+        }
+      }
+      return (-1);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Daemon threads, so a parse pool left behind does not keep the VM up
+  */
+
+  private static class SectionThreadFactory implements ThreadFactory {
+    private int count_;
+
+    public synchronized Thread newThread(Runnable runner) {
+      Thread retval = new Thread(runner, "BioTapSectionParse-" + (++count_));
+      retval.setDaemon(true);
+      return (retval);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** One recorded event
+  */
+
+  private static class Event {
+    static final int START   = 0;
+    static final int END     = 1;
+    static final int CHARS   = 2;
+    static final int SECTION = 3;  // Never written out as such
+
+    final int type;
+    final String local;
+    final String raw;
+    final Attributes attrs;
+    final char[] chars;
+    final EncodedSection section;
+
+    Event(int type, String local, String raw, Attributes attrs, char[] chars) {
+      this.type = type;
+      this.local = local;
+      this.raw = raw;
+      this.attrs = attrs;
+      this.chars = chars;
+      this.section = null;
+    }
+
+    /***************************************************************************
+    **
+    ** Stands in for all the events of a snapshot section
+    */
+
+    Event(EncodedSection section) {
+      this.type = SECTION;
+      this.local = section.name;
+      this.raw = section.name;
+      this.attrs = null;
+      this.chars = null;
+      this.section = section;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Builds the event list. Element and attribute names are shared across the
+  ** recording, and runs of character data are coalesced into one event. The
+  ** names are interned, as the parser's own are, so replaying hands the
+  ** factories the same strings as their literal tags.
+  */
+
+  private static class Recorder extends DefaultHandler {
+
+    ArrayList<Event> events = new ArrayList<Event>();
+    long charCount = 0L;
+    private HashMap<String, String> names_ = new HashMap<String, String>();
+    private StringBuilder pendChars_ = new StringBuilder();
+
+    @Override
+    public void startElement(String uri, String local, String raw, Attributes attrs) throws SAXException {
+      flushChars();
+      int numAttr = attrs.getLength();
+      FixedAttributes copy = new FixedAttributes(numAttr);
+      for (int i = 0; i < numAttr; i++) {
+        copy.set(i, share(attrs.getLocalName(i)), share(attrs.getQName(i)),
+                 share(attrs.getType(i)), attrs.getValue(i));
+      }
+      events.add(new Event(Event.START, share(local), share(raw), copy, null));
+      return;
+    }
+
+    @Override
+    public void endElement(String uri, String local, String raw) throws SAXException {
+      flushChars();
+      events.add(new Event(Event.END, share(local), share(raw), null, null));
+      return;
+    }
+
+    @Override
+    public void characters(char ch[], int start, int length) throws SAXException {
+      pendChars_.append(ch, start, length);
+      return;
+    }
+
+    void flushChars() {
+      int len = pendChars_.length();
+      if (len == 0) {
+        return;
+      }
+      char[] chars = new char[len];
+      pendChars_.getChars(0, len, chars, 0);
+      pendChars_.setLength(0);
+      charCount += len;
+      events.add(new Event(Event.CHARS, null, null, null, chars));
+      return;
+    }
+
+    private String share(String name) {
+      if (name == null) {
+        return (null);
+      }
+      String retval = names_.get(name);
+      if (retval == null) {
+        retval = name.intern();
+        names_.put(retval, retval);
+      }
+      return (retval);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** The strings of a snapshot, kept as UTF-8 in a copy of the table bytes
+  ** and decoded the first time they are asked for, so strings only used by
+  ** sections that are never replayed are never decoded. Names are interned,
+  ** as the parser's own are; character runs get their char arrays. Two
+  ** replays may both decode the same string at once, which does no harm:
+  ** either copy will do.
+  */
+
+  private static class StringTable {
+
+    private final byte[] bytes_;
+    private final int[] offsets_;
+    private final String[] strings_;
+    private final String[] names_;
+    private final char[][] chars_;
+
+    StringTable(byte[] bytes, int[] offsets) {
+      bytes_ = bytes;
+      offsets_ = offsets;
+      int numStrings = offsets.length - 1;
+      strings_ = new String[numStrings];
+      names_ = new String[numStrings];
+      chars_ = new char[numStrings][];
+    }
+
+    int size() {
+      return (strings_.length);
+    }
+
+    String value(int index) {
+      String retval = strings_[index];
+      if (retval == null) {
+        retval = new String(bytes_, offsets_[index], offsets_[index + 1] - offsets_[index], UTF8_);
+        strings_[index] = retval;
+      }
+      return (retval);
+    }
+
+    String name(int index) {
+      String retval = names_[index];
+      if (retval == null) {
+        retval = value(index).intern();
+        names_[index] = retval;
+      }
+      return (retval);
+    }
+
+    char[] chars(int index) {
+      char[] retval = chars_[index];
+      if (retval == null) {
+        retval = value(index).toCharArray();
+        chars_[index] = retval;
+      }
+      return (retval);
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** One child of the root element, as it sits in a snapshot, still encoded
+  */
+
+  private static class EncodedSection {
+
+    final String name;
+    final StringTable table;
+    final byte[] bytes;
+    final int offset;
+    final int length;
+    final int numEvents;
+    final long charCount;
+
+    EncodedSection(String name, StringTable table, byte[] bytes, int offset, 
+                   int length, int numEvents, long charCount) {
+      this.name = name;
+      this.table = table;
+      this.bytes = bytes;
+      this.offset = offset;
+      this.length = length;
+      this.numEvents = numEvents;
+      this.charCount = charCount;
+    }
+
+    /***************************************************************************
+    **
+    ** The same section, holding onto just its own bytes
+    */
+
+    EncodedSection copy() {
+      byte[] own = new byte[length];
+      System.arraycopy(bytes, offset, own, 0, length);
+      return (new EncodedSection(name, table, own, 0, length, numEvents, charCount));
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** A growable byte buffer for encoding into, without the per-byte locking of
+  ** ByteArrayOutputStream
+  */
+
+  private static class ByteSink {
+
+    private byte[] buf_ = new byte[1 << 12];
+    private int len_ = 0;
+
+    int size() {
+      return (len_);
+    }
+
+    void writeByte(int val) {
+      if (len_ == buf_.length) {
+        byte[] bigger = new byte[buf_.length * 2];
+        System.arraycopy(buf_, 0, bigger, 0, len_);
+        buf_ = bigger;
+      }
+      buf_[len_++] = (byte)val;
+      return;
+    }
+
+    void writeVarInt(int val) {
+      writeVarLong(val & 0xFFFFFFFFL);
+      return;
+    }
+
+    void writeVarLong(long val) {
+      while ((val & ~0x7FL) != 0L) {
+        writeByte((int)((val & 0x7FL) | 0x80L));
+        val >>>= 7;
+      }
+      writeByte((int)val);
+      return;
+    }
+
+    void writeTo(OutputStream out) throws IOException {
+      out.write(buf_, 0, len_);
+      return;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Encodes the SAX events of a whole document into a snapshot. The string
+  ** table and each section are built as the events come in; nothing gets
+  ** written until the document is done, since the table has to go first.
+  */
+
+  static class SnapshotEncoder extends DefaultHandler {
+
+    private HashMap<String, Integer> table_ = new HashMap<String, Integer>();
+    private ArrayList<String> strings_ = new ArrayList<String>();
+    private ByteSink root_ = new ByteSink();
+    private ByteSink bodies_ = new ByteSink();
+    private ArrayList<long[]> sections_ = new ArrayList<long[]>();
+    private StringBuilder pendChars_ = new StringBuilder();
+    private int lead_ = 0;
+    private int depth_ = 0;
+    private boolean done_ = false;
+    private long charCount_ = 0L;
+    private int sectName_;
+    private int sectStart_;
+    private int sectEvents_;
+    private long sectChars_;
+
+    @Override
+    public void startElement(String uri, String local, String raw, Attributes attrs) throws SAXException {
+      if (done_) {
+        throw new SAXException("More than one root element");
+      }
+      flushChars();
+      ByteSink out;
+      if (depth_ == 0) {
+        out = root_;
+      } else {
+        out = bodies_;
+        if (depth_ == 1) {
+          sectName_ = stringIndex(local);
+          sectStart_ = bodies_.size();
+          sectEvents_ = 0;
+          sectChars_ = 0L;
+        }
+        out.writeByte(Event.START);
+        sectEvents_++;
+      }
+      out.writeVarInt(stringIndex(local));
+      out.writeVarInt(stringIndex(raw));
+      int numAttr = attrs.getLength();
+      out.writeVarInt(numAttr);
+      for (int i = 0; i < numAttr; i++) {
+        out.writeVarInt(stringIndex(attrs.getLocalName(i)));
+        out.writeVarInt(stringIndex(attrs.getQName(i)));
+        out.writeVarInt(stringIndex(attrs.getType(i)));
+        out.writeVarInt(stringIndex(attrs.getValue(i)));
+      }
+      depth_++;
+      return;
+    }
+
+    @Override
+    public void endElement(String uri, String local, String raw) throws SAXException {
+      flushChars();
+      if (--depth_ == 0) {
+        done_ = true;
+        return;
+      }
+      bodies_.writeByte(Event.END);
+      bodies_.writeVarInt(stringIndex(local));
+      bodies_.writeVarInt(stringIndex(raw));
+      sectEvents_++;
+      if (depth_ == 1) {
+        sections_.add(new long[] {sectName_, sectEvents_, sectChars_, bodies_.size() - sectStart_, 0L});
+      }
+      return;
+    }
+
+    @Override
+    public void characters(char ch[], int start, int length) throws SAXException {
+      if (depth_ > 0) {
+        pendChars_.append(ch, start, length);
+      }
+      return;
+    }
+
+    /***************************************************************************
+    **
+    ** Write out the snapshot. The stream is flushed, not closed.
+    */
+
+    void writeTo(OutputStream stream) throws IOException {
+      if (!done_) {
+        throw new IOException("Incomplete document for snapshot");
+      }
+      DataOutputStream out = new DataOutputStream(new BufferedOutputStream(stream));
+      out.write(SNAPSHOT_MAGIC_);
+      out.writeInt(SNAPSHOT_VERSION_);
+      writeVarLong(out, charCount_);
+      int numStrings = strings_.size();
+      writeVarInt(out, numStrings);
+      for (int i = 0; i < numStrings; i++) {
+        byte[] bytes = strings_.get(i).getBytes(UTF8_);
+        writeVarInt(out, bytes.length);
+        out.write(bytes);
+      }
+      root_.writeTo(out);
+      writeVarInt(out, lead_);
+      int numSections = sections_.size();
+      writeVarInt(out, numSections);
+      for (int i = 0; i < numSections; i++) {
+        long[] sect = sections_.get(i);
+        writeVarInt(out, (int)sect[0]);
+        writeVarInt(out, (int)sect[1]);
+        writeVarLong(out, sect[2]);
+        writeVarInt(out, (int)sect[3]);
+        writeVarInt(out, (int)sect[4]);
+      }
+      bodies_.writeTo(out);
+      out.flush();
+      return;
+    }
+
+    /***************************************************************************
+    **
+    ** Runs of character data are coalesced into one event, as the Recorder
+    ** does. Runs between sections go in the index.
+    */
+
+    private void flushChars() {
+      int len = pendChars_.length();
+      if (len == 0) {
+        return;
+      }
+      int index = stringIndex(pendChars_.toString());
+      pendChars_.setLength(0);
+      charCount_ += len;
+      if (depth_ > 1) {
+        bodies_.writeByte(Event.CHARS);
+        bodies_.writeVarInt(index);
+        sectEvents_++;
+        sectChars_ += len;
+      } else if (sections_.isEmpty()) {
+        lead_ = index + 1;
+      } else {
+        sections_.get(sections_.size() - 1)[4] = index + 1;
+      }
+      return;
+    }
+
+    private int stringIndex(String str) {
+      Integer index = table_.get(str);
+      if (index == null) {
+        index = Integer.valueOf(strings_.size());
+        table_.put(str, index);
+        strings_.add(str);
+      }
+      return (index.intValue());
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Decodes a snapshot out of memory. It is read in whole up front, since
+  ** pulling it a byte at a time through a stream costs more than the decoding.
+  */
+
+  private static class SnapshotReader {
+
+    private byte[] buf_;
+    private int pos_;
+    private int len_;
+
+    SnapshotReader(InputStream stream) throws IOException {
+      ByteArrayOutputStream bytes = new ByteArrayOutputStream(1 << 16);
+      byte[] chunk = new byte[1 << 16];
+      int got;
+      while ((got = stream.read(chunk)) != -1) {
+        bytes.write(chunk, 0, got);
+      }
+      buf_ = bytes.toByteArray();
+      len_ = buf_.length;
+      pos_ = 0;
+    }
+
+    /***************************************************************************
+    **
+    ** Read just the given slice of the bytes
+    */
+
+    SnapshotReader(byte[] buf, int offset, int length) {
+      buf_ = buf;
+      pos_ = offset;
+      len_ = offset + length;
+    }
+
+    void skip(int numBytes) throws IOException {
+      if (numBytes > remaining()) {
+        throw new IOException("Truncated BioTapestry snapshot");
+      }
+      pos_ += numBytes;
+      return;
+    }
+
+    byte readByte() throws IOException {
+      if (pos_ >= len_) {
+        throw new IOException("Truncated BioTapestry snapshot");
+      }
+      return (buf_[pos_++]);
+    }
+
+    int readInt() throws IOException {
+      int retval = 0;
+      for (int i = 0; i < 4; i++) {
+        retval = (retval << 8) | (readByte() & 0xFF);
+      }
+      return (retval);
+    }
+
+    int remaining() {
+      return (len_ - pos_);
+    }
+
+    /***************************************************************************
+    **
+    ** A string table index, which has to be in range
+    */
+
+    int readIndex(int tableSize) throws IOException {
+      int retval = readVarInt();
+      if (retval >= tableSize) {
+        throw new IOException("Corrupt BioTapestry snapshot");
+      }
+      return (retval);
+    }
+
+    /***************************************************************************
+    **
+    ** A count of things that take at least one byte each
+    */
+
+    int readCount() throws IOException {
+      int retval = readVarInt();
+      if (retval > remaining()) {
+        throw new IOException("Truncated BioTapestry snapshot");
+      }
+      return (retval);
+    }
+
+    int readVarInt() throws IOException {
+      int retval = 0;
+      for (int shift = 0; shift < 32; shift += 7) {
+        if (pos_ >= len_) {
+          throw new IOException("Truncated BioTapestry snapshot");
+        }
+        int next = buf_[pos_++];
+        retval |= (next & 0x7F) << shift;
+        if ((next & 0x80) == 0) {
+          if ((retval < 0) || ((shift == 28) && ((next & 0x70) != 0))) {
+            throw new IOException("Corrupt BioTapestry snapshot");
+          }
+          return (retval);
+        }
+      }
+      throw new IOException("Corrupt BioTapestry snapshot");
+    }
+
+    long readVarLong() throws IOException {
+      long retval = 0L;
+      for (int shift = 0; shift < 64; shift += 7) {
+        int next = readByte();
+        retval |= (long)(next & 0x7F) << shift;
+        if ((next & 0x80) == 0) {
+          return (retval);
+        }
+      }
+      throw new IOException("Corrupt BioTapestry snapshot");
+    }
+
+    /***************************************************************************
+    **
+    ** The string table. Its bytes are copied out, so the table does not hold
+    ** onto the rest of the snapshot.
+    */
+
+    StringTable readStringTable() throws IOException {
+      int numStrings = readCount();
+      int[] from = new int[numStrings];
+      int[] offsets = new int[numStrings + 1];
+      for (int i = 0; i < numStrings; i++) {
+        int len = readVarInt();
+        from[i] = pos_;
+        skip(len);
+        offsets[i + 1] = offsets[i] + len;
+      }
+      byte[] bytes = new byte[offsets[numStrings]];
+      for (int i = 0; i < numStrings; i++) {
+        System.arraycopy(buf_, from[i], bytes, offsets[i], offsets[i + 1] - offsets[i]);
+      }
+      return (new StringTable(bytes, offsets));
+    }
+  }
+}
@@ -19,12 +19,18 @@
 
 package org.systemsbiology.biotapestry.parser;
 
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.FileInputStream;
 import java.io.IOException;
 import java.io.InputStream;
 import java.util.Iterator;
 import java.util.HashMap;
 import java.util.Set;
 import java.util.List;
+import java.util.Map;
 import java.io.File;
 import java.net.URL;
 import java.text.MessageFormat;
@@ -39,6 +45,7 @@ import org.xml.sax.helpers.XMLReaderFactory;
 import org.xml.sax.helpers.DefaultHandler;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.util.GzipUtil;
 import org.systemsbiology.biotapestry.util.ResourceManager;
 
 /****************************************************************************
@@ -67,6 +74,7 @@ public class SUParser extends DefaultHandler {
   
   private XMLReader parser_;
   private HashMap<String, ParserClient> clients_;
+  private ParserClient[] clientList_;
   private ParserClient currClient_;
   private String lastElement_;
   private BTState appState_;
@@ -90,6 +98,7 @@ public class SUParser extends DefaultHandler {
     
     Iterator<ParserClient> cit = citList.iterator();
     clients_ = new HashMap<String, ParserClient>();
+    clientList_ = citList.toArray(new ParserClient[citList.size()]);
     while (cit.hasNext()) {
       ParserClient pc = cit.next();
       Set<String> keys = pc.keywordsOfInterest();
@@ -114,11 +123,58 @@ public class SUParser extends DefaultHandler {
 
   /***************************************************************************
   ** 
-  ** Parse the given file
+  ** Parse the given file, which may be XML or a binary snapshot, either of
+  ** them possibly gzipped
   */
 
   public void parse(File toParse) throws IOException {
-    parse(toParse.getPath());
+    parse(toParse, null, null);
+    return;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Parse the given file, as above. If it is a snapshot, the sections named in
+  ** skip are skipped over, and returned in skipped, still encoded, to be parsed
+  ** later on their own. XML is always parsed in full.
+  */
+
+  public void parse(File toParse, Set<String> skip, Map<String, RecordedDocument> skipped) throws IOException {
+    BufferedInputStream stream = new BufferedInputStream(new FileInputStream(toParse));
+    RecordedDocument recorded = null;
+    try {
+      if (GzipUtil.isGzipped(stream)) {
+        parseGzipped(toParse, stream, skip, skipped);
+        return;
+      }
+      if (RecordedDocument.isSnapshot(stream)) {
+        parse(RecordedDocument.readSnapshot(stream), skip, skipped);
+        return;
+      }
+      //
+      // If biotapestry.parseThreads asks for it, big files get their sections
+      // tokenized in parallel, as long as they fit comfortably in memory; huge
+      // ones are streamed. Anything that goes wrong there is parsed again the
+      // usual way, for the error reporting:
+      //
+      int numThreads = RecordedDocument.sectionThreadsFor(toParse.length());
+      if ((numThreads > 1) && (toParse.length() <= Integer.MAX_VALUE)) {
+        byte[] xml = new byte[(int)toParse.length()];
+        new DataInputStream(stream).readFully(xml);
+        try {
+          recorded = RecordedDocument.recordInSections(xml, numThreads);
+        } catch (IOException ioex) {
+          recorded = null;
+        }
+      }
+    } finally {
+      stream.close();
+    }
+    if (recorded != null) {
+      parse(recorded);
+    } else {
+      parse(toParse.getPath());
+    }
     return;
   }
   
@@ -149,8 +205,108 @@ public class SUParser extends DefaultHandler {
   */
 
   public void parse(URL source) throws IOException {
+    InputStream stream = source.openStream();
+    try {
+      parse(stream);
+    } finally {
+      stream.close();
+    }
+    return;
+  } 
+  
+  /***************************************************************************
+  ** 
+  ** Parse the given input stream, which may be XML or a binary snapshot,
+  ** either of them possibly gzipped
+  */
+
+  public void parse(InputStream stream) throws IOException {
+    parse(stream, null, null);
+    return;
+  }  
+  
+  /***************************************************************************
+  ** 
+  ** Parse the given input stream, as above, skipping snapshot sections as
+  ** for files
+  */
+
+  public void parse(InputStream stream, Set<String> skip, Map<String, RecordedDocument> skipped) throws IOException {
+    BufferedInputStream buffered = GzipUtil.inflateIfNeeded(stream);
+    if (RecordedDocument.isSnapshot(buffered)) {
+      parse(RecordedDocument.readSnapshot(buffered), skip, skipped);
+      return;
+    }
+    parseXML(buffered);
+    return;
+  }  
+
+  /***************************************************************************
+  ** 
+  ** Parse a gzipped file. If sectioned parsing is on, big ones are inflated
+  ** into memory so their sections can be tokenized in parallel, as with plain
+  ** files; the gzip trailer tells us how big they are. Everything else is
+  ** parsed as it is inflated.
+  */
+
+  private void parseGzipped(File toParse, BufferedInputStream stream, 
+                            Set<String> skip, Map<String, RecordedDocument> skipped) throws IOException {
+    long inflatedLen = GzipUtil.inflatedLength(toParse);
+    int numThreads = RecordedDocument.sectionThreadsFor(inflatedLen);
+    if ((numThreads <= 1) || (inflatedLen > Integer.MAX_VALUE)) {
+      parse(stream, skip, skipped);
+      return;
+    }
+    byte[] contents = new byte[(int)inflatedLen];
+    BufferedInputStream inflater = GzipUtil.inflateIfNeeded(stream);
+    boolean sizeOK;
     try {
-      parser_.parse(new InputSource(source.openStream()));
+      new DataInputStream(inflater).readFully(contents);
+      sizeOK = (inflater.read() == -1);
+    } catch (EOFException eofex) {
+      sizeOK = false;
+    }
+    if (!sizeOK) {
+      //
+      // The trailer only covers the last part of a multi-part gzip file:
+      //
+      contents = null;
+      FileInputStream restart = new FileInputStream(toParse);
+      try {
+        parse(restart, skip, skipped);
+      } finally {
+        restart.close();
+      }
+      return;
+    }
+    
+    BufferedInputStream buffered = new BufferedInputStream(new ByteArrayInputStream(contents));
+    if (RecordedDocument.isSnapshot(buffered)) {
+      parse(RecordedDocument.readSnapshot(buffered), skip, skipped);
+      return;
+    }
+    RecordedDocument recorded;
+    try {
+      recorded = RecordedDocument.recordInSections(contents, numThreads);
+    } catch (IOException ioex) {
+      recorded = null;
+    }
+    if (recorded != null) {
+      parse(recorded);
+    } else {
+      parseXML(buffered);
+    }
+    return;
+  }
+
+  /***************************************************************************
+  ** 
+  ** Parse the given XML input stream
+  */
+
+  private void parseXML(InputStream stream) throws IOException {
+    try {
+      parser_.parse(new InputSource(stream));
     } catch (SAXException e) {
       String msg = formatSAXExceptionMessage(e);
       System.err.println("Got a SAX exception: " + msg);
@@ -163,19 +319,28 @@ public class SUParser extends DefaultHandler {
   
   /***************************************************************************
   ** 
-  ** Parse the given input stream
+  ** Parse a previously recorded document
   */
 
-  public void parse(InputStream stream) throws IOException {
+  public void parse(RecordedDocument recorded) throws IOException {
+    parse(recorded, null, null);
+    return;
+  }  
+
+  /***************************************************************************
+  ** 
+  ** Parse a previously recorded document, skipping over the sections (i.e.
+  ** children of the root element) named in skip. Those are returned in
+  ** skipped, keyed by name, to be parsed later on their own.
+  */
+
+  public void parse(RecordedDocument recorded, Set<String> skip, Map<String, RecordedDocument> skipped) throws IOException {
     try {
-      parser_.parse(new InputSource(stream));
+      recorded.replay(this, skip, skipped);
     } catch (SAXException e) {
       String msg = formatSAXExceptionMessage(e);
       System.err.println("Got a SAX exception: " + msg);
       throw new IOException(msg);
-    } catch (IOException e) {
-      System.err.println("Got an IO exception: " + e);
-      throw rebundleIOException(e);
     }
   }  
 
@@ -300,6 +465,32 @@ public class SUParser extends DefaultHandler {
     printError("Fatal Error", ex);
   }
 
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Build the underlying SAX reader
+  */
+
+  static XMLReader buildXMLReader() throws SAXException {   
+    //
+    // Starting with 1.5, we need to use a different parser (BT-05-18-05:1):
+    //
+      
+    String jVer = System.getProperty("java.version");
+    String pName;
+    if (jVer.startsWith("1.4")) {
+      pName = "org.apache.crimson.parser.XMLReaderImpl";
+    } else {
+      pName = "com.sun.org.apache.xerces.internal.parsers.SAXParser";       
+    }
+    return (XMLReaderFactory.createXMLReader(pName));
+  }
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // PRIVATE CONSTRUCTORS
@@ -321,19 +512,7 @@ public class SUParser extends DefaultHandler {
       //parser_ = saxParser.getXMLReader();           
       //String pName = "org.apache.xerces.parsers.SAXParser";
       
-      //
-      // Starting with 1.5, we need to use a different parser (BT-05-18-05:1):
-      //
-      
-      String jVer = System.getProperty("java.version");
-      String pName;
-      if (jVer.startsWith("1.4")) {
-        pName = "org.apache.crimson.parser.XMLReaderImpl";
-      } else {
-        pName = "com.sun.org.apache.xerces.internal.parsers.SAXParser";       
-      }
-      
-      parser_ = XMLReaderFactory.createXMLReader(pName);
+      parser_ = buildXMLReader();
       //parser_ = XMLReaderFactory.createXMLReader();
 
       parser_.setContentHandler(this);
@@ -390,10 +569,8 @@ public class SUParser extends DefaultHandler {
   */
   
   private void setTargets(Object target) {
-    Iterator<ParserClient> ci = clients_.values().iterator();
-    while (ci.hasNext()) {
-      ParserClient cli = ci.next();
-      cli.setContainer(target);
+    for (int i = 0; i < clientList_.length; i++) {
+      clientList_[i].setContainer(target);
     }
     return;
   }
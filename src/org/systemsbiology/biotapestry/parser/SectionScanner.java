@@ -0,0 +1,339 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.parser;
+
+import java.nio.charset.Charset;
+import java.util.ArrayList;
+import java.util.List;
+
+/****************************************************************************
+**
+** A quick pass over the raw bytes of a BioTapestry XML document that finds
+** where each child of the root element starts and ends, without tokenizing
+** anything. The sections can then be handed to separate parsers.
+**
+** Only documents that are plainly laid out are split: UTF-8, no DOCTYPE, and
+** nothing but whitespace, comments, and processing instructions between the
+** sections. Anything else answers null, and the caller parses the document in
+** one go.
+*/
+
+class SectionScanner {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final Charset UTF8_ = Charset.forName("UTF-8");
+
+  private final byte[] xml_;
+  private int rootStart_;
+  private int rootStartEnd_;
+  private int rootEndStart_;
+  private final ArrayList<int[]> sections_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Use scan() to get one
+  */
+
+  private SectionScanner(byte[] xml) {
+    xml_ = xml;
+    rootStart_ = -1;
+    rootStartEnd_ = -1;
+    rootEndStart_ = -1;
+    sections_ = new ArrayList<int[]>();
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Scan the document, or answer null if it cannot be split up
+  */
+
+  static SectionScanner scan(byte[] xml) {
+    SectionScanner retval = new SectionScanner(xml);
+    if (!retval.checkEncoding() || !retval.findSections()) {
+      return (null);
+    }
+    return (retval);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Everything up to and including the root start tag
+  */
+
+  int getHeadEnd() {
+    return (rootStartEnd_);
+  }
+
+  /***************************************************************************
+  **
+  ** The tag name of the root element
+  */
+
+  String getRootName() {
+    int end = rootStart_ + 1;
+    while ((end < rootStartEnd_) && !isWhitespace(xml_[end]) && (xml_[end] != '/') && (xml_[end] != '>')) {
+      end++;
+    }
+    return (new String(xml_, rootStart_ + 1, end - rootStart_ - 1, UTF8_));
+  }
+
+  /***************************************************************************
+  **
+  ** The [start, end) byte ranges of the root's children, in document order
+  */
+
+  List<int[]> getSections() {
+    return (sections_);
+  }
+
+  /***************************************************************************
+  **
+  ** The character data that a parser would report after the given section,
+  ** up to the next one (or the root end tag, after the last). Pass -1 for
+  ** what comes between the root start tag and the first section. Line ends
+  ** are normalized as the parser would.
+  */
+
+  String getGapText(int afterSection) {
+    int from = (afterSection < 0) ? rootStartEnd_ : sections_.get(afterSection)[1];
+    int to = (afterSection >= sections_.size() - 1) ? rootEndStart_ : sections_.get(afterSection + 1)[0];
+    StringBuilder buf = new StringBuilder();
+    int pos = from;
+    while (pos < to) {
+      byte ch = xml_[pos];
+      if (ch == '<') {
+        pos = skipMarkup(pos);
+        continue;
+      }
+      if (ch == '\r') {
+        buf.append('\n');
+        if (((pos + 1) < to) && (xml_[pos + 1] == '\n')) {
+          pos++;
+        }
+      } else {
+        buf.append((char)ch);
+      }
+      pos++;
+    }
+    return (buf.toString());
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** We only split UTF-8, which is what BioTapestry writes
+  */
+
+  private boolean checkEncoding() {
+    if ((xml_.length >= 2) && (((xml_[0] & 0xFF) == 0xFE) || ((xml_[0] & 0xFF) == 0xFF))) {
+      return (false);
+    }
+    int start = ((xml_.length >= 3) && ((xml_[0] & 0xFF) == 0xEF)) ? 3 : 0;
+    if (!startsWith(start, "<?xml")) {
+      return (true);
+    }
+    int end = indexOf(start, "?>");
+    if (end < 0) {
+      return (false);
+    }
+    String decl = new String(xml_, start, end - start).toLowerCase();
+    int encAt = decl.indexOf("encoding");
+    if (encAt < 0) {
+      return (true);
+    }
+    String rest = decl.substring(encAt + "encoding".length());
+    return ((rest.indexOf("utf-8") >= 0) || (rest.indexOf("utf8") >= 0));
+  }
+
+  /***************************************************************************
+  **
+  ** Walk the tags, tracking depth, and note where the root's children are
+  */
+
+  private boolean findSections() {
+    int depth = 0;
+    int sectStart = -1;
+    int pos = 0;
+    int len = xml_.length;
+    while (pos < len) {
+      byte ch = xml_[pos];
+      if (ch != '<') {
+        if ((depth == 1) && !isWhitespace(ch)) {
+          return (false);
+        }
+        pos++;
+        continue;
+      }
+      if (startsWith(pos, "<!--") || startsWith(pos, "<?")) {
+        pos = skipMarkup(pos);
+        if (pos < 0) {
+          return (false);
+        }
+        continue;
+      }
+      if (startsWith(pos, "<![CDATA[")) {
+        if (depth < 2) {
+          return (false);
+        }
+        pos = skipMarkup(pos);
+        if (pos < 0) {
+          return (false);
+        }
+        continue;
+      }
+      if (startsWith(pos, "<!")) {
+        return (false);
+      }
+
+      int tagEnd = findTagEnd(pos);
+      if (tagEnd < 0) {
+        return (false);
+      }
+      if (xml_[pos + 1] == '/') {
+        depth--;
+        if (depth == 1) {
+          sections_.add(new int[] {sectStart, tagEnd});
+        } else if (depth == 0) {
+          rootEndStart_ = pos;
+          break;
+        } else if (depth < 0) {
+          return (false);
+        }
+      } else {
+        boolean empty = (xml_[tagEnd - 2] == '/');
+        if (depth == 0) {
+          if (empty || (rootStartEnd_ != -1)) {
+            return (false);
+          }
+          rootStart_ = pos;
+          rootStartEnd_ = tagEnd;
+        } else if (depth == 1) {
+          sectStart = pos;
+          if (empty) {
+            sections_.add(new int[] {pos, tagEnd});
+          }
+        }
+        if (!empty) {
+          depth++;
+        }
+      }
+      pos = tagEnd;
+    }
+    return ((rootEndStart_ != -1) && !sections_.isEmpty());
+  }
+
+  /***************************************************************************
+  **
+  ** Index just past the closing '>' of the tag starting at pos, skipping over
+  ** quoted attribute values. -1 if there is none.
+  */
+
+  private int findTagEnd(int pos) {
+    byte quote = 0;
+    int len = xml_.length;
+    for (int i = pos + 1; i < len; i++) {
+      byte ch = xml_[i];
+      if (quote != 0) {
+        if (ch == quote) {
+          quote = 0;
+        }
+      } else if ((ch == '"') || (ch == '\'')) {
+        quote = ch;
+      } else if (ch == '>') {
+        return (i + 1);
+      }
+    }
+    return (-1);
+  }
+
+  /***************************************************************************
+  **
+  ** Index just past a comment, PI, or CDATA section starting at pos. -1 if it
+  ** is not closed.
+  */
+
+  private int skipMarkup(int pos) {
+    String close;
+    if (startsWith(pos, "<!--")) {
+      close = "-->";
+    } else if (startsWith(pos, "<![CDATA[")) {
+      close = "]]>";
+    } else {
+      close = "?>";
+    }
+    int end = indexOf(pos + 2, close);
+    return ((end < 0) ? -1 : end + close.length());
+  }
+
+  private boolean startsWith(int pos, String str) {
+    int num = str.length();
+    if ((pos + num) > xml_.length) {
+      return (false);
+    }
+    for (int i = 0; i < num; i++) {
+      if (xml_[pos + i] != str.charAt(i)) {
+        return (false);
+      }
+    }
+    return (true);
+  }
+
+  private int indexOf(int from, String str) {
+    int last = xml_.length - str.length();
+    for (int i = from; i <= last; i++) {
+      if (startsWith(i, str)) {
+        return (i);
+      }
+    }
+    return (-1);
+  }
+
+  private boolean isWhitespace(byte ch) {
+    return ((ch == ' ') || (ch == '\t') || (ch == '\n') || (ch == '\r'));
+  }
+}
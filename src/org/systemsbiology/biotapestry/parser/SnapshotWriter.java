@@ -0,0 +1,560 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.parser;
+
+import java.io.IOException;
+import java.io.OutputStream;
+import java.io.Writer;
+import java.util.ArrayList;
+
+import org.xml.sax.SAXException;
+import org.xml.sax.helpers.AttributesImpl;
+
+/****************************************************************************
+**
+** Takes the XML that the model writes out and turns it into a binary snapshot
+** (see RecordedDocument) as it goes, so saving a snapshot never builds the
+** XML text, parses it, or records it. The snapshot is written to the stream
+** when this is closed.
+**
+** The tags are picked apart here, not by a full XML parser, which only works
+** because we wrote them ourselves: no DOCTYPE, no namespaces, and only the
+** predefined and numeric entities. Anything else is an IOException. The
+** events come out as a SAX parser would deliver them: line ends and attribute
+** whitespace are normalized, and comments, processing instructions, and text
+** outside the root element are dropped.
+*/
+
+public class SnapshotWriter extends Writer {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final int TEXT_       = 0;
+  private static final int ENTITY_     = 1;
+  private static final int TAG_        = 2;
+  private static final int START_NAME_ = 3;
+  private static final int IN_TAG_     = 4;
+  private static final int ATTR_NAME_  = 5;
+  private static final int ATTR_EQ_    = 6;
+  private static final int ATTR_QUOTE_ = 7;
+  private static final int ATTR_VALUE_ = 8;
+  private static final int EMPTY_TAG_  = 9;
+  private static final int END_NAME_   = 10;
+  private static final int END_TAG_    = 11;
+  private static final int BANG_       = 12;
+  private static final int COMMENT_    = 13;
+  private static final int CDATA_      = 14;
+  private static final int PI_         = 15;
+
+  private static final String COMMENT_OPEN_ = "--";
+  private static final String CDATA_OPEN_ = "[CDATA[";
+  private static final String CDATA_TYPE_ = "CDATA";
+  private static final int MAX_ENTITY_ = 10;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCE MEMBERS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private final OutputStream stream_;
+  private final RecordedDocument.SnapshotEncoder encoder_;
+  private final AttributesImpl attrs_;
+  private final ArrayList<String> open_;
+  private final StringBuilder text_;
+  private final StringBuilder name_;
+  private final StringBuilder value_;
+  private final StringBuilder entity_;
+  private char[] scratch_;
+  private String attrName_;
+  private int state_;
+  private int entityReturn_;
+  private char quote_;
+  private int closers_;
+  private boolean lastWasCR_;
+  private boolean rootDone_;
+  private IOException failure_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Constructor. The snapshot goes to the stream, which is closed with this.
+  */
+
+  public SnapshotWriter(OutputStream stream) {
+    stream_ = stream;
+    encoder_ = new RecordedDocument.SnapshotEncoder();
+    attrs_ = new AttributesImpl();
+    open_ = new ArrayList<String>();
+    text_ = new StringBuilder();
+    name_ = new StringBuilder();
+    value_ = new StringBuilder();
+    entity_ = new StringBuilder();
+    scratch_ = new char[256];
+    state_ = TEXT_;
+    lastWasCR_ = false;
+    rootDone_ = false;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Take more of the XML
+  */
+
+  @Override
+  public void write(char[] cbuf, int off, int len) throws IOException {
+    write(new String(cbuf, off, len), 0, len);
+    return;
+  }
+
+  @Override
+  public void write(String str, int off, int len) throws IOException {
+    checkFailure();
+    int end = off + len;
+    int i = off;
+    while (i < end) {
+      //
+      // Text and attribute values are most of it, so take runs of plain
+      // characters in one go:
+      //
+      if (!lastWasCR_ && ((state_ == TEXT_) || (state_ == ATTR_VALUE_))) {
+        boolean inText = (state_ == TEXT_);
+        int run = i;
+        while ((run < end) && isPlain(str.charAt(run), inText)) {
+          run++;
+        }
+        if (run > i) {
+          ((inText) ? text_ : value_).append(str, i, run);
+          i = run;
+          continue;
+        }
+      }
+      take(str.charAt(i++));
+    }
+    return;
+  }
+
+  @Override
+  public void write(int ch) throws IOException {
+    checkFailure();
+    take((char)ch);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Nothing can go out until the whole document is in
+  */
+
+  @Override
+  public void flush() throws IOException {
+    checkFailure();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** The document is done: write the snapshot and close the stream
+  */
+
+  @Override
+  public void close() throws IOException {
+    try {
+      checkFailure();
+      if ((state_ != TEXT_) || !rootDone_) {
+        fail("Incomplete document");
+      }
+      flushText();
+      encoder_.writeTo(stream_);
+    } finally {
+      stream_.close();
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Once something has gone wrong, nothing else gets through. (PrintWriter
+  ** swallows the first exception, and keeps on writing.)
+  */
+
+  private void checkFailure() throws IOException {
+    if (failure_ != null) {
+      throw failure_;
+    }
+    return;
+  }
+
+  private void fail(String msg) throws IOException {
+    failure_ = new IOException("Cannot write snapshot: " + msg);
+    throw failure_;
+  }
+
+  /***************************************************************************
+  **
+  ** Take the next character. Line ends come in as \r\n, \r, or \n, and go on
+  ** as \n, as with any XML parser.
+  */
+
+  private void take(char ch) throws IOException {
+    if (ch == '\r') {
+      lastWasCR_ = true;
+      ch = '\n';
+    } else if (lastWasCR_) {
+      lastWasCR_ = false;
+      if (ch == '\n') {
+        return;
+      }
+    }
+
+    switch (state_) {
+      case TEXT_:
+        if (ch == '<') {
+          state_ = TAG_;
+        } else if (ch == '&') {
+          startEntity(TEXT_);
+        } else {
+          text_.append(ch);
+        }
+        break;
+      case ENTITY_:
+        if (ch == ';') {
+          endEntity();
+        } else if (entity_.length() < MAX_ENTITY_) {
+          entity_.append(ch);
+        } else {
+          fail("Bad entity &" + entity_);
+        }
+        break;
+      case TAG_:
+        if (ch == '/') {
+          flushText();
+          name_.setLength(0);
+          state_ = END_NAME_;
+        } else if (ch == '?') {
+          closers_ = 0;
+          state_ = PI_;
+        } else if (ch == '!') {
+          name_.setLength(0);
+          state_ = BANG_;
+        } else if (Character.isLetter(ch) || (ch == '_')) {
+          flushText();
+          name_.setLength(0);
+          name_.append(ch);
+          state_ = START_NAME_;
+        } else {
+          fail("Bad tag <" + ch);
+        }
+        break;
+      case START_NAME_:
+        if (isSpace(ch)) {
+          state_ = IN_TAG_;
+        } else if (ch == '/') {
+          state_ = EMPTY_TAG_;
+        } else if (ch == '>') {
+          emitStart();
+        } else {
+          name_.append(ch);
+        }
+        break;
+      case IN_TAG_:
+        if (ch == '/') {
+          state_ = EMPTY_TAG_;
+        } else if (ch == '>') {
+          emitStart();
+        } else if (!isSpace(ch)) {
+          value_.setLength(0);
+          value_.append(ch);
+          state_ = ATTR_NAME_;
+        }
+        break;
+      case ATTR_NAME_:
+        if (ch == '=') {
+          attrName_ = value_.toString();
+          state_ = ATTR_QUOTE_;
+        } else if (isSpace(ch)) {
+          attrName_ = value_.toString();
+          state_ = ATTR_EQ_;
+        } else {
+          value_.append(ch);
+        }
+        break;
+      case ATTR_EQ_:
+        if (ch == '=') {
+          state_ = ATTR_QUOTE_;
+        } else if (!isSpace(ch)) {
+          fail("Attribute " + attrName_ + " has no value");
+        }
+        break;
+      case ATTR_QUOTE_:
+        if ((ch == '"') || (ch == '\'')) {
+          quote_ = ch;
+          value_.setLength(0);
+          state_ = ATTR_VALUE_;
+        } else if (!isSpace(ch)) {
+          fail("Attribute " + attrName_ + " is not quoted");
+        }
+        break;
+      case ATTR_VALUE_:
+        if (ch == quote_) {
+          attrs_.addAttribute("", attrName_, attrName_, CDATA_TYPE_, value_.toString());
+          state_ = IN_TAG_;
+        } else if (ch == '&') {
+          startEntity(ATTR_VALUE_);
+        } else if (ch == '<') {
+          fail("Attribute " + attrName_ + " holds a <");
+        } else if ((ch == '\n') || (ch == '\t')) {
+          value_.append(' ');
+        } else {
+          value_.append(ch);
+        }
+        break;
+      case EMPTY_TAG_:
+        if (ch != '>') {
+          fail("Bad empty tag " + name_);
+        }
+        String empty = name_.toString();
+        emitStart();
+        emitEnd(empty);
+        break;
+      case END_NAME_:
+        if (ch == '>') {
+          emitEnd(name_.toString());
+        } else if (isSpace(ch)) {
+          state_ = END_TAG_;
+        } else {
+          name_.append(ch);
+        }
+        break;
+      case END_TAG_:
+        if (ch == '>') {
+          emitEnd(name_.toString());
+        } else if (!isSpace(ch)) {
+          fail("Bad end tag " + name_);
+        }
+        break;
+      case BANG_:
+        name_.append(ch);
+        String sofar = name_.toString();
+        if (sofar.equals(COMMENT_OPEN_)) {
+          closers_ = 0;
+          state_ = COMMENT_;
+        } else if (sofar.equals(CDATA_OPEN_)) {
+          closers_ = 0;
+          state_ = CDATA_;
+        } else if (!COMMENT_OPEN_.startsWith(sofar) && !CDATA_OPEN_.startsWith(sofar)) {
+          fail("Unsupported markup <!" + sofar);
+        }
+        break;
+      case COMMENT_:
+        if (ch == '-') {
+          closers_++;
+        } else if ((ch == '>') && (closers_ >= 2)) {
+          state_ = TEXT_;
+        } else {
+          closers_ = 0;
+        }
+        break;
+      case CDATA_:
+        if (ch == ']') {
+          if (closers_ == 2) {
+            text_.append(']');
+          } else {
+            closers_++;
+          }
+        } else if ((ch == '>') && (closers_ == 2)) {
+          state_ = TEXT_;
+        } else {
+          for (int i = 0; i < closers_; i++) {
+            text_.append(']');
+          }
+          closers_ = 0;
+          text_.append(ch);
+        }
+        break;
+      case PI_:
+        if (ch == '?') {
+          closers_ = 1;
+        } else if ((ch == '>') && (closers_ == 1)) {
+          state_ = TEXT_;
+        } else {
+          closers_ = 0;
+        }
+        break;
+      default:
+        throw new IllegalStateException();
+    }
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Entities
+  */
+
+  private void startEntity(int returnTo) {
+    entity_.setLength(0);
+    entityReturn_ = returnTo;
+    state_ = ENTITY_;
+    return;
+  }
+
+  private void endEntity() throws IOException {
+    StringBuilder target = (entityReturn_ == TEXT_) ? text_ : value_;
+    String ent = entity_.toString();
+    if (ent.equals("amp")) {
+      target.append('&');
+    } else if (ent.equals("lt")) {
+      target.append('<');
+    } else if (ent.equals("gt")) {
+      target.append('>');
+    } else if (ent.equals("quot")) {
+      target.append('"');
+    } else if (ent.equals("apos")) {
+      target.append('\'');
+    } else if (ent.startsWith("#")) {
+      int code;
+      try {
+        if (ent.startsWith("#x")) {
+          code = Integer.parseInt(ent.substring(2), 16);
+        } else {
+          code = Integer.parseInt(ent.substring(1));
+        }
+      } catch (NumberFormatException nfex) {
+        code = -1;
+      }
+      if ((code <= 0) || (code > Character.MAX_CODE_POINT)) {
+        fail("Bad character reference &" + ent + ";");
+      }
+      target.append(Character.toChars(code));
+    } else {
+      fail("Unknown entity &" + ent + ";");
+    }
+    state_ = entityReturn_;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Tags
+  */
+
+  private void emitStart() throws IOException {
+    if (rootDone_) {
+      fail("More than one root element");
+    }
+    String name = name_.toString();
+    try {
+      encoder_.startElement("", name, name, attrs_);
+    } catch (SAXException sex) {
+      fail(sex.getMessage());
+    }
+    attrs_.clear();
+    open_.add(name);
+    state_ = TEXT_;
+    return;
+  }
+
+  private void emitEnd(String name) throws IOException {
+    int last = open_.size() - 1;
+    if ((last < 0) || !open_.get(last).equals(name)) {
+      fail("Unmatched end tag " + name);
+    }
+    open_.remove(last);
+    try {
+      encoder_.endElement("", name, name);
+    } catch (SAXException sex) {
+      fail(sex.getMessage());
+    }
+    rootDone_ = open_.isEmpty();
+    state_ = TEXT_;
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Hand over the text since the last tag. Outside the root element, only
+  ** whitespace is allowed, and it is dropped.
+  */
+
+  private void flushText() throws IOException {
+    int len = text_.length();
+    if (len == 0) {
+      return;
+    }
+    if (open_.isEmpty()) {
+      for (int i = 0; i < len; i++) {
+        if (!isSpace(text_.charAt(i))) {
+          fail("Text outside the root element");
+        }
+      }
+    } else {
+      if (scratch_.length < len) {
+        scratch_ = new char[Math.max(len, scratch_.length * 2)];
+      }
+      text_.getChars(0, len, scratch_, 0);
+      try {
+        encoder_.characters(scratch_, 0, len);
+      } catch (SAXException sex) {
+        fail(sex.getMessage());
+      }
+    }
+    text_.setLength(0);
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Answers if the character needs no special handling in text, or in an
+  ** attribute value
+  */
+
+  private boolean isPlain(char ch, boolean inText) {
+    if ((ch == '<') || (ch == '&') || (ch == '\r')) {
+      return (false);
+    }
+    return (inText || ((ch != quote_) && (ch != '\n') && (ch != '\t')));
+  }
+
+  private static boolean isSpace(char ch) {
+    return ((ch == ' ') || (ch == '\n') || (ch == '\t') || (ch == '\r'));
+  }
+}
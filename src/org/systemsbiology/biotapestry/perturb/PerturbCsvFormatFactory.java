@@ -19,9 +19,7 @@
 
 package org.systemsbiology.biotapestry.perturb;
 
-import java.io.BufferedReader;
 import java.io.File;
-import java.io.FileReader;
 import java.util.List;
 import java.util.ArrayList;
 import java.util.Iterator;
@@ -36,8 +34,6 @@ import java.util.SortedSet;
 import java.util.StringTokenizer;
 import java.util.TreeMap;
 import java.util.TreeSet;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 import javax.swing.JOptionPane;
 
 import org.systemsbiology.biotapestry.app.BTState;
@@ -50,9 +46,15 @@ import org.systemsbiology.biotapestry.event.GeneralChangeEvent;
 import org.systemsbiology.biotapestry.ui.dialogs.TimeAxisSetupDialog;
 import org.systemsbiology.biotapestry.ui.dialogs.pertManage.BatchDupReportDialog;
 import org.systemsbiology.biotapestry.ui.dialogs.pertManage.NewbieReportingDialog;
+import org.systemsbiology.biotapestry.util.AsynchExitRequestException;
+import org.systemsbiology.biotapestry.util.BTProgressMonitor;
+import org.systemsbiology.biotapestry.util.BackgroundWorker;
+import org.systemsbiology.biotapestry.util.BackgroundWorkerClient;
+import org.systemsbiology.biotapestry.util.BackgroundWorkerOwner;
 import org.systemsbiology.biotapestry.util.BoundedDoubMinMax;
 import org.systemsbiology.biotapestry.util.CSVParser;
 import org.systemsbiology.biotapestry.util.DataUtil;
+import org.systemsbiology.biotapestry.util.MappedLineReader;
 import org.systemsbiology.biotapestry.util.MinMax;
 import org.systemsbiology.biotapestry.util.ResourceManager;
 import org.systemsbiology.biotapestry.util.UndoSupport;
@@ -202,6 +204,13 @@ public class PerturbCsvFormatFactory {
   //
   //////////////////////////////////////////////////////////////////////////// 
 
+  //
+  // Data rows are handled this many at a time, over this many passes:
+  //
+  
+  private static final int BATCH_ROWS_ = 1000;
+  private static final int NUM_PASSES_ = 4;
+
   ////////////////////////////////////////////////////////////////////////////
   //
   // PUBLIC CONSTANTS
@@ -239,6 +248,8 @@ public class PerturbCsvFormatFactory {
   private boolean useBatch_;
   private boolean useInvest_;
   private boolean useCondition_;
+  private long fileLength_;
+  private long fileModified_;
    
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -273,29 +284,25 @@ public class PerturbCsvFormatFactory {
 
   /***************************************************************************
   ** 
-  ** Get the Perturb Data
+  ** Get the Perturb Data. The file is streamed a batch of rows at a time,
+  ** several times over: once to parse and check it, once to look for newbies
+  ** and batch collisions, once for bad measurements, and once to install it.
+  ** Only the parameters of each data set are kept between passes, so memory
+  ** goes with the batch size, not the file size. The parse and install passes
+  ** run on a background worker, with progress and a chance to cancel; the
+  ** reports and their dialogs come in between, on this thread. Nothing is
+  ** installed until the user has seen all the reports, and a cancel or an IO
+  ** error while installing rolls back what was done.
   */
 
   public boolean parsePerturbCSV(File infile) throws IOException {
     PerturbationData pd = dacx_.getExpDataSrc().getPertData();
-    List<List<String>> blockList = fileToLineBlocks(infile);
     //
     // Separate IO Errors from data errors:
     //
-    Iterator<List<String>> blit = blockList.iterator();
     ArrayList<CSVState> csvList = new ArrayList<CSVState>();
-    int setNumber = 1;
-    int blockNum = 0;
-    CSVState csvState = null;
-    while (blit.hasNext()) {
-      List<String> block = blit.next();
-      if ((blockNum % 2) == 0) {
-        csvState = new CSVState(appState_, dacx_, false, setNumber++, paramNameToPdKeyMap_, 
-                                useDate_, useTime_, useBatch_, useInvest_, useCondition_);
-        csvList.add(csvState);
-        blockNum = 0;
-      }
-      processLineBlock(block, blockNum++, csvState, pd);
+    if (!runPass(infile, csvList, pd, null, 0)) {
+      return (false);
     }
     
     TaggedTAD ttad = handleTimeDefinition();
@@ -311,7 +318,9 @@ public class PerturbCsvFormatFactory {
     HashMap<String, Map<String, String>> newbieClosest = new HashMap<String, Map<String, String>>();
     TreeMap<String, SortedMap<String, SortedMap<String, BatchCollision>>> batchDups = new TreeMap<String, SortedMap<String, SortedMap<String, BatchCollision>>>();
     boolean haveNP = flagNewbieParams(pd, allNewbies);
-    boolean haveN = flagNewbies(csvList, pd, allNewbies, newbieClosest, batchDups, ttad.tad);
+    NewbieFlagger flagger = new NewbieFlagger(pd, allNewbies, newbieClosest, batchDups, ttad.tad);
+    reportPass(infile, csvList, pd, flagger, 1);
+    boolean haveN = flagger.haveNewbie;
          
     if (haveNP || haveN) {
       findNewbieNeighbors(pd, allNewbies, newbieClosest);
@@ -330,7 +339,9 @@ public class PerturbCsvFormatFactory {
       }
     }
 
-    if (reportBadMeasurements(csvList, ttad.tad)) {
+    BadMeasureReporter reporter = new BadMeasureReporter(ttad.tad);
+    reportPass(infile, csvList, pd, reporter, 2);
+    if (reporter.haveBad) {
       return (false);
     }    
 
@@ -339,21 +350,72 @@ public class PerturbCsvFormatFactory {
     //
     
     UndoSupport support = new UndoSupport(appState_, "undo.pertCsv");
-    if (ttad.tad != null) {
-      DatabaseChange dc = dacx_.getExpDataSrc().setTimeAxisDefinition(ttad.tad);
-      if (dc != null) {
-        DatabaseChangeCmd dcc = new DatabaseChangeCmd(appState_, dacx_, dc);
-        support.addEdit(dcc);
+    try {
+      if (ttad.tad != null) {
+        DatabaseChange dc = dacx_.getExpDataSrc().setTimeAxisDefinition(ttad.tad);
+        if (dc != null) {
+          DatabaseChangeCmd dcc = new DatabaseChangeCmd(appState_, dacx_, dc);
+          support.addEdit(dcc);
+        }
+      }
+      
+      paramsToDatabase(pd, support);
+      if (!runPass(infile, csvList, pd, new MeasurementExtractor(pd, support), 3)) {
+        support.rollback();
+        return (false);
       }
+    } catch (IOException ioex) {
+      support.rollback();
+      throw ioex;
     }
-    
-    paramsToDatabase(pd, support);    
-    extractMeasurements(csvList, pd, support);
     support.addEvent(new GeneralChangeEvent(GeneralChangeEvent.MODEL_DATA_CHANGE));
     support.finish();
     return (true);
   }  
   
+  /***************************************************************************
+  ** 
+  ** Run one pass over the file on a background worker: on its own thread
+  ** behind a progress dialog, or on this thread when headless. Answers false
+  ** if the user cancelled, or the pass ran out of memory.
+  */
+
+  private boolean runPass(File infile, List<CSVState> csvList, PerturbationData pd, 
+                          BatchHandler handler, int pass) throws IOException {
+    boolean isHeadless = appState_.isHeadless();
+    PassRunner runner = new PassRunner(infile, csvList, pd, handler, pass, isHeadless);
+    PassOwner owner = new PassOwner();
+    BackgroundWorkerClient bwc;     
+    if (!isHeadless) {
+      bwc = new BackgroundWorkerClient(appState_, owner, runner, "pertCsv.waitTitle", "pertCsv.wait", null, true);
+    } else {
+      bwc = new BackgroundWorkerClient(appState_, owner, runner, null);
+    }
+    runner.setClient(bwc);
+    // The progress dialog is modal, so this returns once the pass is over:
+    bwc.launchWorker();
+    if (owner.ioex != null) {
+      throw owner.ioex;
+    }
+    return (!owner.cancelled && (owner.result != null));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Run one of the report passes on this thread, since its reports may
+  ** need dialogs
+  */
+
+  private void reportPass(File infile, List<CSVState> csvList, PerturbationData pd, 
+                          BatchHandler handler, int pass) throws IOException {
+    try {
+      streamFile(infile, csvList, pd, handler, null, pass);
+    } catch (AsynchExitRequestException aex) {
+      throw new IllegalStateException();  // Should not happen without a monitor
+    }
+    return;
+  }
+  
   /***************************************************************************
   ** 
   ** Handle time definition
@@ -563,147 +625,143 @@ public class PerturbCsvFormatFactory {
   ** Look for new entities
   */
   
-  private boolean flagNewbies(List<CSVState> cssList, PerturbationData pd, Map<String, Set<String>> retval, 
+  private boolean flagNewbies(List<CSVData> csvBatch, PerturbationData pd, Map<String, Set<String>> retval, 
                               Map<String, Map<String, String>> closest, 
                               SortedMap<String, SortedMap<String, SortedMap<String, BatchCollision>>> batchDups, 
                               TimeAxisDefinition pendingTAD) throws IOException { 
     boolean haveNewbie = false;
  
-    Iterator<CSVState> cssit = cssList.iterator();
-    while (cssit.hasNext()) {
-      CSVState csvs = cssit.next();
-      Iterator<CSVData> csvit = csvs.getValues().iterator();
-      while (csvit.hasNext()) {
-        CSVData csv = csvit.next(); 
-        if (pd.getInvestigatorCount() > 0) {
-          Set<String> newbieInvest = retval.get(NEWBIE_INVEST);
-          if (newbieInvest == null) {
-            newbieInvest = new HashSet<String>();
-            retval.put(NEWBIE_INVEST, newbieInvest);
-          }
-          List<String> invests = csv.getInvestigators();
-          int numInv = invests.size();
-          for (int i = 0; i < numInv; i++) {
-            String invest = invests.get(i);
-            String investKey = pd.getInvestKeyFromName(invest);
-            if (investKey == null) {
-              newbieInvest.add(invest);
-              haveNewbie = true;
-            }
-          }
+    Iterator<CSVData> csvit = csvBatch.iterator();
+    while (csvit.hasNext()) {
+      CSVData csv = csvit.next(); 
+      if (pd.getInvestigatorCount() > 0) {
+        Set<String> newbieInvest = retval.get(NEWBIE_INVEST);
+        if (newbieInvest == null) {
+          newbieInvest = new HashSet<String>();
+          retval.put(NEWBIE_INVEST, newbieInvest);
         }
-        
-        if (pd.getTargetCount() > 0) {
-          Set<String> newbieTargets = retval.get(NEWBIE_TARGET);
-          if (newbieTargets == null) {
-            newbieTargets = new HashSet<String>();
-            retval.put(NEWBIE_TARGET, newbieTargets);  
+        List<String> invests = csv.getInvestigators();
+        int numInv = invests.size();
+        for (int i = 0; i < numInv; i++) {
+          String invest = invests.get(i);
+          String investKey = pd.getInvestKeyFromName(invest);
+          if (investKey == null) {
+            newbieInvest.add(invest);
+            haveNewbie = true;
           }
-          Set<String> targets = csv.getTargets();
-          Iterator<String> trit = targets.iterator();
-          while (trit.hasNext()) {
-            String targetKey = trit.next();
-            String tkey = pd.getTargetFromName(csv.getOriginalTargetName(targetKey));
-            if (tkey == null) {
-              newbieTargets.add(csv.getOriginalTargetName(targetKey));
-              haveNewbie = true;
-            }
+        }
+      }
+      
+      if (pd.getTargetCount() > 0) {
+        Set<String> newbieTargets = retval.get(NEWBIE_TARGET);
+        if (newbieTargets == null) {
+          newbieTargets = new HashSet<String>();
+          retval.put(NEWBIE_TARGET, newbieTargets);  
+        }
+        Set<String> targets = csv.getTargets();
+        Iterator<String> trit = targets.iterator();
+        while (trit.hasNext()) {
+          String targetKey = trit.next();
+          String tkey = pd.getTargetFromName(csv.getOriginalTargetName(targetKey));
+          if (tkey == null) {
+            newbieTargets.add(csv.getOriginalTargetName(targetKey));
+            haveNewbie = true;
           }
-        }            
+        }
+      }            
 
-        if (pd.getPertSourceCount() > 0) {
-          Set<String> newbiePertSource = retval.get(NEWBIE_PERT_SOURCE);
-          if (newbiePertSource == null) {
-            newbiePertSource = new HashSet<String>();
-            retval.put(NEWBIE_PERT_SOURCE, newbiePertSource);
-          }
-          String multiDisp = multiMatchingSources(csv, pd);
-          if (multiDisp != null) {  // multi-match forces an exit
-            throw new IOException(buildNoLineErrorMessage("csvInput.multiSourceMatch", multiDisp));
+      if (pd.getPertSourceCount() > 0) {
+        Set<String> newbiePertSource = retval.get(NEWBIE_PERT_SOURCE);
+        if (newbiePertSource == null) {
+          newbiePertSource = new HashSet<String>();
+          retval.put(NEWBIE_PERT_SOURCE, newbiePertSource);
+        }
+        String multiDisp = multiMatchingSources(csv, pd);
+        if (multiDisp != null) {  // multi-match forces an exit
+          throw new IOException(buildNoLineErrorMessage("csvInput.multiSourceMatch", multiDisp));
+        }
+        List<CSVData.ExperimentTokens> srcs = csv.getSources();
+        int numSrcs = srcs.size();
+        for (int i = 0; i < numSrcs; i++) {
+          CSVData.ExperimentTokens etok = srcs.get(i);
+          String psKey = pd.getPertSourceFromName(etok.base);
+          if (psKey == null) {
+            newbiePertSource.add(etok.base);
+            haveNewbie = true;
           }
+        }
+      }
+      
+      if (pd.getExperimentCount() > 0) {
+        Set<String> newbieExperiments = retval.get(NEWBIE_EXPERIMENT);
+        if (newbieExperiments == null) {
+          newbieExperiments = new HashSet<String>();
+          retval.put(NEWBIE_EXPERIMENT, newbieExperiments);  
+        }
+        Set<String> matches = matchingExperiments(csv, pd, pendingTAD, true);
+        int numMatch = matches.size();
+        if (numMatch != 1) {  // no match or multi-match
+          int time = processTime(csv, pendingTAD);
+          String times = Experiment.getTimeDisplayString(appState_, new MinMax(time, time), true, true);
+          String invests = DataUtil.getMultiDisplayString(csv.getInvestigators());
+          ArrayList<String> tokStrs = new ArrayList<String>();
           List<CSVData.ExperimentTokens> srcs = csv.getSources();
           int numSrcs = srcs.size();
           for (int i = 0; i < numSrcs; i++) {
             CSVData.ExperimentTokens etok = srcs.get(i);
-            String psKey = pd.getPertSourceFromName(etok.base);
-            if (psKey == null) {
-              newbiePertSource.add(etok.base);
-              haveNewbie = true;
-            }
+            tokStrs.add(etok.orig);
+          }          
+          String perts = DataUtil.getMultiDisplayString(tokStrs);
+          String dispStr = Experiment.getDisplayString(perts, times, invests);
+          if (numMatch == 0) {  // no match
+            newbieExperiments.add(dispStr);
+            findNewbieExperimentNeighbor(dispStr, csv, pd, pendingTAD, closest);
+            haveNewbie = true;
+          } else { // Multi-match
+            throw new IOException(buildNoLineErrorMessage("csvInput.multiMatch", dispStr));
           }
-        }
-        
-        if (pd.getExperimentCount() > 0) {
-          Set<String> newbieExperiments = retval.get(NEWBIE_EXPERIMENT);
-          if (newbieExperiments == null) {
-            newbieExperiments = new HashSet<String>();
-            retval.put(NEWBIE_EXPERIMENT, newbieExperiments);  
-          }
-          Set<String> matches = matchingExperiments(csv, pd, pendingTAD, true);
-          int numMatch = matches.size();
-          if (numMatch != 1) {  // no match or multi-match
-            int time = processTime(csv, pendingTAD);
-            String times = Experiment.getTimeDisplayString(appState_, new MinMax(time, time), true, true);
-            String invests = DataUtil.getMultiDisplayString(csv.getInvestigators());
-            ArrayList<String> tokStrs = new ArrayList<String>();
-            List<CSVData.ExperimentTokens> srcs = csv.getSources();
-            int numSrcs = srcs.size();
-            for (int i = 0; i < numSrcs; i++) {
-              CSVData.ExperimentTokens etok = srcs.get(i);
-              tokStrs.add(etok.orig);
-            }          
-            String perts = DataUtil.getMultiDisplayString(tokStrs);
-            String dispStr = Experiment.getDisplayString(perts, times, invests);
-            if (numMatch == 0) {  // no match
-              newbieExperiments.add(dispStr);
-              findNewbieExperimentNeighbor(dispStr, csv, pd, pendingTAD, closest);
-              haveNewbie = true;
-            } else { // Multi-match
-              throw new IOException(buildNoLineErrorMessage("csvInput.multiMatch", dispStr));
-            }
-          } else { // Single match, look for batch key collisions
-            String expKey = matches.iterator().next();
-            Map<String, Map<String, List<String>>> batchKeys = pd.mergeExperimentBatchCollisions(matches);
-            Set<String> targets = csv.getTargets();
-            Iterator<String> trit = targets.iterator();
-            while (trit.hasNext()) {
-              String targetKey = trit.next();
-              String targName = csv.getOriginalTargetName(targetKey);
-              String tkey = pd.getTargetFromName(targName);
-              if (tkey != null) {
-                Map<String, List<String>> forTarg = batchKeys.get(tkey);
-                String batchID = csv.getBatchID();
-                if (forTarg != null) {
-                  List<String> vals = forTarg.get(batchID);
-                  if (vals == null) {
-                    continue;
-                  }
-                  String dispKey = pd.getExperiment(expKey).getDisplayString(pd);
-                  SortedMap<String, SortedMap<String, BatchCollision>> forExp = batchDups.get(dispKey);
-                  if (forExp == null) {
-                    forExp = new TreeMap<String, SortedMap<String, BatchCollision>>();
-                    batchDups.put(dispKey, forExp);
-                  }
-                  // use target name for for sorting:
-                  SortedMap<String, BatchCollision> perTarg = forExp.get(targetKey);
-                  if (perTarg == null) {
-                    perTarg = new TreeMap<String, BatchCollision>();
-                    forExp.put(targetKey, perTarg);
-                  }  
-                  BatchCollision bc = perTarg.get(batchID);
-                  if (bc == null) {
-                    bc = new BatchCollision(dispKey, targName, batchID);
-                    perTarg.put(batchID, bc);
-                    bc.vals.addAll(vals);
-                  }
-                  List<CSVData.DataPoint> mea = csv.getMeasurements(targetKey);
-                  int numMea = mea.size();
-                  for (int i = 0; i < numMea; i++) {
-                    CSVData.DataPoint dp = mea.get(i);
-                    bc.vals.add(dp.value);
-                  }     
+        } else { // Single match, look for batch key collisions
+          String expKey = matches.iterator().next();
+          Map<String, Map<String, List<String>>> batchKeys = pd.mergeExperimentBatchCollisions(matches);
+          Set<String> targets = csv.getTargets();
+          Iterator<String> trit = targets.iterator();
+          while (trit.hasNext()) {
+            String targetKey = trit.next();
+            String targName = csv.getOriginalTargetName(targetKey);
+            String tkey = pd.getTargetFromName(targName);
+            if (tkey != null) {
+              Map<String, List<String>> forTarg = batchKeys.get(tkey);
+              String batchID = csv.getBatchID();
+              if (forTarg != null) {
+                List<String> vals = forTarg.get(batchID);
+                if (vals == null) {
+                  continue;
+                }
+                String dispKey = pd.getExperiment(expKey).getDisplayString(pd);
+                SortedMap<String, SortedMap<String, BatchCollision>> forExp = batchDups.get(dispKey);
+                if (forExp == null) {
+                  forExp = new TreeMap<String, SortedMap<String, BatchCollision>>();
+                  batchDups.put(dispKey, forExp);
+                }
+                // use target name for for sorting:
+                SortedMap<String, BatchCollision> perTarg = forExp.get(targetKey);
+                if (perTarg == null) {
+                  perTarg = new TreeMap<String, BatchCollision>();
+                  forExp.put(targetKey, perTarg);
                 }  
-              }
+                BatchCollision bc = perTarg.get(batchID);
+                if (bc == null) {
+                  bc = new BatchCollision(dispKey, targName, batchID);
+                  perTarg.put(batchID, bc);
+                  bc.vals.addAll(vals);
+                }
+                List<CSVData.DataPoint> mea = csv.getMeasurements(targetKey);
+                int numMea = mea.size();
+                for (int i = 0; i < numMea; i++) {
+                  CSVData.DataPoint dp = mea.get(i);
+                  bc.vals.add(dp.value);
+                }     
+              }  
             }
           }
         }
@@ -895,125 +953,121 @@ public class PerturbCsvFormatFactory {
   ** Export the measurement
   */
   
-  private void extractMeasurements(List<CSVState> cssList, PerturbationData pd, UndoSupport support) throws IOException {
-    
-    long timeStamp = System.currentTimeMillis();
-    Iterator<CSVState> cssit = cssList.iterator();
-    while (cssit.hasNext()) {
-      CSVState csvs = cssit.next();
-      Iterator<CSVData> csvit = csvs.getValues().iterator();
-      while (csvit.hasNext()) {
-        CSVData csv = csvit.next();
-        ArrayList<String> investIDs = new ArrayList<String>();
-        List<String> invests = csv.getInvestigators();
-        int numInv = invests.size();
-        for (int i = 0; i < numInv; i++) {
-          String invest = invests.get(i);
-          PerturbationData.KeyAndDataChange kdac = pd.provideInvestigator(invest);
-          if (kdac.undoInfo != null) {
-            support.addEdit(new PertDataChangeCmd(appState_, dacx_, kdac.undoInfo));        
-          }
-          investIDs.add(kdac.key);
+  private void extractMeasurements(CSVState csvs, List<CSVData> csvBatch, PerturbationData pd, 
+                                   UndoSupport support, long timeStamp) throws IOException {
+    
+    Iterator<CSVData> csvit = csvBatch.iterator();
+    while (csvit.hasNext()) {
+      CSVData csv = csvit.next();
+      ArrayList<String> investIDs = new ArrayList<String>();
+      List<String> invests = csv.getInvestigators();
+      int numInv = invests.size();
+      for (int i = 0; i < numInv; i++) {
+        String invest = invests.get(i);
+        PerturbationData.KeyAndDataChange kdac = pd.provideInvestigator(invest);
+        if (kdac.undoInfo != null) {
+          support.addEdit(new PertDataChangeCmd(appState_, dacx_, kdac.undoInfo));        
         }
+        investIDs.add(kdac.key);
+      }
 
-        List<CSVData.ExperimentTokens> srcs = csv.getSources();
-        int numSrcs = srcs.size();
-        PertSources pss = new PertSources(appState_);
-        for (int i = 0; i < numSrcs; i++) {
-          CSVData.ExperimentTokens etok = srcs.get(i);
-          PerturbationData.KeyAndDataChange kdac = pd.providePertSrcName(etok.base);
-          if (kdac.undoInfo != null) {
-            support.addEdit(new PertDataChangeCmd(appState_, dacx_, kdac.undoInfo));        
-          }
-          String pertKey = csvs.getPDKey(CSVState.PERT_TYPE_PARAM_, etok.expType);
-          kdac = pd.providePertSrc(kdac.key, pertKey, null, PertSource.NO_PROXY, new ArrayList<String>(), true);
-          if (kdac.undoInfo != null) {
-            support.addEdit(new PertDataChangeCmd(appState_, dacx_, kdac.undoInfo));        
-          }
-          pss.addSourceID(kdac.key);
+      List<CSVData.ExperimentTokens> srcs = csv.getSources();
+      int numSrcs = srcs.size();
+      PertSources pss = new PertSources(appState_);
+      for (int i = 0; i < numSrcs; i++) {
+        CSVData.ExperimentTokens etok = srcs.get(i);
+        PerturbationData.KeyAndDataChange kdac = pd.providePertSrcName(etok.base);
+        if (kdac.undoInfo != null) {
+          support.addEdit(new PertDataChangeCmd(appState_, dacx_, kdac.undoInfo));        
         }
-        int time = processTime(csv, null);
-        String condKey = csvs.getPDKey(CSVState.CONDITION_PARAM_, csv.getCondition());
-        PerturbationData.KeyAndDataChange kdac = pd.provideExperiment(pss, time, Experiment.NO_TIME, investIDs, condKey);
+        String pertKey = csvs.getPDKey(CSVState.PERT_TYPE_PARAM_, etok.expType);
+        kdac = pd.providePertSrc(kdac.key, pertKey, null, PertSource.NO_PROXY, new ArrayList<String>(), true);
         if (kdac.undoInfo != null) {
           support.addEdit(new PertDataChangeCmd(appState_, dacx_, kdac.undoInfo));        
         }
-        String psiKey = kdac.key;
-        Set<String> targets = csv.getTargets();
-        Iterator<String> trit = targets.iterator();
-        while (trit.hasNext()) {
-          String targetKey = trit.next();
-          kdac = pd.provideTarget(csv.getOriginalTargetName(targetKey));
-          String targKey = kdac.key;
-          if (kdac.undoInfo != null) {
-            support.addEdit(new PertDataChangeCmd(appState_, dacx_, kdac.undoInfo));        
-          }
-          List<CSVData.DataPoint> meas = csv.getMeasurements(targetKey);
-          int numM = meas.size();
-          for (int i = 0; i < numM; i++) {
-            CSVData.DataPoint dp = meas.get(i);
-            double measv = Double.NaN;
-            try {
-              measv = Double.parseDouble(dp.value);
-            } catch (NumberFormatException nfex) {
-              throw new IllegalStateException();  // Checked previously; should not happen
-            }  
-            String mKey = csvs.getPDKey(CSVState.MEASURE_TYPE_PARAM_, dp.measurement);
-            PertDataPoint pdp = new PertDataPoint(pd.getNextDataKey(), timeStamp, psiKey, targKey, mKey, measv);
-            pdp.setBatchKey(csv.getBatchID());
-            pdp.setDate(csv.getDate());
-            pdp.setComment(dp.comment);
-            if ((dp.control != null) && !dp.control.trim().equals("")) {
-              kdac = pd.provideExpControl(dp.control);
-              if (kdac.undoInfo != null) {
-                support.addEdit(new PertDataChangeCmd(appState_, dacx_, kdac.undoInfo));        
-              }
-              pdp.setControl(kdac.key);
+        pss.addSourceID(kdac.key);
+      }
+      int time = processTime(csv, null);
+      String condKey = csvs.getPDKey(CSVState.CONDITION_PARAM_, csv.getCondition());
+      PerturbationData.KeyAndDataChange kdac = pd.provideExperiment(pss, time, Experiment.NO_TIME, investIDs, condKey);
+      if (kdac.undoInfo != null) {
+        support.addEdit(new PertDataChangeCmd(appState_, dacx_, kdac.undoInfo));        
+      }
+      String psiKey = kdac.key;
+      Set<String> targets = csv.getTargets();
+      Iterator<String> trit = targets.iterator();
+      while (trit.hasNext()) {
+        String targetKey = trit.next();
+        kdac = pd.provideTarget(csv.getOriginalTargetName(targetKey));
+        String targKey = kdac.key;
+        if (kdac.undoInfo != null) {
+          support.addEdit(new PertDataChangeCmd(appState_, dacx_, kdac.undoInfo));        
+        }
+        List<CSVData.DataPoint> meas = csv.getMeasurements(targetKey);
+        int numM = meas.size();
+        for (int i = 0; i < numM; i++) {
+          CSVData.DataPoint dp = meas.get(i);
+          double measv = Double.NaN;
+          try {
+            measv = Double.parseDouble(dp.value);
+          } catch (NumberFormatException nfex) {
+            throw new IllegalStateException();  // Checked previously; should not happen
+          }  
+          String mKey = csvs.getPDKey(CSVState.MEASURE_TYPE_PARAM_, dp.measurement);
+          PertDataPoint pdp = new PertDataPoint(pd.getNextDataKey(), timeStamp, psiKey, targKey, mKey, measv);
+          pdp.setBatchKey(csv.getBatchID());
+          pdp.setDate(csv.getDate());
+          pdp.setComment(dp.comment);
+          if ((dp.control != null) && !dp.control.trim().equals("")) {
+            kdac = pd.provideExpControl(dp.control);
+            if (kdac.undoInfo != null) {
+              support.addEdit(new PertDataChangeCmd(appState_, dacx_, kdac.undoInfo));        
             }
-         
-            pdp.setIsSig(convertSigInput(dp.isValid));
-            PertDataChange pdc = pd.setDataPoint(pdp);      
+            pdp.setControl(kdac.key);
+          }
+       
+          pdp.setIsSig(convertSigInput(dp.isValid));
+          PertDataChange pdc = pd.setDataPoint(pdp);      
+          support.addEdit(new PertDataChangeCmd(appState_, dacx_, pdc));
+          
+          //
+          // Annotations
+          //
+          
+          if ((dp.annots != null) && !dp.annots.isEmpty()) {              
+            Map<String, String> aToKey = paramNameToPdKeyMap_.get(CSVState.ANNOT_PARAM_UC_);
+            ArrayList<String> keyList = new ArrayList<String>();
+            int numdpa = dp.annots.size();
+            for (int j = 0; j < numdpa; j++) {
+              String tag = dp.annots.get(j);
+              keyList.add(aToKey.get(tag));
+            }           
+            pdc = pd.setFootnotesForDataPoint(pdp.getID(), keyList);
             support.addEdit(new PertDataChangeCmd(appState_, dacx_, pdc));
-            
-            //
-            // Annotations
-            //
-            
-            if ((dp.annots != null) && !dp.annots.isEmpty()) {              
-              Map<String, String> aToKey = paramNameToPdKeyMap_.get(CSVState.ANNOT_PARAM_UC_);
-              ArrayList<String> keyList = new ArrayList<String>();
-              int numdpa = dp.annots.size();
-              for (int j = 0; j < numdpa; j++) {
-                String tag = dp.annots.get(j);
-                keyList.add(aToKey.get(tag));
-              }           
-              pdc = pd.setFootnotesForDataPoint(pdp.getID(), keyList);
-              support.addEdit(new PertDataChangeCmd(appState_, dacx_, pdc));
-            }
-           
-            //
-            // User Fields
-            //
-            
-            boolean allEmpty = true;
-            ArrayList<String> userV = new ArrayList<String>();
-            int ufCount = pd.getUserFieldCount();
-            for (int j = 0; j < ufCount; j++) {
-              String ufName = pd.getUserFieldName(j);
-              String ufVal = dp.userFields.get(DataUtil.normKey(ufName));    
-              if (ufVal == null) {
-                ufVal = "";
-              }
-              ufVal = ufVal.trim();
-              if (!ufVal.equals("")) {
-                allEmpty = false;
-              }
-              userV.add(ufVal);
+          }
+         
+          //
+          // User Fields
+          //
+          
+          boolean allEmpty = true;
+          ArrayList<String> userV = new ArrayList<String>();
+          int ufCount = pd.getUserFieldCount();
+          for (int j = 0; j < ufCount; j++) {
+            String ufName = pd.getUserFieldName(j);
+            String ufVal = dp.userFields.get(DataUtil.normKey(ufName));    
+            if (ufVal == null) {
+              ufVal = "";
             }
-            pdc = pd.setUserFieldValues(pdp.getID(), (allEmpty) ? null : userV);
-            if (pdc != null) {
-              support.addEdit(new PertDataChangeCmd(appState_, dacx_, pdc));
+            ufVal = ufVal.trim();
+            if (!ufVal.equals("")) {
+              allEmpty = false;
             }
+            userV.add(ufVal);
+          }
+          pdc = pd.setUserFieldValues(pdp.getID(), (allEmpty) ? null : userV);
+          if (pdc != null) {
+            support.addEdit(new PertDataChangeCmd(appState_, dacx_, pdc));
           }
         }
       }
@@ -1160,52 +1214,50 @@ public class PerturbCsvFormatFactory {
     
   /***************************************************************************
   ** 
-  ** Report bad measurements
+  ** Report bad measurements. Answers false when there is no need to keep
+  ** looking.
   */
 
-  private boolean reportBadMeasurements(List<CSVState> csvList, TimeAxisDefinition pendingTAD) {
-    boolean retval = false;
-    Iterator<CSVState> cssit = csvList.iterator();
-    while (cssit.hasNext()) {
-      CSVState csvs = cssit.next();
-      Iterator<CSVData> csvit = csvs.getValues().iterator();
-      while (csvit.hasNext()) {
-        CSVData csv = csvit.next();
-        if (processTime(csv, pendingTAD) == Integer.MIN_VALUE) {
-          return (true);
-        }
-        Set<String> targets = csv.getTargets();
-        Iterator<String> trit = targets.iterator();
-        while (trit.hasNext()) {
-          String target = trit.next();
-          List<CSVData.DataPoint> vals = csv.getMeasurements(target);
-          int vSize = vals.size();
-          for (int i = 0; i < vSize; i++) {
-            CSVData.DataPoint dpt = vals.get(i);
-            BoundedDoubMinMax illegal = csvs.getIllegalBounds(dpt.measurement);
-            if (!CSVData.isValidMeasurement(dpt.value, illegal)) {
-              retval = true;
-              ResourceManager rMan = appState_.getRMan();
-              String desc = MessageFormat.format(rMan.getString("qpcrcsv.badMeasurement"), 
-                                                 new Object[] {dpt.value});            
-              int result = JOptionPane.showOptionDialog(appState_.getTopFrame(), desc,
-                                                        rMan.getString("qpcrcsv.badMeasurementTitle"),
-                                                        JOptionPane.DEFAULT_OPTION, 
-                                                        JOptionPane.ERROR_MESSAGE, 
-                                                        null, new Object[] {
-                                                          rMan.getString("dialogs.skipMessages"),
-                                                          rMan.getString("dialogs.ok"),
-                                                        }, rMan.getString("dialogs.ok"));            
-              boolean skipMessages = (result == 0);
-              if (skipMessages) {
-                return (retval);
-              }
-            }
-          }     
-        }  
+  private boolean reportBadMeasurements(CSVState csvs, List<CSVData> csvBatch, TimeAxisDefinition pendingTAD, 
+                                        BadMeasureReporter report) {
+    Iterator<CSVData> csvit = csvBatch.iterator();
+    while (csvit.hasNext()) {
+      CSVData csv = csvit.next();
+      if (processTime(csv, pendingTAD) == Integer.MIN_VALUE) {
+        report.haveBad = true;
+        return (false);
       }
+      Set<String> targets = csv.getTargets();
+      Iterator<String> trit = targets.iterator();
+      while (trit.hasNext()) {
+        String target = trit.next();
+        List<CSVData.DataPoint> vals = csv.getMeasurements(target);
+        int vSize = vals.size();
+        for (int i = 0; i < vSize; i++) {
+          CSVData.DataPoint dpt = vals.get(i);
+          BoundedDoubMinMax illegal = csvs.getIllegalBounds(dpt.measurement);
+          if (!CSVData.isValidMeasurement(dpt.value, illegal)) {
+            report.haveBad = true;
+            ResourceManager rMan = appState_.getRMan();
+            String desc = MessageFormat.format(rMan.getString("qpcrcsv.badMeasurement"), 
+                                               new Object[] {dpt.value});            
+            int result = JOptionPane.showOptionDialog(appState_.getTopFrame(), desc,
+                                                      rMan.getString("qpcrcsv.badMeasurementTitle"),
+                                                      JOptionPane.DEFAULT_OPTION, 
+                                                      JOptionPane.ERROR_MESSAGE, 
+                                                      null, new Object[] {
+                                                        rMan.getString("dialogs.skipMessages"),
+                                                        rMan.getString("dialogs.ok"),
+                                                      }, rMan.getString("dialogs.ok"));            
+            boolean skipMessages = (result == 0);
+            if (skipMessages) {
+              return (false);
+            }
+          }
+        }     
+      }  
     }
-    return (retval);
+    return (true);
   }
 
   /***************************************************************************
@@ -1231,71 +1283,115 @@ public class PerturbCsvFormatFactory {
   
   /***************************************************************************
   ** 
-  ** Get the CSV file into blocks separated by blank lines.  In the new format,
-  ** two blocks will be returned FOR EACH INVESTIGATOR SET
+  ** Stream the CSV file through, a batch of data rows at a time. Blank lines
+  ** (or lines with just commas) separate the blocks, and in the new format
+  ** there are two blocks FOR EACH INVESTIGATOR SET: parameters, then data. The
+  ** first pass builds the set states and checks every row. Later passes reuse
+  ** the states, skip the parameters, and hand the data to the handler. 
   */
 
-  protected List<List<String>> fileToLineBlocks(File infile) throws IOException {
-    //
-    // Read in the lines.  Blank lines (or lines with just commas)
-    // separate different experiments,
-    // so batch up the lines into experiment blocks.
-    //
-    List<List<String>> blockList = new ArrayList<List<String>>();
-    List<String> currExp = new ArrayList<String>();   
-    BufferedReader in = new BufferedReader(new FileReader(infile));
-    Pattern pat = Pattern.compile("^,+$");
-    Matcher commaMatch = pat.matcher("");
-    String line = null;
-    while ((line = in.readLine()) != null) {
-      if (line.trim().equals("") || commaMatch.reset(line).matches())  {
-        if (currExp.size() > 0) {
-          blockList.add(currExp);
-          currExp = new ArrayList<String>();
-        }
-      } else {
-        currExp.add(line);
+  private void streamFile(File infile, List<CSVState> csvList, PerturbationData pd, BatchHandler handler, 
+                          BTProgressMonitor monitor, int pass) throws IOException, AsynchExitRequestException {
+    boolean firstPass = (pass == 0);
+    if (firstPass) {
+      fileLength_ = infile.length();
+      fileModified_ = infile.lastModified();
+      if (monitor != null) {
+        monitor.setTotal(100);
       }
+    } else if ((infile.length() != fileLength_) || (infile.lastModified() != fileModified_)) {
+      throw new IOException(buildNoLineErrorMessage("csvInput.fileChanged", infile.getName()));
     }
-    if (currExp.size() > 0) {
-      blockList.add(currExp);
+    
+    BlockReader blocks = new BlockReader(infile);
+    try {
+      int setIndex = 0;
+      int blockNum = 0;
+      while (blocks.nextBlock()) {
+        if (firstPass && (blockNum == 0)) {
+          csvList.add(new CSVState(appState_, dacx_, false, setIndex + 1, paramNameToPdKeyMap_, 
+                                   useDate_, useTime_, useBatch_, useInvest_, useCondition_));
+        }
+        CSVState csvState = csvList.get(setIndex);
+        if (firstPass || (blockNum == 1)) {
+          if (!streamBlock(blocks, blockNum, csvState, pd, handler, monitor, pass)) {
+            break;
+          }
+        }
+        if (blockNum == 1) {
+          setIndex++;
+          blockNum = 0;
+        } else {
+          blockNum = 1;
+        }
+      }
+    } finally {
+      blocks.close();
     }
-    in.close();
-    return (blockList);
+    return;
   }
- 
+  
   /***************************************************************************
   ** 
-  ** Get the perturb data as a list of csvDatas
+  ** Stream one block through. Answers false if the handler is done.
   */
 
-  private void processLineBlock(List<String> lines, int blockNum, CSVState csvState, PerturbationData pd) throws IOException {
-    
-    CSVParser csvp = new CSVParser(true);
-   
+  private boolean streamBlock(BlockReader blocks, int blockNum, CSVState csvState, PerturbationData pd, 
+                              BatchHandler handler, BTProgressMonitor monitor, int pass) 
+                              throws IOException, AsynchExitRequestException {
     int rowNum = 0;
-    Iterator<String> lit = lines.iterator();
-    while (lit.hasNext()) {
-      String line = lit.next();
-      List<String> argList = csvp.processCSVLine(line);
+    int batchRows = 0;
+    List<String> argList;
+    while ((argList = blocks.nextRow()) != null) {
       if (blockNum == 0) {
         if (rowNum == 0) {
           csvState.startTheBlock(argList);          
         } else {
           csvState.parseParameter(argList, newParamsInFile_);
         }
-      } else if (blockNum == 1) {
-        if (rowNum == 0) {
+      } else if (rowNum == 0) {
+        if (pass == 0) {
           csvState.gatherHeadings(argList, pd, newParamsInFile_);
-        } else {
-          csvState.readDataLine(argList, rowNum);
+        }
+      } else {
+        csvState.readDataLine(argList, rowNum);
+        if (++batchRows == BATCH_ROWS_) {
+          batchRows = 0;
+          if (!finishBatch(blocks, csvState, handler, monitor, pass)) {
+            return (false);
+          }
         }
       }
       rowNum++;
     }
-    return;
+    if (batchRows > 0) {
+      return (finishBatch(blocks, csvState, handler, monitor, pass));
+    }
+    return (true);
   }
   
+  /***************************************************************************
+  ** 
+  ** Hand off a batch of data and drop it, and report progress to the monitor
+  ** (may be null). Answers false if the handler is done.
+  */
+
+  private boolean finishBatch(BlockReader blocks, CSVState csvState, BatchHandler handler, 
+                              BTProgressMonitor monitor, int pass) throws IOException, AsynchExitRequestException {
+    boolean retval = true;
+    if (handler != null) {
+      retval = handler.handleBatch(csvState, csvState.getValues());
+    }
+    csvState.clearValues();
+    if (monitor != null) {
+      int percent = ((pass * 100) + blocks.getPercentRead()) / NUM_PASSES_;
+      if (!monitor.updateProgress(percent) || !monitor.keepGoing()) {
+        throw new AsynchExitRequestException();
+      }
+    }
+    return (retval);
+  }
+ 
   /***************************************************************************
   **
   ** Error handling
@@ -1419,6 +1515,11 @@ public class PerturbCsvFormatFactory {
     List<CSVData> getValues() {
       return (new ArrayList<CSVData>(csvMap_.values()));
     }
+    
+    void clearValues() {
+      csvMap_.clear();
+      return;
+    }
         
     /***************************************************************************
     **
@@ -2801,4 +2902,253 @@ public class PerturbCsvFormatFactory {
     }
   }
   
+  /***************************************************************************
+  ** 
+  ** Gets each batch of data rows as the file is streamed through
+  */  
+  
+  private interface BatchHandler {    
+    boolean handleBatch(CSVState csvs, List<CSVData> csvBatch) throws IOException;
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Looks for new entities and batch collisions
+  */  
+  
+  private class NewbieFlagger implements BatchHandler {    
+    boolean haveNewbie;
+    private PerturbationData pd_;
+    private Map<String, Set<String>> allNewbies_;
+    private Map<String, Map<String, String>> closest_;
+    private SortedMap<String, SortedMap<String, SortedMap<String, BatchCollision>>> batchDups_;
+    private TimeAxisDefinition pendingTAD_;
+ 
+    NewbieFlagger(PerturbationData pd, Map<String, Set<String>> allNewbies, Map<String, Map<String, String>> closest, 
+                  SortedMap<String, SortedMap<String, SortedMap<String, BatchCollision>>> batchDups, 
+                  TimeAxisDefinition pendingTAD) {
+      haveNewbie = false;
+      pd_ = pd;
+      allNewbies_ = allNewbies;
+      closest_ = closest;
+      batchDups_ = batchDups;
+      pendingTAD_ = pendingTAD;
+    }
+    
+    public boolean handleBatch(CSVState csvs, List<CSVData> csvBatch) throws IOException {
+      if (flagNewbies(csvBatch, pd_, allNewbies_, closest_, batchDups_, pendingTAD_)) {
+        haveNewbie = true;
+      }
+      return (true);
+    }
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Reports bad measurements
+  */  
+  
+  private class BadMeasureReporter implements BatchHandler {    
+    boolean haveBad;
+    private TimeAxisDefinition pendingTAD_;
+ 
+    BadMeasureReporter(TimeAxisDefinition pendingTAD) {
+      haveBad = false;
+      pendingTAD_ = pendingTAD;
+    }
+    
+    public boolean handleBatch(CSVState csvs, List<CSVData> csvBatch) {
+      return (reportBadMeasurements(csvs, csvBatch, pendingTAD_, this));
+    }
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Installs the measurements
+  */  
+  
+  private class MeasurementExtractor implements BatchHandler {    
+    private PerturbationData pd_;
+    private UndoSupport support_;
+    private long timeStamp_;
+ 
+    MeasurementExtractor(PerturbationData pd, UndoSupport support) {
+      pd_ = pd;
+      support_ = support;
+      timeStamp_ = System.currentTimeMillis();
+    }
+    
+    public boolean handleBatch(CSVState csvs, List<CSVData> csvBatch) throws IOException {
+      extractMeasurements(csvs, csvBatch, pd_, support_, timeStamp_);
+      return (true);
+    }
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Runs one pass over the file in the background
+  */  
+  
+  private class PassRunner extends BackgroundWorker {    
+    private File infile_;
+    private List<CSVState> csvList_;
+    private PerturbationData pd_;
+    private BatchHandler handler_;
+    private int pass_;
+ 
+    PassRunner(File infile, List<CSVState> csvList, PerturbationData pd, 
+               BatchHandler handler, int pass, boolean isHeadless) {
+      super(null, isHeadless);
+      infile_ = infile;
+      csvList_ = csvList;
+      pd_ = pd;
+      handler_ = handler;
+      pass_ = pass;
+    }
+    
+    public Object runCore() throws AsynchExitRequestException {
+      try {
+        streamFile(infile_, csvList_, pd_, handler_, this, pass_);
+      } catch (IOException ioex) {
+        stashException(ioex);
+        return (null);
+      }
+      return (Boolean.TRUE);
+    }
+    
+    public Object postRunCore() {
+      return (null);
+    }
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Collects how a pass ended, back on the UI thread
+  */  
+  
+  private static class PassOwner implements BackgroundWorkerOwner {    
+    Object result;
+    IOException ioex;
+    boolean cancelled;
+    
+    public boolean handleRemoteException(Exception remoteEx) {
+      if (remoteEx instanceof IOException) {
+        ioex = (IOException)remoteEx;
+        return (true);
+      }
+      return (false);
+    }
+    
+    public void cleanUpPreEnable(Object result) {
+      this.result = result;
+      return;
+    }
+    
+    public void handleCancellation() {
+      cancelled = true;
+      return;
+    }     
+      
+    public void cleanUpPostRepaint(Object result) {
+      return;
+    }
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Hands out the rows of the file a block at a time, without holding onto
+  ** any more of it than the current line
+  */  
+  
+  private static class BlockReader {    
+    private MappedLineReader in_;
+    private CSVParser csvp_;
+    private boolean haveLine_;
+    private boolean inBlock_;
+ 
+    BlockReader(File infile) throws IOException {
+      in_ = new MappedLineReader(infile);
+      csvp_ = new CSVParser(true);
+      haveLine_ = false;
+      inBlock_ = false;
+    }
+    
+    /***************************************************************************
+    ** 
+    ** Skip to the start of the next block. False if there are no more.
+    */  
+    
+    boolean nextBlock() throws IOException {
+      while (nextRow() != null) {
+        // skip what is left of the current block
+      }
+      while (true) {
+        if (!haveLine_) {
+          if (!in_.nextLine()) {
+            return (false);
+          }
+          haveLine_ = true;
+        }
+        if (!isSeparator()) {
+          inBlock_ = true;
+          return (true);
+        }
+        haveLine_ = false;
+      }
+    }
+    
+    /***************************************************************************
+    ** 
+    ** The next row of the block, or null at the end of the block
+    */  
+    
+    List<String> nextRow() throws IOException {
+      if (!inBlock_) {
+        return (null);
+      }
+      if (!haveLine_) {
+        if (!in_.nextLine()) {
+          inBlock_ = false;
+          return (null);
+        }
+        haveLine_ = true;
+      }
+      if (isSeparator()) {
+        inBlock_ = false;
+        return (null);
+      }
+      haveLine_ = false;
+      csvp_.tokenize(in_);
+      return (csvp_.getFields());
+    }
+    
+    int getPercentRead() {
+      return (in_.getPercentRead());
+    }
+    
+    void close() throws IOException {
+      in_.close();
+      return;
+    }
+  
+    /***************************************************************************
+    ** 
+    ** Blank lines, or lines with just commas, separate the blocks
+    */  
+    
+    private boolean isSeparator() {
+      if (in_.isBlank()) {
+        return (true);
+      }
+      char[] chars = in_.getChars();
+      int end = in_.getLineEnd();
+      for (int i = in_.getLineStart(); i < end; i++) {
+        if (chars[i] != ',') {
+          return (false);
+        }
+      }
+      return (true);
+    }
+  }
+  
 } 
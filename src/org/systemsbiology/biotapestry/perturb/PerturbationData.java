@@ -6116,6 +6116,16 @@ public class PerturbationData implements Cloneable, SourceSrc {
   //
   ////////////////////////////////////////////////////////////////////////////
 
+  /***************************************************************************
+  **
+  ** Return the element keyword that we are interested in
+  **
+  */
+  
+  public static String keywordOfInterest() {
+    return ("perturbationData");
+  }
+
   /***************************************************************************
   **
   ** Get the display string
@@ -6597,7 +6607,7 @@ public class PerturbationData implements Cloneable, SourceSrc {
       super(new FactoryWhiteboard());
       appState_ = appState;
       FactoryWhiteboard whiteboard = (FactoryWhiteboard)sharedWhiteboard_;   
-      myKeys_.add("perturbationData");
+      myKeys_.add(keywordOfInterest());
       mapsAreIllegal_ = mapsAreIllegal;
       serialNumberIsIllegal_ = serialNumberIsIllegal;
       installWorker(new PertDictionary.PertDictionaryWorker(whiteboard), new MyPertDictionaryGlue());
@@ -6618,7 +6628,7 @@ public class PerturbationData implements Cloneable, SourceSrc {
     
     protected Object localProcessElement(String elemName, Attributes attrs) throws IOException {
       Object retval = null;
-      if (elemName.equals("perturbationData")) {
+      if (elemName.equals(keywordOfInterest())) {
         FactoryWhiteboard board = (FactoryWhiteboard)this.sharedWhiteboard_;
         board.pertData = buildFromXML(elemName, attrs);
         retval = board.pertData;
@@ -0,0 +1,213 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.timeCourse;
+
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.List;
+
+import org.systemsbiology.biotapestry.util.DataUtil;
+
+/****************************************************************************
+**
+** A compiled view of the expression data in a TimeCourseData, for building
+** dynamic instances. Genes are found by normalized name with one hash lookup,
+** and the expression level of a (gene, region, channel) is kept in an array
+** indexed by hour, so asking again for the same hour (e.g. when dragging the
+** time slider back and forth) is an array lookup instead of a scan of all the
+** gene's expression entries. Hours are filled in as they are asked for.
+**
+** This is only good for the state of the data it was built from; get it from
+** TimeCourseData.getExpressionIndex(), which builds a new one when the data
+** changes.
+*/
+
+public class ExpressionIndex {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final int NOT_YET_ = Integer.MIN_VALUE;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private HashMap<String, TimeCourseGene> genesByName_;
+  private HashMap<LevelKey, Levels> levels_;
+  private int minTime_;
+  private int maxTime_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PACKAGE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Build the index for the given genes
+  */
+
+  ExpressionIndex(List<TimeCourseGene> genes) {
+    genesByName_ = new HashMap<String, TimeCourseGene>();
+    levels_ = new HashMap<LevelKey, Levels>();
+    minTime_ = Integer.MAX_VALUE;
+    maxTime_ = Integer.MIN_VALUE;
+    int size = genes.size();
+    for (int i = 0; i < size; i++) {
+      TimeCourseGene gene = genes.get(i);
+      //
+      // First one wins, same as the linear search by name:
+      //
+      String key = DataUtil.matchKey(gene.getName());
+      if (!genesByName_.containsKey(key)) {
+        genesByName_.put(key, gene);
+      }
+      Iterator<ExpressionEntry> eit = gene.getExpressions();
+      while (eit.hasNext()) {
+        int time = eit.next().getTime();
+        if (time < minTime_) {
+          minTime_ = time;
+        }
+        if (time > maxTime_) {
+          maxTime_ = time;
+        }
+      }
+    }
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get the gene with the given name, ignoring case and spaces. Null if there
+  ** is none.
+  */
+
+  public synchronized TimeCourseGene getGene(String name) {
+    return (genesByName_.get(DataUtil.matchKey(name)));
+  }
+
+  /***************************************************************************
+  **
+  ** Same answer as TimeCourseGene.getExpressionLevelForSource() for a gene
+  ** gotten from this index. The variable level is only set for a VARIABLE
+  ** answer.
+  */
+
+  public synchronized int getExpressionLevelForSource(TimeCourseGene gene, String region, int hour,
+                                                      int exprSource, TimeCourseGene.VariableLevel varLev) {
+    //
+    // Hours outside of the data are answered, but not worth keeping:
+    //
+    if ((hour < minTime_) || (hour > maxTime_)) {
+      return (gene.getExpressionLevelForSource(region, hour, exprSource, varLev));
+    }
+    LevelKey key = new LevelKey(gene, region, exprSource);
+    Levels levels = levels_.get(key);
+    if (levels == null) {
+      levels = new Levels(maxTime_ - minTime_ + 1);
+      levels_.put(key, levels);
+    }
+    int index = hour - minTime_;
+    int expression = levels.expression[index];
+    if (expression == NOT_YET_) {
+      expression = gene.getExpressionLevelForSource(region, hour, exprSource, varLev);
+      levels.expression[index] = expression;
+      if (expression == ExpressionEntry.VARIABLE) {
+        levels.variable[index] = varLev.level;
+      }
+    } else if (expression == ExpressionEntry.VARIABLE) {
+      varLev.level = levels.variable[index];
+    }
+    return (expression);
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Key for the levels of one gene in one region for one channel. Genes are
+  ** matched by identity, since this index only hands out its own.
+  */
+
+  private static class LevelKey {
+
+    private TimeCourseGene gene_;
+    private String region_;
+    private int exprSource_;
+
+    LevelKey(TimeCourseGene gene, String region, int exprSource) {
+      gene_ = gene;
+      region_ = region;
+      exprSource_ = exprSource;
+    }
+
+    public int hashCode() {
+      return ((System.identityHashCode(gene_) * 31 + region_.hashCode()) * 31 + exprSource_);
+    }
+
+    public boolean equals(Object other) {
+      if (other == this) {
+        return (true);
+      }
+      if (!(other instanceof LevelKey)) {
+        return (false);
+      }
+      LevelKey otherKey = (LevelKey)other;
+      return ((this.gene_ == otherKey.gene_) &&
+              (this.exprSource_ == otherKey.exprSource_) &&
+              this.region_.equals(otherKey.region_));
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Per-hour levels, from the first hour of the data
+  */
+
+  private static class Levels {
+
+    int[] expression;
+    double[] variable;
+
+    Levels(int hours) {
+      expression = new int[hours];
+      variable = new double[hours];
+      for (int i = 0; i < hours; i++) {
+        expression[i] = NOT_YET_;
+      }
+    }
+  }
+}
@@ -20,8 +20,6 @@
 package org.systemsbiology.biotapestry.timeCourse;
 
 import java.io.File;
-import java.io.FileReader;
-import java.io.BufferedReader;
 import java.util.HashMap;
 import java.util.ArrayList;
 import java.util.Map;
@@ -42,6 +40,7 @@ import org.systemsbiology.biotapestry.perturb.PertSources;
 import org.systemsbiology.biotapestry.perturb.PerturbationData;
 import org.systemsbiology.biotapestry.util.DataUtil;
 import org.systemsbiology.biotapestry.util.CSVParser;
+import org.systemsbiology.biotapestry.util.MappedLineReader;
 import org.systemsbiology.biotapestry.util.InvalidInputException;
 import org.systemsbiology.biotapestry.util.UndoSupport;
 
@@ -152,28 +151,27 @@ public class PerturbedTimeCourseGeneCSVFormatFactory {
   private void readCSV(File infile, Map<String, Map<PertSources, GeneEntry>> pertGenes, 
                        Map<String, Map<PertSources, List<PertEntry>>> pertGeneEntries) throws IOException, InvalidInputException {
     
-    BufferedReader in = new BufferedReader(new FileReader(infile));    
+    MappedLineReader in = new MappedLineReader(infile);    
     //
     // Read in the lines.
     //
     
     CSVParser csvp = new CSVParser(true);
       
-    String line = null;
     int lineNumber = -1;
     try {
-      while ((line = in.readLine()) != null) {
+      while (in.nextLine()) {
         lineNumber++;
-        if (line.trim().equals("")) {
+        if (in.isBlank()) {
           continue;
         }
-        List<String> tokens = csvp.processCSVLine(line);
-        if (tokens.isEmpty()) {
+        if (csvp.tokenize(in) == 0) {
           continue;
         }
-        if (tokens.get(0).trim().startsWith("#")) {
+        if (csvp.fieldStartsWith(0, '#')) {
           continue;  
         }
+        List<String> tokens = csvp.getFields();
         int tokenCategory = getCategory(tokens.get(0));
         switch (tokenCategory) {
           case GENE_AND_PERT_:
@@ -98,6 +98,8 @@ public class TimeCourseData implements Cloneable {
   private long serialNumber_;
   private long topoSerialNumber_;
   private long linSerialNumber_;
+  private ExpressionIndex exprIndex_;
+  private long exprIndexSerial_;
   private BTState appState_;
   
   ////////////////////////////////////////////////////////////////////////////
@@ -123,6 +125,7 @@ public class TimeCourseData implements Cloneable {
     serialNumber_ = 0L;
     topoSerialNumber_ = 0L;
     linSerialNumber_ = 0L;
+    exprIndex_ = null;
   }
 
   ////////////////////////////////////////////////////////////////////////////
@@ -192,6 +195,7 @@ public class TimeCourseData implements Cloneable {
       if (this.topoLocator_ != null) {   
         retval.topoLocator_ = this.topoLocator_.clone();     
       }
+      retval.exprIndex_ = null;
       return (retval);
     } catch (CloneNotSupportedException cnse) {
       throw new IllegalStateException();
@@ -225,6 +229,20 @@ public class TimeCourseData implements Cloneable {
     return (linSerialNumber_);
   }
   
+  /***************************************************************************
+  **
+  ** Get the expression index for the current state of the data.  It is
+  ** rebuilt when the serial number moves.
+  */
+  
+  public synchronized ExpressionIndex getExpressionIndex() {
+    if ((exprIndex_ == null) || (exprIndexSerial_ != serialNumber_)) {
+      exprIndex_ = new ExpressionIndex(genes_);
+      exprIndexSerial_ = serialNumber_;
+    }
+    return (exprIndex_);
+  }
+  
   /***************************************************************************
   **
   ** Region Topology support
@@ -730,6 +748,7 @@ public class TimeCourseData implements Cloneable {
   */
   
   public void changeUndo(TimeCourseChange undo) {
+    dropExpressionIndex();
     if ((undo.mapListOrig != null) || (undo.mapListNew != null)) {
       mapChangeUndo(undo);
     } else if ((undo.groupMapListOrig != null) || (undo.groupMapListNew != null)) {
@@ -763,6 +782,7 @@ public class TimeCourseData implements Cloneable {
   */
   
   public void changeRedo(TimeCourseChange undo) {
+    dropExpressionIndex();
     if ((undo.mapListOrig != null) || (undo.mapListNew != null)) {
       mapChangeRedo(undo);
     } else if ((undo.groupMapListOrig != null) || (undo.groupMapListNew != null)) {
@@ -809,6 +829,7 @@ public class TimeCourseData implements Cloneable {
       throw new IllegalArgumentException();
     }
     genes_.add(gene);
+    dropExpressionIndex();
     return;
   }
   
@@ -1018,6 +1039,10 @@ public class TimeCourseData implements Cloneable {
   public TimeCourseChange finishGeneUndoTransaction(String geneName, TimeCourseChange change) {
     TimeCourseGene tg = genes_.get(change.genePos);
     change.gNew = new TimeCourseGene(tg);
+    //
+    // The gene was changed in place after the serial number was bumped:
+    //
+    dropExpressionIndex();
     return (change);
   }
   
@@ -1880,9 +1905,22 @@ public class TimeCourseData implements Cloneable {
       TimeCourseGene gene = genes_.get(i);
       tcc.allGenesNew.add(new TimeCourseGene(gene));
     }
+    dropExpressionIndex();
     return (tcc);
   }
   
+  /***************************************************************************
+  **
+  ** Forget the expression index.  Needed where the genes change without a
+  ** new serial number, since undo can take the number back to one we have
+  ** already seen.
+  */
+  
+  private synchronized void dropExpressionIndex() {
+    exprIndex_ = null;
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Get the target gene info.
@@ -26,6 +26,7 @@ import java.awt.Color;
 import org.xml.sax.Attributes;
 
 import org.systemsbiology.biotapestry.genome.FactoryWhiteboard;
+import org.systemsbiology.biotapestry.genome.Genome;
 import org.systemsbiology.biotapestry.app.BTState;
 import org.systemsbiology.biotapestry.db.Database;
 import org.systemsbiology.biotapestry.parser.AbstractFactoryClient;
@@ -45,6 +46,7 @@ public class LayoutFactory extends AbstractFactoryClient {
   ////////////////////////////////////////////////////////////////////////////
 
   private String layoutKey_;
+  private Layout currLayout_;
   private LayoutMetadata currLmd_;
   private LayoutDerivation currLd_;
   private LayoutDataSource currLds_;
@@ -101,6 +103,21 @@ public class LayoutFactory extends AbstractFactoryClient {
   //
   ////////////////////////////////////////////////////////////////////////////
 
+  /***************************************************************************
+  **
+  ** Read the contents of a layout (e.g. a lone node property or link tree)
+  ** into the given layout, without an enclosing layout element. The genome
+  ** is the one the layout is for.
+  */
+
+  public void setTargetLayout(Layout layout, Genome genome) {
+    layoutKey_ = layout.getID();
+    currLayout_ = layout;
+    FactoryWhiteboard board = (FactoryWhiteboard)this.sharedWhiteboard_;
+    board.layout = layout;
+    board.genome = genome;
+    return;
+  }
   
   /***************************************************************************
   **
@@ -123,6 +140,7 @@ public class LayoutFactory extends AbstractFactoryClient {
       Layout newLo = Layout.buildFromXML(appState_, elemName, attrs);
       if (newLo != null) {
         layoutKey_ = newLo.getID();
+        currLayout_ = newLo;
         Database db = appState_.getDB();
         db.addLayout(layoutKey_, newLo);
         FactoryWhiteboard board = (FactoryWhiteboard)this.sharedWhiteboard_;
@@ -132,7 +150,7 @@ public class LayoutFactory extends AbstractFactoryClient {
       return (null);
     }
         
-    Layout layout = appState_.getDB().getLayout(layoutKey_);
+    Layout layout = currLayout_;
       
     if (elemName.equals(gPropKey_)) {
       GroupProperties gprop = GroupProperties.buildFromXML(appState_, layout, attrs);
@@ -1117,10 +1117,23 @@ public class LinkSegment implements Cloneable {
       
   public static class LinkSegmentWorker extends AbstractFactoryClient {
    
+    private static final String[] SEG_ATTRS_ = new String[] {"strtX", "strtY", "endX", "endY", 
+                                                             "id", "parent", "specialLine"};
+    private static final int STRT_X_ = 0;
+    private static final int STRT_Y_ = 1;
+    private static final int END_X_ = 2;
+    private static final int END_Y_ = 3;
+    private static final int ID_ = 4;
+    private static final int PARENT_ = 5;
+    private static final int SPECIAL_LINE_ = 6;
+    
+    private AttributeExtractor.Table segAttrs_;
+    
     public LinkSegmentWorker(FactoryWhiteboard whiteboard) {
       super(whiteboard);
       myKeys_.add("linkSegment");
       installWorker(new SuggestedDrawStyle.SuggestedDrawStyleWorker(whiteboard), new MyStyleGlue());
+      segAttrs_ = new AttributeExtractor.Table("linkSegment", SEG_ATTRS_);
     }
   
     protected Object localProcessElement(String elemName, Attributes attrs) throws IOException {
@@ -1134,13 +1147,14 @@ public class LinkSegment implements Cloneable {
     }
     
     private LinkSegment buildFromXML(String elemName, Attributes attrs) throws IOException {  
-      String strtX = AttributeExtractor.extractAttribute(elemName, attrs, "linkSegment", "strtX", true);
-      String strtY = AttributeExtractor.extractAttribute(elemName, attrs, "linkSegment", "strtY", true);
-      String endX = AttributeExtractor.extractAttribute(elemName, attrs, "linkSegment", "endX", false);
-      String endY = AttributeExtractor.extractAttribute(elemName, attrs, "linkSegment", "endY", false);
-      String id = AttributeExtractor.extractAttribute(elemName, attrs, "linkSegment", "id", false);
-      String parent = AttributeExtractor.extractAttribute(elemName, attrs, "linkSegment", "parent", false);
-      String specialLine = AttributeExtractor.extractAttribute(elemName, attrs, "linkSegment", "specialLine", false);
+      segAttrs_.load(elemName, attrs);
+      String strtX = segAttrs_.get(STRT_X_, true);
+      String strtY = segAttrs_.get(STRT_Y_, true);
+      String endX = segAttrs_.get(END_X_, false);
+      String endY = segAttrs_.get(END_Y_, false);
+      String id = segAttrs_.get(ID_, false);
+      String parent = segAttrs_.get(PARENT_, false);
+      String specialLine = segAttrs_.get(SPECIAL_LINE_, false);
    
       if (((endX == null) && (endY != null)) || 
           ((endX != null) && (endY == null))) {
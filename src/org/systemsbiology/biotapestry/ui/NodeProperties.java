@@ -680,12 +680,31 @@ public class NodeProperties implements Cloneable {
       
   public static class NodePropertiesWorker extends AbstractFactoryClient {
  
+    private static final String[] NPROP_ATTRS_ = new String[] {"id", "color", "color2", "x", "y", "orient", 
+                                                                "extraGrowth", "hideName", "fsize", "fbold", 
+                                                                "fital", "fsans", "breakDef"};
+    private static final int ID_ = 0;
+    private static final int COLOR_ = 1;
+    private static final int COLOR2_ = 2;
+    private static final int X_ = 3;
+    private static final int Y_ = 4;
+    private static final int ORIENT_ = 5;
+    private static final int GROWTH_ = 6;
+    private static final int HIDE_ = 7;
+    private static final int FSIZE_ = 8;
+    private static final int FBOLD_ = 9;
+    private static final int FITAL_ = 10;
+    private static final int FSANS_ = 11;
+    private static final int BREAK_DEF_ = 12;
+    
     private ColorResolver cRes_;
+    private AttributeExtractor.Table npropAttrs_;
     
     public NodePropertiesWorker(ColorResolver cRes, FactoryWhiteboard whiteboard) {
       super(whiteboard);
       cRes_ = cRes;
       myKeys_.add("nprop");
+      npropAttrs_ = new AttributeExtractor.Table("nprop", NPROP_ATTRS_);
     }
   
     protected Object localProcessElement(String elemName, Attributes attrs) throws IOException {
@@ -699,25 +718,26 @@ public class NodeProperties implements Cloneable {
     }
     
     private NodeProperties buildFromXML(String elemName, Attributes attrs) throws IOException {      
-      String id = AttributeExtractor.extractAttribute(elemName, attrs, "nprop", "id", true);
-      String color = AttributeExtractor.extractAttribute(elemName, attrs, "nprop", "color", true);
-      String color2 = AttributeExtractor.extractAttribute(elemName, attrs, "nprop", "color2", false);
-      String x = AttributeExtractor.extractAttribute(elemName, attrs, "nprop", "x", true);
-      String y = AttributeExtractor.extractAttribute(elemName, attrs, "nprop", "y", true);
-      String orient = AttributeExtractor.extractAttribute(elemName, attrs, "nprop", "orient", false);
+      npropAttrs_.load(elemName, attrs);
+      String id = npropAttrs_.get(ID_, true);
+      String color = npropAttrs_.get(COLOR_, true);
+      String color2 = npropAttrs_.get(COLOR2_, false);
+      String x = npropAttrs_.get(X_, true);
+      String y = npropAttrs_.get(Y_, true);
+      String orient = npropAttrs_.get(ORIENT_, false);
       if (orient == null) {        
         orient = RIGHT_TAG_;  // fix legacy cases
       }
-      String growth = AttributeExtractor.extractAttribute(elemName, attrs, "nprop", "extraGrowth", false);
-      String doHideVal = AttributeExtractor.extractAttribute(elemName, attrs, "nprop", "hideName", false);
+      String growth = npropAttrs_.get(GROWTH_, false);
+      String doHideVal = npropAttrs_.get(HIDE_, false);
       if (doHideVal == null) {       
         doHideVal = "false";
       }
-      String fsize = AttributeExtractor.extractAttribute(elemName, attrs, "nprop", "fsize", false);
-      String fbold = AttributeExtractor.extractAttribute(elemName, attrs, "nprop", "fbold", false);
-      String fital = AttributeExtractor.extractAttribute(elemName, attrs, "nprop", "fital", false);
-      String fsans = AttributeExtractor.extractAttribute(elemName, attrs, "nprop", "fsans", false);
-      String breakDef = AttributeExtractor.extractAttribute(elemName, attrs, "nprop", "breakDef", false);
+      String fsize = npropAttrs_.get(FSIZE_, false);
+      String fbold = npropAttrs_.get(FBOLD_, false);
+      String fital = npropAttrs_.get(FITAL_, false);
+      String fsans = npropAttrs_.get(FSANS_, false);
+      String breakDef = npropAttrs_.get(BREAK_DEF_, false);
    
       double xPos = -1.0;
       double yPos = -1.0;
@@ -640,6 +640,38 @@ public class SUPanel implements LayoutChangeListener,
     return (vexp_.exportToStream(stream, calcMap, format, res, zoom, size, sfd));
   }   
 
+  /***************************************************************************
+  **
+  ** Support concurrent image export of the current model at several zooms
+  */
+
+  public ViewExporter.PreparedExport prepareExport(double[] zooms, boolean calcMap, OverlayStateOracle oso) {
+    DataAccessContext rcx = new DataAccessContext(appState_, appState_.getGenome());
+    rcx.oso = oso;
+    ViewExporter.StateForDraw sfd = new ViewExporter.StateForDraw(appState_, rcx, rmov_,
+                                                                  menuDrivenShowComponentModule_,
+                                                                  dragLayout_, multiMoveLayout_,
+                                                                  null, null, appState_.getFontMgr());
+    return (vexp_.prepareExport(zooms, calcMap, sfd));
+  }
+
+  /***************************************************************************
+  **
+  ** Support tiled image export
+  */  
+  
+  public boolean exportTileToStream(OutputStream stream, String format, ImageExporter.ResolutionSettings res,
+                                    double zoom, int tileSize, int tileCol, int tileRow, 
+                                    String presKey, OverlayStateOracle oso) throws IOException {
+    DataAccessContext rcx = new DataAccessContext(appState_, appState_.getGenome());
+    rcx.oso = oso;
+    ViewExporter.StateForDraw sfd = new ViewExporter.StateForDraw(appState_, rcx, rmov_, 
+                                                                  menuDrivenShowComponentModule_, 
+                                                                  dragLayout_, multiMoveLayout_, 
+                                                                  null, null, appState_.getFontMgr());
+    return (vexp_.exportTileToStream(stream, format, res, zoom, tileSize, tileCol, tileRow, presKey, sfd));
+  }   
+
   /***************************************************************************
   **
   ** Support JSON export
@@ -24,12 +24,18 @@ import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
 import java.awt.Graphics2D;
+import java.awt.Image;
 import java.awt.Rectangle;
 import java.awt.RenderingHints;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Point2D;
 import java.awt.geom.Rectangle2D;
 import java.awt.image.BufferedImage;
+import java.awt.image.ColorModel;
+import java.awt.image.Raster;
+import java.awt.image.RenderedImage;
+import java.awt.image.SampleModel;
+import java.awt.image.WritableRaster;
 import java.awt.print.PageFormat;
 import java.awt.print.Printable;
 import java.io.File;
@@ -42,6 +48,7 @@ import java.util.HashSet;
 import java.util.Iterator;
 import java.util.Map;
 import java.util.Set;
+import java.util.Vector;
 
 import org.systemsbiology.biotapestry.app.BTState;
 import org.systemsbiology.biotapestry.cmd.PanelCommands;
@@ -87,6 +94,8 @@ public class ViewExporter {
   private GenomePresentation myGenomePre_;
   private ZoomTargetSupport zts_;
   private BufferedImage bim_;
+  private String cachedPresKey_;
+  private CachedPresentation cachedPres_;
   
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -188,6 +197,152 @@ public class ViewExporter {
     return (exportGuts(stream, calcMap, format, res, zoom, size, sfd));
   }   
 
+  /***************************************************************************
+  **
+  ** Support tiled image export. Renders just the tile at the given column and
+  ** row of the image exportToStream() would produce at the given zoom. Edge tiles
+  ** are cropped to the image. If presKey is not null, the presentation command
+  ** lists are kept and reused for following tiles with the same key, so the caller
+  ** must change the key whenever anything affecting the presentation changes.
+  ** Returns false if the tile lies outside the image.
+  */  
+  
+  public boolean exportTileToStream(OutputStream stream, String format, ImageExporter.ResolutionSettings res,
+                                    double zoom, int tileSize, int tileCol, int tileRow, 
+                                    String presKey, StateForDraw sfd) throws IOException {
+    
+    Dimension full = getExportSize(zoom, null, sfd);
+    int tileX = tileCol * tileSize;
+    int tileY = tileRow * tileSize;
+    if ((tileCol < 0) || (tileRow < 0) || (tileX >= full.width) || (tileY >= full.height)) {
+      return (false);
+    }
+    int width = Math.min(tileSize, full.width - tileX);
+    int height = Math.min(tileSize, full.height - tileY);
+   
+    Point2D oldCenter = zts_.getRawCenterPoint();
+    zts_.fixCenterPoint(true, null, false);
+    
+    //
+    // The background is opaque white anyway, so draw straight into the RGB image
+    // the encoder wants rather than into ARGB and then copying:
+    //
+    BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
+    Graphics2D g2 = bi.createGraphics();
+    g2.setColor(Color.white);
+    g2.fillRect(0, 0, width, height);
+    //
+    // Same transform as the full image, shifted so the tile origin lands at (0, 0). The
+    // clip lets the render commands skip everything outside the tile:
+    //
+    Vector2D preTrans = new Vector2D((full.width / 2.0) - tileX, (full.height / 2.0) - tileY);
+    Point2D center = zts_.getRawCenterPoint();
+    Vector2D postTrans = new Vector2D(-center.getX(), -center.getY());
+    OverrideTransform otr = new OverrideTransform(preTrans, zoom, postTrans, false);
+    g2.clipRect(0, 0, width, height);
+    
+    sfd.imgView = new Rectangle(0, 0, width, height);  
+    drawingGutsCore(g2, false, false, otr, false, false, sfd, presKey);
+    g2.dispose();
+        
+    ImageExporter iex = new ImageExporter();
+    iex.export(stream, bi, format, res);
+    zts_.setRawCenterPoint(oldCenter, null, false);
+    
+    return (true);
+  }
+  
+  /***************************************************************************
+  **
+  ** Support concurrent image export. Everything that needs the model or the
+  ** shared display state (sizes, centering, presentation, intersection bounds)
+  ** is done here, on the calling thread, for each of the given zooms. The
+  ** returned export holds its own render command lists, so the images can then
+  ** be rasterized and encoded on another thread.
+  */
+
+  public PreparedExport prepareExport(double[] zooms, boolean calcMap, StateForDraw sfd) {
+    return (prepareExportGuts(zooms, null, calcMap, sfd));
+  }
+  
+  /***************************************************************************
+  **
+  ** Prepare an export for the given zooms. If size is not null, every image
+  ** gets that size instead of the size the model needs.
+  */
+
+  private PreparedExport prepareExportGuts(double[] zooms, Dimension size, boolean calcMap, StateForDraw sfd) {
+    int numZoom = zooms.length;
+    Dimension[] dims = new Dimension[numZoom];
+    for (int i = 0; i < numZoom; i++) {
+      dims[i] = getExportSize(zooms[i], size, sfd);
+    }
+
+    Point2D oldCenter = zts_.getRawCenterPoint();
+    zts_.fixCenterPoint(true, null, false);
+    Point2D center = zts_.getRawCenterPoint();
+    zts_.setRawCenterPoint(oldCenter, null, false);
+    Vector2D postTrans = new Vector2D(-center.getX(), -center.getY());
+
+    OverrideTransform[] trans = new OverrideTransform[numZoom];
+    for (int i = 0; i < numZoom; i++) {
+      Vector2D preTrans = new Vector2D(dims[i].width / 2.0, dims[i].height / 2.0);
+      trans[i] = new OverrideTransform(preTrans, zooms[i], postTrans, false);
+    }
+    PreparedExport retval = new PreparedExport(dims, trans);
+    if (sfd.rcx.getGenome() == null) {
+      return (retval);
+    }
+
+    Layout useLayout = chooseLayout(sfd);
+    String currentOverlay = sfd.rcx.oso.getCurrentOverlay();
+    if (currentOverlay != null) {
+      NetOverlayProperties nop = useLayout.getNetOverlayProperties(currentOverlay);
+      if (nop.getType() == NetOverlayProperties.OvrType.OPAQUE) {
+        retval.overlayAlpha_ = Float.valueOf((float)sfd.rcx.oso.getCurrentOverlaySettings().backgroundOverlayAlpha);
+      }
+    }
+
+    //
+    // Presentation and bounds only need a graphics context for font metrics. Use one
+    // set up like the export image's, so the text bounds come out the same:
+    //
+
+    BufferedImage scratch = new BufferedImage(1, 1, BufferedImage.TYPE_INT_ARGB);
+    Graphics2D sg2 = scratch.createGraphics();
+    setRenderHints(sg2);
+    retval.pres_ = buildPresentation(sg2, null, useLayout, zts_.currentPixelDiameter(), false,
+                                     getShowModuleComponents(sfd), sfd);
+    if (calcMap) {
+      DataAccessContext rcxQ = new DataAccessContext(sfd.rcx);
+      rcxQ.setLayout(useLayout);
+      AffineTransform saveTrans = sg2.getTransform();
+      for (int i = 0; i < numZoom; i++) {
+        AffineTransform expTrans = trans[i].buildTransform();
+        sg2.transform(expTrans);
+        BoundsMaps bounds = new BoundsMaps();
+        bounds.noteBounds = myGenomePre_.getNoteBounds(sg2, rcxQ);
+        bounds.nodeBounds = myGenomePre_.getNodeBounds(sg2, rcxQ);
+        bounds.convert(expTrans);
+        retval.bounds_[i] = bounds;
+        sg2.setTransform(saveTrans);
+      }
+    }
+    sg2.dispose();
+    return (retval);
+  }
+
+  /***************************************************************************
+  **
+  ** Drop any presentation kept for tiled export
+  */  
+  
+  public void dropCachedPresentation() {
+    cachedPresKey_ = null;
+    cachedPres_ = null;
+    return;
+  }
+
   /***************************************************************************
   **
   ** Support JSON export
@@ -200,73 +355,44 @@ public class ViewExporter {
 
   /***************************************************************************
   **
-  ** Support image export.  Because of the way the image handler operates, it can take
-  ** either an OutputStream or a File as the first argument:
+  ** Get the image size for an export
   */  
   
-  private BoundsMaps exportGuts(Object outObj, boolean calcMap, 
-                                String format, ImageExporter.ResolutionSettings res,
-                                double zoom, Dimension size, StateForDraw sfd) throws IOException {
-    int width;
-    int height;
-    
+  private Dimension getExportSize(double zoom, Dimension size, StateForDraw sfd) {
     if (sfd.rcx.oso == null) {
       sfd.rcx.oso = new FreezeDriedOverlayOracle(null, null, NetModuleFree.CurrentSettings.NOTHING_MASKED, null);
     }
-    
-    
+    if (size != null) {
+      return (new Dimension(size.width, size.height));
+    }
     String currentOverlay = sfd.rcx.oso.getCurrentOverlay();
     TaggedSet currentNetMods = sfd.rcx.oso.getCurrentNetModules();
-    if (size == null) {
-      boolean doModules = (currentOverlay != null) && !currentNetMods.set.isEmpty();
-      Map<String, Layout.OverlayKeySet> allKeys = (doModules) ? sfd.rcx.fgho.fullModuleKeysPerLayout() : null;
-      Rectangle rect = myGenomePre_.getRequiredSize(sfd.rcx, true, true, doModules, doModules,
-                                                    currentOverlay, currentNetMods, allKeys);                  
-      width = (int)(rect.width * zoom); 
-      height = (int)(rect.height * zoom);
-    } else {
-      width = size.width; 
-      height = size.height;            
-    }
-    Point2D oldCenter = zts_.getRawCenterPoint();
-    zts_.fixCenterPoint(true, null, false);
-    
-    BufferedImage bi = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
-    Graphics2D g2 = bi.createGraphics();
-    g2.setColor(Color.white);
-    g2.fillRect(0, 0, width, height);
-    Vector2D preTrans = new Vector2D(width / 2.0, height / 2.0);
-    Point2D center = zts_.getRawCenterPoint();
-    Vector2D postTrans = new Vector2D(-center.getX(), -center.getY());
-    OverrideTransform otr = new OverrideTransform(preTrans, zoom, postTrans, false);
+    boolean doModules = (currentOverlay != null) && !currentNetMods.set.isEmpty();
+    Map<String, Layout.OverlayKeySet> allKeys = (doModules) ? sfd.rcx.fgho.fullModuleKeysPerLayout() : null;
+    Rectangle rect = myGenomePre_.getRequiredSize(sfd.rcx, true, true, doModules, doModules,
+                                                  currentOverlay, currentNetMods, allKeys);                  
+    return (new Dimension((int)(rect.width * zoom), (int)(rect.height * zoom)));
+  }
+
+  /***************************************************************************
+  **
+  ** Support image export.  Because of the way the image handler operates, it can take
+  ** either an OutputStream or a File as the first argument:
+  */  
+  
+  private BoundsMaps exportGuts(Object outObj, boolean calcMap, 
+                                String format, ImageExporter.ResolutionSettings res,
+                                double zoom, Dimension size, StateForDraw sfd) throws IOException {
+    PreparedExport prep = prepareExportGuts(new double[] {zoom}, size, calcMap, sfd);
     
     //
     // Here's the opaque overlay rectangle:
     // NOTE WE ARE ADDING TO THE StateForDraw object!
     
-    sfd.imgView = new Rectangle(0, 0, width, height);  
-    BoundsMaps retval = null;
-    if (calcMap) {
-      retval = drawingGuts(g2, true, true, otr, false, false, sfd);
-      retval.convert(otr.buildTransform());
-    } else {
-      drawingGuts(g2, false, false, otr, false, false, sfd);
-    }
-
-    //
-    // Fix for BT-10-27-09:1.  JPEG does not support RGBA.  Don't need to
-    // export the A channel info anyway, so do a conversion first:
-    //
-    
-    BufferedImage birgb = new BufferedImage(width, height, BufferedImage.TYPE_INT_RGB);
-    Graphics2D g2rgb = birgb.createGraphics();
-    g2rgb.drawImage(bi, 0, 0, null);
-        
-    ImageExporter iex = new ImageExporter();
-    iex.export(outObj, birgb, format, res);
-    zts_.setRawCenterPoint(oldCenter, null, false);
-    
-    return (retval);
+    Dimension dim = prep.getSize(0);
+    sfd.imgView = new Rectangle(0, 0, dim.width, dim.height);
+    prep.exportImage(0, outObj, format, res);
+    return (prep.getBounds(0));
   }
 
   /***************************************************************************
@@ -419,6 +545,18 @@ private void exportGroupsInDrawLayer(VisitableObjectCache sourceCache,
   public BoundsMaps drawingGuts(Graphics g, boolean getNoteBounds, boolean getNodeBounds, 
                                 OverrideTransform ovrTra, boolean showBubbles, 
                                 boolean doRect, StateForDraw sfd) {
+    return (drawingGutsCore(g, getNoteBounds, getNodeBounds, ovrTra, showBubbles, doRect, sfd, null));
+  }
+  
+  /***************************************************************************
+  **
+  ** Drawing guts. If presKey is not null, the presentation built for that key is
+  ** reused (or built and kept) instead of presenting the genome again.
+  */
+  
+  private BoundsMaps drawingGutsCore(Graphics g, boolean getNoteBounds, boolean getNodeBounds, 
+                                     OverrideTransform ovrTra, boolean showBubbles, 
+                                     boolean doRect, StateForDraw sfd, String presKey) {
     
     BoundsMaps retval = null;
     if (sfd.rcx.getGenome() != null) {
@@ -450,14 +588,7 @@ private void exportGroupsInDrawLayer(VisitableObjectCache sourceCache,
         g2.draw(rect);
       }
           
-      Layout useLayout;
-      if (sfd.dragLayout != null) {
-        useLayout = sfd.dragLayout;
-      } else if (sfd.multiMoveLayout != null) {
-        useLayout = sfd.multiMoveLayout;
-      } else {
-        useLayout = sfd.rcx.getLayout();
-      }
+      Layout useLayout = chooseLayout(sfd);
 
       Rectangle viewRect = null;
       GenomePresentation.OpaqueOverlayInfo ooi = null;
@@ -529,73 +660,25 @@ private void exportGroupsInDrawLayer(VisitableObjectCache sourceCache,
         }
       }
   
-      Set<String> showModuleComponents = null;
-      if (sfd.rcx.oso.showingModuleComponents()) {
-        showModuleComponents = sfd.rcx.oso.getCurrentNetModules().set;
+      Set<String> showModuleComponents = getShowModuleComponents(sfd);
+          
+      //
+      // The presentation does not depend on the export transform, so tiles at any
+      // zoom can share it:
+      //
+      double pixDiam = zts_.currentPixelDiameter();
+      String fullPresKey = (presKey == null) ? null : presKey + "|" + pixDiam + "|" + showBubbles + "|" + sfd.showRoot;
+      CachedPresentation pres = null;
+      if ((fullPresKey != null) && fullPresKey.equals(cachedPresKey_)) {
+        pres = cachedPres_;
       } else {
-        if (sfd.showModuleComps) {
-          PanelCommands.MotionHandler handler = sfd.moHandler;
-          RunningMove[] movs = handler.getMultiMov();
-          for (int i = 0; i < movs.length; i++) {
-            if (movs[i].type == RunningMove.MoveType.NET_MODULE_WHOLE) {    
-              showModuleComponents = new HashSet<String>();
-              showModuleComponents.add(movs[i].modIntersect.getObjectID());
-              break;                     
-            }
-          }
-        } else if ((sfd.rmov != null) && (sfd.rmov.type == RunningMove.MoveType.NET_MODULE_EDGE)) {
-          showModuleComponents = new HashSet<String>();
-          showModuleComponents.add(sfd.rmov.modIntersect.getObjectID());
-        } else if (sfd.menuDrivenShowComponentModule != null) {
-          showModuleComponents = new HashSet<String>();
-          showModuleComponents.add(sfd.menuDrivenShowComponentModule);
+        pres = buildPresentation(g2, ooi, useLayout, pixDiam, showBubbles, showModuleComponents, sfd);
+        if (fullPresKey != null) {
+          cachedPresKey_ = fullPresKey;
+          cachedPres_ = pres;
         }
       }
-          
-      ConcreteGraphicsCache cgc = new ConcreteGraphicsCache();
-      ConcreteGraphicsCache overlayCache = new ConcreteGraphicsCache();
-      ConcreteGraphicsCache floaterCache = new ConcreteGraphicsCache();
-      
-      DataAccessContext rcxP = new DataAccessContext(sfd.rcx);
-      rcxP.setLayout(useLayout);
-      rcxP.lSrc = new LocalLayoutSource(useLayout, rcxP.getGenomeSource());
-      rcxP.pixDiam = zts_.currentPixelDiameter();
-      rcxP.showBubbles = showBubbles;
-      myGenomePre_.presentGenomeWithOverlay(cgc, overlayCache, floaterCache, g2, ooi, rcxP,
-          																	sfd.showRoot, showModuleComponents);
-      
-      cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.BACKGROUND_REGIONS);
-      cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.UNDERLAY);
-      cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.VFN_GHOSTED);
-      cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.VFN_UNUSED_REGIONS);
-      cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.MODEL_NODEGROUPS);
-      cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.FOREGROUND_REGIONS);
-      			
-			if (ooi == null) {
-				// TODO fix this branch
-	      overlayCache.renderAllGroupsInDrawLayer(g2, DrawLayer.OVERLAY);
-				//cgc.renderAllGroupsInMajorLayer(g2, DrawLayer.MODEL_NODEGROUPS, DrawTree.MAJOR_SELECTED_LAYER_);
-				g2.setComposite(AlphaComposite.SrcOver);
-			}
-			else {
-	      overlayCache.renderAllGroupsInDrawLayer(ooi.overlayLayerG2, DrawLayer.OVERLAY);
-
-	      // This is the 'burn through' part for the alpha compositing.
-	      // overlayRender puts the relevant stuff to the MODEL_NODEGROUPS drawLayer.
-	      ooi.overlayLayerG2.setComposite(AlphaComposite.Clear);
-	      overlayCache.renderAllGroupsInDrawLayer(ooi.overlayLayerG2, DrawLayer.MODEL_NODEGROUPS);
-	      // Render linkage
-				cgc.renderAllGroupsInMajorLayer(ooi.overlayLayerG2, DrawLayer.MODEL_NODEGROUPS, DrawTree.MAJOR_SELECTED_LAYER_);
-				
-				ooi.overlayLayerG2.setComposite(AlphaComposite.SrcOver);
-				// end burn through
-				
-	      ooi.renderImage(g2);
-			}
-			
-			cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.MODELDATA);
-      
-      floaterCache.renderAllGroupsByLayers(g2);
+      renderPresentation(g2, pres, ooi);
       
       //
       // If we request intersection bounds, here they are:
@@ -618,6 +701,128 @@ private void exportGroupsInDrawLayer(VisitableObjectCache sourceCache,
     return (retval);
   }
   
+  /***************************************************************************
+  **
+  ** Pick the layout to draw with
+  */
+  
+  private Layout chooseLayout(StateForDraw sfd) {
+    if (sfd.dragLayout != null) {
+      return (sfd.dragLayout);
+    } else if (sfd.multiMoveLayout != null) {
+      return (sfd.multiMoveLayout);
+    }
+    return (sfd.rcx.getLayout());
+  }
+  
+  /***************************************************************************
+  **
+  ** Get the modules that need to show their components, or null
+  */
+  
+  private Set<String> getShowModuleComponents(StateForDraw sfd) {
+    Set<String> showModuleComponents = null;
+    if (sfd.rcx.oso.showingModuleComponents()) {
+      showModuleComponents = sfd.rcx.oso.getCurrentNetModules().set;
+    } else {
+      if (sfd.showModuleComps) {
+        PanelCommands.MotionHandler handler = sfd.moHandler;
+        RunningMove[] movs = handler.getMultiMov();
+        for (int i = 0; i < movs.length; i++) {
+          if (movs[i].type == RunningMove.MoveType.NET_MODULE_WHOLE) {    
+            showModuleComponents = new HashSet<String>();
+            showModuleComponents.add(movs[i].modIntersect.getObjectID());
+            break;                     
+          }
+        }
+      } else if ((sfd.rmov != null) && (sfd.rmov.type == RunningMove.MoveType.NET_MODULE_EDGE)) {
+        showModuleComponents = new HashSet<String>();
+        showModuleComponents.add(sfd.rmov.modIntersect.getObjectID());
+      } else if (sfd.menuDrivenShowComponentModule != null) {
+        showModuleComponents = new HashSet<String>();
+        showModuleComponents.add(sfd.menuDrivenShowComponentModule);
+      }
+    }
+    return (showModuleComponents);
+  }
+  
+  /***************************************************************************
+  **
+  ** Present the genome into a fresh set of render command lists
+  */
+  
+  private CachedPresentation buildPresentation(Graphics2D g2, GenomePresentation.OpaqueOverlayInfo ooi,
+                                               Layout useLayout, double pixDiam, boolean showBubbles, 
+                                               Set<String> showModuleComponents, StateForDraw sfd) {
+    CachedPresentation retval = new CachedPresentation();
+    DataAccessContext rcxP = new DataAccessContext(sfd.rcx);
+    rcxP.setLayout(useLayout);
+    rcxP.lSrc = new LocalLayoutSource(useLayout, rcxP.getGenomeSource());
+    rcxP.pixDiam = pixDiam;
+    rcxP.showBubbles = showBubbles;
+    myGenomePre_.presentGenomeWithOverlay(retval.cgc, retval.overlayCache, retval.floaterCache, g2, ooi, rcxP,
+                                          sfd.showRoot, showModuleComponents);
+    return (retval);
+  }
+  
+  /***************************************************************************
+  **
+  ** Render the command lists of a presentation. Rendering uses the transform
+  ** stacks of the command lists, so a presentation can only be rendered by
+  ** one thread at a time.
+  */
+  
+  private static void renderPresentation(Graphics2D g2, CachedPresentation pres, 
+                                         GenomePresentation.OpaqueOverlayInfo ooi) {
+    ConcreteGraphicsCache cgc = pres.cgc;
+    ConcreteGraphicsCache overlayCache = pres.overlayCache;
+    ConcreteGraphicsCache floaterCache = pres.floaterCache;
+    
+    cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.BACKGROUND_REGIONS);
+    cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.UNDERLAY);
+    cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.VFN_GHOSTED);
+    cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.VFN_UNUSED_REGIONS);
+    cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.MODEL_NODEGROUPS);
+    cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.FOREGROUND_REGIONS);
+    
+    if (ooi == null) {
+      // TODO fix this branch
+      overlayCache.renderAllGroupsInDrawLayer(g2, DrawLayer.OVERLAY);
+      //cgc.renderAllGroupsInMajorLayer(g2, DrawLayer.MODEL_NODEGROUPS, DrawTree.MAJOR_SELECTED_LAYER_);
+      g2.setComposite(AlphaComposite.SrcOver);
+    } else {
+      overlayCache.renderAllGroupsInDrawLayer(ooi.overlayLayerG2, DrawLayer.OVERLAY);
+
+      // This is the 'burn through' part for the alpha compositing.
+      // overlayRender puts the relevant stuff to the MODEL_NODEGROUPS drawLayer.
+      ooi.overlayLayerG2.setComposite(AlphaComposite.Clear);
+      overlayCache.renderAllGroupsInDrawLayer(ooi.overlayLayerG2, DrawLayer.MODEL_NODEGROUPS);
+      // Render linkage
+      cgc.renderAllGroupsInMajorLayer(ooi.overlayLayerG2, DrawLayer.MODEL_NODEGROUPS, DrawTree.MAJOR_SELECTED_LAYER_);
+      
+      ooi.overlayLayerG2.setComposite(AlphaComposite.SrcOver);
+      // end burn through
+      
+      ooi.renderImage(g2);
+    }
+    
+    cgc.renderAllGroupsInDrawLayer(g2, DrawLayer.MODELDATA);
+    
+    floaterCache.renderAllGroupsByLayers(g2);
+    return;
+  }
+  
+  /***************************************************************************
+  **
+  ** Install the rendering hints all our drawing uses
+  */
+  
+  private static void setRenderHints(Graphics2D g2) {
+    g2.setRenderingHint(RenderingHints.KEY_ANTIALIASING, RenderingHints.VALUE_ANTIALIAS_ON);
+    g2.setRenderingHint(RenderingHints.KEY_FRACTIONALMETRICS, RenderingHints.VALUE_FRACTIONALMETRICS_ON);
+    return;
+  }
+  
   /***************************************************************************
   **
   ** Get a tooltip for a link
@@ -780,6 +985,298 @@ private void exportGroupsInDrawLayer(VisitableObjectCache sourceCache,
     }
   }
    
+  /***************************************************************************
+  **
+  ** Render command lists for one presentation of a genome
+  */     
+    
+  private static class CachedPresentation {
+    ConcreteGraphicsCache cgc;
+    ConcreteGraphicsCache overlayCache;
+    ConcreteGraphicsCache floaterCache;
+   
+    CachedPresentation() {
+      cgc = new ConcreteGraphicsCache();
+      overlayCache = new ConcreteGraphicsCache();
+      floaterCache = new ConcreteGraphicsCache();
+    }
+  }
+   
+  /***************************************************************************
+  **
+  ** An image export prepared for one or more zooms by prepareExport(). It does
+  ** not refer back to the model, but must only be used by one thread at a time.
+  */
+
+  public static class PreparedExport {
+    private Dimension[] dims_;
+    private OverrideTransform[] trans_;
+    private BoundsMaps[] bounds_;
+    private CachedPresentation pres_;
+    private Float overlayAlpha_;
+
+    PreparedExport(Dimension[] dims, OverrideTransform[] trans) {
+      dims_ = dims;
+      trans_ = trans;
+      bounds_ = new BoundsMaps[dims.length];
+    }
+
+    /***************************************************************************
+    **
+    ** Get the intersection bounds for the given zoom index; null if not calculated
+    */
+
+    public BoundsMaps getBounds(int index) {
+      return (bounds_[index]);
+    }
+
+    /***************************************************************************
+    **
+    ** Get the image size for the given zoom index
+    */
+
+    public Dimension getSize(int index) {
+      return (new Dimension(dims_[index]));
+    }
+
+    /***************************************************************************
+    **
+    ** Get the bytes of pixels that are held at once while exporting the image
+    ** for the given zoom index: one band, plus its overlay image if there is one
+    */
+
+    public long getBandBytes(int index) {
+      long retval = (long)Math.max(1, dims_[index].width) * (long)BandedImage.bandHeight(dims_[index]) * 4L;
+      if (overlayAlpha_ != null) {
+        retval *= 2L;
+      }
+      return (retval);
+    }
+
+    /***************************************************************************
+    **
+    ** Rasterize and encode the image for the given zoom index
+    */
+
+    public void exportToStream(int index, OutputStream stream, String format,
+                               ImageExporter.ResolutionSettings res) throws IOException {
+      exportImage(index, stream, format, res);
+      return;
+    }
+    
+    /***************************************************************************
+    **
+    ** Rasterize and encode the image for the given zoom index. Because of the way
+    ** the image handler operates, it can take either an OutputStream or a File.
+    ** The image writer pulls the pixels a band at a time, so only one band of a
+    ** large image is ever rasterized in memory (JPEG still wants it all at once).
+    */
+
+    void exportImage(int index, Object outObj, String format,
+                     ImageExporter.ResolutionSettings res) throws IOException {
+      ImageExporter iex = new ImageExporter();
+      iex.export(outObj, new BandedImage(this, index), format, res);
+      return;
+    }
+    
+    /***************************************************************************
+    **
+    ** Render the rows of the image for the given zoom index starting at bandY into
+    ** the band. Bands are RGB, since JPEG does not support RGBA (BT-10-27-09:1).
+    ** Drawing straight into an opaque RGB image over the white fill gives the same
+    ** pixels as rendering with alpha and converting afterwards. Shifting
+    ** the export transform by whole pixels and clipping to the band gives the same
+    ** pixels as rendering the full image.
+    */
+
+    void renderBand(int index, BufferedImage band, int bandY) {
+      int width = band.getWidth();
+      int height = band.getHeight();
+      Graphics2D g2 = band.createGraphics();
+      g2.setColor(Color.white);
+      g2.fillRect(0, 0, width, height);
+      if (pres_ != null) {
+        setRenderHints(g2);
+        g2.clipRect(0, 0, width, height);
+        AffineTransform bandTrans = AffineTransform.getTranslateInstance(0.0, -bandY);
+        bandTrans.concatenate(trans_[index].buildTransform());
+        g2.transform(bandTrans);
+        GenomePresentation.OpaqueOverlayInfo ooi = null;
+        Graphics2D ig2 = null;
+        if (overlayAlpha_ != null) {
+          BufferedImage bim = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+          ig2 = bim.createGraphics();
+          ig2.setBackground(new Color(1.0f, 1.0f, 1.0f, overlayAlpha_.floatValue()));
+          ig2.clearRect(0, 0, width, height);
+          setRenderHints(ig2);
+          ig2.setTransform(bandTrans);
+          ooi = new GenomePresentation.OpaqueOverlayInfo(new Rectangle(0, 0, width, height), bim, ig2, new AffineTransform());
+        }
+        renderPresentation(g2, pres_, ooi);
+        if (ig2 != null) {
+          ig2.dispose();
+        }
+      }
+      g2.dispose();
+      return;
+    }
+  }
+  
+  /***************************************************************************
+  **
+  ** An export image that renders itself a band of rows at a time, as the image
+  ** writer asks for them. The bands are the tiles of the image. Only the most
+  ** recent band is kept.
+  */
+
+  private static class BandedImage implements RenderedImage {
+    
+    //
+    // About 16 MB of RGB pixels per band. Most images fit in one band, and so
+    // are only rendered once:
+    //
+    
+    private static final int BAND_PIXELS_ = 1 << 22;
+    
+    private PreparedExport prep_;
+    private int index_;
+    private int width_;
+    private int height_;
+    private int bandHeight_;
+    private ColorModel cm_;
+    private SampleModel sm_;
+    private int currBand_;
+    private BufferedImage band_;
+
+    BandedImage(PreparedExport prep, int index) {
+      prep_ = prep;
+      index_ = index;
+      width_ = prep.dims_[index].width;
+      height_ = prep.dims_[index].height;
+      bandHeight_ = bandHeight(prep.dims_[index]);
+      cm_ = new BufferedImage(1, 1, BufferedImage.TYPE_INT_RGB).getColorModel();
+      sm_ = cm_.createCompatibleSampleModel(width_, bandHeight_);
+      currBand_ = -1;
+    }
+    
+    static int bandHeight(Dimension dim) {
+      return (Math.max(1, Math.min(dim.height, BAND_PIXELS_ / Math.max(1, dim.width))));
+    }
+
+    public Vector<RenderedImage> getSources() {
+      return (null);
+    }
+    
+    public Object getProperty(String name) {
+      return (Image.UndefinedProperty);
+    }
+    
+    public String[] getPropertyNames() {
+      return (null);
+    }
+    
+    public ColorModel getColorModel() {
+      return (cm_);
+    }
+    
+    public SampleModel getSampleModel() {
+      return (sm_);
+    }
+    
+    public int getWidth() {
+      return (width_);
+    }
+    
+    public int getHeight() {
+      return (height_);
+    }
+    
+    public int getMinX() {
+      return (0);
+    }
+    
+    public int getMinY() {
+      return (0);
+    }
+    
+    public int getNumXTiles() {
+      return (1);
+    }
+    
+    public int getNumYTiles() {
+      return ((height_ + bandHeight_ - 1) / bandHeight_);
+    }
+    
+    public int getMinTileX() {
+      return (0);
+    }
+    
+    public int getMinTileY() {
+      return (0);
+    }
+    
+    public int getTileWidth() {
+      return (width_);
+    }
+    
+    public int getTileHeight() {
+      return (bandHeight_);
+    }
+    
+    public int getTileGridXOffset() {
+      return (0);
+    }
+    
+    public int getTileGridYOffset() {
+      return (0);
+    }
+    
+    public Raster getTile(int tileX, int tileY) {
+      return (getBand(tileY).getRaster().createTranslatedChild(0, tileY * bandHeight_));
+    }
+    
+    public Raster getData() {
+      return (getData(new Rectangle(0, 0, width_, height_)));
+    }
+    
+    public Raster getData(Rectangle rect) {
+      WritableRaster retval = cm_.createCompatibleWritableRaster(rect.width, rect.height);
+      return (copyData(retval.createWritableTranslatedChild(rect.x, rect.y)));
+    }
+    
+    public WritableRaster copyData(WritableRaster raster) {
+      if (raster == null) {
+        raster = cm_.createCompatibleWritableRaster(width_, height_);
+      }
+      Rectangle want = raster.getBounds().intersection(new Rectangle(0, 0, width_, height_));
+      int row = want.y;
+      int endRow = want.y + want.height;
+      while (row < endRow) {
+        int bandNum = row / bandHeight_;
+        int bandY = bandNum * bandHeight_;
+        int rows = Math.min(endRow, bandY + bandHeight_) - row;
+        Raster band = getBand(bandNum).getRaster();
+        Object pix = band.getDataElements(want.x, row - bandY, want.width, rows, null);
+        raster.setDataElements(want.x, row, want.width, rows, pix);
+        row += rows;
+      }
+      return (raster);
+    }
+    
+    //
+    // A fresh image for each band, so rasters handed out by getTile() stay valid:
+    //
+    
+    private BufferedImage getBand(int bandNum) {
+      if (bandNum != currBand_) {
+        band_ = new BufferedImage(width_, bandHeight_, BufferedImage.TYPE_INT_RGB);
+        prep_.renderBand(index_, band_, bandNum * bandHeight_);
+        currBand_ = bandNum;
+      }
+      return (band_);
+    }
+  }
+
   /***************************************************************************
   **
   ** Used to return intersection bounds for image exports
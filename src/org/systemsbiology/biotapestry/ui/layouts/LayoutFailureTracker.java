@@ -49,31 +49,18 @@ public class LayoutFailureTracker {
   
   ////////////////////////////////////////////////////////////////////////////
   //
-  // PRIVATE STATIC MEMBER
+  // PUBLIC STATIC CONSTANTS
   //
   //////////////////////////////////////////////////////////////////////////// 
 
-
   public static final double GRID_SIZE = 10.0; 
   public static final int    GRID_SIZE_INT = 10;  
   
-  private static HashMap bordersExits_;
-  private static HashMap bordersExitsShifted_;
-  private static HashMap linkOrder_;
-  private static HashMap exitRoutes_;
-  private static HashMap mergeData_;
-  private static HashMap ptLists_;
-  private static HashMap trunkPoints_;
-  private static HashMap leafPoints_;
-  private static HashMap postLayoutForSource_;
-  private static HashMap recoveryPoints_;
-  private static HashMap recoveryTosses_;
-  private static boolean enabled_;
-  private static StringBuffer buf_;
-  private static String glueDone_;
-  private static ArrayList failedLinks_;
-  private static int passNum_;
-  private static int subPassNum_;
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC MEMBERS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
 
   /***************************************************************************
   **
@@ -81,29 +68,68 @@ public class LayoutFailureTracker {
   ** data collection is intense.
   */
   
+  private static final boolean enabled_ = false;
+  
+  /***************************************************************************
+  **
+  ** Collected data is kept per thread, so layouts running at the same time for
+  ** different BTStates (e.g. parallel batch jobs) do not scramble each other's
+  ** reports. Nothing is allocated unless enabled.
+  */
+  
+  private static final ThreadLocal<LayoutFailureTracker> current_ = new ThreadLocal<LayoutFailureTracker>() {
+    @Override
+    protected LayoutFailureTracker initialValue() {
+      return (new LayoutFailureTracker());
+    }
+  };
+  
   static {
     UiUtil.fixMePrintout("Make sure this is disabled for production release!");
-    enabled_ = false;
-    if (enabled_) {
-      buf_ = new StringBuffer();
-      bordersExits_ = new HashMap();
-      bordersExitsShifted_ = new HashMap();
-      mergeData_ = new HashMap();
-      exitRoutes_ = new HashMap();
-      linkOrder_ = new HashMap();
-      trunkPoints_ = new HashMap();
-      leafPoints_ = new HashMap();
-      ptLists_ = new HashMap();
-      postLayoutForSource_ = new HashMap();
-      recoveryPoints_ = new HashMap();
-      recoveryTosses_ = new HashMap();
-      failedLinks_ = new ArrayList();
-      passNum_ = -1;
-      subPassNum_ = -1;
-    }
   }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE MEMBERS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
+
+  private HashMap bordersExits_;
+  private HashMap bordersExitsShifted_;
+  private HashMap linkOrder_;
+  private HashMap exitRoutes_;
+  private HashMap mergeData_;
+  private HashMap ptLists_;
+  private HashMap trunkPoints_;
+  private HashMap leafPoints_;
+  private HashMap postLayoutForSource_;
+  private HashMap recoveryPoints_;
+  private HashMap recoveryTosses_;
+  private StringBuffer buf_;
+  private String glueDone_;
+  private ArrayList failedLinks_;
+  private int passNum_;
+  private int subPassNum_;
  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  //////////////////////////////////////////////////////////////////////////// 
   
+  /***************************************************************************
+  **
+  ** Start fresh for a new job on this thread (e.g. a pooled batch worker)
+  */
+    
+  public static void resetForThread() {
+    if (!enabled_) {
+      return;
+    }
+    current_.remove();
+    return;
+  }
+ 
   /***************************************************************************
   **
   ** Record recovery point toss
@@ -113,14 +139,15 @@ public class LayoutFailureTracker {
      if (!enabled_) {
        return;
      }
-     buf_.setLength(0);       
-     String pre = (String)recoveryPoints_.get(srcID);
+     LayoutFailureTracker lft = current_.get();
+     lft.buf_.setLength(0);       
+     String pre = (String)lft.recoveryPoints_.get(srcID);
      if (pre != null) {
-       buf_.append(pre);   
+       lft.buf_.append(pre);   
      }
-     buf_.append("Recovery Toss " + srcID + " " + linkID + " " + emov + " " + point);
-     buf_.append("\n");
-     recoveryTosses_.put(srcID, buf_.toString());
+     lft.buf_.append("Recovery Toss " + srcID + " " + linkID + " " + emov + " " + point);
+     lft.buf_.append("\n");
+     lft.recoveryTosses_.put(srcID, lft.buf_.toString());
      return;
    }
  
@@ -133,16 +160,17 @@ public class LayoutFailureTracker {
      if (!enabled_) {
        return;
      }
-     buf_.setLength(0);       
-     String pre = (String)recoveryPoints_.get(srcID);
+     LayoutFailureTracker lft = current_.get();
+     lft.buf_.setLength(0);       
+     String pre = (String)lft.recoveryPoints_.get(srcID);
      if (pre != null) {
-       buf_.append(pre);   
+       lft.buf_.append(pre);   
      } else {
-       buf_.append("Recover " + srcID + " " + linkID);
+       lft.buf_.append("Recover " + srcID + " " + linkID);
      }
-     buf_.append(points.toString());
-     buf_.append("\n");
-     recoveryPoints_.put(srcID, buf_.toString());
+     lft.buf_.append(points.toString());
+     lft.buf_.append("\n");
+     lft.recoveryPoints_.put(srcID, lft.buf_.toString());
      return;
    }
   
@@ -155,6 +183,7 @@ public class LayoutFailureTracker {
      if (!enabled_) {
        return;
      }
+     LayoutFailureTracker lft = current_.get();
      Iterator nit = irx.getGenome().getAllNodeIterator();
      while (nit.hasNext()) {
        Node aNode = (Node)nit.next();
@@ -163,19 +192,19 @@ public class LayoutFailureTracker {
        if (bp == null) {
          continue;
        }     
-       buf_.setLength(0);       
-       String pre = (String)postLayoutForSource_.get(srcID);
+       lft.buf_.setLength(0);       
+       String pre = (String)lft.postLayoutForSource_.get(srcID);
        if (pre != null) {
-         buf_.append(pre);   
+         lft.buf_.append(pre);   
        } else {
-         buf_.append("Full Post Layout for " + srcID + ":\n");
+         lft.buf_.append("Full Post Layout for " + srcID + ":\n");
        }
        Set allPts = bp.getAllPointsToLeaves(LinkSegmentID.buildIDForStartDrop());
        if (!allPts.isEmpty()) {
-         buf_.append(srcID + ": " + bp.getDepthFirstDebug(irx));
+         lft.buf_.append(srcID + ": " + bp.getDepthFirstDebug(irx));
        }
-       buf_.append("\n");
-       postLayoutForSource_.put(srcID, buf_.toString());
+       lft.buf_.append("\n");
+       lft.postLayoutForSource_.put(srcID, lft.buf_.toString());
      }
    }
 
@@ -189,19 +218,20 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     }
-    buf_.setLength(0);
+    LayoutFailureTracker lft = current_.get();
+    lft.buf_.setLength(0);
     String srcID = sin.getSrcID();
-    String pre = (String)trunkPoints_.get(srcID);
+    String pre = (String)lft.trunkPoints_.get(srcID);
     if (pre != null) {
-      buf_.append(pre);   
+      lft.buf_.append(pre);   
     } else {
-      buf_.append("Tree Trunk Record for " + sin.getSrcID() + ":\n");
+      lft.buf_.append("Tree Trunk Record for " + sin.getSrcID() + ":\n");
     }
-    buf_.append(linkID);
-    buf_.append(": ");
-    buf_.append(ptsPerLink.toString());
-    buf_.append("\n");
-    trunkPoints_.put(srcID, buf_.toString());
+    lft.buf_.append(linkID);
+    lft.buf_.append(": ");
+    lft.buf_.append(ptsPerLink.toString());
+    lft.buf_.append("\n");
+    lft.trunkPoints_.put(srcID, lft.buf_.toString());
     return;
   }
   
@@ -216,19 +246,20 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     }
-    buf_.setLength(0);
+    LayoutFailureTracker lft = current_.get();
+    lft.buf_.setLength(0);
     String srcID = sin.getSrcID();
-    String pre = (String)leafPoints_.get(srcID);
+    String pre = (String)lft.leafPoints_.get(srcID);
     if (pre != null) {
-      buf_.append(pre);   
+      lft.buf_.append(pre);   
     } else {
-      buf_.append("Tree Leaf Record for " + sin.getSrcID() + ":\n");
+      lft.buf_.append("Tree Leaf Record for " + sin.getSrcID() + ":\n");
     }
-    buf_.append(linkID);
-    buf_.append(": ");
-    buf_.append(ptsPerLink.toString());
-    buf_.append("\n");
-    leafPoints_.put(srcID, buf_.toString());
+    lft.buf_.append(linkID);
+    lft.buf_.append(": ");
+    lft.buf_.append(ptsPerLink.toString());
+    lft.buf_.append("\n");
+    lft.leafPoints_.put(srcID, lft.buf_.toString());
     return;
   }
   
@@ -249,9 +280,10 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     }
-    buf_.setLength(0);
-    buf_.append("Borders and exits for " + sin.getSrcID() + " set via branch " + debugPath + "\n"); 
-    recordBordersAndExitGuts(sin, bordersExits_);
+    LayoutFailureTracker lft = current_.get();
+    lft.buf_.setLength(0);
+    lft.buf_.append("Borders and exits for " + sin.getSrcID() + " set via branch " + debugPath + "\n"); 
+    lft.recordBordersAndExitGuts(sin, lft.bordersExits_);
     return;
   }
     
@@ -262,7 +294,7 @@ public class LayoutFailureTracker {
   ** 
   */
     
-  private static void recordBordersAndExitGuts(SpecialtyLayoutLinkData sin, Map useMap) {
+  private void recordBordersAndExitGuts(SpecialtyLayoutLinkData sin, Map useMap) {
     for (int i = 0; i < SpecialtyLayoutLinkData.NUM_EXIT_FRAMEWORK; i++) {
       SpecialtyLayoutLinkData.PlacedPoint pp = sin.getExitFrameworkForDebug(i);
       buf_.append("Exit  " + i + " = " + pp + "\n");
@@ -285,8 +317,9 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     }
-    passNum_ = i;
-    subPassNum_ = j;
+    LayoutFailureTracker lft = current_.get();
+    lft.passNum_ = i;
+    lft.subPassNum_ = j;
     return;
   }
   
@@ -300,8 +333,9 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     }
-    passNum_ = -1;
-    subPassNum_ = -1;
+    LayoutFailureTracker lft = current_.get();
+    lft.passNum_ = -1;
+    lft.subPassNum_ = -1;
     return;
   }
   
@@ -315,9 +349,10 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     }
-    buf_.setLength(0);
-    buf_.append("Shifted Borders and exits for " + sin.getSrcID() + " after shift " + shift + "\n"); 
-    recordBordersAndExitGuts(sin, bordersExitsShifted_);
+    LayoutFailureTracker lft = current_.get();
+    lft.buf_.setLength(0);
+    lft.buf_.append("Shifted Borders and exits for " + sin.getSrcID() + " after shift " + shift + "\n"); 
+    lft.recordBordersAndExitGuts(sin, lft.bordersExitsShifted_);
     return;
   }
  
@@ -330,7 +365,8 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     }
-    failedLinks_.add(failures.toString());
+    LayoutFailureTracker lft = current_.get();
+    lft.failedLinks_.add(failures.toString());
     return;
   }
 
@@ -343,15 +379,16 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     }
-    buf_.setLength(0);
+    LayoutFailureTracker lft = current_.get();
+    lft.buf_.setLength(0);
     String srcID = sin.getSrcID();
-    String pre = (String)mergeData_.get(srcID);
+    String pre = (String)lft.mergeData_.get(srcID);
     if (pre != null) {
-      buf_.append(pre);   
+      lft.buf_.append(pre);   
     }
-    buf_.append("POST MERGE SpecialtyLayoutLinkData " + srcID + " via " + funcName + ":\n");   
-    linkDataGuts(sin);
-    mergeData_.put(srcID, buf_.toString());
+    lft.buf_.append("POST MERGE SpecialtyLayoutLinkData " + srcID + " via " + funcName + ":\n");   
+    lft.linkDataGuts(sin);
+    lft.mergeData_.put(srcID, lft.buf_.toString());
     return;
   }
   
@@ -364,19 +401,20 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     }
-    buf_.setLength(0);
+    LayoutFailureTracker lft = current_.get();
+    lft.buf_.setLength(0);
     String srcID = sin.getSrcID();
-    String pre = (String)mergeData_.get(srcID);
+    String pre = (String)lft.mergeData_.get(srcID);
     if (pre == null) {
-      buf_.append("MERGE DATA FOR " + srcID + ": " + "\n");   
+      lft.buf_.append("MERGE DATA FOR " + srcID + ": " + "\n");   
     } else {
-      buf_.append(pre);   
+      lft.buf_.append(pre);   
     }
-    buf_.append("PRIME MERGE SpecialtyLayoutLinkData " + srcID + " via " + funcName +  ":\n");   
-    linkDataGuts(sin);
-    buf_.append("OTHER MERGE SpecialtyLayoutLinkData " + other.getSrcID() + " via " + funcName +  "\n");   
-    linkDataGuts(other);
-    mergeData_.put(srcID, buf_.toString());
+    lft.buf_.append("PRIME MERGE SpecialtyLayoutLinkData " + srcID + " via " + funcName +  ":\n");   
+    lft.linkDataGuts(sin);
+    lft.buf_.append("OTHER MERGE SpecialtyLayoutLinkData " + other.getSrcID() + " via " + funcName +  "\n");   
+    lft.linkDataGuts(other);
+    lft.mergeData_.put(srcID, lft.buf_.toString());
     return;
   }
   
@@ -385,7 +423,7 @@ public class LayoutFailureTracker {
   ** Guts of link data output
   */  
   
-  private static void linkDataGuts(SpecialtyLayoutLinkData sin) {
+  private void linkDataGuts(SpecialtyLayoutLinkData sin) {
     int numLinks = sin.numLinks();
     for (int j = 0; j < numLinks; j++) {
       String linkID = (String)sin.getLink(j);      
@@ -416,18 +454,19 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     }
-    buf_.setLength(0);
-    buf_.append("Glue phase is complete\n"); 
+    LayoutFailureTracker lft = current_.get();
+    lft.buf_.setLength(0);
+    lft.buf_.append("Glue phase is complete\n"); 
     int numSin = placeList.size();
     for (int i = 0; i < numSin; i++) {
       SpecialtyLayoutLinkData sin = (SpecialtyLayoutLinkData)placeList.get(i);
-      buf_.append((sin != null) ? sin.getSrcID() : "<no linkData>");
+      lft.buf_.append((sin != null) ? sin.getSrcID() : "<no linkData>");
       if (i != (numSin - 1)) {
-        buf_.append(", ");
+        lft.buf_.append(", ");
       }
     }
-    buf_.append("\n");
-    glueDone_ = buf_.toString();
+    lft.buf_.append("\n");
+    lft.glueDone_ = lft.buf_.toString();
     return;    
   }
   
@@ -442,18 +481,19 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     }
-    buf_.setLength(0);
-    buf_.append("Final link order for src " + sin.getSrcID() + ": ");   
+    LayoutFailureTracker lft = current_.get();
+    lft.buf_.setLength(0);
+    lft.buf_.append("Final link order for src " + sin.getSrcID() + ": ");   
     int numLinks = (sin == null) ? 0 : sin.numLinks();
     for (int i = 0; i < numLinks; i++) {
       String linkID = (String)sin.getLink(i);
-      buf_.append(linkID);
+      lft.buf_.append(linkID);
       if (i != (numLinks - 1)) {
-        buf_.append(", ");
+        lft.buf_.append(", ");
       }
     }
-    buf_.append("\n");
-    linkOrder_.put(sin.getSrcID(), buf_.toString());
+    lft.buf_.append("\n");
+    lft.linkOrder_.put(sin.getSrcID(), lft.buf_.toString());
     return;
   }
   
@@ -466,24 +506,25 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     }
-    buf_.setLength(0);
-    String pre = (String)ptLists_.get(srcID);
+    LayoutFailureTracker lft = current_.get();
+    lft.buf_.setLength(0);
+    String pre = (String)lft.ptLists_.get(srcID);
     if (pre == null) {
-      buf_.append("Placing links for src " + srcID + ": " + "\n");   
+      lft.buf_.append("Placing links for src " + srcID + ": " + "\n");   
     } else {
-      buf_.append(pre);   
+      lft.buf_.append(pre);   
     }
-    buf_.append("  Point list for link " + linkID + ": ");   
+    lft.buf_.append("  Point list for link " + linkID + ": ");   
     int numPts = ptList.size();
     for (int i = 0; i < numPts; i++) {
       Point2D pt = ((SpecialtyLayoutLinkData.TrackPos)ptList.get(i)).getPoint();
-      buf_.append(pt);
+      lft.buf_.append(pt);
       if (i != (numPts - 1)) {
-        buf_.append(", ");
+        lft.buf_.append(", ");
       }
     }
-    buf_.append("\n");
-    ptLists_.put(srcID, buf_.toString());
+    lft.buf_.append("\n");
+    lft.ptLists_.put(srcID, lft.buf_.toString());
     return;
   }
      
@@ -496,10 +537,11 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     }
+    LayoutFailureTracker lft = current_.get();
     if (!bp.getAllTreePoints().contains(reloc)) {
       System.err.println("EMERGENCY fallback placement for linkID: " + linkID + " no attachment for" + reloc);
-      System.err.println("pass: " + passNum_ + " subPass: " + subPassNum_);
-      failureReport(bp);
+      System.err.println("pass: " + lft.passNum_ + " subPass: " + lft.subPassNum_);
+      lft.failureReport(bp);
     }
     return;
   }
@@ -514,12 +556,13 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     }
+    LayoutFailureTracker lft = current_.get();
     if (linkID.equals(forceID)) {
       System.err.println(">>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>");
       System.err.println(">>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>>");
       System.err.println("Forced failure report for linkID: " + linkID);
-      System.err.println("pass: " + passNum_ + " subPass: " + subPassNum_);
-      failureReport(bp);
+      System.err.println("pass: " + lft.passNum_ + " subPass: " + lft.subPassNum_);
+      lft.failureReport(bp);
     }
     return;
   }
@@ -529,7 +572,7 @@ public class LayoutFailureTracker {
   ** Error trigger for report on failure:
   */
    
-  private static void failureReport(BusProperties bp) {
+  private void failureReport(BusProperties bp) {
     System.err.println("****************************************************************");
     System.err.println("Link Layout Failures:");
     for (int i = 0; i < failedLinks_.size(); i++) {
@@ -586,17 +629,18 @@ public class LayoutFailureTracker {
     if (!enabled_) {
       return;
     } 
-    buf_.setLength(0);
+    LayoutFailureTracker lft = current_.get();
+    lft.buf_.setLength(0);
     String srcID = sin.getSrcID();
-    String pre = (String)exitRoutes_.get(srcID);
+    String pre = (String)lft.exitRoutes_.get(srcID);
     if (pre == null) {
-      buf_.append("Exit route built for " + sin.getSrcID() + ": " + "\n");   
+      lft.buf_.append("Exit route built for " + sin.getSrcID() + ": " + "\n");   
     } else {
-      buf_.append(pre);   
+      lft.buf_.append(pre);   
     }
-    buf_.append(rn.toString());
-    buf_.append("\n");
-    exitRoutes_.put(srcID, buf_.toString());
+    lft.buf_.append(rn.toString());
+    lft.buf_.append("\n");
+    lft.exitRoutes_.put(srcID, lft.buf_.toString());
     return;
   }
 
@@ -620,9 +664,24 @@ public class LayoutFailureTracker {
 
   /***************************************************************************
   **
-  ** Null constructor.  Do not use
+  ** Per-thread instance only; see current_
   */
 
   private LayoutFailureTracker() {
+    buf_ = new StringBuffer();
+    bordersExits_ = new HashMap();
+    bordersExitsShifted_ = new HashMap();
+    mergeData_ = new HashMap();
+    exitRoutes_ = new HashMap();
+    linkOrder_ = new HashMap();
+    trunkPoints_ = new HashMap();
+    leafPoints_ = new HashMap();
+    ptLists_ = new HashMap();
+    postLayoutForSource_ = new HashMap();
+    recoveryPoints_ = new HashMap();
+    recoveryTosses_ = new HashMap();
+    failedLinks_ = new ArrayList();
+    passNum_ = -1;
+    subPassNum_ = -1;
   }
 }
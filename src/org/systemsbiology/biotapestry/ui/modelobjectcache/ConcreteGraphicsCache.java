@@ -19,7 +19,9 @@
 
 package org.systemsbiology.biotapestry.ui.modelobjectcache;
 
+import java.awt.BasicStroke;
 import java.awt.Graphics2D;
+import java.awt.Stroke;
 import java.awt.geom.AffineTransform;
 import java.awt.geom.Arc2D;
 import java.awt.geom.Ellipse2D;
@@ -247,6 +249,35 @@ public class ConcreteGraphicsCache extends ModelObjectCache {
     perMinor.add(cmd);   
   }
   
+	/***************************************************************************
+	**
+	** Answer if a shape with the given bounds might touch the clip. Used to skip
+	** rasterizing shapes that fall outside a clipped region (e.g. an image tile).
+	** With no clip set, everything is drawn.
+	*/
+	
+	static boolean mightHitClip(Graphics2D g2, Rectangle2D bounds, DrawMode mode) {
+		if (g2.getClip() == null) {
+			return (true);
+		}
+		// Pad for stroke width and miter joins, plus a pixel for antialiasing:
+		double pad = 1.0;
+		if (mode == DrawMode.DRAW) {
+			Stroke stroke = g2.getStroke();
+			if (!(stroke instanceof BasicStroke)) {
+				return (true);
+			}
+			BasicStroke bs = (BasicStroke)stroke;
+			double halfWidth = bs.getLineWidth() / 2.0;
+			pad += (bs.getLineJoin() == BasicStroke.JOIN_MITER) ? halfWidth * Math.max(1.0, bs.getMiterLimit()) : halfWidth;
+		}
+		double minX = Math.floor(bounds.getX() - pad);
+		double minY = Math.floor(bounds.getY() - pad);
+		double maxX = Math.ceil(bounds.getMaxX() + pad);
+		double maxY = Math.ceil(bounds.getMaxY() + pad);
+		return (g2.hitClip((int)minX, (int)minY, (int)(maxX - minX), (int)(maxY - minY)));
+	}
+	
 	private static class CacheGroupTranslator implements ModalShapeVisitor {
 		private ArrayList<ConcreteRenderCommand> commands_;
 		
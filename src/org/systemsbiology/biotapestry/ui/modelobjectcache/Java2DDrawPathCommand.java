@@ -22,6 +22,7 @@ package org.systemsbiology.biotapestry.ui.modelobjectcache;
 import java.awt.Graphics2D;
 import java.awt.Shape;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 import java.awt.geom.GeneralPath;
 import java.util.LinkedList;
 
@@ -30,6 +31,7 @@ import org.systemsbiology.biotapestry.ui.modelobjectcache.ModelObjectCache.DrawM
 public class Java2DDrawPathCommand implements ConcreteRenderCommand {
 	private GeneralPath path_;
 	private DrawMode mode_;
+	private Rectangle2D bounds_;
 	
 	public Java2DDrawPathCommand(GeneralPath path, DrawMode mode) {
 		path_ = path;
@@ -37,6 +39,12 @@ public class Java2DDrawPathCommand implements ConcreteRenderCommand {
 	}
 	
 	public void execute(Graphics2D g2, LinkedList<AffineTransform> transformStack) {
+		if (bounds_ == null) {
+			bounds_ = path_.getBounds2D();
+		}
+		if (!ConcreteGraphicsCache.mightHitClip(g2, bounds_, mode_)) {
+			return;
+		}
 		switch(mode_) {
 			case DRAW:
 				g2.draw(path_);
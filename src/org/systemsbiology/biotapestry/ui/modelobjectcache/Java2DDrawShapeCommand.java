@@ -22,6 +22,7 @@ package org.systemsbiology.biotapestry.ui.modelobjectcache;
 import java.awt.Graphics2D;
 import java.awt.Shape;
 import java.awt.geom.AffineTransform;
+import java.awt.geom.Rectangle2D;
 import java.util.LinkedList;
 
 import org.systemsbiology.biotapestry.ui.modelobjectcache.ModelObjectCache.DrawMode;
@@ -29,6 +30,7 @@ import org.systemsbiology.biotapestry.ui.modelobjectcache.ModelObjectCache.DrawM
 public class Java2DDrawShapeCommand implements ConcreteRenderCommand {
 	private Shape shape_;
 	private DrawMode mode_;
+	private Rectangle2D bounds_;
 	
 	public Java2DDrawShapeCommand(Shape shape, DrawMode mode) {
 			shape_ = shape;
@@ -36,6 +38,12 @@ public class Java2DDrawShapeCommand implements ConcreteRenderCommand {
 	}
 	
 	public void execute(Graphics2D g2, LinkedList<AffineTransform> transformStack) {
+		if (bounds_ == null) {
+			bounds_ = shape_.getBounds2D();
+		}
+		if (!ConcreteGraphicsCache.mightHitClip(g2, bounds_, mode_)) {
+			return;
+		}
 		switch(mode_) {
 			case DRAW:
 				g2.draw(shape_);
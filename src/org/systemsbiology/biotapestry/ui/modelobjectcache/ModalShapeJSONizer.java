@@ -50,23 +50,13 @@ import org.systemsbiology.biotapestry.ui.modelobjectcache.ModelObjectCache.TextS
 import org.systemsbiology.biotapestry.ui.modelobjectcache.transformer.FontExport;
 
 public class ModalShapeJSONizer {
-	public static ArrayList<Integer> pluckRGBA(Color color) {
-		ArrayList<Integer> arr = new ArrayList<Integer>();
-		arr.add(color.getRed());
-		arr.add(color.getGreen());
-		arr.add(color.getBlue());
-		arr.add(color.getAlpha());
-		
-		return arr;
+	// Primitive arrays serialize exactly like the equivalent lists, without boxing every component
+	public static int[] pluckRGBA(Color color) {
+		return new int[] {color.getRed(), color.getGreen(), color.getBlue(), color.getAlpha()};
 	}
 	
-	private static ArrayList<Object> strokeToArray(BasicStroke stroke) {
-		ArrayList<Object> arr = new ArrayList<Object>();
-		arr.add(stroke.getLineWidth());
-		arr.add(stroke.getLineJoin());
-		arr.add(stroke.getEndCap());		
-		
-		return arr;
+	private static Object[] strokeToArray(BasicStroke stroke) {
+		return new Object[] {stroke.getLineWidth(), stroke.getLineJoin(), stroke.getEndCap()};
 	}
 	
 	private static ArrayList<Object> strokeDashPatternToArray(BasicStroke stroke) {
@@ -20,6 +20,7 @@
 package org.systemsbiology.biotapestry.util;
 
 import java.io.IOException;
+import java.util.HashMap;
 import org.xml.sax.Attributes;
 
 /****************************************************************************
@@ -68,12 +69,9 @@ public class AttributeExtractor {
       int count = attrs.getLength();
       for (int i = 0; i < count; i++) {
         String key = attrs.getQName(i);
-        if (key == null) {
-          continue;
-        }
-        String val = attrs.getValue(i);
-        if (key.equals(attribTarget)) {
-          name = val;
+        if ((key != null) && key.equals(attribTarget)) {
+          name = attrs.getValue(i);
+          break;
         }
       }
     }
@@ -83,4 +81,96 @@ public class AttributeExtractor {
     }
     return (name);
   }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC INNER CLASSES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  **
+  ** For elements that come in by the thousands and carry a lot of attributes.
+  ** Rather than a pass over the attributes for each one we want, the ones we
+  ** know about are pulled out in a single pass, into slots given by their
+  ** position in the list of names. The slots are reused from one element to
+  ** the next, so a table belongs to one factory worker, and values need to be
+  ** taken out before the next element is loaded.
+  */  
+      
+  public static class Table {
+    
+    private String elemTarget_;
+    private String[] names_;
+    private HashMap<String, Integer> slots_;
+    private String[] values_;
+    
+    public Table(String elemTarget, String[] attribTargets) {
+      elemTarget_ = elemTarget;
+      names_ = attribTargets.clone();
+      slots_ = new HashMap<String, Integer>();
+      for (int i = 0; i < attribTargets.length; i++) {
+        slots_.put(attribTargets[i], Integer.valueOf(i));
+      }
+      values_ = new String[attribTargets.length];
+    }
+    
+    /***************************************************************************
+    **
+    ** Load up the attributes of the element. Answers false, with the slots
+    ** left empty, if it is not the element we handle.
+    */
+    
+    public boolean load(String elemName, Attributes attrs) {
+      for (int i = 0; i < values_.length; i++) {
+        values_[i] = null;
+      }
+      if (!elemName.equals(elemTarget_)) {
+        return (false);
+      }
+      if (attrs != null) {
+        int count = attrs.getLength();
+        for (int i = 0; i < count; i++) {
+          String key = attrs.getQName(i);
+          if (key == null) {
+            continue;
+          }
+          int slot = slotFor(key);
+          if (slot != -1) {
+            values_[slot] = attrs.getValue(i);
+          }
+        }
+      }
+      return (true);
+    }
+    
+    /***************************************************************************
+    **
+    ** The parser hands us interned names, same as our literals, so we can
+    ** usually match them without hashing or comparing characters
+    */
+    
+    private int slotFor(String key) {
+      for (int i = 0; i < names_.length; i++) {
+        if (names_[i] == key) {
+          return (i);
+        }
+      }
+      Integer slot = slots_.get(key);
+      return ((slot == null) ? -1 : slot.intValue());
+    }
+    
+    /***************************************************************************
+    **
+    ** Get a loaded value, as extractAttribute() would have answered
+    */
+    
+    public String get(int slot, boolean required) throws IOException {
+      String retval = values_[slot];
+      if (required && (retval == null)) {
+        throw new IOException();
+      }
+      return (retval);
+    }
+  }
 }
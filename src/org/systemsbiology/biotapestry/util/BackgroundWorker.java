@@ -122,7 +122,9 @@ public abstract class BackgroundWorker implements Runnable, BTProgressMonitor {
       try {
         myResult_ = runCore();
       } catch (AsynchExitRequestException ex) {
-        throw new IllegalStateException();  // Should not happen
+        // Only a server job that has been cancelled gets here
+        client_.workCancelled();
+        return;
       }
       if (caughtException_ == null) {
         postRunCore();
@@ -181,6 +183,10 @@ public abstract class BackgroundWorker implements Runnable, BTProgressMonitor {
   }
   
   public boolean keepGoing() {
+    // No cancel timer runs in the foreground, so ask the client directly:
+    if (isForeground_ && (client_ != null) && !client_.keepGoing()) {
+      cancelRequested_ = true;
+    }
     return (!cancelRequested_);
   }      
 
@@ -60,6 +60,7 @@ public class BackgroundWorkerClient {
   private JLabel cancellingMessage_;
   private FixedJButton cancelButton_;
   private boolean isHeadless_;
+  private BTProgressMonitor headlessMonitor_;
   private BTState appState_;
 
   //
@@ -142,6 +143,9 @@ public class BackgroundWorkerClient {
     isHeadless_ = true;
     chart_ = null;
     appState_ = appState;
+    headlessMonitor_ = appState.getHeadlessProgressMonitor();
+    // A server job monitor can ask for the work to stop:
+    allowCancels_ = (headlessMonitor_ != null);
   }
  
   public void launchWorker(boolean doDisable) {
@@ -151,6 +155,9 @@ public class BackgroundWorkerClient {
       progressDialog_ = null;
       progressBar_ = null;       
       worker_.setTotal(100);
+      if (headlessMonitor_ != null) {
+        headlessMonitor_.setTotal(100);
+      }
       if (!isHeadless_) {
         Thread runThread = new Thread(worker_);
         prepProgressDialog();
@@ -255,7 +262,7 @@ public class BackgroundWorkerClient {
       chart_.setProgress(vals);
       chart_.repaint();
     }
-    return (!cancelRequested_);
+    return (keepGoing());
   }
  
   public boolean updateProgress(int percent) {
@@ -263,10 +270,16 @@ public class BackgroundWorkerClient {
       progressBar_.setValue(percent);
       progressBar_.setIndeterminate(false);
     }
+    if ((headlessMonitor_ != null) && !headlessMonitor_.updateProgress(percent)) {
+      cancelRequested_ = true;
+    }
     return (!cancelRequested_);
   }
   
   public boolean keepGoing() {
+    if ((headlessMonitor_ != null) && !headlessMonitor_.keepGoing()) {
+      cancelRequested_ = true;
+    }
     return (!cancelRequested_);
   }  
   
@@ -20,6 +20,9 @@
 
 package org.systemsbiology.biotapestry.util;
 
+import java.io.IOException;
+import java.io.Writer;
+import java.util.Arrays;
 import java.util.HashMap;
 import java.util.Set;
 
@@ -32,6 +35,7 @@ public class Base64Util {
    
   private final static char[] encodeChars_;
   private final static HashMap<MutChar, Integer> decodeMap_;
+  private final static int[] decodeTable_;
   
   /***************************************************************************
   **
@@ -50,6 +54,11 @@ public class Base64Util {
       MutChar key = new MutChar(keyVal);
       decodeMap_.put(key, new Integer(i));
     }
+    decodeTable_ = new int[128];
+    Arrays.fill(decodeTable_, -1);
+    for (int i = 0; i < 64; i++) {
+      decodeTable_[encodeChars_[i]] = i;
+    }
   }  
 
   /***************************************************************************
@@ -124,6 +133,42 @@ public class Base64Util {
     return (retval.toString());
   }    
   
+  /***************************************************************************
+  **
+  ** Encode the bytes straight to the writer. Same output as encode(), without
+  ** building it all in memory first.
+  */  
+  
+  public void encode(byte[] input, Writer out) throws IOException {
+    int len = input.length;
+    int numGroups = (len + 2) / 3;
+    char[] buf = new char[1024];
+    int pos = 0;
+    for (int g = 0; g < numGroups; g++) {
+      //
+      // Newlines every 76 output characters:
+      //
+      if ((g > 0) && (((g * 4) % 76) == 0)) {
+        buf[pos++] = '\n';
+      }
+      int i = g * 3;
+      int val1 = input[i] & 0xFF;
+      int val2 = ((i + 1) < len) ? (input[i + 1] & 0xFF) : 0;
+      int val3 = ((i + 2) < len) ? (input[i + 2] & 0xFF) : 0;
+      int tfbit = (val1 << 16) + (val2 << 8) + val3;
+      buf[pos++] = encodeChars_[(tfbit >> 18) & 0x3F];
+      buf[pos++] = encodeChars_[(tfbit >> 12) & 0x3F];
+      buf[pos++] = ((i + 1) < len) ? encodeChars_[(tfbit >> 6) & 0x3F] : '=';
+      buf[pos++] = ((i + 2) < len) ? encodeChars_[tfbit & 0x3F] : '=';
+      if (pos > (buf.length - 5)) {
+        out.write(buf, 0, pos);
+        pos = 0;
+      }
+    }
+    out.write(buf, 0, pos);
+    return;
+  }
+
   /***************************************************************************
   **
   ** Decode the String to bytes
@@ -247,6 +292,73 @@ public class Base64Util {
   //
   ////////////////////////////////////////////////////////////////////////////
 
+  /***************************************************************************
+  **
+  ** Decodes base64 as it arrives in pieces (e.g. from a SAX parser), so the
+  ** text never has to be gathered up. Anything outside the base64 alphabet,
+  ** including whitespace and the trailing pads, is skipped.
+  */
+
+  public static class Decoder {
+    private byte[] out_;
+    private int outLen_;
+    private int bits_;
+    private int count_;
+
+    public Decoder() {
+      out_ = new byte[1024];
+      outLen_ = 0;
+      bits_ = 0;
+      count_ = 0;
+    }
+
+    public void append(char[] chars, int start, int length) {
+      int end = start + length;
+      for (int i = start; i < end; i++) {
+        char ch = chars[i];
+        int val = (ch < 128) ? decodeTable_[ch] : -1;
+        if (val < 0) {
+          continue;
+        }
+        bits_ = (bits_ << 6) | val;
+        if (++count_ == 4) {
+          ensureRoom(3);
+          out_[outLen_++] = (byte)((bits_ >>> 16) & 0xFF);
+          out_[outLen_++] = (byte)((bits_ >>> 8) & 0xFF);
+          out_[outLen_++] = (byte)(bits_ & 0xFF);
+          bits_ = 0;
+          count_ = 0;
+        }
+      }
+      return;
+    }
+
+    /***************************************************************************
+    **
+    ** Get the decoded bytes. The last group may be short when it was padded.
+    */
+
+    public byte[] finish() {
+      ensureRoom(2);
+      if (count_ == 2) {
+        out_[outLen_++] = (byte)((bits_ >>> 4) & 0xFF);
+      } else if (count_ == 3) {
+        out_[outLen_++] = (byte)((bits_ >>> 10) & 0xFF);
+        out_[outLen_++] = (byte)((bits_ >>> 2) & 0xFF);
+      }
+      bits_ = 0;
+      count_ = 0;
+      return (Arrays.copyOf(out_, outLen_));
+    }
+
+    private void ensureRoom(int num) {
+      if ((outLen_ + num) > out_.length) {
+        out_ = Arrays.copyOf(out_, Math.max(out_.length * 2, outLen_ + num));
+      }
+      return;
+    }
+  }
+
   /***************************************************************************
   **
   ** Eliminate lots of object creation
@@ -22,20 +22,45 @@ package org.systemsbiology.biotapestry.util;
 
 import java.util.ArrayList;
 import java.util.List;
-import java.util.regex.Matcher;
-import java.util.regex.Pattern;
 
 /***************************************************************************
 **
-** Class for parsing CSV inputs
+** Class for parsing CSV inputs. A line is scanned in place into field
+** slices, and Strings are only made for the fields somebody asks for.
+**
+** This used to be the CSV regex from "Mastering Regular Expressions 2nd Ed."
+** by Friedl (O'Reilly), and it still answers exactly what that did, quirks
+** included:
+**  - Fields are trimmed, and "" inside a quoted field is a quote.
+**  - A field that starts with a quote but is not closed is empty, and ends
+**    the line. So does anything but a comma after a closing quote.
+**  - If the first field is empty, i.e. the line starts with a comma, that
+**    empty field is all there is.
 */
   
 public class CSVParser {
-  private Pattern pat_;
-  private Pattern doubq_;
-  private Matcher mainMatch_;
-  private Matcher doubMatch_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final int INIT_FIELDS_ = 32;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
   private boolean dropTrailing_;
+  private char[] chars_;
+  private char[] lineBuf_;
+  private int count_;
+  private int[] starts_;
+  private int[] ends_;
+  private boolean[] quoted_;
   
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -49,14 +74,12 @@ public class CSVParser {
   */
 
   public CSVParser(boolean dropTrailing) {
-    // Pattern for CSV from "Mastering Regular Expressions 2nd Ed." by Friedl (O'Reilly)
-    pat_ = Pattern.compile(
-      "\\G(?:^|,) (?: \" ( (?> [^\"]*+ ) (?> \"\" [^\"]*+ )*+ ) \" | ( [^\",]*+ ) )",
-      Pattern.COMMENTS);
-    doubq_ = Pattern.compile("\"\"");
-    mainMatch_ = pat_.matcher("");
-    doubMatch_ = doubq_.matcher("");
     dropTrailing_ = dropTrailing;
+    lineBuf_ = new char[256];
+    count_ = 0;
+    starts_ = new int[INIT_FIELDS_];
+    ends_ = new int[INIT_FIELDS_];
+    quoted_ = new boolean[INIT_FIELDS_];
   } 
 
   ////////////////////////////////////////////////////////////////////////////
@@ -71,15 +94,60 @@ public class CSVParser {
   */
 
   public List<String> processCSVLine(String line) {
-    ArrayList<String> argList = new ArrayList<String>();
-    mainMatch_.reset(line);
-    while (mainMatch_.find()) {
-      String group = mainMatch_.group(2);
-      if (group != null) {
-        argList.add(group.trim());
+    int len = line.length();
+    if (lineBuf_.length < len) {
+      lineBuf_ = new char[Math.max(len, lineBuf_.length * 2)];
+    }
+    line.getChars(0, len, lineBuf_, 0);
+    tokenize(lineBuf_, 0, len);
+    return (getFields());
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Process the current line of the reader into field slices. Answers the
+  ** field count.
+  */
+
+  public int tokenize(MappedLineReader reader) {
+    return (tokenize(reader.getChars(), reader.getLineStart(), reader.getLineEnd()));
+  }
+ 
+  /***************************************************************************
+  ** 
+  ** Process the characters from start to end into field slices. They are
+  ** used in place, so they must stay put while the fields are being looked
+  ** at. Answers the field count.
+  */
+
+  public int tokenize(char[] chars, int start, int end) {
+    chars_ = chars;
+    count_ = 0;
+    int pos = start;
+    while (true) {
+      if (pos != start) {
+        if ((pos >= end) || (chars[pos] != ',')) {
+          break;
+        }
+        pos++;
+      }
+      int fieldStart = pos;
+      int close = ((pos < end) && (chars[pos] == '"')) ? closingQuote(chars, pos, end) : -1;
+      if (close != -1) {
+        addField(pos + 1, close, true);
+        pos = close + 1;
       } else {
-        doubMatch_.reset(mainMatch_.group(1));
-        argList.add(doubMatch_.replaceAll("\"").trim());
+        while ((pos < end) && (chars[pos] != ',') && (chars[pos] != '"')) {
+          pos++;
+        }
+        addField(fieldStart, pos, false);
+        //
+        // An empty first field leaves us where we started, and the
+        // regex could not carry on from there:
+        //
+        if (pos == start) {
+          break;
+        }
       }
     }
     
@@ -88,26 +156,130 @@ public class CSVParser {
     //
     
     if (dropTrailing_) {
-      ArrayList<String> retval = new ArrayList<String>();
-      int alnum = argList.size();
-      boolean chopping = true;
-      for (int i = alnum - 1; i >= 0; i--) {
-        String tok = (String)argList.get(i);
-        if (chopping) {
-          if (tok.trim().equals("")) {
-            continue;
-          } else {
-            chopping = false;
-          }
-        }
-        if (!chopping) {
-          retval.add(0, tok);
+      while ((count_ > 0) && (starts_[count_ - 1] == ends_[count_ - 1])) {
+        count_--;
+      }
+    }
+    return (count_);
+  }
+
+  /***************************************************************************
+  ** 
+  ** The number of fields from the last line
+  */
+
+  public int getFieldCount() {
+    return (count_);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Answers if the given field is empty
+  */
+
+  public boolean isFieldEmpty(int index) {
+    return (starts_[index] == ends_[index]);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Answers if the given field starts with the character
+  */
+
+  public boolean fieldStartsWith(int index, char ch) {
+    return ((starts_[index] < ends_[index]) && (chars_[starts_[index]] == ch));
+  }
+  
+  /***************************************************************************
+  ** 
+  ** The given field as a String
+  */
+
+  public String getField(int index) {
+    int start = starts_[index];
+    int end = ends_[index];
+    if (!quoted_[index]) {
+      return (new String(chars_, start, end - start));
+    }
+    StringBuilder buf = new StringBuilder(end - start);
+    for (int i = start; i < end; i++) {
+      char ch = chars_[i];
+      buf.append(ch);
+      if (ch == '"') {
+        i++;
+      }
+    }
+    return (buf.toString());
+  }
+  
+  /***************************************************************************
+  ** 
+  ** All the fields as Strings
+  */
+
+  public List<String> getFields() {
+    ArrayList<String> retval = new ArrayList<String>(count_);
+    for (int i = 0; i < count_; i++) {
+      retval.add(getField(i));
+    }
+    return (retval);
+  }
+  
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+  
+  /***************************************************************************
+  ** 
+  ** Find the quote closing the field opened at pos, skipping "" pairs. -1
+  ** if there is none.
+  */
+
+  private int closingQuote(char[] chars, int pos, int end) {
+    int i = pos + 1;
+    while (i < end) {
+      if (chars[i] == '"') {
+        if (((i + 1) < end) && (chars[i + 1] == '"')) {
+          i += 2;
+          continue;
         }
+        return (i);
       }
-      return (retval);
-    } else {
-      return (argList);
-    }    
-  } 
+      i++;
+    }
+    return (-1);
+  }
+  
+  /***************************************************************************
+  ** 
+  ** Record a field slice, trimmed. Trimming before the "" pairs are undone
+  ** is fine, since a quote is not whitespace.
+  */
+
+  private void addField(int start, int end, boolean quoted) {
+    while ((start < end) && (chars_[start] <= ' ')) {
+      start++;
+    }
+    while ((start < end) && (chars_[end - 1] <= ' ')) {
+      end--;
+    }
+    if (count_ == starts_.length) {
+      int[] newStarts = new int[count_ * 2];
+      int[] newEnds = new int[count_ * 2];
+      boolean[] newQuoted = new boolean[count_ * 2];
+      System.arraycopy(starts_, 0, newStarts, 0, count_);
+      System.arraycopy(ends_, 0, newEnds, 0, count_);
+      System.arraycopy(quoted_, 0, newQuoted, 0, count_);
+      starts_ = newStarts;
+      ends_ = newEnds;
+      quoted_ = newQuoted;
+    }
+    starts_[count_] = start;
+    ends_[count_] = end;
+    quoted_[count_] = quoted;
+    count_++;
+    return;
+  }
 }
-  
\ No newline at end of file
@@ -194,6 +194,25 @@ public class DataUtil {
     return (key1.replaceAll(" ", "").equalsIgnoreCase(key2.replaceAll(" ", "")));
   }  
 
+  /***************************************************************************
+  **
+  ** A hash key for a name: two names get the same key exactly when keysEqual()
+  ** says they match. Folds case one char at a time like equalsIgnoreCase(),
+  ** since toUpperCase() can change the length (e.g. sharp s).
+  */
+  
+  public static String matchKey(String key) {
+    int len = key.length();
+    StringBuffer buf = new StringBuffer(len);
+    for (int i = 0; i < len; i++) {
+      char ch = key.charAt(i);
+      if (ch != ' ') {
+        buf.append(Character.toLowerCase(Character.toUpperCase(ch)));
+      }
+    }
+    return (buf.toString());
+  }
+
   /***************************************************************************
   **
   ** Answers if normalized key is contained in the set of keys
@@ -0,0 +1,234 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.util;
+
+import java.io.BufferedInputStream;
+import java.io.ByteArrayInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.io.RandomAccessFile;
+import java.util.zip.GZIPInputStream;
+import java.util.zip.GZIPOutputStream;
+
+/****************************************************************************
+**
+** Utility for reading and writing gzip-compressed files. Compressed input is
+** recognized by its magic bytes, not its name, so a .btp that somebody gzipped
+** (or a server that gzipped it on the way) still loads. Output is compressed
+** when the file name says so.
+*/
+
+public class GzipUtil {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  public static final String GZIP_SUFFIX_ = ".gz";
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  //
+  // The inflater works on whole buffers of this size; the 512 byte default
+  // makes it noticeably slower on big models:
+  //
+
+  private static final int BUFFER_SIZE_ = 1 << 16;
+  private static final int MAGIC_0_ = 0x1f;
+  private static final int MAGIC_1_ = 0x8b;
+  private static final int MIN_GZIP_BYTES_ = 18;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Not to be instantiated
+  */
+
+  private GzipUtil() {
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Answers if the stream starts with the gzip magic bytes. The stream is left
+  ** where it was.
+  */
+
+  public static boolean isGzipped(BufferedInputStream stream) throws IOException {
+    stream.mark(2);
+    try {
+      return ((stream.read() == MAGIC_0_) && (stream.read() == MAGIC_1_));
+    } finally {
+      stream.reset();
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Answers if the bytes start with the gzip magic bytes
+  */
+
+  public static boolean isGzipped(byte[] bytes) {
+    return ((bytes.length >= 2) && ((bytes[0] & 0xFF) == MAGIC_0_) && ((bytes[1] & 0xFF) == MAGIC_1_));
+  }
+
+  /***************************************************************************
+  **
+  ** Hand back a buffered stream of the contents, inflated if the stream is
+  ** compressed. Closing the result closes the given stream.
+  */
+
+  public static BufferedInputStream inflateIfNeeded(InputStream stream) throws IOException {
+    BufferedInputStream buffered = (stream instanceof BufferedInputStream) ? (BufferedInputStream)stream : new BufferedInputStream(stream);
+    if (!isGzipped(buffered)) {
+      return (buffered);
+    }
+    return (new BufferedInputStream(new GZIPInputStream(buffered, BUFFER_SIZE_), BUFFER_SIZE_));
+  }
+
+  /***************************************************************************
+  **
+  ** The bytes, inflated if they are compressed
+  */
+
+  public static byte[] inflateIfNeeded(byte[] bytes) throws IOException {
+    if (!isGzipped(bytes)) {
+      return (bytes);
+    }
+    GZIPInputStream stream = new GZIPInputStream(new ByteArrayInputStream(bytes), BUFFER_SIZE_);
+    try {
+      int guess = (bytes.length < MIN_GZIP_BYTES_) ? 0 : (int)Math.min(trailerLength(bytes, bytes.length - 4), Integer.MAX_VALUE - 8);
+      return (readAll(stream, guess));
+    } finally {
+      stream.close();
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** The inflated size of a gzipped file, from its trailer, or -1 if it is too
+  ** short to have one. The trailer only knows about the last member of the
+  ** file, and only modulo 4 GB, so this is a good guess, not a promise.
+  */
+
+  public static long inflatedLength(File file) throws IOException {
+    RandomAccessFile raf = new RandomAccessFile(file, "r");
+    try {
+      long len = raf.length();
+      if (len < MIN_GZIP_BYTES_) {
+        return (-1L);
+      }
+      raf.seek(len - 4);
+      byte[] trailer = new byte[4];
+      raf.readFully(trailer);
+      return (trailerLength(trailer, 0));
+    } finally {
+      raf.close();
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** Read the stream to the end. It is not closed.
+  */
+
+  public static byte[] readAll(InputStream stream, int sizeGuess) throws IOException {
+    ByteArrayOutputStream bytes = new ByteArrayOutputStream(Math.max(sizeGuess, 32));
+    byte[] chunk = new byte[BUFFER_SIZE_];
+    int got;
+    while ((got = stream.read(chunk)) != -1) {
+      bytes.write(chunk, 0, got);
+    }
+    return (bytes.toByteArray());
+  }
+
+  /***************************************************************************
+  **
+  ** Answers if the file name calls for compression
+  */
+
+  public static boolean isGzipName(String fileName) {
+    return (fileName.toLowerCase().endsWith(GZIP_SUFFIX_));
+  }
+
+  /***************************************************************************
+  **
+  ** The file name without any compression suffix, e.g. to see what kind of
+  ** file is inside
+  */
+
+  public static String stripGzipName(String fileName) {
+    if (!isGzipName(fileName)) {
+      return (fileName);
+    }
+    return (fileName.substring(0, fileName.length() - GZIP_SUFFIX_.length()));
+  }
+
+  /***************************************************************************
+  **
+  ** Wrap the stream to compress what is written to it if the file name calls
+  ** for it. Closing the result finishes the compressed data and closes the
+  ** given stream.
+  */
+
+  public static OutputStream deflateIfNamed(String fileName, OutputStream stream) throws IOException {
+    if (!isGzipName(fileName)) {
+      return (stream);
+    }
+    return (new GZIPOutputStream(stream, BUFFER_SIZE_));
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE STATIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** The little-endian ISIZE field of a gzip trailer
+  */
+
+  private static long trailerLength(byte[] bytes, int offset) {
+    return (((long)(bytes[offset] & 0xFF)) |
+            ((long)(bytes[offset + 1] & 0xFF) << 8) |
+            ((long)(bytes[offset + 2] & 0xFF) << 16) |
+            ((long)(bytes[offset + 3] & 0xFF) << 24));
+  }
+}
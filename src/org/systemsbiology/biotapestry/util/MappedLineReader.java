@@ -0,0 +1,361 @@
+/*
+**    Copyright (C) 2003-2016 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.util;
+
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.IOException;
+import java.io.Reader;
+import java.nio.CharBuffer;
+import java.nio.MappedByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.Charset;
+import java.nio.charset.CharsetDecoder;
+import java.nio.charset.CoderResult;
+import java.nio.charset.CodingErrorAction;
+
+/****************************************************************************
+**
+** Hands out the lines of a text file without making a String for each one.
+** A file is memory-mapped a window at a time and decoded straight into one
+** reusable character buffer; each line is just a range of that buffer, good
+** until the next call to nextLine(). Lines end the same way they do for
+** BufferedReader.readLine(), and a file is decoded with the platform charset,
+** like a FileReader, so the two can be swapped without changing what is read.
+**
+** Streams (e.g. from the servlet) can be read the same way through a Reader.
+*/
+
+public class MappedLineReader {
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTANTS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private static final int INIT_CHARS_ = 1 << 16;
+  private static final long WINDOW_BYTES_ = 1L << 26;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE INSTANCES
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  private FileInputStream fis_;
+  private FileChannel channel_;
+  private long fileSize_;
+  private long windowStart_;
+  private MappedByteBuffer bytes_;
+  private CharsetDecoder decoder_;
+  private boolean flushing_;
+  private Reader reader_;
+
+  private char[] buf_;
+  private int pos_;
+  private int lim_;
+  private boolean eof_;
+  private boolean skipLF_;
+  private int lineStart_;
+  private int lineEnd_;
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Read the lines of a file
+  */
+
+  public MappedLineReader(File file) throws IOException {
+    this();
+    fis_ = new FileInputStream(file);
+    try {
+      channel_ = fis_.getChannel();
+      fileSize_ = channel_.size();
+      windowStart_ = 0L;
+      mapWindow();
+    } catch (IOException ioex) {
+      fis_.close();
+      throw ioex;
+    }
+    decoder_ = Charset.defaultCharset().newDecoder();
+    decoder_.onMalformedInput(CodingErrorAction.REPLACE);
+    decoder_.onUnmappableCharacter(CodingErrorAction.REPLACE);
+    flushing_ = false;
+  }
+
+  /***************************************************************************
+  **
+  ** Read the lines from a reader. Closing this closes the reader.
+  */
+
+  public MappedLineReader(Reader reader) {
+    this();
+    reader_ = reader;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE CONSTRUCTORS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Common setup
+  */
+
+  private MappedLineReader() {
+    buf_ = new char[INIT_CHARS_];
+    pos_ = 0;
+    lim_ = 0;
+    eof_ = false;
+    skipLF_ = false;
+    lineStart_ = 0;
+    lineEnd_ = 0;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PUBLIC METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Move to the next line. Answers false at the end of the input.
+  */
+
+  public boolean nextLine() throws IOException {
+    int scan = pos_;
+    while (true) {
+      if (skipLF_ && (pos_ < lim_)) {
+        skipLF_ = false;
+        if (buf_[pos_] == '\n') {
+          pos_++;
+        }
+        scan = pos_;
+      }
+      if (!skipLF_) {
+        for (int i = scan; i < lim_; i++) {
+          char ch = buf_[i];
+          if ((ch == '\n') || (ch == '\r')) {
+            lineStart_ = pos_;
+            lineEnd_ = i;
+            pos_ = i + 1;
+            skipLF_ = (ch == '\r');
+            return (true);
+          }
+        }
+      }
+      if (eof_) {
+        skipLF_ = false;
+        if (pos_ < lim_) {
+          lineStart_ = pos_;
+          lineEnd_ = lim_;
+          pos_ = lim_;
+          return (true);
+        }
+        return (false);
+      }
+      int scanned = lim_ - pos_;
+      fill();
+      scan = pos_ + scanned;
+    }
+  }
+
+  /***************************************************************************
+  **
+  ** The buffer holding the current line. Do not hang onto it.
+  */
+
+  public char[] getChars() {
+    return (buf_);
+  }
+
+  /***************************************************************************
+  **
+  ** Where the current line starts in the buffer
+  */
+
+  public int getLineStart() {
+    return (lineStart_);
+  }
+
+  /***************************************************************************
+  **
+  ** Where the current line ends in the buffer (exclusive, without the line end)
+  */
+
+  public int getLineEnd() {
+    return (lineEnd_);
+  }
+
+  /***************************************************************************
+  **
+  ** Answers if the current line is blank, i.e. its trim() would be empty
+  */
+
+  public boolean isBlank() {
+    for (int i = lineStart_; i < lineEnd_; i++) {
+      if (buf_[i] > ' ') {
+        return (false);
+      }
+    }
+    return (true);
+  }
+
+  /***************************************************************************
+  **
+  ** The current line as a String, for when it needs to be kept
+  */
+
+  public String getLine() {
+    return (new String(buf_, lineStart_, lineEnd_ - lineStart_));
+  }
+
+  /***************************************************************************
+  **
+  ** How far through the file we are, as a percentage. Always zero for a
+  ** reader, since we cannot know.
+  */
+
+  public int getPercentRead() {
+    if (channel_ == null) {
+      return (0);
+    }
+    if (fileSize_ == 0L) {
+      return (100);
+    }
+    long read = (bytes_ == null) ? fileSize_ : windowStart_ + bytes_.position();
+    return ((int)((read * 100L) / fileSize_));
+  }
+
+  /***************************************************************************
+  **
+  ** Done with the input
+  */
+
+  public void close() throws IOException {
+    bytes_ = null;
+    if (fis_ != null) {
+      fis_.close();
+    }
+    if (reader_ != null) {
+      reader_.close();
+    }
+    return;
+  }
+
+  ////////////////////////////////////////////////////////////////////////////
+  //
+  // PRIVATE METHODS
+  //
+  ////////////////////////////////////////////////////////////////////////////
+
+  /***************************************************************************
+  **
+  ** Get more characters into the buffer, after the partial line we have. The
+  ** buffer grows if that line fills it.
+  */
+
+  private void fill() throws IOException {
+    if (pos_ > 0) {
+      System.arraycopy(buf_, pos_, buf_, 0, lim_ - pos_);
+      lim_ -= pos_;
+      lineStart_ = 0;
+      lineEnd_ = 0;
+      pos_ = 0;
+    }
+    //
+    // Decoding needs room for a surrogate pair to make progress:
+    //
+    if ((buf_.length - lim_) < 2) {
+      char[] bigger = new char[buf_.length * 2];
+      System.arraycopy(buf_, 0, bigger, 0, lim_);
+      buf_ = bigger;
+    }
+    if (reader_ != null) {
+      int got = reader_.read(buf_, lim_, buf_.length - lim_);
+      if (got == -1) {
+        eof_ = true;
+      } else {
+        lim_ += got;
+      }
+      return;
+    }
+    decode();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Decode mapped bytes into the free end of the buffer, moving the window
+  ** along the file as each one is used up
+  */
+
+  private void decode() throws IOException {
+    CharBuffer out = CharBuffer.wrap(buf_, lim_, buf_.length - lim_);
+    while (!flushing_) {
+      boolean lastWindow = ((windowStart_ + bytes_.capacity()) >= fileSize_);
+      CoderResult result = decoder_.decode(bytes_, out, lastWindow);
+      if (result.isError()) {
+        result.throwException();
+      }
+      if (result.isOverflow()) {
+        break;
+      }
+      if (!lastWindow) {
+        //
+        // The next window starts with whatever this one could not finish,
+        // e.g. half of a multi-byte character:
+        //
+        windowStart_ += bytes_.position();
+        mapWindow();
+        if (out.position() > lim_) {
+          break;
+        }
+        continue;
+      }
+      flushing_ = true;
+    }
+    if (flushing_ && !decoder_.flush(out).isOverflow()) {
+      eof_ = true;
+    }
+    lim_ = out.position();
+    return;
+  }
+
+  /***************************************************************************
+  **
+  ** Map the file from windowStart_
+  */
+
+  private void mapWindow() throws IOException {
+    long size = Math.min(WINDOW_BYTES_, fileSize_ - windowStart_);
+    bytes_ = channel_.map(FileChannel.MapMode.READ_ONLY, windowStart_, size);
+    return;
+  }
+}
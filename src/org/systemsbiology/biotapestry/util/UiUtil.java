@@ -136,10 +136,11 @@ public class UiUtil {
   
   /***************************************************************************
   **
-  ** Format a double
+  ** Format a double.  Synchronized since the shared formatters are not thread-safe,
+  ** and independent BTStates may be working on different threads.
   */
   
-  public static String doubleFormat(double val, boolean hiRes) {
+  public static synchronized String doubleFormat(double val, boolean hiRes) {
     if (Double.isNaN(val)) {
       return ("NaN");
     }
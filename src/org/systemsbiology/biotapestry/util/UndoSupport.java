@@ -20,9 +20,12 @@
 package org.systemsbiology.biotapestry.util;
 
 import java.util.ArrayList;
+import javax.swing.undo.CannotRedoException;
+import javax.swing.undo.CannotUndoException;
 import javax.swing.undo.CompoundEdit;
 
 import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.cmd.flow.io.AutoSaveCheckpointer;
 import org.systemsbiology.biotapestry.cmd.undo.BTUndoCmd;
 import org.systemsbiology.biotapestry.cmd.undo.CompoundPostEventCmd2;
 import org.systemsbiology.biotapestry.cmd.undo.CompoundPreEventCmd;
@@ -42,12 +45,13 @@ public class UndoSupport {
   //
   ////////////////////////////////////////////////////////////////////////////
   
-  private CompoundEdit edit_;   
+  private JournaledEdit edit_;   
   private CompoundPreEventCmd pre_;
   private CompoundPostEventCmd2 post_;
   private ArrayList<ChangeEvent> preList_;
   private ArrayList<ChangeEvent> postList_;
   private BTState appState_;
+  private ArrayList<BTUndoCmd> modelCmds_;
   
   ////////////////////////////////////////////////////////////////////////////
   //
@@ -76,12 +80,13 @@ public class UndoSupport {
 
   public UndoSupport(BTState appState, String presentation, DataAccessContext dacx) {
     appState_ = appState;
-    edit_ = new CompoundEdit();
+    edit_ = new JournaledEdit(appState);
     pre_ = new CompoundPreEventCmd(appState, dacx);
     post_ = new CompoundPostEventCmd2(appState, dacx, appState.getRMan().getString(presentation));
     preList_ = new ArrayList<ChangeEvent>();
     postList_ = new ArrayList<ChangeEvent>();
     edit_.addEdit(pre_);
+    modelCmds_ = new ArrayList<BTUndoCmd>();
   }  
   
   ////////////////////////////////////////////////////////////////////////////
@@ -111,6 +116,7 @@ public class UndoSupport {
   public void addEdit(BTUndoCmd edit) {
     if (edit.changesModel()) {
       appState_.bumpUndoCount();
+      modelCmds_.add(edit);
     }
     edit_.addEdit(edit);
     return;
@@ -179,6 +185,10 @@ public class UndoSupport {
     post_.execute();        
     edit_.end();
     appState_.getUndoManager().addEdit(edit_);
+    AutoSaveCheckpointer asc = appState_.getAutoSave();
+    if (!modelCmds_.isEmpty() && (asc != null)) {
+      edit_.setJournaled(asc.editCommitted(modelCmds_));
+    }
     return;
   }
   
@@ -205,4 +215,49 @@ public class UndoSupport {
   // PRIVATE INNER CLASSES
   //
   ////////////////////////////////////////////////////////////////////////////  
+
+  /***************************************************************************
+  **
+  ** The compound edit handed to the undo manager. Once it has gone into the
+  ** autosave journal, undoing or redoing it goes in too.
+  */
+
+  private static class JournaledEdit extends CompoundEdit {
+
+    private static final long serialVersionUID = 1L;
+    private BTState appState_;
+    private boolean journaled_;
+    private byte[] body_;
+
+    JournaledEdit(BTState appState) {
+      appState_ = appState;
+      journaled_ = false;
+    }
+
+    void setJournaled(byte[] body) {
+      journaled_ = true;
+      body_ = body;
+      return;
+    }
+
+    @Override
+    public void undo() throws CannotUndoException {
+      super.undo();
+      AutoSaveCheckpointer asc = appState_.getAutoSave();
+      if (journaled_ && (asc != null)) {
+        asc.editUndone(body_);
+      }
+      return;
+    }
+
+    @Override
+    public void redo() throws CannotRedoException {
+      super.redo();
+      AutoSaveCheckpointer asc = appState_.getAutoSave();
+      if (journaled_ && (asc != null)) {
+        asc.editRedone(body_);
+      }
+      return;
+    }
+  }
 }
@@ -0,0 +1,97 @@
+/*
+**    Copyright (C) 2003-2014 Institute for Systems Biology
+**                            Seattle, Washington, USA.
+**
+**    This library is free software; you can redistribute it and/or
+**    modify it under the terms of the GNU Lesser General Public
+**    License as published by the Free Software Foundation; either
+**    version 2.1 of the License, or (at your option) any later version.
+**
+**    This library is distributed in the hope that it will be useful,
+**    but WITHOUT ANY WARRANTY; without even the implied warranty of
+**    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+**    Lesser General Public License for more details.
+**
+**    You should have received a copy of the GNU Lesser General Public
+**    License along with this library; if not, write to the Free Software
+**    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+*/
+
+package org.systemsbiology.biotapestry.util;
+
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.locks.ReentrantLock;
+
+/****************************************************************************
+**
+** A ReentrantLock that keeps track of how long lock() callers wait for it.
+** The totals are shared by all the locks handed the same WaitStats, e.g. all
+** the session locks of a server.
+*/
+
+public class WaitTimedLock extends ReentrantLock {
+
+  private static final long serialVersionUID = 1L;
+
+  private transient WaitStats stats_;
+
+  public WaitTimedLock(boolean fair, WaitStats stats) {
+    super(fair);
+    stats_ = stats;
+  }
+
+  public void lock() {
+    long start = System.nanoTime();
+    super.lock();
+    stats_.record(System.nanoTime() - start);
+    return;
+  }
+
+  /****************************************************************************
+  **
+  ** Accumulated lock waits
+  */
+
+  public static class WaitStats {
+
+    //
+    // Waits shorter than this are just the cost of taking a free lock:
+    //
+
+    private static final long CONTENDED_NANOS_ = 1000000L;
+
+    private final AtomicLong count_ = new AtomicLong();
+    private final AtomicLong contended_ = new AtomicLong();
+    private final AtomicLong totalNanos_ = new AtomicLong();
+    private final AtomicLong maxNanos_ = new AtomicLong();
+
+    public void record(long nanos) {
+      count_.incrementAndGet();
+      totalNanos_.addAndGet(nanos);
+      if (nanos >= CONTENDED_NANOS_) {
+        contended_.incrementAndGet();
+      }
+      long max = maxNanos_.get();
+      while ((nanos > max) && !maxNanos_.compareAndSet(max, nanos)) {
+        max = maxNanos_.get();
+      }
+      return;
+    }
+
+    public long getCount() {
+      return (count_.get());
+    }
+
+    public long getContendedCount() {
+      return (contended_.get());
+    }
+
+    public long getTotalNanos() {
+      return (totalNanos_.get());
+    }
+
+    public long getMaxNanos() {
+      return (maxNanos_.get());
+    }
+  }
+}
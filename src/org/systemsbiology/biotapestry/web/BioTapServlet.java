@@ -19,23 +19,34 @@
 
 package org.systemsbiology.biotapestry.web;
 
+import java.io.BufferedWriter;
+import java.io.ByteArrayOutputStream;
 import java.io.File;
 import java.io.IOException;
 import java.io.OutputStream;
+import java.io.OutputStreamWriter;
 import java.io.PrintWriter;
+import java.io.Writer;
+import java.lang.management.ManagementFactory;
 import java.util.HashMap;
 import java.util.HashSet;
-import java.util.Hashtable;
 import java.util.Map;
 import java.util.Properties;
 import java.util.Scanner;
 import java.util.Set;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.locks.ReentrantLock;
+import java.util.zip.GZIPOutputStream;
 
+import javax.management.JMException;
+import javax.management.ObjectName;
 import javax.servlet.ServletContext;
 import javax.servlet.ServletException;
 import javax.servlet.http.HttpServlet;
 import javax.servlet.http.HttpServletRequest;
 import javax.servlet.http.HttpServletResponse;
+import javax.servlet.http.HttpServletResponseWrapper;
 import javax.servlet.http.HttpSession;
 
 import org.systemsbiology.biotapestry.app.BTState;
@@ -85,8 +96,34 @@ public class BioTapServlet extends HttpServlet {
 	private final String CONFIG_FILE_ = "/WEB-INF/configuration.txt";
 	private final String MODEL_LIST_KEY_ = "modellistfile";
 	private final String MODEL_FILE_KEY_ = "modelfile";
+	private final String RESPONSE_CACHE_KEY_ = "responsecachemb";
+	private final String MODEL_VERSION_ATTR_ = "btModelVersion";
+	private final long DEFAULT_RESPONSE_CACHE_MB_ = 64L;
+	private final String TILE_CACHE_KEY_ = "tilecachemb";
+	private final long DEFAULT_TILE_CACHE_MB_ = 32L;
+	private final int JSON_BUFFER_SIZE_ = 8192;
+	private final String JOB_THREADS_KEY_ = "commandjobthreads";
+	private final int DEFAULT_JOB_THREADS_ = 2;
+	private final String JOB_QUEUE_KEY_ = "commandjobqueue";
+	private final int DEFAULT_JOB_QUEUE_ = 32;
+	private final long JOB_KEEP_MILLIS_ = 5L * 60L * 1000L;
+	private final long MAX_JOB_WAIT_MILLIS_ = 25L * 1000L;
+	private final String JOB_WAITERS_KEY_ = "commandjobwaiters";
+	private final int DEFAULT_JOB_WAITERS_ = 8;
+	private final long EVENT_RETRY_MILLIS_ = 1000L;
+	private final String METRICS_ENDPOINT_KEY_ = "metricsendpoint";
+	private final String METRICS_JMX_KEY_ = "metricsjmx";
+	private final String SESSION_COUNTER_ATTR_ = "btSessionCounter";
 	
 	private WebServerApplication wsa_;
+	private ModelFileCache modelCache_;
+	private ResponseCache responseCache_;
+	private ResponseCache tileCache_;
+	private CommandJobManager jobManager_;
+	private Semaphore jobWaiters_;
+	private ServletMetrics metrics_;
+	private boolean metricsEndpoint_ = false;
+	private ObjectName metricsMBeanName_ = null;
 	
     // In general, all responses should be UTF-8 encoded to ensure proper
     // handling of special characters
@@ -140,12 +177,43 @@ public class BioTapServlet extends HttpServlet {
 			}
 			System.out.println(fileMsg);
 			
+			modelCache_ = new ModelFileCache(myContext);
+			long cacheMB = DEFAULT_RESPONSE_CACHE_MB_;
+			if(configProps.getProperty(this.RESPONSE_CACHE_KEY_) != null) {
+				cacheMB = Long.parseLong(configProps.getProperty(this.RESPONSE_CACHE_KEY_).trim());
+			}
+			responseCache_ = new ResponseCache(cacheMB * 1024L * 1024L);
+			long tileCacheMB = DEFAULT_TILE_CACHE_MB_;
+			if(configProps.getProperty(this.TILE_CACHE_KEY_) != null) {
+				tileCacheMB = Long.parseLong(configProps.getProperty(this.TILE_CACHE_KEY_).trim());
+			}
+			tileCache_ = new ResponseCache(tileCacheMB * 1024L * 1024L);
 			wsa_ = new WebServerApplication(
 				"/"+this.getServletConfig().getServletName(),
 				null,
 				myContext.getRealPath("/"),
 				this.servicesDir_
 			);    
+			int jobThreads = DEFAULT_JOB_THREADS_;
+			if(configProps.getProperty(this.JOB_THREADS_KEY_) != null) {
+				jobThreads = Integer.parseInt(configProps.getProperty(this.JOB_THREADS_KEY_).trim());
+			}
+			int jobQueue = DEFAULT_JOB_QUEUE_;
+			if(configProps.getProperty(this.JOB_QUEUE_KEY_) != null) {
+				jobQueue = Integer.parseInt(configProps.getProperty(this.JOB_QUEUE_KEY_).trim());
+			}
+			jobManager_ = new CommandJobManager(wsa_, jobThreads, jobQueue, JOB_KEEP_MILLIS_);
+			int jobWaiters = DEFAULT_JOB_WAITERS_;
+			if(configProps.getProperty(this.JOB_WAITERS_KEY_) != null) {
+				jobWaiters = Integer.parseInt(configProps.getProperty(this.JOB_WAITERS_KEY_).trim());
+			}
+			jobWaiters_ = new Semaphore(jobWaiters);
+			
+			metrics_ = new ServletMetrics(responseCache_, tileCache_, modelCache_);
+			metricsEndpoint_ = Boolean.parseBoolean(configProps.getProperty(this.METRICS_ENDPOINT_KEY_, "false").trim());
+			if(Boolean.parseBoolean(configProps.getProperty(this.METRICS_JMX_KEY_, "false").trim())) {
+				registerMetricsMBean(myContext);
+			}
 
 		} catch(IOException e) {
 			System.err.println("IOException during Servlet init():");
@@ -156,6 +224,56 @@ public class BioTapServlet extends HttpServlet {
 		}
 	}
 	
+	@Override
+	public void destroy() {
+		if(jobManager_ != null) {
+			jobManager_.shutdown();
+		}
+		if(metricsMBeanName_ != null) {
+			try {
+				ManagementFactory.getPlatformMBeanServer().unregisterMBean(metricsMBeanName_);
+			} catch(JMException e) {
+				System.err.println("[WARNING] Could not unregister metrics MBean: " + e.getMessage());
+			}
+			metricsMBeanName_ = null;
+		}
+		super.destroy();
+	}
+	
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// ALL REQUESTS
+	//
+	////////////////////////////////////////////////////////////////////////////    
+
+	/****************************************************************************
+	 **
+	 ** Time every request against its target
+	 */
+
+	@Override
+	protected void service(HttpServletRequest request, HttpServletResponse response) throws ServletException, IOException {
+		if(metrics_ == null) {
+			super.service(request, response);
+			return;
+		}
+		String targetParam = request.getParameter("target");
+		RequestTargetType target = (targetParam == null) ? null : RequestTargetType.getRequestTargetType(targetParam);
+		if(target == null) {
+			target = RequestTargetType.UNKNOWN;
+		}
+		long startNanos = metrics_.requestStarted(target);
+		StatusRecordingResponse recorder = new StatusRecordingResponse(response);
+		boolean failed = true;
+		try {
+			super.service(request, recorder);
+			failed = (recorder.getRecordedStatus() >= 400);
+		} finally {
+			metrics_.requestFinished(target, startNanos, failed);
+		}
+		return;
+	}
+	
 	////////////////////////////////////////////////////////////////////////////
 	//
 	// GET
@@ -169,7 +287,8 @@ public class BioTapServlet extends HttpServlet {
 		Scanner scanner = null;
 		
 		try {
-			// Thou shalt not cache
+			// Thou shalt not cache without revalidating; shareable viewer responses
+			// carry an ETag so the revalidation is cheap
 			response.setHeader("Cache-Control", "no-cache");
 	        response.setDateHeader("Expires", 0);
 	        response.setHeader("Pragma", "no-cache");
@@ -181,6 +300,18 @@ public class BioTapServlet extends HttpServlet {
 				target = RequestTargetType.UNKNOWN;
 			}
 			
+			if(target == RequestTargetType.METRICS) {
+				if(!metricsEndpoint_) {
+					response.sendError(HttpServletResponse.SC_NOT_FOUND);
+					return;
+				}
+				response.setContentType("application/json");
+				response.setCharacterEncoding(charEncoding_);
+				os = response.getOutputStream();
+				writeJSON(new JSONSerializer().exclude("*.class"), metrics_.getMetricsMap(), os);
+				return;
+			}
+			
 			BTState appState = getBTStateForSession(target,request,response);
 			
 			if(appState == null) {
@@ -214,6 +345,7 @@ public class BioTapServlet extends HttpServlet {
 			}
 
 			String modelID = null;
+			String cacheKey = null;
 			os = response.getOutputStream();
 			
 			switch(target) {
@@ -226,9 +358,44 @@ public class BioTapServlet extends HttpServlet {
 					break;
 				case MODEL_IMAGE:
 					modelID = request.getParameter("model");
+					cacheKey = getResponseCacheKey(request, appState, target, modelID);
+					if(cacheKey != null) {
+						ResponseCache.CachedResponse cached = responseCache_.get(cacheKey);
+						if(cached == null) {
+							ByteArrayOutputStream imgBytes = new ByteArrayOutputStream();
+							wsa_.getImage(appState, modelID, imgBytes);
+							cached = responseCache_.put(cacheKey, "image/png", imgBytes.toByteArray());
+						}
+						sendCachedResponse(request, response, cached, os);
+						break;
+					}
 					response.setContentType("image/png");
 					wsa_.getImage(appState, modelID, os); 				
 					break;
+				case MODEL_TILE:
+					modelID = request.getParameter("model");
+					int level = Integer.parseInt(request.getParameter("z"));
+					int tileCol = Integer.parseInt(request.getParameter("x"));
+					int tileRow = Integer.parseInt(request.getParameter("y"));
+					cacheKey = getResponseCacheKey(request, appState, target, modelID);
+					String tileKey = (cacheKey == null) ? null : cacheKey + "|" + level + "/" + tileCol + "/" + tileRow;
+					ResponseCache.CachedResponse cachedTile = (tileKey == null) ? null : tileCache_.get(tileKey);
+					if(cachedTile == null) {
+						ByteArrayOutputStream tileBytes = new ByteArrayOutputStream();
+						if(!wsa_.getTile(appState, modelID, level, tileCol, tileRow, tileBytes)) {
+							response.sendError(HttpServletResponse.SC_NOT_FOUND);
+							break;
+						}
+						if(tileKey == null) {
+							response.setContentType("image/png");
+							response.setContentLength(tileBytes.size());
+							tileBytes.writeTo(os);
+							break;
+						}
+						cachedTile = tileCache_.put(tileKey, "image/png", tileBytes.toByteArray());
+					}
+					sendCachedResponse(request, response, cachedTile, os);
+					break;
 		        case MODEL_ANNOT_IMAGE:
 					 modelID = request.getParameter("model");
 					 String annotMime = wsa_.getAnnotationImageType(appState, modelID);
@@ -242,17 +409,40 @@ public class BioTapServlet extends HttpServlet {
 					response.setContentType("application/json");
 					response.setCharacterEncoding(charEncoding_);
 								        			        					
+					cacheKey = getResponseCacheKey(request, appState, target, modelID);
+					ResponseCache.CachedResponse cachedMap = (cacheKey == null) ? null : responseCache_.get(cacheKey);
+					if(cachedMap != null) {
+						sendCachedResponse(request, response, cachedMap, os);
+						break;
+					}
+					
 					Map<String,Object> modelMap = wsa_.getModelMap(appState, modelID);
 
 					JSONSerializer modelMapSerializer = BioTapSerializerFactory.getModelMapTransformer();
-					os.write(modelMapSerializer.deepSerialize(modelMap).getBytes(charEncoding_));
+					if(cacheKey != null) {
+						ByteArrayOutputStream mapBytes = new ByteArrayOutputStream();
+						writeJSON(modelMapSerializer, modelMap, mapBytes);
+						sendCachedResponse(request, response, responseCache_.put(cacheKey, "application/json", mapBytes.toByteArray()), os);
+					} else {
+						streamJSON(modelMapSerializer, modelMap, request, response, os);
+					}
 					break;
 				
 				case MODEL_TREE:
-					XPlatModelTree xpmt = wsa_.getModelTree(appState);  
 					response.setContentType("application/json");
 					response.setCharacterEncoding(charEncoding_);
-					os.write(serializer.deepSerialize(xpmt).getBytes(charEncoding_));
+					cacheKey = getResponseCacheKey(request, appState, target, null);
+					ResponseCache.CachedResponse cachedTree = (cacheKey == null) ? null : responseCache_.get(cacheKey);
+					if(cachedTree == null) {
+						XPlatModelTree xpmt = wsa_.getModelTree(appState);
+						byte[] treeBytes = serializer.deepSerialize(xpmt).getBytes(charEncoding_);
+						if(cacheKey == null) {
+							os.write(treeBytes);
+							break;
+						}
+						cachedTree = responseCache_.put(cacheKey, "application/json", treeBytes);
+					}
+					sendCachedResponse(request, response, cachedTree, os);
 					break;
 					
 				case ICON:
@@ -269,7 +459,31 @@ public class BioTapServlet extends HttpServlet {
 					os.write(serializer.deepSerialize(xpgm).getBytes(charEncoding_));
 					break;
 					
+				case JOB_STATUS:
+					response.setContentType("application/json");
+					response.setCharacterEncoding(charEncoding_);
+					CommandJobManager.CommandJob job = getJob(request);
+					if(job == null) {
+						response.sendError(HttpServletResponse.SC_NOT_FOUND);
+						break;
+					}
+					waitForJob(job, parseLongParam(request.getParameter("since"), -1L), parseLongParam(request.getParameter("wait"), 0L));
+					Map<String, Object> jobStatus = job.getStatusMap();
+					os.write(getCommandSerializer(job.getResult()).deepSerialize(jobStatus).getBytes(charEncoding_));
+					break;
+					
+				case JOB_EVENTS:
+					job = getJob(request);
+					if(job == null) {
+						response.sendError(HttpServletResponse.SC_NOT_FOUND);
+						break;
+					}
+					writeJobEvents(job, request, response, os);
+					break;
+					
 				case COMMAND:
+				case SUBMIT_COMMAND:
+				case JOB_CANCEL:
 				case SET_MODEL:
 				case SESSION_NEVER_EXPIRES:
 				case SESSION_EXPIRES_IN:				
@@ -383,13 +597,7 @@ public class BioTapServlet extends HttpServlet {
 						response.setContentType("text/html"); 			  
 						basicPage(os); 
 					} else {
-						if(result.resultNeedsClassAttr()) {
-							// if an outgoing result is sending out classes which will need class information,
-							// we need to make a different serializer which will not exclude the class attribute
-							serializer = new JSONSerializer().include("*")
-								.transform(new ExcludeTransformer(), void.class)
-								.transform(new LinkSegmentIDTransformer(),LinkSegmentID.class);
-						}
+						serializer = getCommandSerializer(result);
 						response.setContentType("application/json");
 						response.setCharacterEncoding(charEncoding_);
 						switch(result.getResultType()) {
@@ -412,6 +620,33 @@ public class BioTapServlet extends HttpServlet {
 					  }
 					} 					
 					break;
+				case SUBMIT_COMMAND:
+					// Answer right away with the job; the client then waits on jobstatus or jobevents
+					response.setContentType("application/json");
+					response.setCharacterEncoding(charEncoding_);
+					WebServerApplication.DetachedRequest detached = new WebServerApplication.DetachedRequest(request);
+					CommandJobManager.CommandJob job = null;
+					try {
+						job = jobManager_.submit(request.getSession(false).getId(), appState, detached);
+					} catch (RejectedExecutionException reex) {
+						response.setStatus(HttpServletResponse.SC_SERVICE_UNAVAILABLE);
+						os.write("{\"errormsg\": \"Too many commands waiting to run\", \"status\":\"503\"}".getBytes(charEncoding_));
+						break;
+					}
+					os.write(serializer.deepSerialize(job.getStatusMap()).getBytes(charEncoding_));
+					break;
+				case JOB_CANCEL:
+					response.setContentType("application/json");
+					response.setCharacterEncoding(charEncoding_);
+					HttpSession jobSession = request.getSession(false);
+					String jobID = request.getParameter("jobId");
+					job = ((jobSession == null) || (jobID == null)) ? null : jobManager_.cancel(jobSession.getId(), jobID);
+					if(job == null) {
+						response.sendError(HttpServletResponse.SC_NOT_FOUND);
+						break;
+					}
+					os.write(getCommandSerializer(job.getResult()).deepSerialize(job.getStatusMap()).getBytes(charEncoding_));
+					break;
 				case SET_MODEL:					
 					System.err.println("[ERROR] Use target=command to set models!");
 					throw new Exception(" Use target=command to set models!");
@@ -469,45 +704,289 @@ public class BioTapServlet extends HttpServlet {
   ** Handle appState init
   */
   
-  private BTState initNewBTState(String sessionID) throws WebServerApplication.GeneratorException, IOException {
+  private BTState initNewBTState(String sessionID) {
 	  HashMap<String, Object> args = new HashMap<String, Object>();
 	  BTState appState = new BTState(sessionID, args, true, true);
-	  wsa_.initNewState(appState, getServletContext().getResourceAsStream(modelFilename_));
 	  return (appState);
   }
   
   /****************************************************************************
   **
-  ** Handle getting per-session appState. Newly synchronized: had a race condition
+  ** Handle getting per-session appState. Only the session lookup is globally
+  ** synchronized; the (slow) model load for a new session runs while holding 
+  ** just that session's lock, so other sessions are not blocked by it. A second 
+  ** request for the same session will wait on the session lock until the load
+  ** is complete, and gets null (i.e. a session restart) if the load failed.
   */
   
-  private synchronized BTState getBTStateForSession(
+  private BTState getBTStateForSession(
 	  RequestTargetType target,HttpServletRequest request,HttpServletResponse response
   ) throws WebServerApplication.GeneratorException, IOException {
 
-		HttpSession session = request.getSession(false);
-					
-		BTState appState = ((session != null) ? (BTState)session.getAttribute("btState") : null);
+		BTState appState = null;
+		HttpSession session = null;
+		boolean needsLoad = false;
 		
-		if(target != RequestTargetType.INIT && (appState==null)){
-			return null;
+		long lockStart = System.nanoTime();
+		synchronized (this) {
+			// No metrics if init() failed partway:
+			if(metrics_ != null) {
+				metrics_.getGlobalLockWaits().record(System.nanoTime() - lockStart);
+			}
+			session = request.getSession(false);
+						
+			appState = ((session != null) ? (BTState)session.getAttribute("btState") : null);
+			
+			if(target != RequestTargetType.INIT && (appState==null)){
+				return null;
+			}
+						
+			if (session == null) {
+				session = request.getSession(true);
+			}
+			
+			if(appState == null) {
+				appState = initNewBTState(session.getId());
+				// Uncontended, since nobody else can see this state yet:
+				appState.getSessionLock().lock();
+				needsLoad = true;
+				session.setAttribute("btState", appState);
+				if(metrics_ != null) {
+					session.setAttribute(SESSION_COUNTER_ATTR_, metrics_.newSessionCounter());
+				}
+			}
 		}
-					
-		if (session == null) {
-			session = request.getSession(true);
+		
+		if (!needsLoad) {
+			if (!appState.isSessionInitDone()) {
+				// Another request is still loading the model: wait for it to finish
+				ReentrantLock sessionLock = appState.getSessionLock();
+				sessionLock.lock();
+				sessionLock.unlock();
+			}
+			if (appState.sessionInitFailed()) {
+				// Half-initialized; the loader has dropped it from the session, so
+				// the client is told to start a new one and init is retried then.
+				return null;
+			}
+			return (appState);
 		}
 		
-		if(appState == null) {
-			appState = initNewBTState(session.getId());
-			session.setAttribute("btState", appState);
+		boolean loaded = false;
+		try {
+			ModelFileCache.CachedModel model = modelCache_.getModel(modelFilename_);
+			wsa_.initNewState(appState, model.getRecording());
+			session.setAttribute(MODEL_VERSION_ATTR_, model.getVersionTag());
 			if(this.modelListFile_ != null) {
 				appState.setServerBtpFileList(this.modelListFile_);
 			}
+			loaded = true;
+		} finally {
+			if (!loaded) {
+				session.removeAttribute("btState");
+			}
+			appState.setSessionInitResult(loaded);
+			appState.getSessionLock().unlock();
 		}
 		return (appState);
   }
 
 
+	/****************************************************************************
+	 **
+	 ** Make the metrics visible over JMX, one MBean per servlet instance
+	 */
+
+	private void registerMetricsMBean(ServletContext context) {
+		try {
+			String name = context.getContextPath() + "/" + this.getServletConfig().getServletName();
+			ObjectName mbeanName = new ObjectName("org.systemsbiology.biotapestry:type=ServletMetrics,name=" + ObjectName.quote(name));
+			ManagementFactory.getPlatformMBeanServer().registerMBean(metrics_, mbeanName);
+			metricsMBeanName_ = mbeanName;
+			System.out.println("[STATUS] Registered metrics MBean " + mbeanName);
+		} catch(JMException e) {
+			System.err.println("[WARNING] Could not register metrics MBean: " + e.getMessage());
+		}
+		return;
+	}
+
+	/****************************************************************************
+	 **
+	 ** Serializer for a command result. If an outgoing result is sending out classes
+	 ** which will need class information, we need to make a different serializer
+	 ** which will not exclude the class attribute.
+	 */
+
+	private JSONSerializer getCommandSerializer(CommandResult result) {
+		if((result != null) && result.resultNeedsClassAttr()) {
+			return (new JSONSerializer().include("*")
+				.transform(new ExcludeTransformer(), void.class)
+				.transform(new LinkSegmentIDTransformer(),LinkSegmentID.class));
+		}
+		return (new JSONSerializer().exclude("*.class").include("*")
+			.transform(new ExcludeTransformer(), void.class)
+			.transform(new LinkSegmentIDTransformer(),LinkSegmentID.class));
+	}
+
+	/****************************************************************************
+	 **
+	 ** Get the command job named in the request, if it belongs to this session
+	 */
+
+	private CommandJobManager.CommandJob getJob(HttpServletRequest request) {
+		HttpSession session = request.getSession(false);
+		String jobID = request.getParameter("jobId");
+		if((session == null) || (jobID == null)) {
+			return (null);
+		}
+		return (jobManager_.getJob(session.getId(), jobID));
+	}
+
+	/****************************************************************************
+	 **
+	 ** Wait (up to a cap) for the command job to move past the since version or
+	 ** finish. Each waiter holds a container thread, so only a few may wait at
+	 ** once; the rest are answered right away and just ask again.
+	 */
+
+	private void waitForJob(CommandJobManager.CommandJob job, long since, long wait) throws InterruptedException {
+		wait = Math.min(wait, MAX_JOB_WAIT_MILLIS_);
+		if((wait <= 0L) || (jobWaiters_ == null) || !jobWaiters_.tryAcquire()) {
+			return;
+		}
+		try {
+			job.waitForChange(since, wait);
+		} finally {
+			jobWaiters_.release();
+		}
+		return;
+	}
+
+	/****************************************************************************
+	 **
+	 ** Answer an EventSource with the next command job state as a Server-Sent
+	 ** Event, then end the response. The request long-polls: it waits on the job
+	 ** until something changes (by default for the longest wait allowed; a "wait"
+	 ** parameter can shorten it), rather than holding the stream open for as long
+	 ** as the job runs. The "retry" field then has the EventSource reconnect for
+	 ** the next change. Event IDs are job versions, so a reconnecting EventSource
+	 ** (which sends Last-Event-ID) only gets an event when something changed. Once
+	 ** the job has finished, the answer is a "done" event; clients must close their
+	 ** EventSource on it, or it will reconnect and get it again.
+	 */
+
+	private void writeJobEvents(
+		CommandJobManager.CommandJob job, HttpServletRequest request, HttpServletResponse response, OutputStream os
+	) throws IOException, InterruptedException {
+		response.setContentType("text/event-stream");
+		response.setCharacterEncoding(charEncoding_);
+		Writer out = new OutputStreamWriter(os, charEncoding_);
+		long seen = parseLongParam(request.getHeader("Last-Event-ID"), parseLongParam(request.getParameter("since"), -1L));
+		waitForJob(job, seen, parseLongParam(request.getParameter("wait"), MAX_JOB_WAIT_MILLIS_));
+		out.write("retry: " + EVENT_RETRY_MILLIS_ + "\n\n");
+		// Check first: a job that is finished now is still finished in the snapshot
+		boolean finished = job.isFinished();
+		Map<String, Object> status = job.getStatusMap();
+		long version = ((Long)status.get("version")).longValue();
+		if((version > seen) || finished) {
+			out.write("id: " + version + "\n");
+			out.write("event: " + (finished ? "done" : "progress") + "\n");
+			out.write("data: " + getCommandSerializer(job.getResult()).deepSerialize(status) + "\n\n");
+		}
+		out.flush();
+		return;
+	}
+
+	/****************************************************************************
+	 **
+	 ** Parse an optional numeric parameter
+	 */
+
+	private long parseLongParam(String value, long defVal) {
+		if(value == null) {
+			return (defVal);
+		}
+		try {
+			return (Long.parseLong(value.trim()));
+		} catch (NumberFormatException nfex) {
+			return (defVal);
+		}
+	}
+
+	/****************************************************************************
+	 **
+	 ** Serialize straight into the stream, without building the whole payload
+	 ** as a String and then again as a byte array.
+	 */
+
+	private void writeJSON(JSONSerializer serializer, Object toSerialize, OutputStream os) throws IOException {
+		Writer out = new BufferedWriter(new OutputStreamWriter(os, charEncoding_), JSON_BUFFER_SIZE_);
+		serializer.deepSerialize(toSerialize, out);
+		out.flush();
+		return;
+	}
+
+	/****************************************************************************
+	 **
+	 ** Stream a JSON response, gzipped if the client accepts it
+	 */
+
+	private void streamJSON(
+		JSONSerializer serializer, Object toSerialize, HttpServletRequest request, HttpServletResponse response, OutputStream os
+	) throws IOException {
+		response.setHeader("Vary", "Accept-Encoding");
+		String accepts = request.getHeader("Accept-Encoding");
+		if((accepts == null) || (accepts.toLowerCase().indexOf("gzip") == -1)) {
+			writeJSON(serializer, toSerialize, os);
+			return;
+		}
+		response.setHeader("Content-Encoding", "gzip");
+		GZIPOutputStream gzos = new GZIPOutputStream(os, JSON_BUFFER_SIZE_);
+		writeJSON(serializer, toSerialize, gzos);
+		gzos.finish();
+		return;
+	}
+
+	/****************************************************************************
+	 **
+	 ** Build the shared response cache key for a viewer-mode request, or null if 
+	 ** this session's output cannot be shared.
+	 */
+
+	private String getResponseCacheKey(
+		HttpServletRequest request, BTState appState, RequestTargetType target, String modelID
+	) throws WebServerApplication.GeneratorException {
+		HttpSession session = request.getSession(false);
+		String version = (session == null) ? null : (String)session.getAttribute(MODEL_VERSION_ATTR_);
+		if(version == null) {
+			return (null);
+		}
+		String renderKey = wsa_.getViewerRenderKey(appState, modelID);
+		if(renderKey == null) {
+			return (null);
+		}
+		return (version + "|" + target + "|" + renderKey);
+	}
+
+	/****************************************************************************
+	 **
+	 ** Send a cached response, or just a 304 if the client already has it
+	 */
+
+	private void sendCachedResponse(
+		HttpServletRequest request, HttpServletResponse response, ResponseCache.CachedResponse cached, OutputStream os
+	) throws IOException {
+		response.setHeader("ETag", cached.getETag());
+		if(ResponseCache.matchesETag(request.getHeader("If-None-Match"), cached.getETag())) {
+			response.setStatus(HttpServletResponse.SC_NOT_MODIFIED);
+			return;
+		}
+		response.setContentType(cached.getContentType());
+		response.setContentLength(cached.getBytes().length);
+		os.write(cached.getBytes());
+		return;
+	}
+
 	private void basicPage(OutputStream os) throws IOException {
 
 		PrintWriter out = new PrintWriter(os);
@@ -543,6 +1022,47 @@ public class BioTapServlet extends HttpServlet {
 	}
 
 	
+	/****************************************************************************
+	 **
+	 ** Remembers the status code set on a response; HttpServletResponse.getStatus()
+	 ** is not available before Servlet 3.0
+	 */
+	
+	private static class StatusRecordingResponse extends HttpServletResponseWrapper {
+		
+		private int status_;
+		
+		StatusRecordingResponse(HttpServletResponse response) {
+			super(response);
+			status_ = HttpServletResponse.SC_OK;
+		}
+		
+		int getRecordedStatus() {
+			return (status_);
+		}
+		
+		@Override
+		public void setStatus(int status) {
+			status_ = status;
+			super.setStatus(status);
+			return;
+		}
+		
+		@Override
+		public void sendError(int status) throws IOException {
+			status_ = status;
+			super.sendError(status);
+			return;
+		}
+		
+		@Override
+		public void sendError(int status, String message) throws IOException {
+			status_ = status;
+			super.sendError(status, message);
+			return;
+		}
+	}
+	
 	/**
 	 * Enum for managing the request parameter 'target'
 	 * 
@@ -552,7 +1072,12 @@ public class BioTapServlet extends HttpServlet {
 		SET_MODEL,
 		MODEL_JSON,
 		MODEL_IMAGE,
+		MODEL_TILE,
 		COMMAND,
+		SUBMIT_COMMAND,
+		JOB_STATUS,
+		JOB_EVENTS,
+		JOB_CANCEL,
 		MODEL_TREE,
 		MENU_DEF,
 		ICON,
@@ -563,28 +1088,40 @@ public class BioTapServlet extends HttpServlet {
 		MODEL_ANNOT_IMAGE,
 		INIT,
 		LINKS_TO_INTERSECTIONS,
+		METRICS,
 		UNKNOWN;
 		
-		private static Map<String, RequestTargetType> stringToType = null;
+		private static final Map<String, RequestTargetType> stringToType;
+		
+		//
+		// Built once up front; lazy construction was racy with concurrent requests
+		//
+		
+		static {
+			stringToType = new HashMap<String, RequestTargetType>();
+			stringToType.put("init", RequestTargetType.INIT);
+			stringToType.put("setmodel", RequestTargetType.SET_MODEL);
+			stringToType.put("modeljson", RequestTargetType.MODEL_JSON);
+			stringToType.put("modelimage", RequestTargetType.MODEL_IMAGE);
+			stringToType.put("modeltile", RequestTargetType.MODEL_TILE);
+			stringToType.put("command", RequestTargetType.COMMAND);
+			stringToType.put("submitcommand", RequestTargetType.SUBMIT_COMMAND);
+			stringToType.put("jobstatus", RequestTargetType.JOB_STATUS);
+			stringToType.put("jobevents", RequestTargetType.JOB_EVENTS);
+			stringToType.put("canceljob", RequestTargetType.JOB_CANCEL);
+			stringToType.put("modeltree", RequestTargetType.MODEL_TREE);
+			stringToType.put("menudef", RequestTargetType.MENU_DEF);
+			stringToType.put("uploadfile", RequestTargetType.UPLOAD_FILE);
+			stringToType.put("iconimage", RequestTargetType.ICON);
+			stringToType.put("filelist", RequestTargetType.FILE_LIST);
+			stringToType.put("disablesessionexpiry", RequestTargetType.SESSION_NEVER_EXPIRES);
+			stringToType.put("setsessionexpiry", RequestTargetType.SESSION_EXPIRES_IN);
+			stringToType.put("modelannotimage", RequestTargetType.MODEL_ANNOT_IMAGE);
+			stringToType.put("linkstointersections", RequestTargetType.LINKS_TO_INTERSECTIONS);
+			stringToType.put("metrics", RequestTargetType.METRICS);
+		}
 		
 		public static RequestTargetType getRequestTargetType(String typeAsString) {
-			if(stringToType == null) {
-				stringToType = new Hashtable<String, RequestTargetType>();
-				stringToType.put("init", RequestTargetType.INIT);
-				stringToType.put("setmodel", RequestTargetType.SET_MODEL);
-				stringToType.put("modeljson", RequestTargetType.MODEL_JSON);
-				stringToType.put("modelimage", RequestTargetType.MODEL_IMAGE);
-				stringToType.put("command", RequestTargetType.COMMAND);
-				stringToType.put("modeltree", RequestTargetType.MODEL_TREE);
-				stringToType.put("menudef", RequestTargetType.MENU_DEF);
-				stringToType.put("uploadfile", RequestTargetType.UPLOAD_FILE);
-				stringToType.put("iconimage", RequestTargetType.ICON);
-				stringToType.put("filelist", RequestTargetType.FILE_LIST);
-				stringToType.put("disablesessionexpiry", RequestTargetType.SESSION_NEVER_EXPIRES);
-				stringToType.put("setsessionexpiry", RequestTargetType.SESSION_EXPIRES_IN);
-				stringToType.put("modelannotimage", RequestTargetType.MODEL_ANNOT_IMAGE);
-				stringToType.put("linkstointersections", RequestTargetType.LINKS_TO_INTERSECTIONS);
-			}
 			if(typeAsString == null) {
 				throw new IllegalArgumentException("String value of request type was null!");
 			}
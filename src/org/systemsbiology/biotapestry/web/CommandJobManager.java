@@ -0,0 +1,415 @@
+/*
+ **    Copyright (C) 2003-2014 Institute for Systems Biology
+ **                            Seattle, Washington, USA.
+ **
+ **    This library is free software; you can redistribute it and/or
+ **    modify it under the terms of the GNU Lesser General Public
+ **    License as published by the Free Software Foundation; either
+ **    version 2.1 of the License, or (at your option) any later version.
+ **
+ **    This library is distributed in the hope that it will be useful,
+ **    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ **    Lesser General Public License for more details.
+ **
+ **    You should have received a copy of the GNU Lesser General Public
+ **    License along with this library; if not, write to the Free Software
+ **    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.systemsbiology.biotapestry.web;
+
+import java.security.SecureRandom;
+import java.util.HashMap;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.SortedMap;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+
+import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.app.WebServerApplication;
+import org.systemsbiology.biotapestry.app.WebServerApplication.CommandResult;
+import org.systemsbiology.biotapestry.app.WebServerApplication.ParamSource;
+import org.systemsbiology.biotapestry.util.BTProgressMonitor;
+
+/****************************************************************************
+ **
+ ** Runs web commands as jobs on a bounded pool, so a long-running command
+ ** (e.g. a layout) does not hold a request thread. Clients get a job ID back
+ ** right away, and then wait for progress and completion. Commands for one
+ ** session still run one at a time, on the session lock. A job can be
+ ** cancelled; a queued job then never runs, and a running one is told to stop
+ ** through its progress monitor.
+ **
+ ** Finished jobs are kept for a while so the client can collect the result,
+ ** then dropped.
+ */
+
+public class CommandJobManager {
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PUBLIC ENUMS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	public enum JobStatus {
+		QUEUED,
+		RUNNING,
+		DONE,
+		FAILED,
+		CANCELLED;
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PRIVATE MEMBERS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	private final WebServerApplication wsa_;
+	private final ThreadPoolExecutor executor_;
+	private final HashMap<String, CommandJob> jobs_;
+	private final SecureRandom random_;
+	private final long keepMillis_;
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PUBLIC CONSTRUCTORS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	/****************************************************************************
+	 **
+	 ** Jobs beyond numThreads running and maxQueued waiting are rejected.
+	 ** Finished jobs are kept for keepMillis.
+	 */
+
+	public CommandJobManager(WebServerApplication wsa, int numThreads, int maxQueued, long keepMillis) {
+		wsa_ = wsa;
+		keepMillis_ = keepMillis;
+		jobs_ = new HashMap<String, CommandJob>();
+		random_ = new SecureRandom();
+		executor_ = new ThreadPoolExecutor(numThreads, numThreads, 0L, TimeUnit.MILLISECONDS,
+		                                   new ArrayBlockingQueue<Runnable>(maxQueued), new JobThreadFactory());
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PUBLIC METHODS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	/****************************************************************************
+	 **
+	 ** Queue up a command for the given session. The request must already be
+	 ** detached from its HTTP request, since it is processed after that has been
+	 ** answered. Throws RejectedExecutionException if the queue is full.
+	 */
+
+	public CommandJob submit(String owner, final BTState appState, final ParamSource req) {
+		final CommandJob job;
+		synchronized (jobs_) {
+			purgeFinished();
+			String jobID;
+			do {
+				jobID = Long.toHexString(random_.nextLong() & Long.MAX_VALUE);
+			} while (jobs_.containsKey(jobID));
+			job = new CommandJob(jobID, owner);
+			jobs_.put(jobID, job);
+		}
+		try {
+			executor_.execute(new Runnable() {
+				public void run() {
+					if(!job.started()) {
+						return;
+					}
+					try {
+						job.finished(wsa_.processCommand(appState, req, job), null);
+					} catch (Exception ex) {
+						String errMsg = ex.getMessage();
+						job.finished(null, (errMsg == null) ? ex.toString() : errMsg);
+					}
+				}
+			});
+		} catch (RejectedExecutionException reex) {
+			synchronized (jobs_) {
+				jobs_.remove(job.getID());
+			}
+			throw reex;
+		}
+		return (job);
+	}
+
+	/****************************************************************************
+	 **
+	 ** Get the job, or null if it does not exist, has been dropped, or belongs to
+	 ** another session.
+	 */
+
+	public CommandJob getJob(String owner, String jobID) {
+		synchronized (jobs_) {
+			purgeFinished();
+			CommandJob retval = jobs_.get(jobID);
+			if ((retval == null) || !retval.owner_.equals(owner)) {
+				return (null);
+			}
+			return (retval);
+		}
+	}
+
+	/****************************************************************************
+	 **
+	 ** Cancel the job. Returns the job, or null if it does not exist, has been
+	 ** dropped, or belongs to another session.
+	 */
+
+	public CommandJob cancel(String owner, String jobID) {
+		CommandJob retval = getJob(owner, jobID);
+		if(retval != null) {
+			retval.cancel();
+		}
+		return (retval);
+	}
+
+	/****************************************************************************
+	 **
+	 ** Stop taking jobs. Running jobs are allowed to finish.
+	 */
+
+	public void shutdown() {
+		executor_.shutdown();
+		return;
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PRIVATE METHODS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	/****************************************************************************
+	 **
+	 ** Drop finished jobs nobody has collected in time. Call holding jobs_.
+	 */
+
+	private void purgeFinished() {
+		long now = System.currentTimeMillis();
+		Iterator<CommandJob> jit = jobs_.values().iterator();
+		while (jit.hasNext()) {
+			if (jit.next().expired(now, keepMillis_)) {
+				jit.remove();
+			}
+		}
+		return;
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PRIVATE CLASSES
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	/****************************************************************************
+	 **
+	 ** Daemon threads, so an undeployed servlet does not keep the container up
+	 */
+
+	private static class JobThreadFactory implements ThreadFactory {
+		private int count_;
+
+		public synchronized Thread newThread(Runnable runner) {
+			Thread retval = new Thread(runner, "BioTapCommandJob-" + (++count_));
+			retval.setDaemon(true);
+			return (retval);
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PUBLIC CLASSES
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	/****************************************************************************
+	 **
+	 ** One command job. It is the progress monitor for the command's background
+	 ** work, and tells that work to stop once the job is cancelled. Every change
+	 ** bumps the version and wakes waiting clients, which can tell from it what
+	 ** they have already seen.
+	 */
+
+	public static class CommandJob implements BTProgressMonitor {
+		private final String id_;
+		private final String owner_;
+		private JobStatus status_;
+		private int total_;
+		private int done_;
+		private long version_;
+		private CommandResult result_;
+		private String errMsg_;
+		private long finishedAt_;
+		private boolean cancelled_;
+
+		CommandJob(String id, String owner) {
+			id_ = id;
+			owner_ = owner;
+			status_ = JobStatus.QUEUED;
+			total_ = 0;
+			done_ = 0;
+			version_ = 0L;
+		}
+
+		public String getID() {
+			return (id_);
+		}
+
+		public synchronized JobStatus getStatus() {
+			return (status_);
+		}
+
+		public synchronized long getVersion() {
+			return (version_);
+		}
+
+		public synchronized boolean isFinished() {
+			return ((status_ == JobStatus.DONE) || (status_ == JobStatus.FAILED) || (status_ == JobStatus.CANCELLED));
+		}
+
+		/****************************************************************************
+		 **
+		 ** Command result for a DONE job; may be null if the command had none
+		 */
+
+		public synchronized CommandResult getResult() {
+			return (result_);
+		}
+
+		/****************************************************************************
+		 **
+		 ** Wait until the version moves past sinceVersion, the job is finished, or
+		 ** the time runs out. Returns the current version.
+		 */
+
+		public synchronized long waitForChange(long sinceVersion, long maxWaitMillis) throws InterruptedException {
+			long endTime = System.currentTimeMillis() + maxWaitMillis;
+			while ((version_ <= sinceVersion) && !isFinished()) {
+				long remaining = endTime - System.currentTimeMillis();
+				if (remaining <= 0L) {
+					break;
+				}
+				wait(remaining);
+			}
+			return (version_);
+		}
+
+		/****************************************************************************
+		 **
+		 ** Status for the client. Percent done is -1 until background work
+		 ** reports any progress.
+		 */
+
+		public synchronized Map<String, Object> getStatusMap() {
+			HashMap<String, Object> retval = new HashMap<String, Object>();
+			retval.put("jobId", id_);
+			retval.put("status", status_.toString());
+			retval.put("version", Long.valueOf(version_));
+			retval.put("progress", Integer.valueOf((total_ <= 0) ? -1 : (int)((done_ * 100L) / total_)));
+			if (result_ != null) {
+				retval.put("result", result_);
+			}
+			if (errMsg_ != null) {
+				retval.put("errormsg", errMsg_);
+			}
+			return (retval);
+		}
+
+		public synchronized void setTotal(int total) {
+			total_ = total;
+			changed();
+			return;
+		}
+
+		public synchronized int getTotal() {
+			return (total_);
+		}
+
+		public synchronized boolean updateProgress(int done) {
+			done_ = done;
+			changed();
+			return (!cancelled_);
+		}
+
+		public synchronized boolean updateRankings(SortedMap<Integer, Double> chartVals) {
+			return (!cancelled_);
+		}
+
+		public synchronized boolean keepGoing() {
+			return (!cancelled_);
+		}
+
+		/****************************************************************************
+		 **
+		 ** Cancel the job. A queued job is finished right away; a running one
+		 ** finishes as CANCELLED once its command returns.
+		 */
+
+		public synchronized void cancel() {
+			if(cancelled_ || isFinished()) {
+				return;
+			}
+			cancelled_ = true;
+			if(status_ == JobStatus.QUEUED) {
+				status_ = JobStatus.CANCELLED;
+				finishedAt_ = System.currentTimeMillis();
+			}
+			changed();
+			return;
+		}
+
+		public synchronized int getProgress() {
+			return (done_);
+		}
+
+		/****************************************************************************
+		 **
+		 ** Mark the job as running. Returns false if it was cancelled while queued.
+		 */
+
+		synchronized boolean started() {
+			if(cancelled_) {
+				return (false);
+			}
+			status_ = JobStatus.RUNNING;
+			changed();
+			return (true);
+		}
+
+		synchronized void finished(CommandResult result, String errMsg) {
+			result_ = result;
+			errMsg_ = errMsg;
+			if(cancelled_) {
+				status_ = JobStatus.CANCELLED;
+			} else {
+				status_ = (errMsg == null) ? JobStatus.DONE : JobStatus.FAILED;
+			}
+			finishedAt_ = System.currentTimeMillis();
+			changed();
+			return;
+		}
+
+		synchronized boolean expired(long now, long keepMillis) {
+			return (isFinished() && ((now - finishedAt_) > keepMillis));
+		}
+
+		private void changed() {
+			version_++;
+			notifyAll();
+			return;
+		}
+	}
+}
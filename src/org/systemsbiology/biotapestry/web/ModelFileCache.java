@@ -0,0 +1,230 @@
+/*
+ **    Copyright (C) 2003-2014 Institute for Systems Biology
+ **                            Seattle, Washington, USA.
+ **
+ **    This library is free software; you can redistribute it and/or
+ **    modify it under the terms of the GNU Lesser General Public
+ **    License as published by the Free Software Foundation; either
+ **    version 2.1 of the License, or (at your option) any later version.
+ **
+ **    This library is distributed in the hope that it will be useful,
+ **    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ **    Lesser General Public License for more details.
+ **
+ **    You should have received a copy of the GNU Lesser General Public
+ **    License along with this library; if not, write to the Free Software
+ **    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.systemsbiology.biotapestry.web;
+
+import java.io.File;
+import java.io.IOException;
+import java.io.InputStream;
+import java.net.MalformedURLException;
+import java.net.URL;
+import java.util.HashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.servlet.ServletContext;
+
+import org.systemsbiology.biotapestry.parser.RecordedDocument;
+import org.systemsbiology.biotapestry.util.GzipUtil;
+
+/****************************************************************************
+ **
+ ** Holds one parsed copy of each model file served by the servlet. New sessions
+ ** replay the shared, read-only recording instead of reading and parsing the
+ ** BTP file again. An entry is rebuilt when the file's modification time changes.
+ **
+ ** Each session still builds its own Database from the recording, since model
+ ** objects are bound to their owning BTState.
+ */
+
+public class ModelFileCache {
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PRIVATE MEMBERS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	private final ServletContext context_;
+	private final HashMap<String, Entry> entries_;
+	private final AtomicLong hits_;
+	private final AtomicLong parses_;
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PUBLIC CONSTRUCTORS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	public ModelFileCache(ServletContext context) {
+		context_ = context;
+		entries_ = new HashMap<String, Entry>();
+		hits_ = new AtomicLong();
+		parses_ = new AtomicLong();
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PUBLIC METHODS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	/****************************************************************************
+	 **
+	 ** Get the parsed model for the given web application resource path, parsing
+	 ** it if needed. Only callers asking for the same file wait on each other.
+	 */
+
+	public CachedModel getModel(String resourcePath) throws IOException {
+		Entry entry;
+		synchronized (entries_) {
+			entry = entries_.get(resourcePath);
+			if (entry == null) {
+				entry = new Entry();
+				entries_.put(resourcePath, entry);
+			}
+		}
+
+		String sourcePath = findSource(resourcePath);
+		long stamp = getModificationTime(sourcePath);
+		synchronized (entry) {
+			if ((entry.model == null) || (entry.stamp != stamp)) {
+				InputStream stream = context_.getResourceAsStream(sourcePath);
+				if (stream == null) {
+					throw new IOException("Model file not found: " + resourcePath);
+				}
+				try {
+					byte[] xml = GzipUtil.inflateIfNeeded(GzipUtil.readAll(stream, 1 << 16));
+					RecordedDocument recorded = RecordedDocument.recordInSections(xml, RecordedDocument.sectionThreadsFor(xml.length));
+					entry.model = new CachedModel(recorded, resourcePath + "@" + stamp + "#" + (++entry.loadCount));
+					entry.stamp = stamp;
+				} finally {
+					stream.close();
+				}
+				System.out.println("[STATUS] Parsed model file " + sourcePath);
+				parses_.incrementAndGet();
+			} else {
+				hits_.incrementAndGet();
+			}
+			return (entry.model);
+		}
+	}
+
+	/****************************************************************************
+	 **
+	 ** Requests answered with an already parsed model
+	 */
+
+	public long getHitCount() {
+		return (hits_.get());
+	}
+
+	/****************************************************************************
+	 **
+	 ** Requests that had to parse the model file
+	 */
+
+	public long getParseCount() {
+		return (parses_.get());
+	}
+
+	/****************************************************************************
+	 **
+	 ** Drop all cached models
+	 */
+
+	public void clear() {
+		synchronized (entries_) {
+			entries_.clear();
+		}
+		return;
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PRIVATE METHODS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	/****************************************************************************
+	 **
+	 ** The model may be deployed precompressed, i.e. as foo.btp.gz in place of
+	 ** foo.btp. Compressed files are recognized by their contents, so a gzipped
+	 ** file under the plain name works too.
+	 */
+
+	private String findSource(String resourcePath) {
+		if (GzipUtil.isGzipName(resourcePath) || (getResource(resourcePath) != null)) {
+			return (resourcePath);
+		}
+		String gzPath = resourcePath + GzipUtil.GZIP_SUFFIX_;
+		return ((getResource(gzPath) != null) ? gzPath : resourcePath);
+	}
+
+	private URL getResource(String resourcePath) {
+		try {
+			return (context_.getResource(resourcePath));
+		} catch (MalformedURLException muex) {
+			return (null);
+		}
+	}
+
+	/****************************************************************************
+	 **
+	 ** Resources inside a packed WAR have no file; they never go stale.
+	 */
+
+	private long getModificationTime(String resourcePath) {
+		String realPath = context_.getRealPath(resourcePath);
+		if (realPath == null) {
+			return (0L);
+		}
+		return (new File(realPath).lastModified());
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PRIVATE CLASSES
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	private static class Entry {
+		CachedModel model;
+		long stamp;
+		int loadCount;
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PUBLIC CLASSES
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	/****************************************************************************
+	 **
+	 ** A parsed model file, plus a tag that changes whenever the file is reparsed
+	 */
+
+	public static class CachedModel {
+		private final RecordedDocument recorded_;
+		private final String versionTag_;
+
+		CachedModel(RecordedDocument recorded, String versionTag) {
+			recorded_ = recorded;
+			versionTag_ = versionTag;
+		}
+
+		public RecordedDocument getRecording() {
+			return (recorded_);
+		}
+
+		public String getVersionTag() {
+			return (versionTag_);
+		}
+	}
+}
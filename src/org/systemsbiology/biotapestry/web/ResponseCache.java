@@ -0,0 +1,238 @@
+/*
+ **    Copyright (C) 2003-2014 Institute for Systems Biology
+ **                            Seattle, Washington, USA.
+ **
+ **    This library is free software; you can redistribute it and/or
+ **    modify it under the terms of the GNU Lesser General Public
+ **    License as published by the Free Software Foundation; either
+ **    version 2.1 of the License, or (at your option) any later version.
+ **
+ **    This library is distributed in the hope that it will be useful,
+ **    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ **    Lesser General Public License for more details.
+ **
+ **    You should have received a copy of the GNU Lesser General Public
+ **    License along with this library; if not, write to the Free Software
+ **    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.systemsbiology.biotapestry.web;
+
+import java.security.MessageDigest;
+import java.security.NoSuchAlgorithmException;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/****************************************************************************
+ **
+ ** A size-bounded LRU cache of serialized responses (PNG bytes, JSON payloads)
+ ** shared by all viewer sessions. Each entry carries an ETag so clients can
+ ** revalidate with If-None-Match instead of downloading the payload again.
+ */
+
+public class ResponseCache {
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PRIVATE MEMBERS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	private final long maxBytes_;
+	private final LinkedHashMap<String, CachedResponse> entries_;
+	private long currBytes_;
+	private long hits_;
+	private long misses_;
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PUBLIC CONSTRUCTORS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	public ResponseCache(long maxBytes) {
+		maxBytes_ = maxBytes;
+		entries_ = new LinkedHashMap<String, CachedResponse>(16, 0.75F, true);
+		currBytes_ = 0L;
+		hits_ = 0L;
+		misses_ = 0L;
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PUBLIC METHODS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	/****************************************************************************
+	 **
+	 ** Get the cached response, or null
+	 */
+
+	public synchronized CachedResponse get(String key) {
+		CachedResponse retval = entries_.get(key);
+		if (retval == null) {
+			misses_++;
+		} else {
+			hits_++;
+		}
+		return (retval);
+	}
+
+	/****************************************************************************
+	 **
+	 ** Cache the response. Payloads larger than the whole budget are not kept,
+	 ** but a response is still returned so the caller can use its ETag.
+	 */
+
+	public synchronized CachedResponse put(String key, String contentType, byte[] bytes) {
+		CachedResponse retval = new CachedResponse(contentType, bytes, buildETag(bytes));
+		if (bytes.length > maxBytes_) {
+			return (retval);
+		}
+		CachedResponse prev = entries_.put(key, retval);
+		if (prev != null) {
+			currBytes_ -= prev.getBytes().length;
+		}
+		currBytes_ += bytes.length;
+		Iterator<Map.Entry<String, CachedResponse>> eit = entries_.entrySet().iterator();
+		while ((currBytes_ > maxBytes_) && eit.hasNext()) {
+			Map.Entry<String, CachedResponse> eldest = eit.next();
+			currBytes_ -= eldest.getValue().getBytes().length;
+			eit.remove();
+		}
+		return (retval);
+	}
+
+	/****************************************************************************
+	 **
+	 ** Drop everything
+	 */
+
+	public synchronized void clear() {
+		entries_.clear();
+		currBytes_ = 0L;
+		return;
+	}
+
+	/****************************************************************************
+	 **
+	 ** Current payload bytes held
+	 */
+
+	public synchronized long getCurrentBytes() {
+		return (currBytes_);
+	}
+
+	/****************************************************************************
+	 **
+	 ** Lookups that found an entry
+	 */
+
+	public synchronized long getHitCount() {
+		return (hits_);
+	}
+
+	/****************************************************************************
+	 **
+	 ** Lookups that did not find an entry
+	 */
+
+	public synchronized long getMissCount() {
+		return (misses_);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PUBLIC STATIC METHODS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	/****************************************************************************
+	 **
+	 ** Answer if an If-None-Match header value matches the given ETag
+	 */
+
+	public static boolean matchesETag(String ifNoneMatch, String eTag) {
+		if (ifNoneMatch == null) {
+			return (false);
+		}
+		String[] tags = ifNoneMatch.split(",");
+		for (int i = 0; i < tags.length; i++) {
+			String tag = tags[i].trim();
+			if (tag.equals("*") || tag.equals(eTag)) {
+				return (true);
+			}
+		}
+		return (false);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PRIVATE METHODS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	/****************************************************************************
+	 **
+	 ** ETag is a digest of the payload, so identical output from different
+	 ** sessions revalidates against the same tag.
+	 */
+
+	private String buildETag(byte[] bytes) {
+		try {
+			MessageDigest md = MessageDigest.getInstance("MD5");
+			byte[] digest = md.digest(bytes);
+			StringBuffer buf = new StringBuffer();
+			buf.append('"');
+			for (int i = 0; i < digest.length; i++) {
+				String hex = Integer.toHexString(digest[i] & 0xFF);
+				if (hex.length() == 1) {
+					buf.append('0');
+				}
+				buf.append(hex);
+			}
+			buf.append('"');
+			return (buf.toString());
+		} catch (NoSuchAlgorithmException nsaex) {
+			throw new IllegalStateException(nsaex);
+		}
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PUBLIC CLASSES
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	/****************************************************************************
+	 **
+	 ** One cached response. Payload bytes must not be modified.
+	 */
+
+	public static class CachedResponse {
+		private final String contentType_;
+		private final byte[] bytes_;
+		private final String eTag_;
+
+		CachedResponse(String contentType, byte[] bytes, String eTag) {
+			contentType_ = contentType;
+			bytes_ = bytes;
+			eTag_ = eTag;
+		}
+
+		public String getContentType() {
+			return (contentType_);
+		}
+
+		public byte[] getBytes() {
+			return (bytes_);
+		}
+
+		public String getETag() {
+			return (eTag_);
+		}
+	}
+}
@@ -0,0 +1,410 @@
+/*
+ **    Copyright (C) 2003-2014 Institute for Systems Biology
+ **                            Seattle, Washington, USA.
+ **
+ **    This library is free software; you can redistribute it and/or
+ **    modify it under the terms of the GNU Lesser General Public
+ **    License as published by the Free Software Foundation; either
+ **    version 2.1 of the License, or (at your option) any later version.
+ **
+ **    This library is distributed in the hope that it will be useful,
+ **    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ **    Lesser General Public License for more details.
+ **
+ **    You should have received a copy of the GNU Lesser General Public
+ **    License along with this library; if not, write to the Free Software
+ **    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.systemsbiology.biotapestry.web;
+
+import java.util.EnumMap;
+import java.util.LinkedHashMap;
+import java.util.Map;
+import java.util.concurrent.atomic.AtomicInteger;
+
+import javax.servlet.http.HttpSessionBindingEvent;
+import javax.servlet.http.HttpSessionBindingListener;
+
+import org.systemsbiology.biotapestry.app.BTState;
+import org.systemsbiology.biotapestry.util.WaitTimedLock;
+import org.systemsbiology.biotapestry.web.BioTapServlet.RequestTargetType;
+
+import flexjson.JSONSerializer;
+
+/****************************************************************************
+ **
+ ** Request timing and resource use of the servlet: per-target latency
+ ** histograms, requests in flight, lock waits, live sessions, heap and cache
+ ** hit ratios. Served as JSON by the metrics target, and optionally as an MBean.
+ */
+
+public class ServletMetrics implements ServletMetricsMBean {
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PRIVATE CONSTANTS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	//
+	// Upper bounds of the latency histogram buckets. Slower requests land in
+	// one last overflow bucket.
+	//
+
+	private static final long[] BUCKET_MILLIS_ = {1L, 2L, 5L, 10L, 25L, 50L, 100L, 250L, 500L, 1000L, 2500L, 5000L, 10000L};
+
+	private static final double NANOS_PER_MILLI_ = 1000000.0;
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PRIVATE MEMBERS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	private final EnumMap<RequestTargetType, TargetStats> targets_;
+	private final AtomicInteger inFlight_;
+	private final AtomicInteger liveSessions_;
+	private final WaitTimedLock.WaitStats globalLockWaits_;
+	private final ResponseCache responseCache_;
+	private final ResponseCache tileCache_;
+	private final ModelFileCache modelCache_;
+	private final long startTime_;
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PUBLIC CONSTRUCTORS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	public ServletMetrics(ResponseCache responseCache, ResponseCache tileCache, ModelFileCache modelCache) {
+		responseCache_ = responseCache;
+		tileCache_ = tileCache;
+		modelCache_ = modelCache;
+		targets_ = new EnumMap<RequestTargetType, TargetStats>(RequestTargetType.class);
+		for (RequestTargetType target : RequestTargetType.values()) {
+			targets_.put(target, new TargetStats());
+		}
+		inFlight_ = new AtomicInteger();
+		liveSessions_ = new AtomicInteger();
+		globalLockWaits_ = new WaitTimedLock.WaitStats();
+		startTime_ = System.currentTimeMillis();
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PUBLIC METHODS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	/****************************************************************************
+	 **
+	 ** Note a request has started. Returns the start time to hand back to
+	 ** requestFinished().
+	 */
+
+	public long requestStarted(RequestTargetType target) {
+		inFlight_.incrementAndGet();
+		targets_.get(target).started();
+		return (System.nanoTime());
+	}
+
+	/****************************************************************************
+	 **
+	 ** Note a request has finished
+	 */
+
+	public void requestFinished(RequestTargetType target, long startNanos, boolean failed) {
+		targets_.get(target).finished(System.nanoTime() - startNanos, failed);
+		inFlight_.decrementAndGet();
+		return;
+	}
+
+	/****************************************************************************
+	 **
+	 ** Waits for the servlet-wide session lookup lock
+	 */
+
+	public WaitTimedLock.WaitStats getGlobalLockWaits() {
+		return (globalLockWaits_);
+	}
+
+	/****************************************************************************
+	 **
+	 ** Get an object to store in a new session. It counts the session as live
+	 ** until the session is invalidated or expires.
+	 */
+
+	public HttpSessionBindingListener newSessionCounter() {
+		return (new SessionCounter());
+	}
+
+	/****************************************************************************
+	 **
+	 ** Everything, for the metrics target
+	 */
+
+	public Map<String, Object> getMetricsMap() {
+		LinkedHashMap<String, Object> retval = new LinkedHashMap<String, Object>();
+		retval.put("uptimeSeconds", Long.valueOf((System.currentTimeMillis() - startTime_) / 1000L));
+		retval.put("inFlightRequests", Integer.valueOf(getInFlightRequests()));
+		retval.put("liveSessions", Integer.valueOf(getLiveSessions()));
+
+		Runtime rt = Runtime.getRuntime();
+		LinkedHashMap<String, Object> heap = new LinkedHashMap<String, Object>();
+		heap.put("usedBytes", Long.valueOf(rt.totalMemory() - rt.freeMemory()));
+		heap.put("maxBytes", Long.valueOf(rt.maxMemory()));
+		heap.put("approxPerSessionBytes", Long.valueOf(getApproxHeapPerSessionBytes()));
+		retval.put("heap", heap);
+
+		LinkedHashMap<String, Object> locks = new LinkedHashMap<String, Object>();
+		locks.put("session", lockMap(BTState.getSessionLockWaitStats()));
+		locks.put("global", lockMap(globalLockWaits_));
+		retval.put("lockWaits", locks);
+
+		LinkedHashMap<String, Object> caches = new LinkedHashMap<String, Object>();
+		caches.put("response", cacheMap(responseCache_));
+		caches.put("tile", cacheMap(tileCache_));
+		LinkedHashMap<String, Object> models = new LinkedHashMap<String, Object>();
+		models.put("hits", Long.valueOf(modelCache_.getHitCount()));
+		models.put("parses", Long.valueOf(modelCache_.getParseCount()));
+		models.put("hitRatio", Double.valueOf(getModelFileCacheHitRatio()));
+		caches.put("modelFile", models);
+		retval.put("caches", caches);
+
+		LinkedHashMap<String, Object> targets = new LinkedHashMap<String, Object>();
+		for (Map.Entry<RequestTargetType, TargetStats> entry : targets_.entrySet()) {
+			Map<String, Object> stats = entry.getValue().getStatsMap();
+			if (stats != null) {
+				targets.put(entry.getKey().toString(), stats);
+			}
+		}
+		retval.put("targets", targets);
+		return (retval);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// MBEAN METHODS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	public int getInFlightRequests() {
+		return (inFlight_.get());
+	}
+
+	public int getLiveSessions() {
+		return (liveSessions_.get());
+	}
+
+	public long getRequestCount() {
+		long retval = 0L;
+		for (TargetStats stats : targets_.values()) {
+			retval += stats.getCount();
+		}
+		return (retval);
+	}
+
+	public long getErrorCount() {
+		long retval = 0L;
+		for (TargetStats stats : targets_.values()) {
+			retval += stats.getErrorCount();
+		}
+		return (retval);
+	}
+
+	public double getMeanRequestMillis() {
+		long count = 0L;
+		long nanos = 0L;
+		for (TargetStats stats : targets_.values()) {
+			synchronized (stats) {
+				count += stats.count_;
+				nanos += stats.totalNanos_;
+			}
+		}
+		return ((count == 0L) ? 0.0 : (nanos / NANOS_PER_MILLI_) / count);
+	}
+
+	public long getSessionLockContendedCount() {
+		return (BTState.getSessionLockWaitStats().getContendedCount());
+	}
+
+	public double getSessionLockWaitMillis() {
+		return (BTState.getSessionLockWaitStats().getTotalNanos() / NANOS_PER_MILLI_);
+	}
+
+	public long getGlobalLockContendedCount() {
+		return (globalLockWaits_.getContendedCount());
+	}
+
+	public double getGlobalLockWaitMillis() {
+		return (globalLockWaits_.getTotalNanos() / NANOS_PER_MILLI_);
+	}
+
+	public double getResponseCacheHitRatio() {
+		return (ratio(responseCache_.getHitCount(), responseCache_.getMissCount()));
+	}
+
+	public double getTileCacheHitRatio() {
+		return (ratio(tileCache_.getHitCount(), tileCache_.getMissCount()));
+	}
+
+	public double getModelFileCacheHitRatio() {
+		return (ratio(modelCache_.getHitCount(), modelCache_.getParseCount()));
+	}
+
+	/****************************************************************************
+	 **
+	 ** A rough upper bound for sizing: the heap in use, shared caches included,
+	 ** spread over the live sessions.
+	 */
+
+	public long getApproxHeapPerSessionBytes() {
+		Runtime rt = Runtime.getRuntime();
+		return ((rt.totalMemory() - rt.freeMemory()) / Math.max(1, liveSessions_.get()));
+	}
+
+	public String getMetricsJSON() {
+		return (new JSONSerializer().exclude("*.class").deepSerialize(getMetricsMap()));
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PRIVATE METHODS
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	private double ratio(long hits, long misses) {
+		long total = hits + misses;
+		return ((total == 0L) ? 0.0 : (double)hits / (double)total);
+	}
+
+	private Map<String, Object> lockMap(WaitTimedLock.WaitStats stats) {
+		LinkedHashMap<String, Object> retval = new LinkedHashMap<String, Object>();
+		retval.put("count", Long.valueOf(stats.getCount()));
+		retval.put("contended", Long.valueOf(stats.getContendedCount()));
+		retval.put("totalMillis", Double.valueOf(stats.getTotalNanos() / NANOS_PER_MILLI_));
+		retval.put("maxMillis", Double.valueOf(stats.getMaxNanos() / NANOS_PER_MILLI_));
+		return (retval);
+	}
+
+	private Map<String, Object> cacheMap(ResponseCache cache) {
+		LinkedHashMap<String, Object> retval = new LinkedHashMap<String, Object>();
+		retval.put("hits", Long.valueOf(cache.getHitCount()));
+		retval.put("misses", Long.valueOf(cache.getMissCount()));
+		retval.put("hitRatio", Double.valueOf(ratio(cache.getHitCount(), cache.getMissCount())));
+		retval.put("bytes", Long.valueOf(cache.getCurrentBytes()));
+		return (retval);
+	}
+
+	////////////////////////////////////////////////////////////////////////////
+	//
+	// PRIVATE CLASSES
+	//
+	////////////////////////////////////////////////////////////////////////////
+
+	/****************************************************************************
+	 **
+	 ** Timing for one request target
+	 */
+
+	private static class TargetStats {
+		private long count_;
+		private long errors_;
+		private int inFlight_;
+		private long totalNanos_;
+		private long maxNanos_;
+		private final long[] buckets_ = new long[BUCKET_MILLIS_.length + 1];
+
+		synchronized void started() {
+			inFlight_++;
+			return;
+		}
+
+		synchronized void finished(long nanos, boolean failed) {
+			inFlight_--;
+			count_++;
+			if (failed) {
+				errors_++;
+			}
+			totalNanos_ += nanos;
+			if (nanos > maxNanos_) {
+				maxNanos_ = nanos;
+			}
+			long millis = nanos / 1000000L;
+			int bucket = 0;
+			while ((bucket < BUCKET_MILLIS_.length) && (millis >= BUCKET_MILLIS_[bucket])) {
+				bucket++;
+			}
+			buckets_[bucket]++;
+			return;
+		}
+
+		synchronized long getCount() {
+			return (count_);
+		}
+
+		synchronized long getErrorCount() {
+			return (errors_);
+		}
+
+		/****************************************************************************
+		 **
+		 ** Null if the target has never been asked for. Percentiles are bucket
+		 ** upper bounds (or the max for the overflow bucket).
+		 */
+
+		synchronized Map<String, Object> getStatsMap() {
+			if ((count_ == 0L) && (inFlight_ == 0)) {
+				return (null);
+			}
+			LinkedHashMap<String, Object> retval = new LinkedHashMap<String, Object>();
+			retval.put("count", Long.valueOf(count_));
+			retval.put("errors", Long.valueOf(errors_));
+			retval.put("inFlight", Integer.valueOf(inFlight_));
+			retval.put("meanMillis", Double.valueOf((count_ == 0L) ? 0.0 : (totalNanos_ / NANOS_PER_MILLI_) / count_));
+			retval.put("maxMillis", Double.valueOf(maxNanos_ / NANOS_PER_MILLI_));
+			retval.put("p50Millis", Double.valueOf(percentile(0.50)));
+			retval.put("p95Millis", Double.valueOf(percentile(0.95)));
+			retval.put("p99Millis", Double.valueOf(percentile(0.99)));
+			LinkedHashMap<String, Object> histo = new LinkedHashMap<String, Object>();
+			for (int i = 0; i < BUCKET_MILLIS_.length; i++) {
+				histo.put("<" + BUCKET_MILLIS_[i], Long.valueOf(buckets_[i]));
+			}
+			histo.put(">=" + BUCKET_MILLIS_[BUCKET_MILLIS_.length - 1], Long.valueOf(buckets_[BUCKET_MILLIS_.length]));
+			retval.put("histogramMillis", histo);
+			return (retval);
+		}
+
+		private double percentile(double fraction) {
+			long want = (long)Math.ceil(count_ * fraction);
+			long seen = 0L;
+			for (int i = 0; i < BUCKET_MILLIS_.length; i++) {
+				seen += buckets_[i];
+				if ((seen >= want) && (seen > 0L)) {
+					return ((double)BUCKET_MILLIS_[i]);
+				}
+			}
+			return (maxNanos_ / NANOS_PER_MILLI_);
+		}
+	}
+
+	/****************************************************************************
+	 **
+	 ** Counts a session as live while it is bound into the session
+	 */
+
+	private class SessionCounter implements HttpSessionBindingListener {
+
+		public void valueBound(HttpSessionBindingEvent event) {
+			liveSessions_.incrementAndGet();
+			return;
+		}
+
+		public void valueUnbound(HttpSessionBindingEvent event) {
+			liveSessions_.decrementAndGet();
+			return;
+		}
+	}
+}
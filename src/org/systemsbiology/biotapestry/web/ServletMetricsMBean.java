@@ -0,0 +1,62 @@
+/*
+ **    Copyright (C) 2003-2014 Institute for Systems Biology
+ **                            Seattle, Washington, USA.
+ **
+ **    This library is free software; you can redistribute it and/or
+ **    modify it under the terms of the GNU Lesser General Public
+ **    License as published by the Free Software Foundation; either
+ **    version 2.1 of the License, or (at your option) any later version.
+ **
+ **    This library is distributed in the hope that it will be useful,
+ **    but WITHOUT ANY WARRANTY; without even the implied warranty of
+ **    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the GNU
+ **    Lesser General Public License for more details.
+ **
+ **    You should have received a copy of the GNU Lesser General Public
+ **    License along with this library; if not, write to the Free Software
+ **    Foundation, Inc., 59 Temple Place, Suite 330, Boston, MA  02111-1307  USA
+ */
+
+package org.systemsbiology.biotapestry.web;
+
+/****************************************************************************
+ **
+ ** JMX view of the servlet metrics
+ */
+
+public interface ServletMetricsMBean {
+
+	public int getInFlightRequests();
+
+	public int getLiveSessions();
+
+	public long getRequestCount();
+
+	public long getErrorCount();
+
+	public double getMeanRequestMillis();
+
+	public long getSessionLockContendedCount();
+
+	public double getSessionLockWaitMillis();
+
+	public long getGlobalLockContendedCount();
+
+	public double getGlobalLockWaitMillis();
+
+	public double getResponseCacheHitRatio();
+
+	public double getTileCacheHitRatio();
+
+	public double getModelFileCacheHitRatio();
+
+	public long getApproxHeapPerSessionBytes();
+
+	/****************************************************************************
+	 **
+	 ** Everything, including the per-target histograms, as served by the
+	 ** metrics target
+	 */
+
+	public String getMetricsJSON();
+}